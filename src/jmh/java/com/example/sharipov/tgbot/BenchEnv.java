@@ -0,0 +1,54 @@
+package com.example.sharipov.tgbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.time.Duration;
+
+/**
+ * Полный стек ChatService на временной БД и локальной заглушке LLM —
+ * собран так же, как в Main.
+ */
+final class BenchEnv implements AutoCloseable {
+
+    final File dbFile;
+    final FakeLlmServer llm;
+    final ChatHistoryRepository repo;
+    final HistoryWriter writer;
+    final HistoryCache cache;
+    final RouterClient client;
+    final ChatService chatService;
+
+    BenchEnv(long llmLatencyMs, int historyLimit) throws IOException, SQLException {
+        this(new FakeLlmServer.Options(llmLatencyMs, 0, 0, 4, "Конечно! Вот короткий ответ заглушки."), historyLimit);
+    }
+
+    BenchEnv(FakeLlmServer.Options llmOptions, int historyLimit) throws IOException, SQLException {
+        dbFile = Files.createTempFile("tgbot-bench", ".db").toFile();
+        llm = new FakeLlmServer(llmOptions);
+
+        repo = new ChatHistoryRepository(dbFile.getPath(), 4);
+        repo.init();
+        writer = new HistoryWriter(repo, 10_000, 256, Duration.ofMillis(20));
+        cache = new HistoryCache(repo, writer, historyLimit, 10_000, 64L << 20, Duration.ofMinutes(10));
+        client = new RouterClient(llm.url(), "bench-key", Duration.ofSeconds(5), "https://t.me/bench", "TgBotBench");
+
+        chatService = new ChatService(
+                cache,
+                client,
+                new ResponseCache(0, Duration.ZERO),
+                new ContextBuilder(TokenEstimator.approximate(), 4000),
+                null,
+                new SettingsStore(null, new ChatSettings("stub-model", "", "Ты дружелюбный бот группового чата.", 0.3, 0.8, 64)),
+                historyLimit);
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+        repo.close();
+        llm.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) new File(dbFile.getPath() + suffix).delete();
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.sharipov.tgbot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Полный ChatService.reply: история, сборка запроса, HTTP к локальной заглушке, запись. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatReplyBench {
+
+    @Param({"1", "1000"})
+    int chats;
+
+    BenchEnv env;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        env = new BenchEnv(0, 8);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        env.close();
+    }
+
+    @Benchmark
+    public String reply() {
+        long chatId = ThreadLocalRandom.current().nextInt(chats);
+        return env.chatService.reply(chatId, "Как дела? Расскажи что-нибудь интересное.");
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.sharipov.tgbot;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.telegram.telegrambots.meta.api.objects.MessageEntity;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор команд и предфильтр групповых сообщений.
+ * legacy* — прежняя цепочка equals/startsWith и toLowerCase().contains("@bot"),
+ * registry* и mentions* — CommandRegistry и TgBotApplication.mentionsBot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBench {
+
+    static final String BOT_USERNAME = "random_bench_bot";
+
+    // Обычное сообщение группы, которое не адресовано боту, — большая часть трафика
+    static final String GROUP_PLAIN = "Ребята, кто идёт сегодня вечером на встречу? Напишите до шести, чтобы забронировать стол.";
+    static final List<MessageEntity> NO_ENTITIES = null;
+    static final String GROUP_MENTION = "@" + BOT_USERNAME + " подскажи рецепт борща";
+    static final List<MessageEntity> MENTION_ENTITIES = List.of(new MessageEntity("mention", 0, BOT_USERNAME.length() + 1));
+
+    static final String[] COMMANDS = {
+            "/help_random_bot",
+            "/set_temp_random_bot 0.7",
+            "/set_prompt_random_bot Ты строгий учитель математики",
+            "/get_settings_random_bot@" + BOT_USERNAME,
+            "/unknown_command",
+    };
+
+    CommandRegistry registry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new CommandRegistry(BOT_USERNAME, (chatId, text) -> { });
+        CommandRegistry.Handler<Void> noop = (chatId, none) -> { };
+        for (String name : new String[]{"help_random_bot", "start_random_bot", "get_settings_random_bot", "reset_settings_random_bot"}) {
+            registry.register(name, noop);
+        }
+        registry.register("set_mp_random_bot", "", CommandRegistry.wordAndRest(), (chatId, v) -> { });
+        registry.register("set_temp_random_bot", "", CommandRegistry.doubleIn(0, 2, ""), (chatId, v) -> { });
+        registry.register("set_top_p_random_bot", "", CommandRegistry.doubleIn(0, 1, ""), (chatId, v) -> { });
+        registry.register("set_tokens_random_bot", "", CommandRegistry.intIn(1, 4096, ""), (chatId, v) -> { });
+        registry.register("set_prompt_random_bot", "", CommandRegistry.nonBlank(), (chatId, v) -> { });
+    }
+
+    @Benchmark
+    public void legacyCommandMatch(Blackhole bh) {
+        for (String text : COMMANDS) bh.consume(legacyMatch(text));
+    }
+
+    @Benchmark
+    public void registryCommandMatch(Blackhole bh) {
+        for (String text : COMMANDS) bh.consume(registry.matches(text));
+    }
+
+    @Benchmark
+    public void registryDispatch(Blackhole bh) throws Exception {
+        for (String text : COMMANDS) bh.consume(registry.dispatch(1L, text));
+    }
+
+    @Benchmark
+    public boolean legacyPrefilterPlain() {
+        return legacyTagged(GROUP_PLAIN);
+    }
+
+    @Benchmark
+    public boolean mentionsPrefilterPlain() {
+        return TgBotApplication.mentionsBot(GROUP_PLAIN, NO_ENTITIES, BOT_USERNAME);
+    }
+
+    @Benchmark
+    public boolean legacyPrefilterMention() {
+        return legacyTagged(GROUP_MENTION);
+    }
+
+    @Benchmark
+    public boolean mentionsPrefilterMention() {
+        return TgBotApplication.mentionsBot(GROUP_MENTION, MENTION_ENTITIES, BOT_USERNAME);
+    }
+
+    // Копия прежней цепочки из handleUpdate — только сопоставление, без обработчиков
+    private static int legacyMatch(String text) {
+        if (text.equals("/help_random_bot") || text.equals("/start_random_bot")) return 1;
+        if (text.startsWith("/set_mp_random_bot ")) return 2;
+        if (text.equals("/get_settings_random_bot")) return 3;
+        if (text.equals("/reset_settings_random_bot")) return 4;
+        if (text.startsWith("/set_temp_random_bot ")) return 5;
+        if (text.startsWith("/set_top_p_random_bot ")) return 6;
+        if (text.startsWith("/set_tokens_random_bot ")) return 7;
+        if (text.startsWith("/set_prompt_random_bot ")) return 8;
+        return 0;
+    }
+
+    private static boolean legacyTagged(String text) {
+        String botTag = "@" + BOT_USERNAME.toLowerCase();
+        return text.toLowerCase().contains(botTag);
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.sharipov.tgbot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UpdateDispatcher при медленном LLM (задача спит LLM_MS): пропускная способность
+ * должна расти с числом чатов, а внутри одного чата задачи идут строго по очереди.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class DispatcherBench {
+
+    static final int UPDATES = 64;
+    static final long LLM_MS = 20;
+
+    @Param({"1", "4", "16", "64"})
+    int chats;
+
+    UpdateDispatcher dispatcher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = new UpdateDispatcher(256, Duration.ofSeconds(10));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(UPDATES)
+    public void slowBackend() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(UPDATES);
+        for (int i = 0; i < UPDATES; i++) {
+            dispatcher.submit(i % chats, () -> {
+                try {
+                    Thread.sleep(LLM_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+}
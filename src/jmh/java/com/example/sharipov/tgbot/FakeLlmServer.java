@@ -0,0 +1,158 @@
+package com.example.sharipov.tgbot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Локальный сервер, говорящий на протоколе OpenRouter chat-completions:
+ * задержка из логнормального распределения (медиана + sigma), доля ошибок 500/429,
+ * SSE-ответ для запросов со "stream": true. Обычный ответ сжимается gzip, если клиент
+ * его принимает; обрыв соединения клиентом до ответа считается в aborted.
+ */
+final class FakeLlmServer implements AutoCloseable {
+
+    static {
+        // Иначе заголовки и тело уходят разными сегментами и ловят delayed ACK (~40 мс)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    record Options(long medianLatencyMs, double latencySigma, double errorRate, int streamChunks, String content) {
+        static Options instant(String content) {
+            return new Options(0, 0, 0, 4, content);
+        }
+    }
+
+    private final Options options;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    final LongAdder requests = new LongAdder();
+    final LongAdder streamed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder gzipped = new LongAdder();
+    final LongAdder aborted = new LongAdder();
+
+    FakeLlmServer(Options options) throws IOException {
+        this.options = options;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newCachedThreadPool(UpdateDispatcher.daemonFactory("fake-llm"));
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/chat/completions";
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        // Прогрев и keep-alive RouterClient — только соединение, без генерации
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.sendResponseHeaders(405, -1);
+            ex.close();
+            return;
+        }
+        requests.increment();
+        String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        boolean stream = body.contains("\"stream\":true");
+        long latencyMs = sampleLatencyMs();
+
+        try {
+            if (ThreadLocalRandom.current().nextDouble() < options.errorRate()) {
+                failed.increment();
+                sleep(latencyMs / 4);
+                int status = ThreadLocalRandom.current().nextBoolean() ? 500 : 429;
+                send(ex, status, "{\"error\":{\"code\":" + status + ",\"message\":\"fake failure\"}}");
+            } else if (stream) {
+                streamed.increment();
+                stream(ex, latencyMs);
+            } else {
+                sleep(latencyMs);
+                send(ex, 200, completion(options.content()));
+            }
+        } catch (IOException e) {
+            aborted.increment();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void stream(HttpExchange ex, long latencyMs) throws IOException {
+        ex.getResponseHeaders().add("Content-Type", "text/event-stream");
+        ex.sendResponseHeaders(200, 0);
+
+        String content = options.content();
+        int chunks = Math.max(1, options.streamChunks());
+        int step = Math.max(1, content.length() / chunks);
+        // ~30% задержки до первого токена, остальное — между чанками
+        sleep(latencyMs * 3 / 10);
+
+        OutputStream out = ex.getResponseBody();
+        out.write(": OPENROUTER PROCESSING\n\n".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < content.length(); i += step) {
+            String part = content.substring(i, Math.min(content.length(), i + step));
+            String event = "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + part + "\"}}]}\n\n";
+            out.write(event.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            sleep(latencyMs * 7 / 10 / chunks);
+        }
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length);
+            try (GZIPOutputStream gz = new GZIPOutputStream(buf)) {
+                gz.write(bytes);
+            }
+            bytes = buf.toByteArray();
+            ex.getResponseHeaders().add("Content-Encoding", "gzip");
+            gzipped.increment();
+        }
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(status, bytes.length);
+        ex.getResponseBody().write(bytes);
+    }
+
+    static String completion(String content) {
+        return "{\"id\":\"gen-fake\",\"model\":\"fake\",\"choices\":[{\"index\":0,\"message\":"
+                + "{\"role\":\"assistant\",\"content\":\"" + content + "\"},\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":100,\"completion_tokens\":20,\"total_tokens\":120}}";
+    }
+
+    private long sampleLatencyMs() {
+        if (options.medianLatencyMs() <= 0) return 0;
+        Random rnd = ThreadLocalRandom.current();
+        return Math.round(options.medianLatencyMs() * Math.exp(options.latencySigma() * rnd.nextGaussian()));
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.ChatHistoryRepository.Checkpoint;
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Сжатие history.content на синтетической переписке: размер файла БД, доля его страниц,
+ * влезающая в кэш страниц читателя SQLite (оценка попаданий при случайном выборе чата),
+ * латентность loadLastMessages и скорость записи. Режимы: без сжатия, со сжатием
+ * (словарь обучается после первых 10% истории, как это сделает HistoryMaintenance)
+ * и миграция файла без сжатия на схему со сжатием. Каждое прочитанное сообщение
+ * сверяется с записанным.
+ *
+ *   java -Dtgbot.log.level=WARN -cp target/benchmarks.jar com.example.sharipov.tgbot.HistoryCompressionReport \
+ *        chats=1000 perChat=100 minBytes=64 loads=20000 limit=20
+ */
+public class HistoryCompressionReport {
+
+    // PRAGMA cache_size по умолчанию: -2000 = 2000 КиБ на соединение
+    private static final long READER_CACHE_BYTES = 2000L * 1024;
+
+    private static final String[] WORDS = (
+            "привет спасибо подскажи пожалуйста как лучше сделать можно ли нужно если то что это "
+            + "почему когда где сколько какой вопрос ответ пример код функция метод класс объект "
+            + "список массив строка число ошибка исключение поток память база данных запрос таблица "
+            + "индекс сервер клиент сеть сообщение бот чат пользователь настройки модель температура "
+            + "история контекст файл папка проект сборка тест версия библиотека зависимость работает "
+            + "не работает падает долго быстро медленно удобно правильно неправильно сначала потом "
+            + "например обычно всегда иногда никогда очень совсем просто сложно важно кажется думаю "
+            + "знаю хочу могу буду был была было были есть нет да и или но а в на с по для из от до "
+            + "при без над под про через между после перед около Java Python SQL HTTP JSON Docker"
+    ).split(" ");
+
+    private static final String[] OPENERS = {
+            "Привет! ", "Подскажи, пожалуйста, ", "Слушай, ", "Спасибо! А ", "Вопрос: ", "", "", "",
+    };
+
+    private static final String[] REPLY_PARTS = {
+            "Хороший вопрос. ", "Коротко: ", "Вот как это обычно делают:\n\n", "1. ", "2. ", "3. ",
+            "\n\n```java\n", "\n```\n\n", "Обратите внимание: ", "Если нужно, могу показать пример подробнее.",
+            "**Важно:** ", "- ",
+    };
+
+    record Result(String mode, long fileBytes, long pageCount, long pageSize, double writesPerSec,
+                  double p50us, double p99us, long migrateMs) {}
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        int chats = Integer.parseInt(opts.getOrDefault("chats", "1000"));
+        int perChat = Integer.parseInt(opts.getOrDefault("perChat", "100"));
+        int minBytes = Integer.parseInt(opts.getOrDefault("minBytes", String.valueOf(ContentCodec.DEFAULT_MIN_BYTES)));
+        int loads = Integer.parseInt(opts.getOrDefault("loads", "20000"));
+        int limit = Integer.parseInt(opts.getOrDefault("limit", "20"));
+
+        List<Result> results = new ArrayList<>();
+        results.add(run("plain", chats, perChat, -1, -1, loads, limit));
+        results.add(run("compressed", chats, perChat, minBytes, minBytes, loads, limit));
+        results.add(run("migrated", chats, perChat, -1, minBytes, loads, limit));
+
+        long rawBytes = 0;
+        for (int c = 0; c < chats; c++) for (int i = 1; i <= perChat; i++) rawBytes += text(c, i).getBytes("UTF-8").length;
+        System.out.printf("%nchats=%d perChat=%d rawContentMb=%.1f minBytes=%d limit=%d%n",
+                chats, perChat, rawBytes / 1e6, minBytes, limit);
+        System.out.printf("%-11s %9s %8s %12s %11s %9s %9s %10s%n",
+                "mode", "fileMb", "pages", "estPageHit%", "writes/s", "p50 us", "p99 us", "migrateMs");
+        for (Result r : results) {
+            double coverage = Math.min(1.0, (double) READER_CACHE_BYTES / r.pageSize() / r.pageCount());
+            System.out.printf("%-11s %9.1f %8d %12.1f %11.0f %9.1f %9.1f %10s%n",
+                    r.mode(), r.fileBytes() / 1e6, r.pageCount(), coverage * 100, r.writesPerSec(),
+                    r.p50us(), r.p99us(), r.migrateMs() < 0 ? "-" : String.valueOf(r.migrateMs()));
+        }
+    }
+
+    // writeMinBytes — сжатие при заполнении, readMinBytes — при повторном открытии (миграция)
+    private static Result run(String mode, int chats, int perChat, int writeMinBytes, int readMinBytes,
+                              int loads, int limit) throws Exception {
+        File dbFile = Files.createTempFile("tgbot-compress", ".db").toFile();
+        dbFile.delete();
+        try {
+            long writeNanos;
+            ChatHistoryRepository repo = new ChatHistoryRepository(dbFile.getPath(), 4, writeMinBytes);
+            try {
+                repo.init();
+                long t0 = System.nanoTime();
+                // Чаты пишутся вперемешку, по одному сообщению за проход — как в жизни
+                List<WriteOp> ops = new ArrayList<>(1000);
+                for (int i = 1; i <= perChat; i++) {
+                    for (int c = 0; c < chats; c++) {
+                        ops.add(WriteOp.append(c, i % 2 == 1 ? "user" : "assistant", text(c, i)));
+                        if (ops.size() == 1000) {
+                            repo.writeBatch(ops);
+                            ops.clear();
+                        }
+                    }
+                    if (i == Math.max(1, perChat / 10) && writeMinBytes >= 0) {
+                        repo.writeBatch(ops);
+                        ops.clear();
+                        if (!repo.trainDictionary()) System.out.println(mode + ": not enough history to train a dictionary");
+                    }
+                }
+                repo.writeBatch(ops);
+                writeNanos = System.nanoTime() - t0;
+            } finally {
+                repo.close();
+            }
+
+            long migrateMs = -1;
+            repo = new ChatHistoryRepository(dbFile.getPath(), 4, readMinBytes);
+            try {
+                long t0 = System.nanoTime();
+                repo.init();
+                // Миграция (сжатие строк и VACUUM) выполняется внутри init()
+                if (writeMinBytes != readMinBytes) migrateMs = (System.nanoTime() - t0) / 1_000_000;
+                repo.walCheckpoint(Checkpoint.TRUNCATE);
+
+                verify(repo, chats, perChat, limit);
+                long[] lat = new long[loads];
+                Random rnd = new Random(7);
+                for (int n = 0; n < loads; n++) {
+                    long s = System.nanoTime();
+                    repo.loadLastMessages(rnd.nextInt(chats), limit);
+                    lat[n] = System.nanoTime() - s;
+                }
+                Arrays.sort(lat);
+
+                long[] pages = pages(dbFile);
+                return new Result(mode, dbFile.length(), pages[0], pages[1],
+                        (double) chats * perChat / (writeNanos / 1e9),
+                        lat[loads / 2] / 1e3, lat[(int) (loads * 0.99)] / 1e3, migrateMs);
+            } finally {
+                repo.close();
+            }
+        } finally {
+            for (String suffix : new String[]{"", "-wal", "-shm"}) new File(dbFile.getPath() + suffix).delete();
+        }
+    }
+
+    private static void verify(ChatHistoryRepository repo, int chats, int perChat, int limit) throws SQLException {
+        for (int c = 0; c < chats; c++) {
+            List<HistoryMessage> got = repo.loadLastMessages(c, limit);
+            int first = perChat - got.size() + 1;
+            for (int k = 0; k < got.size(); k++) {
+                if (!got.get(k).content().equals(text(c, first + k))) {
+                    throw new IllegalStateException("Content mismatch chat=" + c + " index=" + (first + k));
+                }
+            }
+        }
+    }
+
+    private static long[] pages(File dbFile) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+             Statement st = conn.createStatement()) {
+            long count, size;
+            try (ResultSet rs = st.executeQuery("PRAGMA page_count")) { rs.next(); count = rs.getLong(1); }
+            try (ResultSet rs = st.executeQuery("PRAGMA page_size")) { rs.next(); size = rs.getLong(1); }
+            return new long[]{count, size};
+        }
+    }
+
+    // Детерминирован по (чат, индекс): сверка не хранит записанное. Нечётные — реплики
+    // пользователя (короткие), чётные — ответы бота (длиннее, со структурой markdown)
+    static String text(int chat, int index) {
+        Random rnd = new Random(chat * 1_000_003L + index);
+        StringBuilder sb = new StringBuilder();
+        if (index % 2 == 1) {
+            sb.append(OPENERS[rnd.nextInt(OPENERS.length)]);
+            words(sb, rnd, 3 + rnd.nextInt(rnd.nextInt(4) == 0 ? 40 : 12));
+            sb.append(rnd.nextBoolean() ? "?" : ".");
+        } else {
+            int parts = 2 + rnd.nextInt(8);
+            for (int p = 0; p < parts; p++) {
+                sb.append(REPLY_PARTS[rnd.nextInt(REPLY_PARTS.length)]);
+                words(sb, rnd, 5 + rnd.nextInt(20));
+                sb.append(". ");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void words(StringBuilder sb, Random rnd, int n) {
+        for (int w = 0; w < n; w++) {
+            if (w > 0) sb.append(rnd.nextInt(12) == 0 ? ", " : " ");
+            // Частые слова чаще: квадрат равномерного смещает выбор к началу списка
+            double u = rnd.nextDouble();
+            sb.append(WORDS[(int) (u * u * WORDS.length)]);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChatHistoryRepository на временном файле SQLite.
+ * Параллельные чтения по размеру пула читателей:
+ *   java -jar target/benchmarks.jar HistoryRepositoryBench.loadLastMessages -t 8 -p readers=1,2,4,8
+ * (корректность тех же чтений под записью проверяет ChatHistoryRepositoryTest)
+ * Сравнение записи: replySync — прежний путь (2 append + trim, каждый своим коммитом),
+ * replyBatched — те же операции через writeBatch по BATCH ответов в одной транзакции,
+ * replyAppendOnly — нынешний путь: только append'ы, обрезку делает HistoryMaintenance в фоне.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryRepositoryBench {
+
+    static final int BATCH = 64;
+
+    @Param({"8", "40", "200"})
+    int historySize;
+
+    @Param({"1", "100", "1000"})
+    int chats;
+
+    // Соединений в пуле чтения ChatHistoryRepository
+    @Param({"8"})
+    int readers;
+
+    File dbFile;
+    ChatHistoryRepository repo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        dbFile = Files.createTempFile("tgbot-bench", ".db").toFile();
+        repo = new ChatHistoryRepository(dbFile.getPath(), readers);
+        repo.init();
+
+        List<WriteOp> ops = new ArrayList<>();
+        for (int c = 0; c < chats; c++) {
+            for (int i = 0; i < historySize; i++) {
+                ops.add(WriteOp.append(c, i % 2 == 0 ? "user" : "assistant", message(i)));
+                if (ops.size() >= 10_000) {
+                    repo.writeBatch(ops);
+                    ops.clear();
+                }
+            }
+        }
+        repo.writeBatch(ops);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        repo.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) new File(dbFile.getPath() + suffix).delete();
+    }
+
+    @Benchmark
+    public List<HistoryStore.HistoryMessage> loadLastMessages() throws SQLException {
+        return repo.loadLastMessages(randomChat(), 8);
+    }
+
+    @Benchmark
+    public void append() throws SQLException {
+        repo.append(randomChat(), "user", message(1));
+    }
+
+    @Benchmark
+    public void trimToLast() throws SQLException {
+        repo.trimToLast(randomChat(), historySize);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void replySync() throws SQLException {
+        for (int i = 0; i < BATCH; i++) {
+            long chatId = randomChat();
+            repo.append(chatId, "user", message(i));
+            repo.append(chatId, "assistant", message(i + 1));
+            repo.trimToLast(chatId, historySize);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void replyBatched() throws SQLException {
+        List<WriteOp> ops = new ArrayList<>(BATCH * 3);
+        for (int i = 0; i < BATCH; i++) {
+            long chatId = randomChat();
+            ops.add(WriteOp.append(chatId, "user", message(i)));
+            ops.add(WriteOp.append(chatId, "assistant", message(i + 1)));
+            ops.add(WriteOp.trim(chatId, historySize));
+        }
+        repo.writeBatch(ops);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void replyAppendOnly() throws SQLException {
+        List<WriteOp> ops = new ArrayList<>(BATCH * 2);
+        for (int i = 0; i < BATCH; i++) {
+            long chatId = randomChat();
+            ops.add(WriteOp.append(chatId, "user", message(i)));
+            ops.add(WriteOp.append(chatId, "assistant", message(i + 1)));
+        }
+        repo.writeBatch(ops);
+    }
+
+    private long randomChat() {
+        return ThreadLocalRandom.current().nextInt(chats);
+    }
+
+    static String message(int i) {
+        return i % 2 == 0
+                ? "Привет! Подскажи, пожалуйста, как лучше организовать хранение истории сообщений?"
+                : "Для истории диалога удобно хранить последние N сообщений на чат и периодически удалять старые.";
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Движки HistoryStore на одной нагрузке: sqlite (ChatHistoryRepository), log (SegmentLogStore),
+ * memory (InMemoryHistoryStore — нижняя граница). Чтения последних сообщений и запись
+ * одиночным append и пачкой, как её собирает HistoryWriter.
+ *   java -jar target/benchmarks.jar HistoryStoreBench -t 1,4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryStoreBench {
+
+    static final int BATCH = 64;
+
+    @Param({"sqlite", "log", "memory"})
+    String engine;
+
+    @Param({"40"})
+    int historySize;
+
+    @Param({"1000"})
+    int chats;
+
+    Path dir;
+    HistoryStore store;
+    // Тексты заранее: генерация не должна попадать в замер
+    String[] texts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        dir = Files.createTempDirectory("tgbot-store-bench");
+        store = switch (engine) {
+            case "sqlite" -> new ChatHistoryRepository(dir.resolve("history.db").toString(), 8);
+            case "log" -> new SegmentLogStore(dir.resolve("log"), 32L * 1024 * 1024);
+            default -> new InMemoryHistoryStore();
+        };
+        store.init();
+
+        texts = new String[256];
+        for (int i = 0; i < texts.length; i++) texts[i] = HistoryCompressionReport.text(i, i + 1);
+
+        List<WriteOp> ops = new ArrayList<>();
+        for (int i = 0; i < historySize; i++) {
+            for (int c = 0; c < chats; c++) {
+                ops.add(WriteOp.append(c, i % 2 == 0 ? "user" : "assistant", texts[(c + i) % texts.length]));
+                if (ops.size() >= 10_000) {
+                    store.writeBatch(ops);
+                    ops.clear();
+                }
+            }
+        }
+        store.writeBatch(ops);
+        store.checkpoint(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    // Хвост истории и обслуживание между итерациями: иначе запись бесконечно растит журнал
+    @TearDown(Level.Iteration)
+    public void maintain() throws SQLException {
+        HistoryStore.PruneBatch b = new HistoryStore.PruneBatch(-1, 0, 0);
+        do {
+            b = store.pruneToLast(b.lastChatId(), 500, historySize);
+        } while (b.chats() > 0);
+        while (store.reclaimSpace(64L * 1024 * 1024) > 0) {
+            // до конца
+        }
+        store.checkpoint(true);
+    }
+
+    @Benchmark
+    public List<HistoryStore.HistoryMessage> loadLastMessages() throws SQLException {
+        return store.loadLastMessages(randomChat(), 20);
+    }
+
+    @Benchmark
+    public void append() throws SQLException {
+        store.append(randomChat(), "user", texts[randomChat() % texts.length]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void writeBatch() throws SQLException {
+        List<WriteOp> ops = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) ops.add(WriteOp.append(randomChat(), "assistant", texts[i]));
+        store.writeBatch(ops);
+    }
+
+    private int randomChat() {
+        return ThreadLocalRandom.current().nextInt(chats);
+    }
+}
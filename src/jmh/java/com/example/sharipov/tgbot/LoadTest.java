@@ -0,0 +1,254 @@
+package com.example.sharipov.tgbot;
+
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.GetMe;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.ApiResponse;
+import org.telegram.telegrambots.meta.api.objects.User;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Офлайн-нагрузка: FakeLlmServer вместо OpenRouter, синтетические апдейты
+ * в TgBotApplication.onUpdateReceived с заданной частотой, исходящие execute()
+ * перехватываются. Латентность считается от запланированного момента подачи
+ * апдейта (без coordinated omission) до завершения последнего исходящего вызова
+ * ответа; апдейты без ответа — до конца обработки.
+ *
+ *   java -cp target/benchmarks.jar com.example.sharipov.tgbot.LoadTest \
+ *        rate=50 seconds=30 privateChats=200 groupChats=50 llmMedianMs=800 llmSigma=0.5 errorRate=0.02 stream=false \
+ *        followUpShare=0.3 coalesceMs=0 telegramLimits=false tg429Share=0 warmup=false
+ */
+public class LoadTest {
+
+    static final long BOT_ID = 777L;
+    static final String BOT_USERNAME = "random_load_bot";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq > 0) opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+
+        int rate = intOpt(opts, "rate", 50);
+        int seconds = intOpt(opts, "seconds", 30);
+        boolean stream = Boolean.parseBoolean(opts.getOrDefault("stream", "false"));
+
+        FakeLlmServer.Options llmOptions = new FakeLlmServer.Options(
+                intOpt(opts, "llmMedianMs", 800),
+                doubleOpt(opts, "llmSigma", 0.5),
+                doubleOpt(opts, "errorRate", 0.02),
+                intOpt(opts, "streamChunks", 8),
+                "Это ответ фейкового LLM: достаточно длинный, чтобы было что стримить по кусочкам.");
+
+        SyntheticUpdates updates = new SyntheticUpdates(
+                Long.parseLong(opts.getOrDefault("seed", "42")),
+                BOT_USERNAME,
+                BOT_ID,
+                intOpt(opts, "privateChats", 200),
+                intOpt(opts, "groupChats", 50),
+                doubleOpt(opts, "groupShare", 0.6),
+                doubleOpt(opts, "mentionShare", 0.2),
+                doubleOpt(opts, "replyShare", 0.1),
+                doubleOpt(opts, "commandShare", 0.02),
+                doubleOpt(opts, "followUpShare", 0));
+
+        try (BenchEnv env = new BenchEnv(llmOptions, 8)) {
+            UpdateDispatcher dispatcher = new UpdateDispatcher(
+                    intOpt(opts, "maxInFlight", 256), Duration.ofMillis(intOpt(opts, "submitTimeoutMs", 100)));
+            int coalesceMs = intOpt(opts, "coalesceMs", 0);
+            MessageCoalescer coalescer = coalesceMs > 0
+                    ? new MessageCoalescer(Duration.ofMillis(coalesceMs), Duration.ofMillis(intOpt(opts, "coalesceMaxDelayMs", 5000)))
+                    : null;
+            // telegramLimits=true — темп исходящих как в бою (см. OutboundSender.Options.defaults)
+            OutboundSender.Options outbound = Boolean.parseBoolean(opts.getOrDefault("telegramLimits", "false"))
+                    ? OutboundSender.Options.defaults()
+                    : OutboundSender.Options.unlimited();
+            int total = rate * seconds;
+            CapturingBot bot = new CapturingBot(env.chatService, dispatcher, coalescer, outbound, stream,
+                    doubleOpt(opts, "tg429Share", 0), total);
+
+            // warmup=true — как Main перед поллингом: GetMe, соединение с LLM, страницы БД
+            if (Boolean.parseBoolean(opts.getOrDefault("warmup", "false"))) {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                new StartupWarmup()
+                        .step("identity", () -> bot.resolveIdentity(deadline) ? "botId=" + bot.botId() : "failed")
+                        .step("llm", () -> "endpoints=" + env.client.warmUp(Duration.ofSeconds(5)))
+                        .step("db", () -> env.repo.warmUp(10_000))
+                        .run(Duration.ofSeconds(5));
+            }
+            bot.markReady();
+
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+            long start = System.nanoTime();
+
+            for (int i = 0; i < total; i++) {
+                long scheduled = start + i * intervalNanos;
+                long wait = scheduled - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+
+                SyntheticUpdates.Generated g = updates.next();
+                bot.submitted(g, scheduled);
+                bot.onUpdateReceived(g.update());
+            }
+
+            // Ждём хвост, но не бесконечно
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+            while ((bot.pending() > 0 || bot.outbound().pending() > 0) && System.nanoTime() < deadline) Thread.sleep(50);
+            long elapsed = System.nanoTime() - start;
+
+            dispatcher.close();
+            bot.outbound().close(1000);
+            bot.report(total, elapsed, env.llm);
+        }
+    }
+
+    /** TgBotApplication без сети: execute() перехватывается, фиксируется момент, когда ответ отправлен. */
+    static final class CapturingBot extends TgBotApplication {
+
+        private final Map<Integer, long[]> started = new ConcurrentHashMap<>();
+        private final long[] latencies;
+        private final AtomicInteger latencyCount = new AtomicInteger();
+
+        private final LongAdder sends = new LongAdder();
+        private final LongAdder edits = new LongAdder();
+        private final LongAdder errorReplies = new LongAdder();
+        private final LongAdder ignored = new LongAdder();
+        private final AtomicInteger outMessageIds = new AtomicInteger();
+        private final double tooManyRequestsShare;
+
+        CapturingBot(ChatService chatService, UpdateDispatcher dispatcher, MessageCoalescer coalescer,
+                     OutboundSender.Options outbound, boolean stream, double tooManyRequestsShare, int updates) {
+            super("0:load-test", BOT_USERNAME, chatService, dispatcher, AdmissionController.unlimited(), coalescer, outbound,
+                    stream, 500);
+            this.tooManyRequestsShare = tooManyRequestsShare;
+            this.latencies = new long[updates];
+        }
+
+        void submitted(SyntheticUpdates.Generated g, long scheduledNanos) {
+            if (!g.expectsReply()) ignored.increment();
+            started.put(g.update().getUpdateId(), new long[]{scheduledNanos, g.expectsReply() ? 1 : 0});
+        }
+
+        int pending() {
+            return started.size();
+        }
+
+        @Override
+        void handleUpdate(Update update) {
+            try {
+                super.handleUpdate(update);
+            } finally {
+                long[] t0 = started.get(update.getUpdateId());
+                if (t0 != null) {
+                    // Mailbox чата последовательный: всё, что поставил этот ответ, стоит до хвоста очереди чата
+                    CompletableFuture<?> sent = t0[1] != 0
+                            ? outbound().last(update.getMessage().getChatId())
+                            : CompletableFuture.completedFuture(null);
+                    sent.whenComplete((r, e) -> finished(update.getUpdateId()));
+                }
+            }
+        }
+
+        private void finished(int updateId) {
+            long[] t0 = started.remove(updateId);
+            if (t0 != null) {
+                int i = latencyCount.getAndIncrement();
+                if (i < latencies.length) latencies[i] = System.nanoTime() - t0[0];
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method) throws TelegramApiRequestException {
+            if (method instanceof GetMe) return (T) new User(BOT_ID, BOT_USERNAME, true);
+            if (tooManyRequestsShare > 0 && ThreadLocalRandom.current().nextDouble() < tooManyRequestsShare) {
+                throw tooManyRequests();
+            }
+            if (method instanceof SendMessage send) {
+                sends.increment();
+                if (send.getText().startsWith("Сервис временно недоступен")) errorReplies.increment();
+                Message m = new Message();
+                m.setMessageId(outMessageIds.incrementAndGet());
+                return (T) m;
+            }
+            if (method instanceof EditMessageText edit) {
+                edits.increment();
+                if (edit.getText().startsWith("Сервис временно недоступен")) errorReplies.increment();
+                return (T) Boolean.TRUE;
+            }
+            return null;
+        }
+
+        private static TelegramApiRequestException tooManyRequests() {
+            try {
+                ApiResponse<?> resp = WebhookServer.MAPPER.readValue(
+                        "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after 1\","
+                                + "\"parameters\":{\"retry_after\":1}}", ApiResponse.class);
+                return new TelegramApiRequestException("Error sending message", resp);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void report(int submitted, long elapsedNanos, FakeLlmServer llm) {
+            int n = Math.min(latencyCount.get(), latencies.length);
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            double seconds = elapsedNanos / 1e9;
+
+            System.out.println();
+            System.out.println("=== LOAD TEST ===");
+            System.out.printf("submitted=%d completed=%d dropped/unfinished=%d ignoredByRouting=%d%n",
+                    submitted, n, submitted - n, ignored.sum());
+            System.out.printf("throughput=%.1f upd/s over %.1f s%n", n / seconds, seconds);
+            System.out.printf("reply latency ms (to last outbound call): p50=%.1f p90=%.1f p99=%.1f max=%.1f%n",
+                    pct(sorted, 0.50), pct(sorted, 0.90), pct(sorted, 0.99), pct(sorted, 1.0));
+            System.out.printf("outbound: sends=%d edits=%d errorReplies=%d rateLimited429=%d editsCoalesced=%d unsent=%d%n",
+                    sends.sum(), edits.sum(), errorReplies.sum(), Metrics.TELEGRAM_RATE_LIMITED.sum(),
+                    Metrics.OUTBOUND_COALESCED.sum(), outbound().pending());
+            System.out.printf("llm: requests=%d streamed=%d injectedErrors=%d cancelled=%d coalescedUpdates=%d%n",
+                    llm.requests.sum(), llm.streamed.sum(), llm.failed.sum(),
+                    Metrics.LLM_CANCELLED.sum(), Metrics.UPDATES_COALESCED.sum());
+            System.out.printf("startup: firstReplyMs=%d%n", firstReplyMs());
+        }
+
+        private static double pct(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int idx = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+            return sorted[Math.max(0, idx)] / 1e6;
+        }
+    }
+
+    private static int intOpt(Map<String, String> opts, String key, int def) {
+        try {
+            return Integer.parseInt(opts.get(key));
+        } catch (Exception e) {
+            return def;
+        }
+    }
+
+    private static double doubleOpt(Map<String, String> opts, String key, double def) {
+        try {
+            return Double.parseDouble(opts.get(key));
+        } catch (Exception e) {
+            return def;
+        }
+    }
+}
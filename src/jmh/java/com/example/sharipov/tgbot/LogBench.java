@@ -0,0 +1,54 @@
+package com.example.sharipov.tgbot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость строки лога для вызывающего потока: старый printf в (заглушённый) PrintStream
+ * против Log.info и выключенного Log.debug. Вывод Log уходит в stdout — запускать с
+ * перенаправлением, например: java -jar target/benchmarks.jar LogBench > /dev/null
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dtgbot.log.level=INFO"})
+@Threads(4)
+public class LogBench {
+
+    // Синхронизированный PrintStream, как System.out, но без реального ввода-вывода
+    private final PrintStream sink = new PrintStream(OutputStream.nullOutputStream(), false);
+
+    private final long chatId = 123456789L;
+    private final int msgId = 42;
+
+    @Benchmark
+    public void printf() {
+        sink.printf("%s [%s] [%s] %s%n", Instant.now(), "UPD", Thread.currentThread().getName(),
+                "chatId=" + chatId + " msgId=" + msgId + " textLen=" + 17);
+    }
+
+    @Benchmark
+    public void asyncInfo() {
+        Log.info("UPD", "chatId={} msgId={} textLen={}", chatId, msgId, 17);
+    }
+
+    @Benchmark
+    public void disabledDebug() {
+        Log.debug("UPD", "chatId={} msgId={} textLen={}", chatId, msgId, 17);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка тела запроса и разбор ответа. gson* — прежний путь через дерево JsonObject,
+ * для сравнения. Аллокации: добавить -prof gc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestCodecBench {
+
+    private static final Gson GSON = new Gson();
+
+    @Param({"4", "16", "64"})
+    int historyMessages;
+
+    @Param({"200", "2000"})
+    int responseChars;
+
+    ContextBuilder.Context ctx;
+    ChatRequestEncoder encoder;
+    String response;
+
+    @Setup
+    public void setUp() {
+        List<HistoryMessage> history = new ArrayList<>();
+        for (int i = 0; i < historyMessages; i++) {
+            history.add(new HistoryMessage(i % 2 == 0 ? "user" : "assistant", HistoryRepositoryBench.message(i)));
+        }
+        ctx = new ContextBuilder.Context("Ты дружелюбный бот группового чата. Отвечай кратко и по делу.",
+                null, history, "А что скажешь про SQLite в режиме WAL?", 0);
+        encoder = new ChatRequestEncoder();
+
+        String content = "Ответ модели. ".repeat(Math.max(1, responseChars / 14));
+        response = "{\"id\":\"gen-1\",\"model\":\"m\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\""
+                + content + "\"},\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":100,\"completion_tokens\":64}}";
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return encoder.encode("mistralai/mixtral-8x7b-instruct", "deepinfra/fp8", 0.3, 0.8, 64, ctx, false).body();
+    }
+
+    @Benchmark
+    public byte[] gsonTree() {
+        JsonArray messages = new JsonArray();
+        messages.add(msg("system", ctx.systemPrompt()));
+        for (HistoryMessage m : ctx.history()) messages.add(msg(m.role(), m.content()));
+        messages.add(msg("user", ctx.userText()));
+
+        JsonObject req = new JsonObject();
+        req.addProperty("model", "mistralai/mixtral-8x7b-instruct");
+        req.add("messages", messages);
+        req.addProperty("stream", false);
+        JsonObject options = new JsonObject();
+        options.addProperty("temperature", 0.3);
+        options.addProperty("top_p", 0.8);
+        options.addProperty("max_tokens", 64);
+        req.add("options", options);
+        return GSON.toJson(req).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String parseAssistant() {
+        return ResponseParser.parseAssistant(response);
+    }
+
+    @Benchmark
+    public String gsonParse() {
+        return GSON.fromJson(response, JsonObject.class)
+                .getAsJsonArray("choices").get(0).getAsJsonObject()
+                .getAsJsonObject("message").get("content").getAsString().trim();
+    }
+
+    private static JsonObject msg(String role, String content) {
+        JsonObject o = new JsonObject();
+        o.addProperty("role", role);
+        o.addProperty("content", content);
+        return o;
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.sharipov.tgbot;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Асинхронный RouterClient против локального FakeLlmServer: много запросов в полёте на двух
+ * потоках, gzip-ответы и ChatService.replyAsync с записью в историю. Первая же ошибка —
+ * исключение. Отмена и обрыв обмена — RouterClientCancelTest.
+ *
+ *   java -Dtgbot.log.level=WARN -cp target/benchmarks.jar com.example.sharipov.tgbot.RouterClientAsyncDemo
+ */
+public class RouterClientAsyncDemo {
+
+    static final byte[] BODY = ("{\"model\":\"demo\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}],\"stream\":false}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2, UpdateDispatcher.daemonFactory("llm-http"));
+        try (FakeLlmServer fast = new FakeLlmServer(new FakeLlmServer.Options(100, 0, 0, 4, "ok"))) {
+            RouterClient fastClient = client(fast, executor);
+
+            // 1. Много запросов в полёте: ждут сеть, а не потоки
+            int n = 200;
+            long t0 = System.nanoTime();
+            List<CompletableFuture<String>> calls = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) calls.add(fastClient.chatContentAsync(BODY, Duration.ofSeconds(10)));
+            for (CompletableFuture<String> f : calls) check(f.get().equals("ok"), "async reply content");
+            long wallMs = (System.nanoTime() - t0) / 1_000_000;
+            System.out.printf("in flight: %d calls x 100 ms on 2 client threads -> %d ms wall (sequential: %d ms); gzipped=%d%n",
+                    n, wallMs, n * 100, fast.gzipped.sum());
+            check(fast.gzipped.sum() >= n, "responses were gzip-compressed");
+        }
+
+        // 2. ChatService.replyAsync: ответ приходит в future и попадает в историю; отмена — не попадает
+        try (BenchEnv env = new BenchEnv(100, 8)) {
+            String reply = env.chatService.replyAsync(1, "привет").get(5, TimeUnit.SECONDS);
+            check(!reply.equals(ChatService.UNAVAILABLE_REPLY), "replyAsync answered: " + reply);
+            env.writer.flush();
+            check(env.repo.lastIndex(1) == 2, "replyAsync saved user + assistant messages");
+
+            CompletableFuture<String> dropped = env.chatService.replyAsync(2, "не дождётся");
+            TimeUnit.MILLISECONDS.sleep(30);
+            dropped.cancel(true);
+            TimeUnit.MILLISECONDS.sleep(200);
+            env.writer.flush();
+            check(dropped.isCancelled() && env.repo.lastIndex(2) == 0, "cancelled replyAsync saves nothing");
+            System.out.println("replyAsync: ok");
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("OK");
+    }
+
+    private static RouterClient client(FakeLlmServer server, ExecutorService executor) {
+        return new RouterClient(server.url(), "demo-key", Duration.ofSeconds(2), "https://t.me/demo", "TgBotDemo",
+                new RouterClient.Options(0, Duration.ofMillis(500), 1, Duration.ofMillis(50), Duration.ofMillis(200),
+                        100, Duration.ofSeconds(1)),
+                executor);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new IllegalStateException("FAILED: " + what);
+    }
+}
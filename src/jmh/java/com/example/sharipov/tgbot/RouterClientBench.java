@@ -0,0 +1,64 @@
+package com.example.sharipov.tgbot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RouterClient против двух локальных FakeLlmServer с тяжёлым хвостом латентности:
+ * "healthy" и "flaky" (та же латентность, 30% ответов 500/429). Смотрим распределение
+ * времени вызова (SampleTime: p50/p99) без хеджирования и с хеджем по p90.
+ * Ошибки flaky должны уходить в повторы/breaker, а не в исключения у вызывающего.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Dtgbot.log.level=ERROR"})
+@Threads(4)
+public class RouterClientBench {
+
+    static final byte[] BODY = ("{\"model\":\"bench\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}],\"stream\":false}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({"0", "90"})
+    int hedgePercentile;
+
+    FakeLlmServer healthy;
+    FakeLlmServer flaky;
+    RouterClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        healthy = new FakeLlmServer(new FakeLlmServer.Options(30, 0.8, 0, 4, "ok"));
+        flaky = new FakeLlmServer(new FakeLlmServer.Options(30, 0.8, 0.3, 4, "ok"));
+        client = new RouterClient(
+                healthy.url() + "," + flaky.url(),
+                "bench-key",
+                Duration.ofSeconds(5),
+                "https://t.me/bench",
+                "TgBotBench",
+                new RouterClient.Options(hedgePercentile / 100.0, Duration.ofMillis(20), 3,
+                        Duration.ofMillis(20), Duration.ofMillis(200), 5, Duration.ofSeconds(1)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println("router: " + client.stats());
+        System.out.printf("healthy: requests=%d failed=%d; flaky: requests=%d failed=%d; hedges=%d hedgeWins=%d retries=%d breakerOpened=%d%n",
+                healthy.requests.sum(), healthy.failed.sum(), flaky.requests.sum(), flaky.failed.sum(),
+                Metrics.LLM_HEDGES.sum(), Metrics.LLM_HEDGE_WINS.sum(), Metrics.LLM_RETRIES.sum(),
+                Metrics.LLM_BREAKER_OPENED.sum());
+        healthy.close();
+        flaky.close();
+    }
+
+    @Benchmark
+    public String chatContent() throws Exception {
+        return client.chatContent(BODY, Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.sharipov.tgbot;
+
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.GetMe;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.MessageEntity;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Маршрутизация групповых сообщений в TgBotApplication.routeAndReply.
+ * ignored — обычное сообщение группы (большая часть трафика), mention/replyToBot — уходят в LLM-заглушку.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBench {
+
+    static final long BOT_ID = 777L;
+    static final String BOT_USERNAME = "random_bench_bot";
+
+    BenchEnv env;
+    UpdateDispatcher dispatcher;
+    TgBotApplication bot;
+
+    Message ignored;
+    Message mention;
+    Message replyToBot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        env = new BenchEnv(0, 8);
+        dispatcher = new UpdateDispatcher(64, Duration.ofSeconds(1));
+        bot = new TgBotApplication("0:bench", BOT_USERNAME, env.chatService, dispatcher, AdmissionController.unlimited(), null, OutboundSender.Options.unlimited(), false, 1000) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method) {
+                if (method instanceof GetMe) return (T) new User(BOT_ID, BOT_USERNAME, true);
+                return null;
+            }
+        };
+
+        ignored = groupMessage("Ребята, кто идёт сегодня на встречу? Напишите до вечера, пожалуйста.");
+        mention = groupMessage("@" + BOT_USERNAME + " подскажи рецепт борща");
+        mention.setEntities(List.of(new MessageEntity("mention", 0, BOT_USERNAME.length() + 1)));
+        replyToBot = groupMessage("а подробнее?");
+        Message botMsg = groupMessage("предыдущий ответ бота");
+        botMsg.setFrom(new User(BOT_ID, BOT_USERNAME, true));
+        replyToBot.setReplyToMessage(botMsg);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.close();
+        env.close();
+    }
+
+    @Benchmark
+    public String ignored() {
+        return bot.routeAndReply(ignored, ignored.getText(), ignored.getChatId());
+    }
+
+    @Benchmark
+    public String mention() {
+        return bot.routeAndReply(mention, mention.getText(), mention.getChatId());
+    }
+
+    @Benchmark
+    public String replyToBot() {
+        return bot.routeAndReply(replyToBot, replyToBot.getText(), replyToBot.getChatId());
+    }
+
+    static Message groupMessage(String text) {
+        Chat chat = new Chat(-100123L, "supergroup");
+        Message m = new Message();
+        m.setMessageId(1);
+        m.setChat(chat);
+        m.setFrom(new User(42L, "Ivan", false));
+        m.setText(text);
+        return m;
+    }
+}
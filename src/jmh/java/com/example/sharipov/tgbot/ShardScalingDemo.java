@@ -0,0 +1,307 @@
+package com.example.sharipov.tgbot;
+
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Шардированное развёртывание на одной машине: ShardDispatcher в этом процессе, воркеры —
+ * отдельные JVM (этот же класс с аргументом worker), LLM — FakeLlmServer. Каждый воркер
+ * держит не больше perWorker одновременных вызовов LLM — как tgbot.admission.maxLimit
+ * у настоящего процесса; это и есть предел одного воркера, который снимается их числом.
+ *
+ * 1. Пропускная способность для 1, 2, 4 воркеров: updates апдейтов по chats чатам.
+ * 2. Перебалансировка: 2 воркера → +w3 → −w3. Переехавшие к w3 чаты приходят со своей
+ *    историей (EXPORT/STATE), остальные не двигаются; после ухода w3 его чаты возвращаются
+ *    к прежним владельцам и продолжают с их копией. Первая же ошибка — исключение.
+ *
+ *   java -Dtgbot.log.level=WARN -cp target/benchmarks.jar com.example.sharipov.tgbot.ShardScalingDemo
+ *   -Dshard.workers=1,2,4 -Dshard.updates=800 -Dshard.chats=400 -Dshard.latencyMs=200 -Dshard.perWorker=4
+ *
+ * Потолок всех процессов вместе — CPU машины: на одном ядре он около 130 апдейтов/с,
+ * поэтому предел воркера по умолчанию взят заметно ниже.
+ */
+public class ShardScalingDemo {
+
+    static final String DB_PREFIX = "history-";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("worker")) {
+            worker(args[1], args[2], args[3], Path.of(args[4]), Integer.parseInt(args[5]));
+            return;
+        }
+        int updates = Integer.getInteger("shard.updates", 800);
+        int chats = Integer.getInteger("shard.chats", 400);
+        int perWorker = Integer.getInteger("shard.perWorker", 4);
+        long latencyMs = Integer.getInteger("shard.latencyMs", 200);
+
+        try (FakeLlmServer llm = new FakeLlmServer(new FakeLlmServer.Options(latencyMs, 0, 0, 4, "ok"))) {
+            System.out.printf("stub LLM %d ms, per-worker LLM concurrency %d, %d updates over %d chats%n",
+                    latencyMs, perWorker, updates, chats);
+            double base = 0;
+            for (String w : System.getProperty("shard.workers", "1,2,4").split(",")) {
+                int n = Integer.parseInt(w.trim());
+                double rate = throughput(llm, latencyMs, n, updates, chats, perWorker);
+                if (base == 0) base = rate / n;
+                System.out.printf("workers=%d  %7.1f updates/s  (x%.2f of one worker)%n", n, rate, rate / base);
+            }
+            rebalance(llm, latencyMs, chats, perWorker);
+        }
+        System.out.println("OK");
+    }
+
+    // ---------- 1. масштабирование ----------
+
+    private static double throughput(FakeLlmServer llm, long latencyMs, int workers, int updates, int chats, int perWorker)
+            throws Exception {
+        Cluster c = new Cluster(llm, latencyMs, perWorker);
+        try {
+            for (int i = 1; i <= workers; i++) c.start("w" + i);
+            c.awaitWorkers(workers);
+            // Прогрев: соединения воркеров к LLM и JIT, в замер не идёт
+            c.round(chats, 0);
+
+            long target = llm.requests.sum() + updates;
+            long t0 = System.nanoTime();
+            for (int i = 0; i < updates; i++) c.send(1 + i % chats, "msg " + i);
+            long lastCall = c.awaitLlm(target);
+            return updates / ((lastCall - t0) / 1e9 + latencyMs / 1e3);
+        } finally {
+            c.close();
+            delete(c.dir);
+        }
+    }
+
+    // ---------- 2. перебалансировка ----------
+
+    private static void rebalance(FakeLlmServer llm, long latencyMs, int chats, int perWorker) throws Exception {
+        long handoffs0 = Metrics.SHARD_HANDOFFS.sum();
+        long timeouts0 = Metrics.SHARD_HANDOFF_TIMEOUTS.sum();
+        ShardRing two = ShardRing.of(List.of("w1", "w2"), 128);
+        ShardRing three = ShardRing.of(List.of("w1", "w2", "w3"), 128);
+        Path dir;
+
+        try (Cluster c = new Cluster(llm, latencyMs, perWorker)) {
+            dir = c.dir;
+            c.start("w1");
+            c.start("w2");
+            c.awaitWorkers(2);
+            c.round(chats, 1);
+
+            c.start("w3");
+            c.awaitWorkers(3);
+            c.round(chats, 2);
+
+            c.stop("w3");
+            c.awaitWorkers(2);
+            c.round(chats, 3);
+        }
+
+        int moved = 0;
+        Map<String, ChatHistoryRepository> dbs = new HashMap<>();
+        try {
+            for (String id : List.of("w1", "w2", "w3")) {
+                ChatHistoryRepository repo = new ChatHistoryRepository(dir.resolve(DB_PREFIX + id + ".db").toString(), 1);
+                repo.init();
+                dbs.put(id, repo);
+            }
+            for (long chatId = 1; chatId <= chats; chatId++) {
+                String home = two.ownerOf(chatId);
+                int atHome = dbs.get(home).loadLastMessages(chatId, 100).size();
+                if (three.ownerOf(chatId).equals("w3")) {
+                    moved++;
+                    // Раунд 1 приехал с чатом, раунд 2 — уже у w3
+                    List<HistoryStore.HistoryMessage> atW3 = dbs.get("w3").loadLastMessages(chatId, 100);
+                    check(atW3.size() == 4 && atW3.get(0).content().equals("round 1 chat " + chatId),
+                            "chat " + chatId + " moved to w3 with its history: " + atW3);
+                    // Вернулся домой без раунда 2 (w3 ушёл, не выгрузив), дальше — по старой копии
+                    check(atHome == 4, "chat " + chatId + " back at " + home + ": " + atHome + " messages");
+                } else {
+                    check(atHome == 6, "chat " + chatId + " stayed at " + home + ": " + atHome + " messages");
+                }
+            }
+        } finally {
+            for (ChatHistoryRepository repo : dbs.values()) repo.close();
+            delete(dir);
+        }
+        long handoffs = Metrics.SHARD_HANDOFFS.sum() - handoffs0;
+        System.out.printf("rebalance: +w3 moved %d of %d chats (%.0f%%, ideal 33%%), handoffs=%d timeouts=%d; "
+                        + "-w3 returned them, the rest never moved%n",
+                moved, chats, 100.0 * moved / chats, handoffs, Metrics.SHARD_HANDOFF_TIMEOUTS.sum() - timeouts0);
+        check(moved > chats / 5 && moved < chats / 2, "share of chats moved on join");
+        check(handoffs == moved, "one handoff per moved chat");
+    }
+
+    // ---------- диспетчер и процессы воркеров ----------
+
+    private static final class Cluster implements AutoCloseable {
+        final FakeLlmServer llm;
+        final long latencyMs;
+        final int perWorker;
+        final Path dir;
+        final String address;
+        final ShardDispatcher dispatcher;
+        final Map<String, Process> workers = new HashMap<>();
+        final AtomicInteger updateIds = new AtomicInteger();
+
+        Cluster(FakeLlmServer llm, long latencyMs, int perWorker) throws IOException {
+            this.llm = llm;
+            this.latencyMs = latencyMs;
+            this.perWorker = perWorker;
+            this.dir = Files.createTempDirectory("tgbot-shards");
+            this.address = "unix:" + dir.resolve("dispatcher.sock");
+            this.dispatcher = new ShardDispatcher(address,
+                    new ShardDispatcher.Options(128, 100_000, Duration.ofSeconds(3), 1_000_000));
+        }
+
+        void start(String id) throws IOException {
+            String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            Process p = new ProcessBuilder(java, "-Xmx256m", "-Dtgbot.log.level=WARN", "-Dslf4j.internal.verbosity=ERROR",
+                    "-cp", System.getProperty("java.class.path"),
+                    ShardScalingDemo.class.getName(), "worker", address, id, llm.url(), dir.toString(),
+                    String.valueOf(perWorker))
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            workers.put(id, p);
+        }
+
+        // SIGTERM: хук воркера досылает историю в БД
+        void stop(String id) throws InterruptedException {
+            Process p = workers.remove(id);
+            p.destroy();
+            check(p.waitFor(20, TimeUnit.SECONDS), "worker " + id + " stopped");
+        }
+
+        void awaitWorkers(int n) throws InterruptedException {
+            waitUntil(() -> dispatcher.workers() == n, 30, "workers connected: " + n);
+        }
+
+        void send(long chatId, String text) {
+            Chat chat = new Chat(chatId, "private");
+            Message m = new Message();
+            m.setMessageId(updateIds.get() + 1);
+            m.setChat(chat);
+            m.setText(text);
+            m.setDate((int) (System.currentTimeMillis() / 1000));
+            Update u = new Update();
+            u.setUpdateId(updateIds.incrementAndGet());
+            u.setMessage(m);
+            check(dispatcher.accept(u), "update accepted");
+        }
+
+        // По одному сообщению в каждый чат и ожидание всех ответов
+        void round(int chats, int round) throws InterruptedException {
+            long target = llm.requests.sum() + chats;
+            for (long chatId = 1; chatId <= chats; chatId++) send(chatId, "round " + round + " chat " + chatId);
+            awaitLlm(target);
+        }
+
+        // Без хеджей и повторов: один апдейт — ровно один запрос к LLM
+        // Возвращает момент, когда последний запрос дошёл до LLM; ответ на него — ещё через latencyMs
+        long awaitLlm(long target) throws InterruptedException {
+            waitUntil(() -> llm.requests.sum() >= target, 120, "LLM calls: " + target);
+            long reached = System.nanoTime();
+            // Ответ пишется в историю уже после ответа LLM — даём воркерам его сохранить
+            TimeUnit.MILLISECONDS.sleep(latencyMs + 200);
+            return reached;
+        }
+
+        // Без InterruptedException: иначе try-with-resources ловит прерывание не там, где ждали
+        @Override
+        public void close() {
+            try {
+                for (String id : new ArrayList<>(workers.keySet())) stop(id);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Process p : workers.values()) p.destroyForcibly();
+                workers.clear();
+            } finally {
+                dispatcher.close();
+            }
+        }
+    }
+
+    /** Процесс-воркер: тот же стек, что собирает Main в режиме worker, только без Telegram. */
+    private static void worker(String address, String id, String llmUrl, Path dir, int perWorker) throws Exception {
+        ChatHistoryRepository repo = new ChatHistoryRepository(dir.resolve(DB_PREFIX + id + ".db").toString(), 2);
+        repo.init();
+        HistoryWriter writer = new HistoryWriter(repo, 10_000, 256, Duration.ofMillis(20));
+        HistoryCache cache = new HistoryCache(repo, writer, 40, 10_000, 64L << 20, Duration.ofMinutes(10));
+        SettingsStore settings = new SettingsStore(repo,
+                new ChatSettings("stub-model", "", "Ты дружелюбный бот группового чата.", 0.3, 0.8, 64));
+        RouterClient client = new RouterClient(llmUrl, "bench-key", Duration.ofSeconds(5), "https://t.me/bench", "TgBotBench",
+                new RouterClient.Options(0, Duration.ofMillis(500), 1, Duration.ofMillis(50), Duration.ofMillis(200),
+                        100, Duration.ofSeconds(1)));
+        ChatService chatService = new ChatService(cache, client, new ResponseCache(0, Duration.ZERO),
+                new ContextBuilder(TokenEstimator.approximate(), 4000), null, settings, 40);
+        UpdateDispatcher dispatcher = new UpdateDispatcher(4096, Duration.ofSeconds(5));
+        Semaphore llmSlots = new Semaphore(perWorker);
+
+        ShardWorker shard = new ShardWorker(address, id, update -> {
+            long chatId = update.getMessage().getChatId();
+            String text = update.getMessage().getText();
+            return dispatcher.submit(chatId, () -> {
+                llmSlots.acquireUninterruptibly();
+                try {
+                    chatService.reply(chatId, text);
+                } finally {
+                    llmSlots.release();
+                }
+            });
+        }, dispatcher, new ChatHandoff(repo, writer, cache, null, settings, 40));
+
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shard.close();
+            dispatcher.close();
+            writer.close();
+            repo.close();
+            client.close();
+            Log.shutdown();
+            main.interrupt();
+        }));
+        shard.start();
+        try {
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            // остановлен
+        }
+    }
+
+    private interface Condition {
+        boolean test();
+    }
+
+    private static void waitUntil(Condition c, int seconds, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (!c.test()) {
+            check(System.nanoTime() < deadline, "timed out waiting: " + what);
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) p.toFile().delete();
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new IllegalStateException("FAILED: " + what);
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.sharipov.tgbot;
+
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.MessageEntity;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Генератор апдейтов Telegram: личные чаты, группы, упоминания бота, ответы на его
+ * сообщения и команды; часть личных сообщений — продолжение предыдущего в том же
+ * чате (серии из нескольких сообщений подряд). Детерминирован при одинаковом seed.
+ */
+final class SyntheticUpdates {
+
+    enum Kind { PRIVATE, GROUP_PLAIN, GROUP_MENTION, GROUP_REPLY, COMMAND }
+
+    record Generated(Update update, Kind kind) {
+        /** Ждём ли ответ бота на этот апдейт. */
+        boolean expectsReply() {
+            return kind != Kind.GROUP_PLAIN;
+        }
+    }
+
+    private static final String[] TEXTS = {
+            "Привет! Как дела?",
+            "Подскажи, что почитать про Java на выходных",
+            "Какая сегодня погода в Москве, как думаешь?",
+            "Объясни, пожалуйста, разницу между TCP и UDP",
+            "ок",
+            "Ребята, кто идёт сегодня вечером на встречу? Напишите до шести.",
+    };
+
+    private static final String[] COMMANDS = {
+            "/get_settings_random_bot",
+            "/help_random_bot",
+    };
+
+    private final Random rnd;
+    private final String botUsername;
+    private final long botId;
+    private final int privateChats;
+    private final int groupChats;
+    private final double groupShare;
+    private final double mentionShare;
+    private final double replyShare;
+    private final double commandShare;
+    private final double followUpShare;
+    private long lastPrivateChat = -1;
+
+    private final AtomicInteger updateIds = new AtomicInteger();
+    private final AtomicInteger messageIds = new AtomicInteger();
+
+    SyntheticUpdates(long seed,
+                     String botUsername,
+                     long botId,
+                     int privateChats,
+                     int groupChats,
+                     double groupShare,
+                     double mentionShare,
+                     double replyShare,
+                     double commandShare) {
+        this(seed, botUsername, botId, privateChats, groupChats, groupShare, mentionShare, replyShare, commandShare, 0);
+    }
+
+    SyntheticUpdates(long seed,
+                     String botUsername,
+                     long botId,
+                     int privateChats,
+                     int groupChats,
+                     double groupShare,
+                     double mentionShare,
+                     double replyShare,
+                     double commandShare,
+                     double followUpShare) {
+        this.rnd = new Random(seed);
+        this.botUsername = botUsername;
+        this.botId = botId;
+        this.privateChats = Math.max(1, privateChats);
+        this.groupChats = Math.max(1, groupChats);
+        this.groupShare = groupShare;
+        this.mentionShare = mentionShare;
+        this.replyShare = replyShare;
+        this.commandShare = commandShare;
+        this.followUpShare = followUpShare;
+    }
+
+    synchronized Generated next() {
+        String text = TEXTS[rnd.nextInt(TEXTS.length)];
+
+        if (rnd.nextDouble() < commandShare) {
+            long chatId = 1_000_000L + rnd.nextInt(privateChats);
+            return new Generated(update(privateMessage(chatId, COMMANDS[rnd.nextInt(COMMANDS.length)])), Kind.COMMAND);
+        }
+
+        if (lastPrivateChat >= 0 && rnd.nextDouble() < followUpShare) {
+            return new Generated(update(privateMessage(lastPrivateChat, text)), Kind.PRIVATE);
+        }
+
+        if (rnd.nextDouble() >= groupShare) {
+            long chatId = 1_000_000L + rnd.nextInt(privateChats);
+            lastPrivateChat = chatId;
+            return new Generated(update(privateMessage(chatId, text)), Kind.PRIVATE);
+        }
+
+        long chatId = -1_000_000_000L - rnd.nextInt(groupChats);
+        double r = rnd.nextDouble();
+        if (r < mentionShare) {
+            String tag = "@" + botUsername;
+            Message m = groupMessage(chatId, tag + " " + text);
+            MessageEntity mention = new MessageEntity("mention", 0, tag.length());
+            m.setEntities(List.of(mention));
+            return new Generated(update(m), Kind.GROUP_MENTION);
+        }
+        if (r < mentionShare + replyShare) {
+            Message m = groupMessage(chatId, text);
+            Message botMessage = groupMessage(chatId, "предыдущий ответ бота");
+            botMessage.setFrom(new User(botId, botUsername, true));
+            m.setReplyToMessage(botMessage);
+            return new Generated(update(m), Kind.GROUP_REPLY);
+        }
+        return new Generated(update(groupMessage(chatId, text)), Kind.GROUP_PLAIN);
+    }
+
+    private Message privateMessage(long chatId, String text) {
+        Message m = message(new Chat(chatId, "private"), text);
+        m.setFrom(new User(chatId, "user" + chatId, false));
+        return m;
+    }
+
+    private Message groupMessage(long chatId, String text) {
+        Message m = message(new Chat(chatId, "supergroup"), text);
+        long userId = 5_000_000L + rnd.nextInt(10_000);
+        m.setFrom(new User(userId, "user" + userId, false));
+        return m;
+    }
+
+    private Message message(Chat chat, String text) {
+        Message m = new Message();
+        m.setMessageId(messageIds.incrementAndGet());
+        m.setChat(chat);
+        m.setText(text);
+        m.setDate((int) (System.currentTimeMillis() / 1000));
+        return m;
+    }
+
+    private Update update(Message m) {
+        Update u = new Update();
+        u.setUpdateId(updateIds.incrementAndGet());
+        u.setMessage(m);
+        return u;
+    }
+}
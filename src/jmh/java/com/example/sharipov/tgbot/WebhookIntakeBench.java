@@ -0,0 +1,133 @@
+package com.example.sharipov.tgbot;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.meta.api.methods.updates.GetUpdates;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пропускная способность приёма апдейтов (до mailbox'а чата, без LLM):
+ * вебхук — POST записанного JSON апдейта в WebhookServer с нескольких соединений,
+ * как это делает Telegram; поллинг — getUpdates с локального сервера пачкой по BATCH
+ * и разбор тем же GetUpdates.deserializeResponse, что и в DefaultBotSession.
+ * Результат — апдейтов в секунду.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Dsun.net.httpserver.nodelay=true", "-Dtgbot.log.level=WARN"})
+public class WebhookIntakeBench {
+
+    static final int BATCH = 100;
+    static final String SECRET = "bench-secret";
+
+    /** Только приём: обработка апдейта в mailbox'е сводится к счётчику. */
+    static final class IntakeBot extends TgBotApplication {
+        final LongAdder handled = new LongAdder();
+
+        IntakeBot(UpdateDispatcher dispatcher) {
+            super("0:intake-bench", "random_bench_bot", null, dispatcher, AdmissionController.unlimited(), null, OutboundSender.Options.unlimited(), false, 1000);
+        }
+
+        @Override
+        void handleUpdate(Update update) {
+            handled.increment();
+        }
+    }
+
+    UpdateDispatcher dispatcher;
+    IntakeBot bot;
+    WebhookServer webhook;
+    HttpServer telegram;
+    HttpClient http;
+    URI webhookUri;
+    URI getUpdatesUri;
+    byte[][] updateBodies;
+    final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dispatcher = new UpdateDispatcher(4096, Duration.ofSeconds(10));
+        bot = new IntakeBot(dispatcher);
+        webhook = new WebhookServer(bot, "127.0.0.1", 0, "/telegram", SECRET, 4);
+        webhookUri = URI.create("http://127.0.0.1:" + webhook.port() + "/telegram");
+
+        SyntheticUpdates gen = new SyntheticUpdates(7, "random_bench_bot", 777, 1000, 100, 0.6, 0.2, 0.1, 0.02);
+        updateBodies = new byte[1024][];
+        StringBuilder batch = new StringBuilder("{\"ok\":true,\"result\":[");
+        for (int i = 0; i < updateBodies.length; i++) {
+            updateBodies[i] = WebhookServer.MAPPER.writeValueAsBytes(gen.next().update());
+            if (i < BATCH) {
+                if (i > 0) batch.append(',');
+                batch.append(new String(updateBodies[i], StandardCharsets.UTF_8));
+            }
+        }
+        byte[] getUpdatesBody = batch.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+        // Заглушка Bot API: на любой getUpdates — одна и та же пачка
+        telegram = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        telegram.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(2, UpdateDispatcher.daemonFactory("fake-tg")));
+        telegram.createContext("/", ex -> {
+            try (ex; OutputStream out = ex.getResponseBody()) {
+                ex.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                ex.getResponseHeaders().set("Content-Type", "application/json");
+                ex.sendResponseHeaders(200, getUpdatesBody.length);
+                out.write(getUpdatesBody);
+            }
+        });
+        telegram.start();
+        getUpdatesUri = URI.create("http://127.0.0.1:" + telegram.getAddress().getPort() + "/bot0/getUpdates");
+
+        http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        webhook.close();
+        telegram.stop(0);
+        dispatcher.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int webhook() throws Exception {
+        byte[] body = updateBodies[next.getAndIncrement() & (updateBodies.length - 1)];
+        HttpRequest req = HttpRequest.newBuilder(webhookUri)
+                .header("Content-Type", "application/json")
+                .header(WebhookServer.SECRET_HEADER, SECRET)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        int status = http.send(req, HttpResponse.BodyHandlers.discarding()).statusCode();
+        if (status != 200) throw new IllegalStateException("webhook status " + status);
+        return status;
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public int polling() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(getUpdatesUri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"offset\":0,\"limit\":100,\"timeout\":0}"))
+                .build();
+        String json = http.send(req, HttpResponse.BodyHandlers.ofString()).body();
+        List<Update> updates = new GetUpdates().deserializeResponse(json);
+        for (Update u : updates) bot.onUpdateReceived(u);
+        return updates.size();
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.sharipov.tgbot;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Допуск к LLM между маршрутизацией и ChatService.reply:
+ *  - token bucket на чат и на пользователя (0 в скорости — без лимита);
+ *  - адаптивный лимит одновременных вызовов (AIMD: +1/limit за успешный вызов
+ *    при загруженном лимите, ×0.9 за ошибку или латентность выше 2× сглаженной);
+ *  - при исчерпании лимита — ожидание в ограниченной очереди не дольше maxWait.
+ * Переполненная очередь — сразу отказ (load shedding).
+ */
+public class AdmissionController {
+
+    public enum Decision { ADMITTED, RATE_LIMITED, REJECTED, TIMED_OUT }
+
+    /** Результат acquire. Для ADMITTED обязательно закрыть (лучше try-with-resources). */
+    public final class Permit implements AutoCloseable {
+        private final Decision decision;
+        private final long startNanos;
+        private final boolean notify;
+        private boolean failed;
+        private boolean closed;
+
+        private Permit(Decision decision, boolean notify) {
+            this.decision = decision;
+            this.notify = notify;
+            this.startNanos = System.nanoTime();
+        }
+
+        public Decision decision() {
+            return decision;
+        }
+
+        public boolean admitted() {
+            return decision == Decision.ADMITTED;
+        }
+
+        /** Стоит ли отвечать пользователю об отказе (по rate limit — только первый раз подряд). */
+        public boolean shouldNotify() {
+            return notify;
+        }
+
+        /** Вызов закончился ошибкой — сигнал уменьшить лимит. */
+        public void markFailed() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (!admitted() || closed) return;
+            closed = true;
+            release(System.nanoTime() - startNanos, !failed);
+        }
+    }
+
+    private static final class TokenBucket {
+        private final double capacity;
+        private final double refillPerNano;
+        private double tokens;
+        private long lastNanos;
+        private boolean notified;
+
+        TokenBucket(double capacity, double perMinute) {
+            this.capacity = capacity;
+            this.refillPerNano = perMinute / TimeUnit.MINUTES.toNanos(1);
+            this.tokens = capacity;
+            this.lastNanos = System.nanoTime();
+        }
+
+        synchronized boolean tryTake(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                notified = false;
+                return true;
+            }
+            return false;
+        }
+
+        /** true ровно один раз за серию отказов. */
+        synchronized boolean firstRefusal() {
+            if (notified) return false;
+            notified = true;
+            return true;
+        }
+
+        synchronized void giveBack() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * refillPerNano);
+            lastNanos = now;
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final double chatPerMinute;
+    private final int chatBurst;
+    private final double userPerMinute;
+    private final int userBurst;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private double limit;       // под lock
+    private int inFlight;       // под lock
+    private int queued;         // под lock
+    private double smoothedRttNanos; // под lock, 0 — ещё нет замеров
+
+    private final Map<Long, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+    private final Map<Long, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final AtomicInteger sinceCleanup = new AtomicInteger();
+
+    public AdmissionController(int initialLimit,
+                               int minLimit,
+                               int maxLimit,
+                               int maxQueue,
+                               Duration maxWait,
+                               double chatPerMinute,
+                               int chatBurst,
+                               double userPerMinute,
+                               int userBurst) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.maxQueue = Math.max(0, maxQueue);
+        this.maxWaitNanos = maxWait.toNanos();
+        this.chatPerMinute = chatPerMinute;
+        this.chatBurst = Math.max(1, chatBurst);
+        this.userPerMinute = userPerMinute;
+        this.userBurst = Math.max(1, userBurst);
+        Log.info("ADMISSION", "Started. limit={} [{}..{}] queue={} maxWaitMs={} chat={}/min burst={} user={}/min burst={}",
+                (int) limit, this.minLimit, this.maxLimit, this.maxQueue, maxWait.toMillis(),
+                chatPerMinute, chatBurst, userPerMinute, userBurst);
+    }
+
+    /** Без лимитов — для бенчмарков и тестовых стендов. */
+    public static AdmissionController unlimited() {
+        return new AdmissionController(Integer.MAX_VALUE, 1, Integer.MAX_VALUE, 0, Duration.ZERO, 0, 1, 0, 1);
+    }
+
+    /**
+     * Проверяет лимиты чата и пользователя, затем ждёт свободный слот.
+     * userId может быть null (например, сообщение от имени канала).
+     */
+    public Permit acquire(long chatId, Long userId) throws InterruptedException {
+        long now = System.nanoTime();
+        if (sinceCleanup.incrementAndGet() >= 1024) cleanup(now);
+
+        TokenBucket chat = chatPerMinute > 0
+                ? chatBuckets.computeIfAbsent(chatId, id -> new TokenBucket(chatBurst, chatPerMinute)) : null;
+        if (chat != null && !chat.tryTake(now)) {
+            Metrics.ADMISSION_RATE_LIMITED.increment();
+            return new Permit(Decision.RATE_LIMITED, chat.firstRefusal());
+        }
+        TokenBucket user = userPerMinute > 0 && userId != null
+                ? userBuckets.computeIfAbsent(userId, id -> new TokenBucket(userBurst, userPerMinute)) : null;
+        if (user != null && !user.tryTake(now)) {
+            // Токен чата не должен сгорать из-за лимита пользователя
+            if (chat != null) chat.giveBack();
+            Metrics.ADMISSION_RATE_LIMITED.increment();
+            return new Permit(Decision.RATE_LIMITED, user.firstRefusal());
+        }
+
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                Metrics.ADMISSION_ADMITTED.increment();
+                return new Permit(Decision.ADMITTED, false);
+            }
+            if (queued >= maxQueue) {
+                Metrics.ADMISSION_REJECTED.increment();
+                return new Permit(Decision.REJECTED, true);
+            }
+
+            queued++;
+            Metrics.ADMISSION_QUEUED.increment();
+            try {
+                long left = maxWaitNanos;
+                while (inFlight >= (int) limit) {
+                    if (left <= 0) {
+                        Metrics.ADMISSION_TIMED_OUT.increment();
+                        return new Permit(Decision.TIMED_OUT, true);
+                    }
+                    left = slotFreed.awaitNanos(left);
+                }
+                inFlight++;
+                Metrics.ADMISSION_ADMITTED.increment();
+                return new Permit(Decision.ADMITTED, false);
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long rttNanos, boolean success) {
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+
+            boolean slow = smoothedRttNanos > 0 && rttNanos > 2 * smoothedRttNanos;
+            if (success) {
+                smoothedRttNanos = smoothedRttNanos == 0 ? rttNanos : smoothedRttNanos * 0.95 + rttNanos * 0.05;
+            }
+
+            if (!success || slow) {
+                limit = Math.max(minLimit, limit * 0.9);
+            } else if (saturated) {
+                // Растём, только когда лимит действительно упирается
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+
+            // Лимит мог вырасти — будим всех, лишние снова уснут
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Полные ведра ничем не отличаются от новых — выбрасываем, чтобы карты не росли
+    private void cleanup(long now) {
+        sinceCleanup.set(0);
+        for (Map<Long, TokenBucket> m : List.of(chatBuckets, userBuckets)) {
+            for (Iterator<TokenBucket> it = m.values().iterator(); it.hasNext(); ) {
+                if (it.next().isFull(now)) it.remove();
+            }
+        }
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String stats() {
+        return String.format("limit=%d inFlight=%d queued=%d admitted=%d queuedTotal=%d rejected=%d timedOut=%d rateLimited=%d",
+                limit(), inFlight(), queued(),
+                Metrics.ADMISSION_ADMITTED.sum(), Metrics.ADMISSION_QUEUED.sum(), Metrics.ADMISSION_REJECTED.sum(),
+                Metrics.ADMISSION_TIMED_OUT.sum(), Metrics.ADMISSION_RATE_LIMITED.sum());
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import com.example.sharipov.tgbot.HistoryStore.Summary;
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Перенос чата между воркерами при смене владельца: сводка, последние keep сообщений
+ * после неё и переопределения настроек. Индексы у каждого шарда свои, поэтому на приёмнике
+ * история чата заменяется целиком, а сводка привязывается к индексу перед импортированными
+ * сообщениями. Отдающий воркер свою копию не удаляет: если новый владелец уйдёт раньше,
+ * чем чат вернётся, старая копия лучше пустой, а при возврате она всё равно заменится.
+ * Оба метода вызываются из mailbox'а чата (UpdateDispatcher) — в порядке с его апдейтами.
+ */
+public class ChatHandoff {
+
+    private static final byte VERSION = 1;
+
+    private final HistoryStore store;
+    private final HistoryWriter writer;
+    private final HistoryCache cache;
+    private final HistorySummarizer summarizer; // null — сводки выключены
+    private final SettingsStore settings;
+    private final int keep;
+
+    public ChatHandoff(HistoryStore store, HistoryWriter writer, HistoryCache cache,
+                       HistorySummarizer summarizer, SettingsStore settings, int keep) {
+        this.store = store;
+        this.writer = writer;
+        this.cache = cache;
+        this.summarizer = summarizer;
+        this.settings = settings;
+        this.keep = keep;
+    }
+
+    /** Состояние чата для передачи; пустой массив — передавать нечего. */
+    public byte[] export(long chatId) throws SQLException {
+        // Ответы, ещё не дошедшие до хранилища, тоже должны уехать
+        writer.flush();
+        Summary summary = store.loadSummary(chatId);
+        int last = store.lastIndex(chatId);
+        int from = Math.max(summary != null ? summary.uptoIndex() : 0, last - keep);
+        List<HistoryMessage> messages = last > from ? store.loadRange(chatId, from, last) : List.of();
+        ChatSettings.Overrides o = settings.overridesFor(chatId);
+        boolean hasSummary = summary != null && !summary.text().isBlank();
+        if (messages.isEmpty() && !hasSummary && o.isEmpty()) return new byte[0];
+
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeByte(VERSION);
+            writeString(out, hasSummary ? summary.text() : null);
+            writeString(out, o.model());
+            writeString(out, o.providerOnly());
+            writeString(out, o.systemPrompt());
+            writeDouble(out, o.temperature());
+            writeDouble(out, o.topP());
+            out.writeBoolean(o.maxTokens() != null);
+            if (o.maxTokens() != null) out.writeInt(o.maxTokens());
+            out.writeInt(messages.size());
+            for (HistoryMessage m : messages) {
+                writeString(out, m.role());
+                writeString(out, m.content());
+            }
+            out.flush();
+            Log.info("HANDOFF", "chatId={} exported messages={} summary={} bytes={}",
+                    chatId, messages.size(), hasSummary, buf.size());
+            return buf.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // запись в память
+        }
+    }
+
+    /** Заменяет историю, сводку и настройки чата присланным состоянием. */
+    public void importState(long chatId, byte[] state) throws SQLException, IOException {
+        if (state.length == 0) return;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        byte version = in.readByte();
+        if (version != VERSION) throw new IOException("Unsupported handoff version " + version);
+        String summary = readString(in);
+        ChatSettings.Overrides o = new ChatSettings.Overrides(
+                readString(in), readString(in), readString(in),
+                readDouble(in), readDouble(in),
+                in.readBoolean() ? in.readInt() : null);
+        int n = in.readInt();
+        List<WriteOp> ops = new ArrayList<>(n + 1);
+        ops.add(WriteOp.trim(chatId, 0));
+        for (int i = 0; i < n; i++) ops.add(WriteOp.append(chatId, readString(in), readString(in)));
+
+        writer.flush();
+        int base = store.lastIndex(chatId);
+        store.writeBatch(ops);
+        // Сводка покрывает всё до импортированных сообщений; своя устаревшая — затирается пустой
+        if (summary != null) {
+            store.saveSummary(chatId, new Summary(summary, base));
+        } else if (store.loadSummary(chatId) != null) {
+            store.saveSummary(chatId, new Summary("", base));
+        }
+        cache.invalidate(chatId);
+        if (summarizer != null) summarizer.invalidate(chatId);
+        settings.update(chatId, cur -> o);
+        Log.info("HANDOFF", "chatId={} imported messages={} summary={}", chatId, n, summary != null);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDouble(DataOutputStream out, Double d) throws IOException {
+        out.writeBoolean(d != null);
+        if (d != null) out.writeDouble(d);
+    }
+
+    private static Double readDouble(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+}
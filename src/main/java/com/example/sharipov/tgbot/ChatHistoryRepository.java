@@ -1,78 +1,440 @@
 package com.example.sharipov.tgbot;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
-public class ChatHistoryRepository implements AutoCloseable {
+/**
+ * История в SQLite (WAL). Один писатель и небольшой пул read-only соединений:
+ * чтения разных чатов идут параллельно друг другу и записи.
+ * Со сжатием (compressMinBytes >= 0) текст длинных сообщений хранится сжатым (см. ContentCodec) — снаружи это не видно.
+ * Версия схемы — в PRAGMA user_version, миграции выполняет init().
+ */
+public class ChatHistoryRepository implements HistoryStore {
 
-    public record HistoryMessage(String role, String content) {}
+    public enum Checkpoint { PASSIVE, RESTART, TRUNCATE }
 
+    // Соединение + подготовленные запросы, которые живут столько же, сколько оно
+    private static final class PooledConnection {
+        final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        // VACUUM не идёт, пока на соединении есть незавершённые запросы
+        void closeStatements() {
+            for (PreparedStatement ps : statements.values()) {
+                try { ps.close(); } catch (Exception ignored) {}
+            }
+            statements.clear();
+        }
+
+        void close() {
+            closeStatements();
+            try { conn.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private static final String INSERT_SQL = """
+        INSERT OR REPLACE INTO history (chat_id, message_index, role, content, created_at)
+        VALUES (?, ?, ?, ?, ?)
+    """;
+
+    private static final String TRIM_SQL = """
+        DELETE FROM history
+        WHERE chat_id = ? AND message_index < ?
+    """;
+
+    private static final String LOAD_LAST_SQL = """
+        SELECT role, content
+        FROM history
+        WHERE chat_id = ?
+        ORDER BY message_index DESC
+        LIMIT ?
+    """;
+
+    // Сводка помнит индексы и после того, как retention удалил все строки чата
+    private static final String NEXT_INDEX_SQL = """
+        SELECT MAX(
+            COALESCE((SELECT MAX(message_index) FROM history WHERE chat_id = ?), 0),
+            COALESCE((SELECT upto_index FROM history_summary WHERE chat_id = ?), 0)
+        ) + 1 AS next_index
+    """;
+
+    private static final String LOAD_RANGE_SQL = """
+        SELECT role, content
+        FROM history
+        WHERE chat_id = ? AND message_index > ? AND message_index <= ?
+        ORDER BY message_index ASC
+    """;
+
+    private static final String LOAD_SUMMARY_SQL = """
+        SELECT summary, upto_index FROM history_summary WHERE chat_id = ?
+    """;
+
+    private static final String SAVE_SUMMARY_SQL = """
+        INSERT OR REPLACE INTO history_summary (chat_id, summary, upto_index)
+        VALUES (?, ?, ?)
+    """;
+
+    private static final String LOAD_SETTINGS_SQL = """
+        SELECT chat_id, model, provider, system_prompt, temperature, top_p, max_tokens FROM chat_settings
+    """;
+
+    private static final String SAVE_SETTINGS_SQL = """
+        INSERT OR REPLACE INTO chat_settings (chat_id, model, provider, system_prompt, temperature, top_p, max_tokens)
+        VALUES (?, ?, ?, ?, ?, ?, ?)
+    """;
+
+    private static final String DELETE_SETTINGS_SQL = """
+        DELETE FROM chat_settings WHERE chat_id = ?
+    """;
+
+    private static final String CHAT_INDEXES_SQL = """
+        SELECT chat_id, MAX(message_index) FROM history GROUP BY chat_id
+    """;
+
+    private static final String SCAN_HISTORY_SQL = """
+        SELECT COUNT(*), COALESCE(SUM(LENGTH(content)), 0) FROM history
+    """;
+
+    private static final String CHAT_BATCH_SQL = """
+        SELECT chat_id, MIN(message_index), MAX(message_index)
+        FROM history
+        WHERE chat_id > ?
+        GROUP BY chat_id
+        ORDER BY chat_id
+        LIMIT ?
+    """;
+
+    private static final String PRUNE_OLD_SQL = """
+        DELETE FROM history WHERE rowid IN (
+            SELECT rowid FROM history WHERE created_at < ? LIMIT ?
+        )
+    """;
+
+    private static final String LOAD_DICTS_SQL = """
+        SELECT id, dict FROM history_dict ORDER BY id
+    """;
+
+    private static final String SAVE_DICT_SQL = """
+        INSERT INTO history_dict (id, dict, created_at) VALUES (?, ?, ?)
+    """;
+
+    // Свежие сообщения не короче порога сжатия; уже сжатые тоже годятся — их раскодируем
+    private static final String DICT_SAMPLE_SQL = """
+        SELECT content FROM history
+        WHERE typeof(content) = 'blob' OR length(CAST(content AS BLOB)) >= ?
+        ORDER BY rowid DESC
+        LIMIT ?
+    """;
+
+    private static final String UNCOMPRESSED_BATCH_SQL = """
+        SELECT rowid, content FROM history
+        WHERE rowid > ? AND typeof(content) = 'text' AND length(CAST(content AS BLOB)) >= ?
+        ORDER BY rowid
+        LIMIT ?
+    """;
+
+    private static final String UPDATE_CONTENT_SQL = """
+        UPDATE history SET content = ? WHERE rowid = ?
+    """;
+
+    // 1 — history.created_at; 2 — content сжат (TEXT или BLOB из ContentCodec), таблица history_dict
+    private static final int SCHEMA_VERSION = 2;
+
+    private static final long READER_WAIT_MS = 10_000;
+    private static final int DICT_SAMPLE_ROWS = 4000;
+    private static final int DICT_SAMPLE_BYTES = 1 << 20;
+    // Меньше — словарь выучит случайные фразы нескольких чатов
+    private static final int DICT_MIN_SAMPLE_BYTES = 4 * ContentCodec.DICT_SIZE;
+    private static final int MIGRATION_BATCH = 2000;
+    // ~100 байт на чат; чаты сверх этого — обычно давно молчащие
+    private static final int MAX_INDEXED_CHATS = 100_000;
+
+    private final String dbFilePath;
     private final String dbUrl;
-    private Connection db;
+    private final int readerCount;
+    private final ContentCodec codec;
+    private boolean incrementalVacuum; // файл создан с auto_vacuum=INCREMENTAL
+    private long pageSize;
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    private final Object writeLock = new Object();
+    private PooledConnection writer;
+    private BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> allReaders = new ArrayList<>();
+    private volatile boolean closed; // новые чтения не начинаются, close ждёт выданные соединения
+
+    // Следующий message_index по чату: MAX() читается один раз, дальше считаем в памяти.
+    // LRU: вытесненный чат снова прочитает MAX(). Доступ только под writeLock.
+    private final Map<Long, Integer> nextIndexByChat = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > MAX_INDEXED_CHATS;
+        }
+    };
 
     public ChatHistoryRepository(String dbFilePath) {
+        this(dbFilePath, 4);
+    }
+
+    public ChatHistoryRepository(String dbFilePath, int readerCount) {
+        this(dbFilePath, readerCount, ContentCodec.OFF);
+    }
+
+    /** compressMinBytes < 0 — новые сообщения не сжимаются (уже сжатые читаются). */
+    public ChatHistoryRepository(String dbFilePath, int readerCount, int compressMinBytes) {
+        this.dbFilePath = dbFilePath;
         this.dbUrl = "jdbc:sqlite:" + dbFilePath;
+        this.readerCount = Math.max(1, readerCount);
+        this.codec = new ContentCodec(compressMinBytes);
     }
 
-    public synchronized void init() throws SQLException {
-        db = DriverManager.getConnection(dbUrl);
+    @Override
+    public void init() throws SQLException {
+        int version;
+        synchronized (writeLock) {
+            Connection db = DriverManager.getConnection(dbUrl);
+
+            try (Statement st = db.createStatement()) {
+                // auto_vacuum записывается в заголовок при создании файла — до WAL и первой таблицы
+                st.execute("PRAGMA auto_vacuum=INCREMENTAL;");
+                st.execute("PRAGMA journal_mode=WAL;");
+                st.execute("PRAGMA synchronous=NORMAL;");
+                st.execute("PRAGMA busy_timeout=5000;");
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS history (
+                        chat_id INTEGER NOT NULL,
+                        message_index INTEGER NOT NULL,
+                        role TEXT NOT NULL,
+                        content TEXT NOT NULL,
+                        created_at INTEGER,
+                        PRIMARY KEY(chat_id, message_index)
+                    )
+                """);
+                version = (int) pragmaLong(st, "user_version");
+                if (version < 1) {
+                    addCreatedAt(st);
+                    setSchemaVersion(st, 1);
+                }
+                st.execute("CREATE INDEX IF NOT EXISTS history_created_at ON history(created_at)");
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS history_dict (
+                        id INTEGER PRIMARY KEY,
+                        dict BLOB NOT NULL,
+                        created_at INTEGER NOT NULL
+                    )
+                """);
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS history_summary (
+                        chat_id INTEGER PRIMARY KEY,
+                        summary TEXT NOT NULL,
+                        upto_index INTEGER NOT NULL
+                    )
+                """);
+                // NULL в колонке — значение по умолчанию из параметров запуска
+                st.execute("""
+                    CREATE TABLE IF NOT EXISTS chat_settings (
+                        chat_id INTEGER PRIMARY KEY,
+                        model TEXT,
+                        provider TEXT,
+                        system_prompt TEXT,
+                        temperature REAL,
+                        top_p REAL,
+                        max_tokens INTEGER
+                    )
+                """);
+                incrementalVacuum = pragmaLong(st, "auto_vacuum") == 2;
+                pageSize = pragmaLong(st, "page_size");
+            }
+            writer = new PooledConnection(db);
+            if (!incrementalVacuum) {
+                Log.warn("DB", "auto_vacuum is off in this file: freed pages are reused, but the file shrinks only after a one-time VACUUM");
+            }
+            loadDictionaries();
+
+            readers = new ArrayBlockingQueue<>(readerCount);
+            for (int i = 0; i < readerCount; i++) {
+                Connection rc = DriverManager.getConnection(dbUrl);
+                try (Statement st = rc.createStatement()) {
+                    st.execute("PRAGMA busy_timeout=5000;");
+                    st.execute("PRAGMA query_only=1;");
+                }
+                PooledConnection pc = new PooledConnection(rc);
+                allReaders.add(pc);
+                readers.add(pc);
+            }
+        }
 
-        try (Statement st = db.createStatement()) {
-            st.execute("PRAGMA journal_mode=WAL;");
-            st.execute("PRAGMA synchronous=NORMAL;");
-            st.execute("PRAGMA busy_timeout=5000;");
-            st.execute("""
-                CREATE TABLE IF NOT EXISTS history (
-                    chat_id INTEGER NOT NULL,
-                    message_index INTEGER NOT NULL,
-                    role TEXT NOT NULL,
-                    content TEXT NOT NULL,
-                    PRIMARY KEY(chat_id, message_index)
-                )
-            """);
+        // Выключенное сжатие версию не поднимает: включат — существующие строки сожмутся тогда
+        if (version < SCHEMA_VERSION && codec.enabled()) {
+            migrateCompressed();
         }
 
-        log("DB", "Initialized. url=" + dbUrl);
+        Log.info("DB", "Initialized. url={} readers={} compressMinBytes={} dict={}",
+                dbUrl, readerCount, codec.enabled() ? codec.minBytes() : "off", codec.currentDictionary());
     }
 
-    public synchronized void clearAll() throws SQLException {
-        try (PreparedStatement ps = db.prepareStatement("DELETE FROM history")) {
-            int deleted = ps.executeUpdate();
-            log("DB", "Cleared all history. deleted=" + deleted);
+    /**
+     * Прогрев перед приёмом апдейтов: готовит запросы на всех соединениях, заполняет
+     * кэш следующих индексов (не больше maxChats чатов) и один раз читает таблицу
+     * истории целиком, чтобы её страницы оказались в кэше ОС. Возвращает итог для лога.
+     */
+    @Override
+    public String warmUp(int maxChats) throws SQLException {
+        List<PooledConnection> borrowed = new ArrayList<>(readerCount);
+        Map<Long, Integer> indexes = new HashMap<>();
+        long rows, bytes;
+        try {
+            for (int i = 0; i < readerCount; i++) {
+                PooledConnection rc = borrowReader();
+                borrowed.add(rc);
+                rc.prepare(LOAD_LAST_SQL);
+                rc.prepare(LOAD_RANGE_SQL);
+                rc.prepare(LOAD_SUMMARY_SQL);
+            }
+
+            PooledConnection rc = borrowed.get(0);
+            try (ResultSet rs = rc.prepare(CHAT_INDEXES_SQL).executeQuery()) {
+                while (indexes.size() < maxChats && rs.next()) indexes.put(rs.getLong(1), rs.getInt(2) + 1);
+            }
+            try (ResultSet rs = rc.prepare(SCAN_HISTORY_SQL).executeQuery()) {
+                rs.next();
+                rows = rs.getLong(1);
+                bytes = rs.getLong(2);
+            }
+        } finally {
+            readers.addAll(borrowed);
         }
+
+        synchronized (writeLock) {
+            writer.prepare(INSERT_SQL);
+            writer.prepare(TRIM_SQL);
+            writer.prepare(NEXT_INDEX_SQL);
+            writer.prepare(SAVE_SUMMARY_SQL);
+            // Чат, в который уже успели записать, знает свой индекс точнее
+            indexes.forEach(nextIndexByChat::putIfAbsent);
+        }
+        return "chats=" + indexes.size() + " rows=" + rows + " contentBytes=" + bytes;
     }
 
-    public synchronized void append(long chatId, String role, String content) throws SQLException {
-        int nextIdx = nextIndex(chatId);
-        try (PreparedStatement ps = db.prepareStatement("""
-            INSERT OR REPLACE INTO history (chat_id, message_index, role, content)
-            VALUES (?, ?, ?, ?)
-        """)) {
+    @Override
+    public void clearAll() throws SQLException {
+        synchronized (writeLock) {
+            int deleted = writer.prepare("DELETE FROM history").executeUpdate();
+            writer.prepare("DELETE FROM history_summary").executeUpdate();
+            nextIndexByChat.clear();
+            Log.info("DB", "Cleared all history. deleted={}", deleted);
+        }
+    }
+
+    @Override
+    public void append(long chatId, String role, String content) throws SQLException {
+        synchronized (writeLock) {
+            int idx = nextIndex(chatId);
+            PreparedStatement ps = writer.prepare(INSERT_SQL);
             ps.setLong(1, chatId);
-            ps.setInt(2, nextIdx);
+            ps.setInt(2, idx);
             ps.setString(3, role);
-            ps.setString(4, content);
+            bindContent(ps, 4, content);
+            ps.setLong(5, System.currentTimeMillis() / 1000);
             ps.executeUpdate();
+            nextIndexByChat.put(chatId, idx + 1);
+            lastWriteNanos = System.nanoTime();
         }
     }
 
-    public synchronized List<HistoryMessage> loadLastMessages(long chatId, int limit) throws SQLException {
+    /**
+     * Применяет пачку операций (возможно, из разных чатов) одной транзакцией.
+     * Порядок операций внутри чата сохраняется: индексы раздаются по порядку,
+     * удаления выполняются после вставок и задевают только индексы ниже порога.
+     */
+    @Override
+    public void writeBatch(List<WriteOp> ops) throws SQLException {
+        if (ops.isEmpty()) return;
+
+        synchronized (writeLock) {
+            Connection db = writer.conn;
+            Map<Long, Integer> before = new HashMap<>();
+            long now = System.currentTimeMillis() / 1000;
+            db.setAutoCommit(false);
+            try {
+                PreparedStatement ins = writer.prepare(INSERT_SQL);
+                PreparedStatement del = writer.prepare(TRIM_SQL);
+
+                int inserts = 0, trims = 0;
+                for (WriteOp op : ops) {
+                    int idx = nextIndex(op.chatId());
+                    before.putIfAbsent(op.chatId(), idx);
+                    if (op.isAppend()) {
+                        ins.setLong(1, op.chatId());
+                        ins.setInt(2, idx);
+                        ins.setString(3, op.role());
+                        bindContent(ins, 4, op.content());
+                        ins.setLong(5, now);
+                        ins.addBatch();
+                        nextIndexByChat.put(op.chatId(), idx + 1);
+                        inserts++;
+                    } else {
+                        del.setLong(1, op.chatId());
+                        del.setInt(2, Math.max(1, idx - op.keepLast()));
+                        del.addBatch();
+                        trims++;
+                    }
+                }
+
+                if (inserts > 0) ins.executeBatch();
+                int deleted = 0;
+                if (trims > 0) for (int n : del.executeBatch()) deleted += Math.max(0, n);
+                db.commit();
+                lastWriteNanos = System.nanoTime();
+
+                if (deleted > 0) Log.debug("DB", "Batch ops={} chats={}, deleted={}", ops.size(), before.size(), deleted);
+            } catch (SQLException e) {
+                try { db.rollback(); } catch (SQLException ignored) {}
+                nextIndexByChat.putAll(before);
+                throw e;
+            } finally {
+                db.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public List<HistoryMessage> loadLastMessages(long chatId, int limit) throws SQLException {
         List<HistoryMessage> tmp = new ArrayList<>();
 
-        try (PreparedStatement ps = db.prepareStatement("""
-            SELECT role, content
-            FROM history
-            WHERE chat_id = ?
-            ORDER BY message_index DESC
-            LIMIT ?
-        """)) {
+        PooledConnection rc = borrowReader();
+        try {
+            PreparedStatement ps = rc.prepare(LOAD_LAST_SQL);
             ps.setLong(1, chatId);
             ps.setInt(2, limit);
             try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) tmp.add(new HistoryMessage(rs.getString("role"), rs.getString("content")));
+                while (rs.next()) tmp.add(new HistoryMessage(rs.getString(1), content(rs, 2)));
             }
+        } finally {
+            readers.add(rc);
         }
 
         // Разворачиваем в ASC для правильного контекста
@@ -81,45 +443,448 @@ public class ChatHistoryRepository implements AutoCloseable {
         return out;
     }
 
-    public synchronized void trimToLast(long chatId, int keepLastMessages) throws SQLException {
-        int nextIdx = nextIndex(chatId);
-        int minIdxToKeep = Math.max(1, nextIdx - keepLastMessages);
+    /** Сообщения с индексами (afterIndex, uptoIndex] в хронологическом порядке. */
+    @Override
+    public List<HistoryMessage> loadRange(long chatId, int afterIndex, int uptoIndex) throws SQLException {
+        List<HistoryMessage> out = new ArrayList<>();
 
-        try (PreparedStatement ps = db.prepareStatement("""
-            DELETE FROM history
-            WHERE chat_id = ? AND message_index < ?
-        """)) {
+        PooledConnection rc = borrowReader();
+        try {
+            PreparedStatement ps = rc.prepare(LOAD_RANGE_SQL);
+            ps.setLong(1, chatId);
+            ps.setInt(2, afterIndex);
+            ps.setInt(3, uptoIndex);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(new HistoryMessage(rs.getString(1), content(rs, 2)));
+            }
+        } finally {
+            readers.add(rc);
+        }
+        return out;
+    }
+
+    /** Индекс последнего записанного сообщения чата (0 — истории нет). */
+    @Override
+    public int lastIndex(long chatId) throws SQLException {
+        synchronized (writeLock) {
+            return nextIndex(chatId) - 1;
+        }
+    }
+
+    @Override
+    public Summary loadSummary(long chatId) throws SQLException {
+        PooledConnection rc = borrowReader();
+        try {
+            PreparedStatement ps = rc.prepare(LOAD_SUMMARY_SQL);
+            ps.setLong(1, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new Summary(rs.getString(1), rs.getInt(2)) : null;
+            }
+        } finally {
+            readers.add(rc);
+        }
+    }
+
+    @Override
+    public void saveSummary(long chatId, Summary summary) throws SQLException {
+        synchronized (writeLock) {
+            PreparedStatement ps = writer.prepare(SAVE_SUMMARY_SQL);
+            ps.setLong(1, chatId);
+            ps.setString(2, summary.text());
+            ps.setInt(3, summary.uptoIndex());
+            ps.executeUpdate();
+        }
+    }
+
+    /** Все переопределения настроек — их немного, только у изменённых чатов. */
+    public Map<Long, ChatSettings.Overrides> loadChatSettings() throws SQLException {
+        Map<Long, ChatSettings.Overrides> out = new HashMap<>();
+        PooledConnection rc = borrowReader();
+        try (ResultSet rs = rc.prepare(LOAD_SETTINGS_SQL).executeQuery()) {
+            while (rs.next()) {
+                out.put(rs.getLong(1), new ChatSettings.Overrides(
+                        rs.getString(2),
+                        rs.getString(3),
+                        rs.getString(4),
+                        rs.getObject(5) != null ? rs.getDouble(5) : null,
+                        rs.getObject(6) != null ? rs.getDouble(6) : null,
+                        rs.getObject(7) != null ? rs.getInt(7) : null));
+            }
+        } finally {
+            readers.add(rc);
+        }
+        return out;
+    }
+
+    public void saveChatSettings(long chatId, ChatSettings.Overrides o) throws SQLException {
+        synchronized (writeLock) {
+            PreparedStatement ps = writer.prepare(SAVE_SETTINGS_SQL);
+            ps.setLong(1, chatId);
+            ps.setString(2, o.model());
+            ps.setString(3, o.providerOnly());
+            ps.setString(4, o.systemPrompt());
+            setNullable(ps, 5, o.temperature(), Types.REAL);
+            setNullable(ps, 6, o.topP(), Types.REAL);
+            setNullable(ps, 7, o.maxTokens(), Types.INTEGER);
+            ps.executeUpdate();
+        }
+    }
+
+    public void deleteChatSettings(long chatId) throws SQLException {
+        synchronized (writeLock) {
+            PreparedStatement ps = writer.prepare(DELETE_SETTINGS_SQL);
+            ps.setLong(1, chatId);
+            ps.executeUpdate();
+        }
+    }
+
+    private static void setNullable(PreparedStatement ps, int index, Object value, int sqlType) throws SQLException {
+        if (value == null) ps.setNull(index, sqlType);
+        else ps.setObject(index, value);
+    }
+
+    @Override
+    public void trimToLast(long chatId, int keepLastMessages) throws SQLException {
+        synchronized (writeLock) {
+            int nextIdx = nextIndex(chatId);
+            int minIdxToKeep = Math.max(1, nextIdx - keepLastMessages);
+
+            PreparedStatement ps = writer.prepare(TRIM_SQL);
             ps.setLong(1, chatId);
             ps.setInt(2, minIdxToKeep);
             int deleted = ps.executeUpdate();
-            if (deleted > 0) log("DB", "Trim chatId=" + chatId + ", deleted=" + deleted);
+            if (deleted > 0) Log.debug("DB", "Trim chatId={}, deleted={}", chatId, deleted);
         }
     }
 
-    private int nextIndex(long chatId) throws SQLException {
-        try (PreparedStatement ps = db.prepareStatement("""
-            SELECT COALESCE(MAX(message_index), 0) + 1 AS next_index
-            FROM history
-            WHERE chat_id = ?
-        """)) {
-            ps.setLong(1, chatId);
+    // ---------- сжатие (см. ContentCodec) ----------
+
+    /** Есть ли обученный словарь (без него длинные сообщения сжимаются хуже). */
+    public boolean hasDictionary() {
+        return codec.currentDictionary() != 0;
+    }
+
+    /**
+     * Обучает новый общий словарь на последних сообщениях и сжимает им дальнейшие записи.
+     * Уже записанные строки не меняются. false — истории для обучения пока мало.
+     */
+    public boolean trainDictionary() throws SQLException {
+        if (!codec.enabled()) return false;
+        List<byte[]> samples = new ArrayList<>();
+        int bytes = 0;
+        PooledConnection rc = borrowReader();
+        try {
+            PreparedStatement ps = rc.prepare(DICT_SAMPLE_SQL);
+            ps.setInt(1, codec.minBytes());
+            ps.setInt(2, DICT_SAMPLE_ROWS);
             try (ResultSet rs = ps.executeQuery()) {
-                rs.next();
-                return rs.getInt("next_index");
+                while (bytes < DICT_SAMPLE_BYTES && rs.next()) {
+                    byte[] s = content(rs, 1).getBytes(StandardCharsets.UTF_8);
+                    samples.add(s);
+                    bytes += s.length;
+                }
+            }
+        } finally {
+            readers.add(rc);
+        }
+        if (bytes < DICT_MIN_SAMPLE_BYTES) return false;
+
+        long t0 = System.nanoTime();
+        byte[] dict = ContentCodec.train(samples, ContentCodec.DICT_SIZE);
+        synchronized (writeLock) {
+            int id = codec.lastDictionary() + 1;
+            if (id > ContentCodec.MAX_DICT_ID) {
+                Log.warn("DB", "No free dictionary ids left, keeping dict={}", codec.currentDictionary());
+                return false;
+            }
+            PreparedStatement ps = writer.prepare(SAVE_DICT_SQL);
+            ps.setInt(1, id);
+            ps.setBytes(2, dict);
+            ps.setLong(3, System.currentTimeMillis() / 1000);
+            ps.executeUpdate();
+            codec.addDictionary(id, dict, true);
+            Log.info("DB", "Trained compression dictionary id={} size={} samples={} sampleBytes={} tookMs={}",
+                    id, dict.length, samples.size(), bytes, (System.nanoTime() - t0) / 1_000_000);
+        }
+        return true;
+    }
+
+    // Вызывается под writeLock
+    private void loadDictionaries() throws SQLException {
+        try (ResultSet rs = writer.prepare(LOAD_DICTS_SQL).executeQuery()) {
+            while (rs.next()) codec.addDictionary(rs.getInt(1), rs.getBytes(2), true);
+        }
+    }
+
+    // Схема 1 → 2: словарь по существующей истории, сжатие её строк пачками, VACUUM.
+    // Прерванная миграция продолжится при следующем запуске: сжатые строки уже BLOB
+    private void migrateCompressed() throws SQLException {
+        long t0 = System.nanoTime();
+        if (!hasDictionary()) trainDictionary();
+
+        long cursor = 0;
+        int scanned = 0, compressed = 0;
+        synchronized (writeLock) {
+            Connection db = writer.conn;
+            while (true) {
+                List<Object[]> rows = new ArrayList<>(MIGRATION_BATCH);
+                PreparedStatement sel = writer.prepare(UNCOMPRESSED_BATCH_SQL);
+                sel.setLong(1, cursor);
+                sel.setInt(2, codec.minBytes());
+                sel.setInt(3, MIGRATION_BATCH);
+                try (ResultSet rs = sel.executeQuery()) {
+                    while (rs.next()) rows.add(new Object[]{rs.getLong(1), rs.getString(2)});
+                }
+                if (rows.isEmpty()) break;
+
+                db.setAutoCommit(false);
+                try {
+                    PreparedStatement upd = writer.prepare(UPDATE_CONTENT_SQL);
+                    for (Object[] row : rows) {
+                        // Не уменьшилась — строка остаётся TEXT, курсор её пропустит
+                        if (!(codec.encode((String) row[1]) instanceof byte[] blob)) continue;
+                        upd.setBytes(1, blob);
+                        upd.setLong(2, (Long) row[0]);
+                        upd.addBatch();
+                        compressed++;
+                    }
+                    upd.executeBatch();
+                    db.commit();
+                } catch (SQLException e) {
+                    try { db.rollback(); } catch (SQLException ignored) {}
+                    throw e;
+                } finally {
+                    db.setAutoCommit(true);
+                }
+                scanned += rows.size();
+                cursor = (Long) rows.get(rows.size() - 1)[0];
+            }
+            try (Statement st = db.createStatement()) {
+                if (compressed > 0) {
+                    // Строки ужались внутри страниц, свободных страниц почти нет — файл уменьшит
+                    // только VACUUM. Заодно включает auto_vacuum в файлах, созданных без него
+                    writer.closeStatements();
+                    st.execute("PRAGMA auto_vacuum=INCREMENTAL;");
+                    st.execute("VACUUM");
+                    incrementalVacuum = pragmaLong(st, "auto_vacuum") == 2;
+                }
+                setSchemaVersion(st, SCHEMA_VERSION);
+            }
+        }
+        Log.info("DB", "Schema migrated to v{}: compressed rows={} of scanned={} dict={} tookMs={}",
+                SCHEMA_VERSION, compressed, scanned, codec.currentDictionary(), (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    private void bindContent(PreparedStatement ps, int index, String content) throws SQLException {
+        Object stored = codec.encode(content);
+        if (stored instanceof byte[] blob) ps.setBytes(index, blob);
+        else ps.setString(index, (String) stored);
+    }
+
+    // TEXT — как есть, BLOB — сжатый ContentCodec
+    private String content(ResultSet rs, int column) throws SQLException {
+        try {
+            return codec.decode(rs.getObject(column));
+        } catch (DataFormatException e) {
+            throw new SQLException("Corrupted history content: " + e.getMessage(), e);
+        }
+    }
+
+    // ---------- обслуживание (см. HistoryMaintenance) ----------
+
+    /**
+     * Оставляет не больше keepLast последних сообщений у следующих maxChats чатов
+     * после afterChatId (по возрастанию id) — одной короткой транзакцией.
+     */
+    @Override
+    public PruneBatch pruneToLast(long afterChatId, int maxChats, int keepLast) throws SQLException {
+        synchronized (writeLock) {
+            List<long[]> chats = new ArrayList<>(maxChats);
+            PreparedStatement sel = writer.prepare(CHAT_BATCH_SQL);
+            sel.setLong(1, afterChatId);
+            sel.setInt(2, maxChats);
+            try (ResultSet rs = sel.executeQuery()) {
+                while (rs.next()) chats.add(new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)});
+            }
+            if (chats.isEmpty()) return new PruneBatch(afterChatId, 0, 0);
+
+            Connection db = writer.conn;
+            int deleted = 0;
+            db.setAutoCommit(false);
+            try {
+                PreparedStatement del = writer.prepare(TRIM_SQL);
+                boolean any = false;
+                for (long[] c : chats) {
+                    long minIdxToKeep = c[2] - keepLast + 1;
+                    if (c[1] >= minIdxToKeep) continue;
+                    del.setLong(1, c[0]);
+                    del.setLong(2, minIdxToKeep);
+                    del.addBatch();
+                    any = true;
+                }
+                if (any) for (int n : del.executeBatch()) deleted += Math.max(0, n);
+                db.commit();
+            } catch (SQLException e) {
+                try { db.rollback(); } catch (SQLException ignored) {}
+                throw e;
+            } finally {
+                db.setAutoCommit(true);
             }
+            return new PruneBatch(chats.get(chats.size() - 1)[0], chats.size(), deleted);
         }
     }
 
+    /** Удаляет до limit сообщений, записанных раньше cutoffEpochSeconds. Строки без created_at не трогает. */
     @Override
-    public synchronized void close() {
-        if (db != null) {
-            try { db.close(); } catch (Exception ignored) {}
-            db = null;
+    public int pruneOlderThan(long cutoffEpochSeconds, int limit) throws SQLException {
+        synchronized (writeLock) {
+            PreparedStatement ps = writer.prepare(PRUNE_OLD_SQL);
+            ps.setLong(1, cutoffEpochSeconds);
+            ps.setInt(2, limit);
+            return ps.executeUpdate();
         }
-        log("DB", "Closed.");
     }
 
-    private void log(String tag, String msg) {
-        System.out.printf("%s [%s] %s%n", Instant.now(), tag, msg);
+    /** Возвращает ОС до maxPages свободных страниц; сколько вернул. 0 — файл без auto_vacuum. */
+    public long incrementalVacuum(int maxPages) throws SQLException {
+        if (!incrementalVacuum) return 0;
+        synchronized (writeLock) {
+            try (Statement st = writer.conn.createStatement()) {
+                long before = pragmaLong(st, "freelist_count");
+                if (before == 0) return 0;
+                // executeUpdate проходит прагму до конца; execute() освободил бы одну страницу
+                st.executeUpdate("PRAGMA incremental_vacuum(" + maxPages + ")");
+                return before - pragmaLong(st, "freelist_count");
+            }
+        }
+    }
+
+    /** true — WAL перенесён в файл БД целиком (читатели не помешали). */
+    public boolean walCheckpoint(Checkpoint mode) throws SQLException {
+        synchronized (writeLock) {
+            try (Statement st = writer.conn.createStatement();
+                 ResultSet rs = st.executeQuery("PRAGMA wal_checkpoint(" + mode + ")")) {
+                return rs.next() && rs.getInt(1) == 0;
+            }
+        }
+    }
+
+    public long walBytes() {
+        return new File(dbFilePath + "-wal").length();
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) throws SQLException {
+        return incrementalVacuum((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / pageSize))) * pageSize;
+    }
+
+    @Override
+    public long journalBytes() {
+        return walBytes();
+    }
+
+    // RESTART под нагрузкой: следующая запись начнёт WAL сначала, а не допишет в конец
+    @Override
+    public boolean checkpoint(boolean quiet) throws SQLException {
+        return walCheckpoint(quiet ? Checkpoint.TRUNCATE : Checkpoint.RESTART);
+    }
+
+    /** Сколько прошло с последней записи истории (append/writeBatch). */
+    @Override
+    public long idleNanos() {
+        return System.nanoTime() - lastWriteNanos;
+    }
+
+    // Файлы, созданные до колонки created_at: старым строкам ставим время миграции
+    private static void addCreatedAt(Statement st) throws SQLException {
+        try (ResultSet rs = st.executeQuery("PRAGMA table_info(history)")) {
+            while (rs.next()) {
+                if ("created_at".equals(rs.getString("name"))) return;
+            }
+        }
+        st.execute("ALTER TABLE history ADD COLUMN created_at INTEGER");
+        int n = st.executeUpdate("UPDATE history SET created_at = " + System.currentTimeMillis() / 1000);
+        Log.info("DB", "Added history.created_at, backfilled rows={}", n);
+    }
+
+    private static void setSchemaVersion(Statement st, int version) throws SQLException {
+        st.execute("PRAGMA user_version=" + version);
+    }
+
+    private static long pragmaLong(Statement st, String pragma) throws SQLException {
+        try (ResultSet rs = st.executeQuery("PRAGMA " + pragma)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // Вызывается под writeLock
+    private int nextIndex(long chatId) throws SQLException {
+        Integer cached = nextIndexByChat.get(chatId);
+        if (cached != null) return cached;
+
+        PreparedStatement ps = writer.prepare(NEXT_INDEX_SQL);
+        ps.setLong(1, chatId);
+        ps.setLong(2, chatId);
+        int idx;
+        try (ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            idx = rs.getInt(1);
+        }
+        nextIndexByChat.put(chatId, idx);
+        return idx;
+    }
+
+    private PooledConnection borrowReader() throws SQLException {
+        BlockingQueue<PooledConnection> pool = readers;
+        if (pool == null) throw new SQLException("Repository is not initialized");
+        if (closed) throw new SQLException("Repository is closed");
+        try {
+            PooledConnection rc = pool.poll(READER_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (rc == null) throw new SQLException("No free reader connection in " + READER_WAIT_MS + " ms");
+            return rc;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for reader connection", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        awaitReaders();
+        synchronized (writeLock) {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            for (PooledConnection rc : allReaders) rc.close();
+            allReaders.clear();
+        }
+        Log.info("DB", "Closed.");
+    }
+
+    // Чтения в полёте дочитывают на своих соединениях: ждём, пока все вернутся в пул
+    private void awaitReaders() {
+        BlockingQueue<PooledConnection> pool = readers;
+        if (pool == null) return;
+        int total;
+        synchronized (writeLock) {
+            total = allReaders.size();
+        }
+        List<PooledConnection> returned = new ArrayList<>(total);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READER_WAIT_MS);
+        try {
+            while (returned.size() < total) {
+                PooledConnection rc = pool.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (rc == null) break;
+                returned.add(rc);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (returned.size() < total) {
+            Log.warn("DB", "{} reader connections still busy after {} ms, closing them anyway",
+                    total - returned.size(), READER_WAIT_MS);
+        }
     }
 }
@@ -0,0 +1,84 @@
+package com.example.sharipov.tgbot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Сериализует запрос chat-completions прямо в байты UTF-8.
+ * Префиксы {"model":..,"messages":[{system}} кэшируются по паре (модель, system prompt) —
+ * у чатов со своими настройками свой префикс;
+ * буферы переиспользуются через небольшой пул (ThreadLocal бесполезен на виртуальных потоках).
+ * Поле "stream" пишется последним: всё до него — ключ ResponseCache.
+ */
+public class ChatRequestEncoder {
+
+    public record Encoded(byte[] body, int keyLength) {}
+
+    private record PrefixKey(String model, String systemPrompt) {}
+
+    private static final int POOL_SIZE = 32;
+    private static final int MAX_POOLED_BYTES = 1 << 20;
+    // Различных пар на практике единицы; переполнение — сбрасываем целиком
+    private static final int MAX_PREFIXES = 256;
+
+    private final BlockingQueue<JsonBytes> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ConcurrentHashMap<PrefixKey, byte[]> prefixes = new ConcurrentHashMap<>();
+
+    public Encoded encode(ChatSettings s, ContextBuilder.Context ctx, boolean stream) {
+        return encode(s.model(), s.providerOnly(), s.temperature(), s.topP(), s.maxTokens(), ctx, stream);
+    }
+
+    public Encoded encode(String model,
+                          String providerOnly,
+                          double temperature,
+                          double topP,
+                          int maxTokens,
+                          ContextBuilder.Context ctx,
+                          boolean stream) {
+        JsonBytes out = pool.poll();
+        if (out == null) out = new JsonBytes(4096);
+        try {
+            out.raw(prefixFor(model, ctx.systemPrompt()));
+
+            if (ctx.summary() != null) message(out, "system", ctx.summary());
+            for (var m : ctx.history()) message(out, m.role(), m.content());
+            message(out, "user", ctx.userText());
+            out.raw(']');
+
+            out.raw(",\"options\":{\"temperature\":").number(temperature)
+                    .raw(",\"top_p\":").number(topP)
+                    .raw(",\"max_tokens\":").number(maxTokens)
+                    .raw('}');
+
+            if (providerOnly != null && !providerOnly.isBlank()) {
+                out.raw(",\"provider\":{\"only\":[").string(providerOnly).raw("]}");
+            }
+
+            int keyLength = out.length();
+            out.raw(stream ? ",\"stream\":true}" : ",\"stream\":false}");
+            return new Encoded(out.toByteArray(), keyLength);
+        } finally {
+            out.reset();
+            if (out.capacity() <= MAX_POOLED_BYTES) pool.offer(out);
+        }
+    }
+
+    private byte[] prefixFor(String model, String systemPrompt) {
+        PrefixKey key = new PrefixKey(model, systemPrompt);
+        byte[] cached = prefixes.get(key);
+        if (cached != null) return cached;
+
+        JsonBytes b = new JsonBytes(systemPrompt.length() + 128);
+        b.raw("{\"model\":").string(model).raw(",\"messages\":[");
+        b.raw("{\"role\":\"system\",\"content\":").string(systemPrompt).raw('}');
+        byte[] bytes = b.toByteArray();
+        if (prefixes.size() >= MAX_PREFIXES) prefixes.clear();
+        prefixes.put(key, bytes);
+        return bytes;
+    }
+
+    private static void message(JsonBytes out, String role, String content) {
+        out.raw(",{\"role\":").string(role).raw(",\"content\":").string(content).raw('}');
+    }
+}
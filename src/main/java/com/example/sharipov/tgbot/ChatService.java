@@ -1,163 +1,224 @@
 package com.example.sharipov.tgbot;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-
 import java.time.Duration;
-import java.time.Instant;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 public class ChatService {
 
-    private static final Gson GSON = new Gson();
+    public static final String UNAVAILABLE_REPLY = "Сервис временно недоступен.";
+
+    private static final String SUMMARY_HEADER = "Краткое содержание более ранней части разговора:\n";
 
-    private final ChatHistoryRepository repo;
+    private final HistoryCache history;
     private final RouterClient client;
+    private final ResponseCache responseCache;
+    private final ContextBuilder contextBuilder;
+    private final HistorySummarizer summarizer; // null — сводки выключены
+    private final ChatRequestEncoder encoder = new ChatRequestEncoder();
 
-    // 🔥 УБРАНЫ final — теперь динамические
-    private String model;
-    private String providerOnly;
-    private String systemDescription;
-    private double temperature;
-    private double topP;
-    private int maxTokens;
+    private final SettingsStore settings;
     private final int contextHistoryLimit;
-    private final int dbKeepLimit;
 
-    public ChatService(ChatHistoryRepository repo,
+    // Всё, что нужно для вызова LLM и записи ответа в историю
+    private record Prepared(String reqId, long startNanos, ChatSettings settings, ContextBuilder.Context ctx,
+                            ChatRequestEncoder.Encoded req, String cacheKey) {}
+
+    public ChatService(HistoryCache history,
                        RouterClient client,
-                       String model,
-                       String providerOnly,
-                       String systemDescription,
-                       double temperature,
-                       double topP,
-                       int maxTokens,
-                       int contextHistoryLimit,
-                       int dbKeepLimit) {
-
-        this.repo = repo;
+                       ResponseCache responseCache,
+                       ContextBuilder contextBuilder,
+                       HistorySummarizer summarizer,
+                       SettingsStore settings,
+                       int contextHistoryLimit) {
+
+        this.history = history;
         this.client = client;
-        this.model = model;
-        this.providerOnly = providerOnly;
-        this.systemDescription = systemDescription;
-        this.temperature = temperature;
-        this.topP = topP;
-        this.maxTokens = maxTokens;
+        this.responseCache = responseCache;
+        this.contextBuilder = contextBuilder;
+        this.summarizer = summarizer;
+        this.settings = settings;
         this.contextHistoryLimit = contextHistoryLimit;
-        this.dbKeepLimit = dbKeepLimit;
     }
 
-    // 🔥 GETTERS
-    public String getSystemDescription() { return systemDescription; }
-    public String getModel() { return model; }
-    public String getProviderOnly() { return providerOnly; }
-    public double getTemperature() { return temperature; }
-    public double getTopP() { return topP; }
-    public int getMaxTokens() { return maxTokens; }
-
-    // 🔥 SETTERS ДЛЯ ДИНАМИЧЕСКИХ НАСТРОЕК
-    public void setModel(String model) {
-        this.model = model;
-        System.out.println("🔧 Модель изменена на: " + model);
+    public SettingsStore settings() {
+        return settings;
     }
 
-    public void setProvider(String providerOnly) {
-        this.providerOnly = providerOnly;
-        System.out.println("🔧 Провайдер изменён на: " + (providerOnly.isBlank() ? "любой" : providerOnly));
-    }
-
-    public void setSystemDescription(String systemDescription) {
-        this.systemDescription = systemDescription;
-        System.out.println("🔧 System prompt обновлён");
+    public String reply(long chatId, String userText) {
+        return answer(chatId, List.of(userText), () -> true, null);
     }
 
-    public void setTemperature(double temperature) {
-        this.temperature = temperature;
-        System.out.println("🔧 Температура изменена на: " + temperature);
+    /**
+     * Несколько сообщений пользователя подряд — один запрос к LLM, в истории каждое отдельной строкой.
+     * commit вызывается перед записью в историю; false (или прерывание потока раньше) —
+     * ответ не сохраняется и бросается CancellationException.
+     */
+    public String reply(long chatId, List<String> userTexts, BooleanSupplier commit) {
+        return answer(chatId, userTexts, commit, null);
     }
 
-    public void setTopP(double topP) {
-        this.topP = topP;
-        System.out.println("🔧 Top P изменён на: " + topP);
+    /**
+     * Потоковый вариант: onText получает накопленный текст ответа по мере прихода чанков —
+     * сам буфер, без копии: toString() только когда текст действительно нужен (правка
+     * сообщения), и не хранить ссылку — после возврата буфер дописывается.
+     * Итоговый текст сохраняется в историю так же, как в reply().
+     */
+    public String replyStreaming(long chatId, String userText, Consumer<CharSequence> onText) {
+        return answer(chatId, List.of(userText), () -> true, onText);
     }
 
-    public void setMaxTokens(int maxTokens) {
-        this.maxTokens = maxTokens;
-        System.out.println("🔧 Макс. токены: " + maxTokens);
+    public String replyStreaming(long chatId, List<String> userTexts, BooleanSupplier commit, Consumer<CharSequence> onText) {
+        return answer(chatId, userTexts, commit, onText);
     }
 
-    public String reply(long chatId, String userText) {
-        String reqId = chatId + "-" + System.nanoTime();
-        Instant t0 = Instant.now();
-
+    /**
+     * Асинхронный reply: запрос к LLM не держит поток, ответ сохраняется в историю по его
+     * приходу. cancel() у результата обрывает запрос, если его не ждут одинаковые запросы
+     * других чатов (общий вызов ResponseCache); commit — как в reply().
+     * Ошибка LLM — future с UNAVAILABLE_REPLY, отмена — CancellationException.
+     */
+    public CompletableFuture<String> replyAsync(long chatId, List<String> userTexts, BooleanSupplier commit) {
+        Prepared p;
         try {
-            List<ChatHistoryRepository.HistoryMessage> history =
-                    repo.loadLastMessages(chatId, contextHistoryLimit);
-
-            JsonArray messages = new JsonArray();
-            messages.add(msg("system", systemDescription));
+            p = prepare(chatId, userTexts, false);
+        } catch (Exception e) {
+            Log.error("CHAT", "chatId={} ERROR: {}", chatId, e.getMessage());
+            return CompletableFuture.completedFuture(UNAVAILABLE_REPLY);
+        }
 
-            for (var m : history) {
-                if (m.content() == null || m.content().isBlank()) continue;
-                messages.add(msg(m.role(), m.content()));
+        CompletableFuture<String> call = responseCache.getOrLoadAsync(p.cacheKey(),
+                () -> client.chatContentAsync(p.req().body(), Duration.ofSeconds(120)));
+        CompletableFuture<String> out = new CompletableFuture<>();
+        call.whenComplete((text, e) -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof CancellationException || out.isDone()) {
+                Log.debug("CHAT", "reqId={} cancelled after {}ms", p.reqId(), (System.nanoTime() - p.startNanos()) / 1_000_000);
+                out.cancel(false);
+                return;
             }
-
-            messages.add(msg("user", userText));
-
-            JsonObject req = new JsonObject();
-            req.addProperty("model", model);
-            req.add("messages", messages);
-            req.addProperty("stream", false);
-
-            JsonObject options = new JsonObject();
-            options.addProperty("temperature", temperature);
-            options.addProperty("top_p", topP);
-            options.addProperty("max_tokens", maxTokens);
-            req.add("options", options);
-
-            if (providerOnly != null && !providerOnly.isBlank()) {
-                JsonObject provider = new JsonObject();
-                JsonArray only = new JsonArray();
-                only.add(providerOnly);
-                provider.add("only", only);
-                req.add("provider", provider);
+            if (cause != null) {
+                Log.error("CHAT", "reqId={} ERROR: {}", p.reqId(), cause.getMessage());
+                out.complete(UNAVAILABLE_REPLY);
+                return;
+            }
+            try {
+                String assistantText = text.trim();
+                if (!commit.getAsBoolean()) throw new CancellationException();
+                save(chatId, userTexts, assistantText, p, System.nanoTime(), false);
+                out.complete(assistantText);
+            } catch (CancellationException c) {
+                out.cancel(false);
+            } catch (Exception ex) {
+                Log.error("CHAT", "reqId={} ERROR: {}", p.reqId(), ex.getMessage());
+                out.complete(UNAVAILABLE_REPLY);
             }
+        });
+        out.whenComplete((r, e) -> {
+            if (out.isCancelled()) call.cancel(true);
+        });
+        return out;
+    }
 
-            System.out.printf("%s [CHAT] reqId=%s chatId=%d hist=%d userLen=%d model=%s maxTokens=%d%n",
-                    Instant.now(), reqId, chatId, history.size(), userText.length(), model, maxTokens);
+    public CompletableFuture<String> replyAsync(long chatId, String userText) {
+        return replyAsync(chatId, List.of(userText), () -> true);
+    }
 
-            String respBody = client.chat(req, Duration.ofSeconds(120));
-            String assistantText = parseAssistant(respBody);
+    private Prepared prepare(long chatId, List<String> userTexts, boolean stream) throws Exception {
+        String userText = userTexts.size() == 1 ? userTexts.get(0) : String.join("\n", userTexts);
+        // Один снимок на весь запрос — смена настроек посреди него не смешивается
+        ChatSettings s = settings.forChat(chatId);
+        String reqId = chatId + "-" + System.nanoTime();
+        long t0 = System.nanoTime();
+
+        long loadStart = System.nanoTime();
+        List<HistoryStore.HistoryMessage> recent =
+                history.loadLastMessages(chatId, contextHistoryLimit);
+        Metrics.HISTORY_LOAD.since(loadStart);
+
+        String summary = summarizer != null ? summarizer.summaryFor(chatId) : null;
+        ContextBuilder.Context ctx = contextBuilder.build(
+                s.systemPrompt(),
+                summary == null || summary.isBlank() ? null : SUMMARY_HEADER + summary,
+                recent,
+                userText);
+
+        // Ключ кэша не зависит от режима доставки: "stream" пишется последним и в ключ не входит
+        ChatRequestEncoder.Encoded req = encoder.encode(s, ctx, stream);
+        String cacheKey = responseCache.isEnabled() ? ResponseCache.keyOf(req.body(), req.keyLength()) : null;
+
+        if (Log.isDebugEnabled()) {
+            Log.debug("CHAT", "reqId={} chatId={} hist={}/{} promptTokens={} userMsgs={} userLen={} model={} maxTokens={} stream={}",
+                    reqId, chatId, ctx.history().size(), recent.size(), ctx.promptTokens(),
+                    userTexts.size(), userText.length(), s.model(), s.maxTokens(), stream);
+        }
+        return new Prepared(reqId, t0, s, ctx, req, cacheKey);
+    }
 
-            repo.append(chatId, "user", userText);
-            repo.append(chatId, "assistant", assistantText);
-            repo.trimToLast(chatId, dbKeepLimit);
+    private void save(long chatId, List<String> userTexts, String assistantText, Prepared p,
+                      long firstTokenNanos, boolean stream) {
+        for (String text : userTexts) history.append(chatId, "user", text);
+        history.append(chatId, "assistant", assistantText);
+        if (summarizer != null) summarizer.refreshLater(chatId, p.settings().model());
+
+        // В блокирующем режиме первый токен = весь ответ, так режимы сравнимы по ttftMs
+        long ttftMs = (firstTokenNanos - p.startNanos()) / 1_000_000;
+        long tookMs = (System.nanoTime() - p.startNanos()) / 1_000_000;
+        Log.info("CHAT", "reqId={} done tookMs={} ttftMs={} outLen={} promptTokens={} stream={}",
+                p.reqId(), tookMs, ttftMs, assistantText.length(), p.ctx().promptTokens(), stream);
+    }
 
-            long tookMs = Duration.between(t0, Instant.now()).toMillis();
-            System.out.printf("%s [CHAT] reqId=%s done tookMs=%d outLen=%d%n",
-                    Instant.now(), reqId, tookMs, assistantText.length());
+    private String answer(long chatId, List<String> userTexts, BooleanSupplier commit, Consumer<CharSequence> onText) {
+        boolean stream = onText != null;
+        String reqId = chatId + "-" + System.nanoTime();
+        long t0 = System.nanoTime();
 
+        try {
+            Prepared p = prepare(chatId, userTexts, stream);
+            reqId = p.reqId();
+            t0 = p.startNanos();
+            ChatRequestEncoder.Encoded req = p.req();
+            String cacheKey = p.cacheKey();
+
+            String assistantText;
+            long firstTokenNanos;
+            if (stream) {
+                long[] first = {0};
+                assistantText = responseCache.getOrLoad(cacheKey, () -> {
+                    StringBuilder acc = new StringBuilder();
+                    client.chatStream(req.body(), Duration.ofSeconds(120), delta -> {
+                        // Поток читается блокирующе — отмену видим на следующем куске
+                        if (Thread.currentThread().isInterrupted()) throw new CancellationException();
+                        if (first[0] == 0) first[0] = System.nanoTime();
+                        acc.append(delta);
+                        // Копия на каждый чанк — O(n²) на длинном ответе; копирует получатель, когда правит
+                        onText.accept(acc);
+                    });
+                    return acc.toString().trim();
+                });
+                firstTokenNanos = first[0] == 0 ? System.nanoTime() : first[0];
+            } else {
+                assistantText = responseCache.getOrLoad(cacheKey,
+                        () -> client.chatContent(req.body(), Duration.ofSeconds(120)).trim());
+                firstTokenNanos = System.nanoTime();
+            }
+
+            if (!commit.getAsBoolean()) throw new CancellationException();
+            save(chatId, userTexts, assistantText, p, firstTokenNanos, stream);
             return assistantText;
 
         } catch (Exception e) {
-            System.err.printf("%s [CHAT] reqId=%s ERROR: %s%n", Instant.now(), reqId, e.getMessage());
-            return "Сервис временно недоступен.";
+            if (e instanceof InterruptedException || e instanceof CancellationException
+                    || Thread.currentThread().isInterrupted()) {
+                Log.debug("CHAT", "reqId={} cancelled after {}ms", reqId, (System.nanoTime() - t0) / 1_000_000);
+                throw new CancellationException("reqId=" + reqId);
+            }
+            Log.error("CHAT", "reqId={} ERROR: {}", reqId, e.getMessage());
+            return UNAVAILABLE_REPLY;
         }
     }
-
-    private JsonObject msg(String role, String content) {
-        JsonObject o = new JsonObject();
-        o.addProperty("role", role);
-        o.addProperty("content", content);
-        return o;
-    }
-
-    private String parseAssistant(String responseBody) {
-        JsonObject json = GSON.fromJson(responseBody, JsonObject.class);
-        return json.getAsJsonArray("choices")
-                .get(0).getAsJsonObject()
-                .getAsJsonObject("message")
-                .get("content").getAsString().trim();
-    }
 }
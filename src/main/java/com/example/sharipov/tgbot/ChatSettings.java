@@ -0,0 +1,61 @@
+package com.example.sharipov.tgbot;
+
+/**
+ * Неизменяемый снимок настроек LLM, с которым обрабатывается один запрос.
+ * Меняются настройки только заменой снимка целиком (см. SettingsStore).
+ */
+public record ChatSettings(String model,
+                           String providerOnly,
+                           String systemPrompt,
+                           double temperature,
+                           double topP,
+                           int maxTokens) {
+
+    /**
+     * Переопределения одного чата поверх настроек по умолчанию; null — не задано.
+     * Пустые переопределения равносильны их отсутствию.
+     */
+    public record Overrides(String model,
+                            String providerOnly,
+                            String systemPrompt,
+                            Double temperature,
+                            Double topP,
+                            Integer maxTokens) {
+
+        public static final Overrides NONE = new Overrides(null, null, null, null, null, null);
+
+        public Overrides withModel(String model, String providerOnly) {
+            return new Overrides(model, providerOnly, systemPrompt, temperature, topP, maxTokens);
+        }
+
+        public Overrides withSystemPrompt(String systemPrompt) {
+            return new Overrides(model, providerOnly, systemPrompt, temperature, topP, maxTokens);
+        }
+
+        public Overrides withTemperature(double temperature) {
+            return new Overrides(model, providerOnly, systemPrompt, temperature, topP, maxTokens);
+        }
+
+        public Overrides withTopP(double topP) {
+            return new Overrides(model, providerOnly, systemPrompt, temperature, topP, maxTokens);
+        }
+
+        public Overrides withMaxTokens(int maxTokens) {
+            return new Overrides(model, providerOnly, systemPrompt, temperature, topP, maxTokens);
+        }
+
+        public boolean isEmpty() {
+            return equals(NONE);
+        }
+
+        public ChatSettings applyTo(ChatSettings d) {
+            return new ChatSettings(
+                    model != null ? model : d.model(),
+                    providerOnly != null ? providerOnly : d.providerOnly(),
+                    systemPrompt != null ? systemPrompt : d.systemPrompt(),
+                    temperature != null ? temperature : d.temperature(),
+                    topP != null ? topP : d.topP(),
+                    maxTokens != null ? maxTokens : d.maxTokens());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.sharipov.tgbot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Команды бота: имя → разбор аргументов → обработчик. Имя команды — первое слово
+ * без "/" и без "@username" этого бота, ищется в HashMap. Обычные сообщения и команды
+ * другому боту отсеиваются по тексту без копирования строк, копия имени — только у
+ * похожего на команду этого бота. Аргументы — остаток строки после имени, их проверяет
+ * парсер команды. Ошибка разбора отвечается пользователю текстом из InvalidArgs или
+ * строкой usage.
+ */
+public class CommandRegistry {
+
+    /** Ответ пользователю на неверные аргументы; null — показать usage команды. */
+    public static final class InvalidArgs extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidArgs(String reply) {
+            super(reply, null, false, false);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ArgParser<T> {
+        T parse(String args) throws InvalidArgs;
+    }
+
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(long chatId, T args) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Replier {
+        void reply(long chatId, String text);
+    }
+
+    private record Command<T>(String usage, ArgParser<T> parser, Handler<T> handler) {
+        void run(long chatId, String args, Replier replier) throws Exception {
+            T parsed;
+            try {
+                parsed = parser.parse(args);
+            } catch (InvalidArgs e) {
+                replier.reply(chatId, "❌ " + (e.getMessage() != null ? e.getMessage() : usage));
+                return;
+            }
+            handler.handle(chatId, parsed);
+        }
+    }
+
+    private final String botUsername; // без @
+    private final Replier replier;
+    private final Map<String, Command<?>> commands = new HashMap<>();
+
+    public CommandRegistry(String botUsername, Replier replier) {
+        this.botUsername = botUsername;
+        this.replier = replier;
+    }
+
+    public <T> CommandRegistry register(String name, String usage, ArgParser<T> parser, Handler<T> handler) {
+        if (commands.putIfAbsent(name, new Command<>(usage, parser, handler)) != null) {
+            throw new IllegalArgumentException("Duplicate command: " + name);
+        }
+        return this;
+    }
+
+    /** Команда без аргументов; лишний текст после имени игнорируется. */
+    public CommandRegistry register(String name, Handler<Void> handler) {
+        return register(name, "/" + name, args -> null, handler);
+    }
+
+    /** Известная команда этого бота? Без выполнения — для предварительной сортировки апдейтов. */
+    public boolean matches(String text) {
+        return lookup(text) != null;
+    }
+
+    /** false — это не команда бота, текст обрабатывается как обычное сообщение. */
+    public boolean dispatch(long chatId, String text) throws Exception {
+        Command<?> command = lookup(text);
+        if (command == null) return false;
+
+        Metrics.COMMANDS.increment();
+        int end = argsStart(text);
+        command.run(chatId, end < text.length() ? text.substring(end).trim() : "", replier);
+        return true;
+    }
+
+    // Пробел, перевод строки и прочие управляющие символы завершают имя команды
+    private static boolean isSeparator(char c) {
+        return c <= ' ';
+    }
+
+    private static int argsStart(String text) {
+        int i = 1;
+        while (i < text.length() && !isSeparator(text.charAt(i))) i++;
+        return i;
+    }
+
+    // Команда этого бота или null. Смотрим только первое слово
+    private Command<?> lookup(String text) {
+        int n = text.length();
+        if (n < 2 || text.charAt(0) != '/') return null;
+
+        int i = 1;
+        char c = 0;
+        while (i < n && (c = text.charAt(i)) != '@' && !isSeparator(c)) i++;
+        if (i == 1) return null;
+        if (i < n && c == '@') {
+            // "/cmd@other_bot" в группе адресована другому боту
+            int u = botUsername.length();
+            if (!text.regionMatches(true, i + 1, botUsername, 0, u)
+                    || (i + 1 + u < n && !isSeparator(text.charAt(i + 1 + u)))) {
+                return null;
+            }
+        }
+        return commands.get(text.substring(1, i));
+    }
+
+    // ---------- парсеры ----------
+
+    public static ArgParser<Double> doubleIn(double min, double max, String outOfRange) {
+        return args -> {
+            double v;
+            try {
+                v = Double.parseDouble(args);
+            } catch (NumberFormatException e) {
+                throw new InvalidArgs(null);
+            }
+            if (!(v >= min && v <= max)) throw new InvalidArgs(outOfRange);
+            return v;
+        };
+    }
+
+    public static ArgParser<Integer> intIn(int min, int max, String outOfRange) {
+        return args -> {
+            int v;
+            try {
+                v = Integer.parseInt(args);
+            } catch (NumberFormatException e) {
+                throw new InvalidArgs(null);
+            }
+            if (v < min || v > max) throw new InvalidArgs(outOfRange);
+            return v;
+        };
+    }
+
+    public static ArgParser<String> nonBlank() {
+        return args -> {
+            if (args.isBlank()) throw new InvalidArgs(null);
+            return args;
+        };
+    }
+
+    /** Первое слово и необязательный остаток ("" если его нет). */
+    public static ArgParser<String[]> wordAndRest() {
+        return args -> {
+            if (args.isBlank()) throw new InvalidArgs(null);
+            String[] parts = args.split("\\s+", 2);
+            return new String[]{parts[0], parts.length > 1 ? parts[1].trim() : ""};
+        };
+    }
+}
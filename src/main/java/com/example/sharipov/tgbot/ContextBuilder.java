@@ -0,0 +1,134 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Собирает контекст запроса в пределах бюджета токенов: system prompt, сводка
+ * старой истории, столько последних сообщений, сколько влезает, и текст пользователя.
+ * Итоговая оценка никогда не превышает maxPromptTokens — при нехватке места
+ * обрезаются сводка, затем текст пользователя, затем system prompt.
+ */
+public class ContextBuilder {
+
+    // Служебные токены на сообщение (роль, разделители)
+    static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    public record Context(String systemPrompt, String summary, List<HistoryMessage> history,
+                          String userText, int promptTokens) {}
+
+    private final TokenEstimator estimator;
+    private final int maxPromptTokens;
+
+    private final LongAdder prompts = new LongAdder();
+    private final LongAdder builtTokens = new LongAdder();
+    private final LongAdder candidateTokens = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final AtomicLong maxBuilt = new AtomicLong();
+
+    public ContextBuilder(TokenEstimator estimator, int maxPromptTokens) {
+        this.estimator = estimator;
+        this.maxPromptTokens = maxPromptTokens;
+    }
+
+    public int maxPromptTokens() {
+        return maxPromptTokens;
+    }
+
+    public int estimate(String text) {
+        return estimator.estimate(text) + MESSAGE_OVERHEAD_TOKENS;
+    }
+
+    /** history — в хронологическом порядке (старые первыми), summary может быть null. */
+    public Context build(String systemPrompt, String summary, List<HistoryMessage> history, String userText) {
+        int budget = maxPromptTokens;
+
+        // Система и пользователь обязательны; если вдвоём не влезают — режем
+        int userTokens = estimate(userText);
+        int systemTokens = estimate(systemPrompt);
+        if (systemTokens + userTokens > budget) {
+            truncated.increment();
+            int userBudget = Math.max(budget / 2, budget - systemTokens);
+            userText = truncateToTokens(userText, userBudget - MESSAGE_OVERHEAD_TOKENS, true);
+            userTokens = estimate(userText);
+            systemPrompt = truncateToTokens(systemPrompt, budget - userTokens - MESSAGE_OVERHEAD_TOKENS, false);
+            systemTokens = estimate(systemPrompt);
+        }
+        int used = systemTokens + userTokens;
+        int candidate = used;
+
+        String fittedSummary = null;
+        if (summary != null && !summary.isBlank()) {
+            int summaryTokens = estimate(summary);
+            candidate += summaryTokens;
+            // Сводке отдаём не больше трети оставшегося, чтобы свежие реплики не вытеснялись
+            int summaryBudget = Math.min(summaryTokens, (budget - used) / 3);
+            if (summaryBudget > MESSAGE_OVERHEAD_TOKENS) {
+                fittedSummary = summaryTokens <= summaryBudget
+                        ? summary
+                        : truncateToTokens(summary, summaryBudget - MESSAGE_OVERHEAD_TOKENS, false);
+                used += estimate(fittedSummary);
+            }
+        }
+
+        List<HistoryMessage> kept = new ArrayList<>();
+        boolean full = false;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            HistoryMessage m = history.get(i);
+            if (m.content() == null || m.content().isBlank()) continue;
+            int t = estimate(m.content());
+            candidate += t;
+            if (!full && used + t <= budget) {
+                kept.add(m);
+                used += t;
+            } else {
+                // Дальше только старее — не добавляем, чтобы не рвать хронологию
+                full = true;
+                droppedMessages.increment();
+            }
+        }
+        Collections.reverse(kept);
+
+        prompts.increment();
+        builtTokens.add(used);
+        candidateTokens.add(candidate);
+        maxBuilt.accumulateAndGet(used, Math::max);
+
+        return new Context(systemPrompt, fittedSummary, kept, userText, used);
+    }
+
+    private String truncateToTokens(String text, int maxTokens, boolean keepTail) {
+        if (maxTokens <= 0 || text.isEmpty()) return "";
+        if (estimator.estimate(text) <= maxTokens) return text;
+
+        // Бинарный поиск по длине: оценка монотонна
+        int lo = 0, hi = text.length();
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            String part = keepTail ? text.substring(text.length() - mid) : text.substring(0, mid);
+            if (estimator.estimate(part) <= maxTokens) lo = mid;
+            else hi = mid - 1;
+        }
+        return keepTail ? text.substring(text.length() - lo) : text.substring(0, lo);
+    }
+
+    public String stats() {
+        long n = prompts.sum();
+        long built = builtTokens.sum(), cand = candidateTokens.sum();
+        return String.format("prompts=%d avgTokens=%.1f maxTokens=%d avgCandidateTokens=%.1f saved=%.1f%% droppedMsgs=%d truncated=%d budget=%d",
+                n,
+                n == 0 ? 0.0 : (double) built / n,
+                maxBuilt.get(),
+                n == 0 ? 0.0 : (double) cand / n,
+                cand == 0 ? 0.0 : 100.0 * (cand - built) / cand,
+                droppedMessages.sum(),
+                truncated.sum(),
+                maxPromptTokens);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.sharipov.tgbot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей с фиксированными границами (в секундах, как в Prometheus).
+ * record() не аллоцирует: линейный поиск корзины и атомарный инкремент.
+ */
+public final class Histogram {
+
+    // 1ms … 60s; последняя корзина — +Inf
+    static final double[] DEFAULT_BOUNDS_SECONDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private final String name;
+    private final String help;
+    private final double[] boundsSeconds;
+    private final long[] boundsNanos;
+    private final AtomicLongArray counts;
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help) {
+        this(name, help, DEFAULT_BOUNDS_SECONDS);
+    }
+
+    Histogram(String name, String help, double[] boundsSeconds) {
+        this.name = name;
+        this.help = help;
+        this.boundsSeconds = boundsSeconds.clone();
+        this.boundsNanos = new long[boundsSeconds.length];
+        for (int i = 0; i < boundsSeconds.length; i++) boundsNanos[i] = (long) (boundsSeconds[i] * 1e9);
+        this.counts = new AtomicLongArray(boundsSeconds.length + 1);
+    }
+
+    public void record(long nanos) {
+        long[] b = boundsNanos;
+        int i = 0;
+        while (i < b.length && nanos > b[i]) i++;
+        counts.incrementAndGet(i);
+        sumNanos.add(nanos);
+    }
+
+    /** Удобная форма для замеров вида t0 = System.nanoTime(); ...; since(t0). */
+    public void since(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+        return n;
+    }
+
+    void render(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < boundsSeconds.length; i++) {
+            cumulative += counts.get(i);
+            out.append(name).append("_bucket{le=\"").append(boundsSeconds[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts.get(boundsSeconds.length);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-through кэш последних сообщений перед HistoryStore.
+ * Запись идёт через HistoryWriter (асинхронно), буфер обновляется сразу.
+ * На каждый чат — кольцевой буфер на capacity сообщений, между чатами — LRU
+ * с ограничением по числу чатов, по оценке памяти и по времени простоя.
+ * Прогревается лениво: первый запрос по чату читает БД.
+ */
+public class HistoryCache {
+
+    // Грубая оценка: заголовок record + String + ссылки в буфере
+    private static final int MESSAGE_OVERHEAD_BYTES = 96;
+
+    private static final class Entry {
+        final HistoryMessage[] ring;
+        int head;       // индекс самого старого сообщения
+        int size;
+        boolean loaded; // буфер синхронизирован с БД
+        boolean complete; // в БД нет сообщений старше тех, что в буфере
+        boolean evicted;  // выкинут из карты — держатели ссылки должны взять новый
+        long bytes;
+        volatile long lastAccessNanos;
+
+        Entry(int capacity) {
+            this.ring = new HistoryMessage[capacity];
+        }
+
+        void push(HistoryMessage m, AtomicLong total) {
+            int cap = ring.length;
+            if (size == cap) {
+                long freed = sizeOf(ring[head]);
+                bytes -= freed;
+                total.addAndGet(-freed);
+                ring[head] = m;
+                head = (head + 1) % cap;
+                complete = false;
+            } else {
+                ring[(head + size) % cap] = m;
+                size++;
+            }
+            long added = sizeOf(m);
+            bytes += added;
+            total.addAndGet(added);
+        }
+
+        void dropOldest(int n, AtomicLong total) {
+            for (int i = 0; i < n && size > 0; i++) {
+                long freed = sizeOf(ring[head]);
+                bytes -= freed;
+                total.addAndGet(-freed);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+            }
+        }
+
+        void reset(AtomicLong total) {
+            dropOldest(size, total);
+            head = 0;
+            loaded = false;
+            complete = false;
+        }
+
+        List<HistoryMessage> last(int limit) {
+            int n = Math.min(limit, size);
+            List<HistoryMessage> out = new ArrayList<>(n);
+            for (int i = size - n; i < size; i++) out.add(ring[(head + i) % ring.length]);
+            return out;
+        }
+    }
+
+    private final HistoryStore repo;
+    private final HistoryWriter writer;
+    private final int capacity;
+    private final int maxChats;
+    private final long maxBytes;
+    private final long idleNanos;
+
+    // access-order: первым идёт самый давно использованный чат
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public HistoryCache(HistoryStore repo,
+                        HistoryWriter writer,
+                        int capacity,
+                        int maxChats,
+                        long maxBytes,
+                        Duration idleTtl) {
+        this.repo = repo;
+        this.writer = writer;
+        this.capacity = capacity;
+        this.maxChats = maxChats;
+        this.maxBytes = maxBytes;
+        this.idleNanos = idleTtl.toNanos();
+    }
+
+    public List<HistoryMessage> loadLastMessages(long chatId, int limit) throws SQLException {
+        if (limit > capacity) {
+            // Буфер столько не держит — идём мимо кэша
+            misses.increment();
+            writer.flush();
+            return repo.loadLastMessages(chatId, limit);
+        }
+
+        try {
+            while (true) {
+                Entry e = entry(chatId);
+                synchronized (e) {
+                    if (e.evicted) continue;
+                    if (e.loaded && (limit <= e.size || e.complete)) {
+                        hits.increment();
+                        return e.last(limit);
+                    }
+
+                    misses.increment();
+                    e.reset(totalBytes);
+                    // Отложенные записи должны попасть в БД до чтения
+                    writer.flush();
+                    List<HistoryMessage> fromDb = repo.loadLastMessages(chatId, capacity);
+                    for (HistoryMessage m : fromDb) e.push(m, totalBytes);
+                    e.loaded = true;
+                    e.complete = fromDb.size() < capacity;
+                    return e.last(limit);
+                }
+            }
+        } finally {
+            evictIfNeeded();
+        }
+    }
+
+    public void append(long chatId, String role, String content) {
+        try {
+            while (true) {
+                Entry e = entry(chatId);
+                synchronized (e) {
+                    if (e.evicted) continue;
+                    writer.append(chatId, role, content);
+                    if (e.loaded) e.push(new HistoryMessage(role, content), totalBytes);
+                    return;
+                }
+            }
+        } finally {
+            evictIfNeeded();
+        }
+    }
+
+    public void clearAll() throws SQLException {
+        writer.flush();
+        repo.clearAll();
+        invalidateAll();
+    }
+
+    public void invalidateAll() {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry e : all) {
+            synchronized (e) {
+                e.reset(totalBytes);
+                e.evicted = true;
+            }
+        }
+    }
+
+    /** Забыть чат: следующее чтение пойдёт в хранилище (история заменена в обход кэша). */
+    public void invalidate(long chatId) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.remove(chatId);
+        }
+        if (e == null) return;
+        synchronized (e) {
+            e.reset(totalBytes);
+            e.evicted = true;
+        }
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long evictions() { return evictions.sum(); }
+    public long estimatedBytes() { return totalBytes.get(); }
+
+    public int size() {
+        synchronized (entries) { return entries.size(); }
+    }
+
+    public String stats() {
+        long h = hits.sum(), m = misses.sum();
+        double ratio = h + m == 0 ? 0 : (double) h / (h + m);
+        return String.format("chats=%d bytes=%d hits=%d misses=%d hitRatio=%.3f evictions=%d",
+                size(), totalBytes.get(), h, m, ratio, evictions.sum());
+    }
+
+    private Entry entry(long chatId) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.computeIfAbsent(chatId, id -> new Entry(capacity));
+        }
+        e.lastAccessNanos = System.nanoTime();
+        return e;
+    }
+
+    // Жертвы выбираются под entries, а сбрасываются уже без него: поток, занятый
+    // чтением своего чата из БД, не должен останавливать кэш для всех остальных
+    private void evictIfNeeded() {
+        long now = System.nanoTime();
+        List<Entry> victims = null;
+        synchronized (entries) {
+            long freeing = 0;
+            Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next().getValue();
+                boolean over = entries.size() > maxChats || totalBytes.get() - freeing > maxBytes;
+                boolean idle = now - e.lastAccessNanos > idleNanos;
+                if (!over && !idle) break;
+                it.remove();
+                freeing += e.bytes; // без блокировки записи — оценки достаточно
+                if (victims == null) victims = new ArrayList<>();
+                victims.add(e);
+            }
+        }
+        if (victims == null) return;
+        for (Entry e : victims) {
+            synchronized (e) {
+                e.reset(totalBytes);
+                e.evicted = true;
+            }
+        }
+        evictions.add(victims.size());
+    }
+
+    private static long sizeOf(HistoryMessage m) {
+        if (m == null) return 0;
+        return MESSAGE_OVERHEAD_BYTES + 2L * m.content().length();
+    }
+}
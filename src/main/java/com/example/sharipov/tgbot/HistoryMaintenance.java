@@ -0,0 +1,142 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.PruneBatch;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Обслуживание хранилища истории в фоне, вместо обрезки на каждом ответе:
+ * раз в sweepInterval все чаты обходятся пачками по chatsPerBatch, у каждого остаются
+ * последние keepLast сообщений; затем удаляются сообщения старше retention, а
+ * освободившееся место возвращается ОС шагами по reclaimBytesPerStep (incremental_vacuum
+ * в SQLite, компакция сегментов в SegmentLogStore).
+ * Раз в checkpointInterval журнал переносится на диск: в тишине (записей нет дольше
+ * quietPeriod) — с усечением WAL, под нагрузкой — только когда он перерос walLimitBytes.
+ * Каждая пачка — отдельная короткая транзакция, писатель истории между ними не ждёт.
+ * Пока у БД нет словаря сжатия, обход пробует обучить его на накопившейся истории.
+ */
+public class HistoryMaintenance implements AutoCloseable {
+
+    /** retention = 0 — без удаления по возрасту. */
+    public record Options(int keepLast,
+                          Duration retention,
+                          int chatsPerBatch,
+                          int rowsPerBatch,
+                          Duration sweepInterval,
+                          Duration checkpointInterval,
+                          Duration quietPeriod,
+                          long walLimitBytes,
+                          long reclaimBytesPerStep) {}
+
+    // Пауза между пачками: писатель истории успевает взять блокировку
+    private static final long PAUSE_MS = 10;
+
+    private final HistoryStore repo;
+    private final Options options;
+    private final ScheduledExecutorService scheduler;
+
+    public HistoryMaintenance(HistoryStore repo, Options options) {
+        this.repo = repo;
+        this.options = options;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(UpdateDispatcher.daemonFactory("db-maint"));
+
+        long sweep = options.sweepInterval().toMillis();
+        // Первый обход — вскоре после старта: в файле могли остаться чаты длиннее keepLast
+        scheduler.scheduleWithFixedDelay(this::sweep, Math.min(sweep, 60_000), sweep, TimeUnit.MILLISECONDS);
+        long checkpoint = options.checkpointInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::checkpoint, checkpoint, checkpoint, TimeUnit.MILLISECONDS);
+
+        Log.info("DB_MAINT", "Started. keepLast={} retention={} sweepEvery={} checkpointEvery={} walLimitMb={}",
+                options.keepLast(), options.retention(), options.sweepInterval(), options.checkpointInterval(),
+                options.walLimitBytes() >> 20);
+    }
+
+    void sweep() {
+        long t0 = System.nanoTime();
+        long byCount = 0, byAge = 0, reclaimed = 0;
+        int chats = 0;
+        try {
+            if (repo instanceof ChatHistoryRepository sqlite && !sqlite.hasDictionary()) sqlite.trainDictionary();
+
+            long cursor = Long.MIN_VALUE;
+            while (true) {
+                PruneBatch b = repo.pruneToLast(cursor, options.chatsPerBatch(), options.keepLast());
+                chats += b.chats();
+                byCount += b.deleted();
+                Metrics.DB_PRUNED_BY_COUNT.add(b.deleted());
+                if (b.chats() < options.chatsPerBatch()) break;
+                cursor = b.lastChatId();
+                pause();
+            }
+
+            if (!options.retention().isZero()) {
+                long cutoff = Instant.now().minus(options.retention()).getEpochSecond();
+                int n;
+                do {
+                    n = repo.pruneOlderThan(cutoff, options.rowsPerBatch());
+                    byAge += n;
+                    Metrics.DB_PRUNED_BY_AGE.add(n);
+                    pause();
+                } while (n >= options.rowsPerBatch());
+            }
+
+            long step;
+            while ((step = repo.reclaimSpace(options.reclaimBytesPerStep())) > 0) {
+                reclaimed += step;
+                Metrics.DB_BYTES_RECLAIMED.add(step);
+                pause();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (SQLException e) {
+            Log.error("DB_MAINT", "sweep failed: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            // Исключение из задачи scheduleWithFixedDelay молча отменяет все её следующие запуски
+            Log.error("DB_MAINT", "sweep failed: {}", e);
+        }
+
+        Log.info("DB_MAINT", "sweep chats={} prunedByCount={} prunedByAge={} bytesReclaimed={} tookMs={}",
+                chats, byCount, byAge, reclaimed, (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    void checkpoint() {
+        try {
+            long journal = repo.journalBytes();
+            if (journal == 0) return;
+            boolean quiet = repo.idleNanos() >= options.quietPeriod().toNanos();
+            if (!quiet && journal < options.walLimitBytes()) return;
+
+            long t0 = System.nanoTime();
+            try {
+                boolean complete = repo.checkpoint(quiet);
+                Metrics.DB_CHECKPOINTS.increment();
+                Log.debug("DB_MAINT", "checkpoint quiet={} journalBytes={}->{} complete={} tookMs={}",
+                        quiet, journal, repo.journalBytes(), complete, (System.nanoTime() - t0) / 1_000_000);
+            } catch (SQLException e) {
+                Log.warn("DB_MAINT", "checkpoint quiet={} failed: {}", quiet, e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            Log.error("DB_MAINT", "checkpoint failed: {}", e);
+        }
+    }
+
+    private static void pause() throws InterruptedException {
+        Thread.sleep(PAUSE_MS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
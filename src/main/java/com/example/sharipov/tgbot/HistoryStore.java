@@ -0,0 +1,98 @@
+package com.example.sharipov.tgbot;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Хранилище истории чатов: дописать в конец, прочитать последние N, отрезать старые.
+ * Индексы сообщений в чате раздаёт само хранилище — 1, 2, 3… по порядку записи,
+ * без повторов после обрезки. Реализации: ChatHistoryRepository (SQLite),
+ * SegmentLogStore (сегменты в mmap), InMemoryHistoryStore (без диска).
+ * Ошибки — SQLException, как и у остального хранения: вызывающий код их уже
+ * обрабатывает, движки без SQL заворачивают в неё IOException.
+ */
+public interface HistoryStore extends AutoCloseable {
+
+    record HistoryMessage(String role, String content) {}
+
+    // Сводка сообщений чата с индексами <= uptoIndex
+    record Summary(String text, int uptoIndex) {}
+
+    // Операция для пакетной записи: append (role != null) или trim до keepLast
+    record WriteOp(long chatId, String role, String content, int keepLast) {
+        public static WriteOp append(long chatId, String role, String content) {
+            return new WriteOp(chatId, role, content, 0);
+        }
+
+        public static WriteOp trim(long chatId, int keepLast) {
+            return new WriteOp(chatId, null, null, keepLast);
+        }
+
+        public boolean isAppend() { return role != null; }
+    }
+
+    /** Шаг обрезки по числу сообщений: курсор (последний просмотренный чат), сколько чатов и строк. */
+    record PruneBatch(long lastChatId, int chats, int deleted) {}
+
+    void init() throws SQLException;
+
+    /** Прогрев перед приёмом апдейтов (не больше maxChats чатов); возвращает итог для лога. */
+    String warmUp(int maxChats) throws SQLException;
+
+    void clearAll() throws SQLException;
+
+    void append(long chatId, String role, String content) throws SQLException;
+
+    /**
+     * Применяет пачку операций (возможно, из разных чатов) атомарно. Порядок внутри
+     * чата сохраняется: индексы раздаются по порядку, обрезка задевает только индексы ниже порога.
+     */
+    void writeBatch(List<WriteOp> ops) throws SQLException;
+
+    /** Не больше limit последних сообщений в хронологическом порядке. */
+    List<HistoryMessage> loadLastMessages(long chatId, int limit) throws SQLException;
+
+    /** Сообщения с индексами (afterIndex, uptoIndex] в хронологическом порядке. */
+    List<HistoryMessage> loadRange(long chatId, int afterIndex, int uptoIndex) throws SQLException;
+
+    /** Индекс последнего записанного сообщения чата (0 — истории нет). */
+    int lastIndex(long chatId) throws SQLException;
+
+    Summary loadSummary(long chatId) throws SQLException;
+
+    void saveSummary(long chatId, Summary summary) throws SQLException;
+
+    void trimToLast(long chatId, int keepLastMessages) throws SQLException;
+
+    // ---------- обслуживание (см. HistoryMaintenance) ----------
+
+    /**
+     * Оставляет не больше keepLast последних сообщений у следующих maxChats чатов
+     * после afterChatId (по возрастанию id).
+     */
+    PruneBatch pruneToLast(long afterChatId, int maxChats, int keepLast) throws SQLException;
+
+    /** Удаляет до limit сообщений, записанных раньше cutoffEpochSeconds. */
+    int pruneOlderThan(long cutoffEpochSeconds, int limit) throws SQLException;
+
+    /**
+     * Один шаг возврата ОС места, освободившегося после обрезки (примерно до maxBytes работы).
+     * Сколько байт вернул; 0 — больше нечего.
+     */
+    long reclaimSpace(long maxBytes) throws SQLException;
+
+    /** Сколько записанного ещё не перенесено на диск окончательно (WAL, не сброшенные страницы). */
+    long journalBytes();
+
+    /**
+     * Переносит журнал на диск. quiet — записей давно не было, можно и усечь журнал.
+     * true — перенесено целиком.
+     */
+    boolean checkpoint(boolean quiet) throws SQLException;
+
+    /** Сколько прошло с последней записи истории (append/writeBatch). */
+    long idleNanos();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,185 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import com.example.sharipov.tgbot.HistoryStore.Summary;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Скользящая сводка старой истории: всё, что старше последних keepRecent сообщений,
+ * в фоне дописывается в сводку чата (HistoryStore.saveSummary) пачками от minBatch.
+ * На горячем пути сводка читается из памяти; в памяти — не больше maxChats недавних чатов.
+ */
+public class HistorySummarizer implements AutoCloseable {
+
+    private static final String INSTRUCTION = """
+        Ты ведёшь краткий конспект переписки. Обнови конспект, добавив в него новые реплики.
+        Сохрани факты, имена, договорённости и незакрытые вопросы. Пиши сжато, без вступлений.
+        """;
+
+    private final HistoryStore repo;
+    private final HistoryWriter writer;
+    private final RouterClient client;
+    private final int keepRecent;
+    private final int minBatch;
+    private final int maxSummaryTokens;
+
+    private final ExecutorService executor;
+    // Optional.empty() — в БД сводки нет; отсутствие ключа — ещё не читали (или вытеснено).
+    // LRU под собственным замком
+    private final LinkedHashMap<Long, Optional<Summary>> summaries;
+    private final Map<Long, Boolean> scheduled = new ConcurrentHashMap<>();
+
+    public HistorySummarizer(HistoryStore repo,
+                             HistoryWriter writer,
+                             RouterClient client,
+                             int keepRecent,
+                             int minBatch,
+                             int maxSummaryTokens,
+                             int maxChats) {
+        this.repo = repo;
+        this.writer = writer;
+        this.client = client;
+        this.keepRecent = keepRecent;
+        this.minBatch = minBatch;
+        this.maxSummaryTokens = maxSummaryTokens;
+        this.executor = Executors.newSingleThreadExecutor(UpdateDispatcher.daemonFactory("summary"));
+        this.summaries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Optional<Summary>> eldest) {
+                return size() > maxChats;
+            }
+        };
+    }
+
+    /** Текущая сводка чата или null. Первый вызов по чату читает БД. */
+    public String summaryFor(long chatId) {
+        Optional<Summary> s;
+        synchronized (summaries) {
+            s = summaries.get(chatId);
+        }
+        if (s == null) {
+            try {
+                s = Optional.ofNullable(repo.loadSummary(chatId));
+            } catch (Exception e) {
+                Log.error("SUMMARY", "loadSummary failed chatId={}: {}", chatId, e.getMessage());
+                return null;
+            }
+            synchronized (summaries) {
+                summaries.putIfAbsent(chatId, s);
+            }
+        }
+        return s.map(Summary::text).orElse(null);
+    }
+
+    /** Забыть сводку чата в памяти: следующий summaryFor перечитает её из хранилища. */
+    public void invalidate(long chatId) {
+        synchronized (summaries) {
+            summaries.remove(chatId);
+        }
+    }
+
+    /** Ставит фоновое обновление сводки чата, если оно ещё не в очереди. */
+    public void refreshLater(long chatId, String model) {
+        if (scheduled.putIfAbsent(chatId, Boolean.TRUE) != null) return;
+        try {
+            executor.execute(() -> {
+                scheduled.remove(chatId);
+                try {
+                    refresh(chatId, model);
+                } catch (Exception e) {
+                    Log.error("SUMMARY", "refresh failed chatId={}: {}", chatId, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled.remove(chatId);
+        }
+    }
+
+    private void refresh(long chatId, String model) throws Exception {
+        // Индексы и диапазон читаем из БД — отложенные записи должны там оказаться
+        writer.flush();
+
+        int target = repo.lastIndex(chatId) - keepRecent;
+        Summary current = repo.loadSummary(chatId);
+        int from = current == null ? 0 : current.uptoIndex();
+        if (target - from < minBatch) return;
+
+        List<HistoryMessage> turns = repo.loadRange(chatId, from, target);
+        if (turns.isEmpty()) {
+            // Старые строки уже удалены обслуживанием БД — просто двигаем границу
+            Summary moved = new Summary(current == null ? "" : current.text(), target);
+            repo.saveSummary(chatId, moved);
+            remember(chatId, moved);
+            return;
+        }
+
+        long t0 = System.nanoTime();
+        String text = summarize(model, current == null ? "" : current.text(), turns);
+        Summary updated = new Summary(text, target);
+        repo.saveSummary(chatId, updated);
+        remember(chatId, updated);
+
+        Log.info("SUMMARY", "chatId={} upto={} turns={} len={} tookMs={}",
+                chatId, target, turns.size(), text.length(), (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    private void remember(long chatId, Summary summary) {
+        synchronized (summaries) {
+            summaries.put(chatId, Optional.of(summary));
+        }
+    }
+
+    private String summarize(String model, String previous, List<HistoryMessage> turns) throws Exception {
+        StringBuilder dialog = new StringBuilder();
+        if (!previous.isBlank()) dialog.append("Текущий конспект:\n").append(previous).append("\n\n");
+        dialog.append("Новые реплики:\n");
+        for (HistoryMessage m : turns) {
+            dialog.append(m.role()).append(": ").append(m.content()).append('\n');
+        }
+
+        JsonArray messages = new JsonArray();
+        messages.add(msg("system", INSTRUCTION));
+        messages.add(msg("user", dialog.toString()));
+
+        JsonObject req = new JsonObject();
+        req.addProperty("model", model);
+        req.add("messages", messages);
+        req.addProperty("stream", false);
+        JsonObject options = new JsonObject();
+        options.addProperty("temperature", 0.2);
+        options.addProperty("max_tokens", maxSummaryTokens);
+        req.add("options", options);
+
+        return ResponseParser.parseAssistant(client.chat(req, Duration.ofSeconds(120)));
+    }
+
+    private static JsonObject msg(String role, String content) {
+        JsonObject o = new JsonObject();
+        o.addProperty("role", role);
+        o.addProperty("content", content);
+        return o;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
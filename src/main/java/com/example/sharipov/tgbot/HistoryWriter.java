@@ -0,0 +1,213 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Write-behind для истории: append'ы складываются в очередь, фоновый поток
+ * собирает их из всех чатов и коммитит одной транзакцией — по размеру пачки
+ * или по истечении maxDelay с момента первой операции в пачке.
+ */
+public class HistoryWriter implements AutoCloseable {
+
+    // Маркер в очереди: закоммитить всё, что перед ним, и завершить future
+    private record Barrier(CompletableFuture<Void> done) {}
+
+    private static final Object STOP = new Object();
+
+    // Повторы неудачной пачки через 100, 200, 400, 800 мс: переживают SQLITE_BUSY,
+    // короткий сбой диска и компакцию, но не держат очередь дольше ~1.5 с
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long FIRST_BACKOFF_MS = 100;
+
+    private final HistoryStore repo;
+    private final BlockingQueue<Object> queue;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final Thread thread;
+
+    private volatile boolean closed;
+    private volatile LongConsumer onLost = chatId -> { };
+    private final ThreadFactory lostNotifier = UpdateDispatcher.daemonFactory("history-lost");
+
+    private final LongAdder ops = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder failedOps = new LongAdder();
+
+    public HistoryWriter(HistoryStore repo, int queueCapacity, int maxBatch, Duration maxDelay) {
+        this.repo = repo;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.thread = new Thread(this::run, "history-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        Log.info("WRITER", "Started. maxBatch={} maxDelayMs={} queue={}", maxBatch, maxDelay.toMillis(), queueCapacity);
+    }
+
+    /** Кому сообщить о чатах, чьи записи так и не удалось сохранить (кэш должен их забыть). */
+    public void onLost(LongConsumer listener) {
+        this.onLost = listener;
+    }
+
+    public void append(long chatId, String role, String content) {
+        enqueue(WriteOp.append(chatId, role, content));
+    }
+
+    /** Ждёт, пока всё поставленное до вызова окажется в БД. */
+    public void flush() {
+        if (closed) return;
+        Barrier b = new Barrier(new CompletableFuture<>());
+        enqueue(b);
+        b.done().join();
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    private void enqueue(Object item) {
+        if (closed) throw new IllegalStateException("HistoryWriter closed");
+        try {
+            // Полная очередь = обратное давление на обработчики
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while enqueueing history write", e);
+        }
+    }
+
+    private void run() {
+        List<WriteOp> batch = new ArrayList<>(maxBatch);
+        List<Barrier> barriers = new ArrayList<>();
+        boolean stop = false;
+
+        while (!stop) {
+            try {
+                Object first = queue.take();
+                long deadline = System.nanoTime() + maxDelayNanos;
+                Object item = first;
+
+                while (true) {
+                    if (item == STOP) {
+                        stop = true;
+                        break;
+                    }
+                    if (item instanceof Barrier b) {
+                        barriers.add(b);
+                        break;
+                    }
+                    batch.add((WriteOp) item);
+                    if (batch.size() >= maxBatch) break;
+
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    item = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (item == null) break;
+                }
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                stop = true;
+            } finally {
+                batch.clear();
+                for (Barrier b : barriers) b.done().complete(null);
+                barriers.clear();
+            }
+        }
+
+        // Досливаем всё, что успели положить до close()
+        List<Object> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        for (Object item : rest) {
+            if (item instanceof WriteOp op) batch.add(op);
+            else if (item instanceof Barrier b) barriers.add(b);
+        }
+        commit(batch);
+        for (Barrier b : barriers) b.done().complete(null);
+    }
+
+    private void commit(List<WriteOp> batch) {
+        if (batch.isEmpty()) return;
+        long t0 = System.nanoTime();
+        long backoffMs = FIRST_BACKOFF_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                repo.writeBatch(batch);
+                break;
+            } catch (Exception e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    lost(batch, e);
+                    return;
+                }
+                Log.warn("WRITER", "Batch of {} ops failed (attempt {}/{}), retry in {}ms: {}",
+                        batch.size(), attempt, MAX_ATTEMPTS, backoffMs, e.getMessage());
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    // Прерывание — остановка: сдаёмся, а цикл run() увидит флаг
+                    Thread.currentThread().interrupt();
+                    lost(batch, e);
+                    return;
+                }
+                backoffMs *= 2;
+            }
+        }
+        Metrics.PERSIST_BATCH.since(t0);
+        Metrics.PERSIST_OPS.add(batch.size());
+        ops.add(batch.size());
+        commits.increment();
+    }
+
+    // Кэш уже показывает эти сообщения, а в хранилище их нет — пусть чаты перечитаются оттуда.
+    // Не в потоке записи: invalidate ждёт блокировку записи кэша, а её держатель может
+    // ждать flush(), то есть этот поток
+    private void lost(List<WriteOp> batch, Exception e) {
+        failedOps.add(batch.size());
+        Metrics.PERSIST_FAILED_OPS.add(batch.size());
+        Set<Long> chats = new LinkedHashSet<>();
+        for (WriteOp op : batch) chats.add(op.chatId());
+        Log.error("WRITER", "Batch of {} ops LOST, chats={}: {}", batch.size(), chats.size(), e.getMessage());
+        LongConsumer listener = onLost;
+        lostNotifier.newThread(() -> {
+            for (long chatId : chats) {
+                try {
+                    listener.accept(chatId);
+                } catch (RuntimeException ex) {
+                    Log.error("WRITER", "chatId={} onLost ERROR: {}", chatId, ex.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    public String stats() {
+        long c = commits.sum();
+        return String.format("commits=%d ops=%d opsPerCommit=%.1f failedOps=%d pending=%d",
+                c, ops.sum(), c == 0 ? 0.0 : (double) ops.sum() / c, failedOps.sum(), queue.size());
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(STOP);
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("WRITER", "Closed. {}", stats());
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.sharipov.tgbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * История только в памяти: для проверок и бенчмарков, где диск не нужен или мешает
+ * (-Dtgbot.history.store=memory). После перезапуска всё теряется; обслуживание — обрезка,
+ * места возвращать и журнала сбрасывать нечего.
+ */
+public class InMemoryHistoryStore implements HistoryStore {
+
+    private record Entry(int index, long createdAt, HistoryMessage message) {}
+
+    private static final class ChatLog {
+        final List<Entry> entries = new ArrayList<>();
+        int next = 1;
+        Summary summary;
+
+        // Первые n записей: те, что ниже порога
+        int countBelow(int minIndexToKeep) {
+            int n = 0;
+            while (n < entries.size() && entries.get(n).index() < minIndexToKeep) n++;
+            return n;
+        }
+
+        int dropFirst(int n) {
+            entries.subList(0, n).clear();
+            return n;
+        }
+    }
+
+    // По возрастанию id — в том же порядке обходит чаты pruneToLast
+    private final TreeMap<Long, ChatLog> chats = new TreeMap<>();
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    @Override
+    public void init() {
+        Log.info("DB", "In-memory history store: nothing survives a restart");
+    }
+
+    @Override
+    public synchronized String warmUp(int maxChats) {
+        long messages = 0;
+        for (ChatLog log : chats.values()) messages += log.entries.size();
+        return "chats=" + chats.size() + " messages=" + messages;
+    }
+
+    @Override
+    public synchronized void clearAll() {
+        chats.clear();
+    }
+
+    @Override
+    public synchronized void append(long chatId, String role, String content) {
+        apply(WriteOp.append(chatId, role, content), System.currentTimeMillis() / 1000);
+        lastWriteNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void writeBatch(List<WriteOp> ops) {
+        long now = System.currentTimeMillis() / 1000;
+        for (WriteOp op : ops) apply(op, now);
+        if (!ops.isEmpty()) lastWriteNanos = System.nanoTime();
+    }
+
+    private void apply(WriteOp op, long now) {
+        ChatLog log = chats.computeIfAbsent(op.chatId(), id -> new ChatLog());
+        if (op.isAppend()) {
+            log.entries.add(new Entry(log.next++, now, new HistoryMessage(op.role(), op.content())));
+        } else {
+            log.dropFirst(log.countBelow(Math.max(1, log.next - op.keepLast())));
+        }
+    }
+
+    @Override
+    public synchronized List<HistoryMessage> loadLastMessages(long chatId, int limit) {
+        ChatLog log = chats.get(chatId);
+        if (log == null) return new ArrayList<>();
+        List<Entry> entries = log.entries;
+        List<HistoryMessage> out = new ArrayList<>(Math.min(limit, entries.size()));
+        for (int i = Math.max(0, entries.size() - limit); i < entries.size(); i++) out.add(entries.get(i).message());
+        return out;
+    }
+
+    @Override
+    public synchronized List<HistoryMessage> loadRange(long chatId, int afterIndex, int uptoIndex) {
+        List<HistoryMessage> out = new ArrayList<>();
+        ChatLog log = chats.get(chatId);
+        if (log == null) return out;
+        for (Entry e : log.entries) {
+            if (e.index() > afterIndex && e.index() <= uptoIndex) out.add(e.message());
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized int lastIndex(long chatId) {
+        ChatLog log = chats.get(chatId);
+        return log == null ? 0 : log.next - 1;
+    }
+
+    @Override
+    public synchronized Summary loadSummary(long chatId) {
+        ChatLog log = chats.get(chatId);
+        return log == null ? null : log.summary;
+    }
+
+    @Override
+    public synchronized void saveSummary(long chatId, Summary summary) {
+        ChatLog log = chats.computeIfAbsent(chatId, id -> new ChatLog());
+        log.summary = summary;
+        // Как и в SQLite, сводка помнит индексы после удаления всех сообщений
+        log.next = Math.max(log.next, summary.uptoIndex() + 1);
+    }
+
+    @Override
+    public synchronized void trimToLast(long chatId, int keepLastMessages) {
+        apply(WriteOp.trim(chatId, keepLastMessages), 0);
+    }
+
+    @Override
+    public synchronized PruneBatch pruneToLast(long afterChatId, int maxChats, int keepLast) {
+        int seen = 0, deleted = 0;
+        long last = afterChatId;
+        for (Map.Entry<Long, ChatLog> e : chats.tailMap(afterChatId, false).entrySet()) {
+            if (seen == maxChats) break;
+            ChatLog log = e.getValue();
+            if (log.entries.isEmpty()) continue;
+            seen++;
+            last = e.getKey();
+            deleted += log.dropFirst(Math.max(0, log.entries.size() - keepLast));
+        }
+        return new PruneBatch(last, seen, deleted);
+    }
+
+    @Override
+    public synchronized int pruneOlderThan(long cutoffEpochSeconds, int limit) {
+        int deleted = 0;
+        for (ChatLog log : chats.values()) {
+            int n = 0;
+            while (n < log.entries.size() && deleted + n < limit && log.entries.get(n).createdAt() < cutoffEpochSeconds) n++;
+            deleted += log.dropFirst(n);
+            if (deleted >= limit) break;
+        }
+        return deleted;
+    }
+
+    @Override
+    public long reclaimSpace(long maxBytes) {
+        return 0;
+    }
+
+    @Override
+    public long journalBytes() {
+        return 0;
+    }
+
+    @Override
+    public boolean checkpoint(boolean quiet) {
+        return true;
+    }
+
+    @Override
+    public long idleNanos() {
+        return System.nanoTime() - lastWriteNanos;
+    }
+
+    @Override
+    public void close() {
+    }
+}
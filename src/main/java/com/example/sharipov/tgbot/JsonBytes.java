@@ -0,0 +1,109 @@
+package com.example.sharipov.tgbot;
+
+import java.util.Arrays;
+
+/**
+ * Растущий байтовый буфер с минимальной JSON-записью: строки экранируются
+ * и кодируются в UTF-8 сразу в массив, без промежуточных String/char[].
+ */
+final class JsonBytes {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buf;
+    private int len;
+
+    JsonBytes(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    int length() { return len; }
+    byte[] array() { return buf; }
+    int capacity() { return buf.length; }
+
+    void reset() { len = 0; }
+
+    byte[] toByteArray() { return Arrays.copyOf(buf, len); }
+
+    JsonBytes raw(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+        return this;
+    }
+
+    // Только для ASCII-литералов: имена полей, скобки, числа
+    JsonBytes raw(String ascii) {
+        ensure(ascii.length());
+        for (int i = 0; i < ascii.length(); i++) buf[len++] = (byte) ascii.charAt(i);
+        return this;
+    }
+
+    JsonBytes raw(char c) {
+        ensure(1);
+        buf[len++] = (byte) c;
+        return this;
+    }
+
+    JsonBytes number(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) throw new IllegalArgumentException("Not a JSON number: " + v);
+        return raw(Double.toString(v));
+    }
+
+    JsonBytes number(long v) {
+        return raw(Long.toString(v));
+    }
+
+    JsonBytes string(String s) {
+        if (s == null) return raw("null");
+        // Худший случай: \\u00XX на символ или 3 байта UTF-8
+        ensure(s.length() * 6 + 2);
+        byte[] b = buf;
+        int p = len;
+        b[p++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"' -> { b[p++] = '\\'; b[p++] = '"'; }
+                    case '\\' -> { b[p++] = '\\'; b[p++] = '\\'; }
+                    case '\n' -> { b[p++] = '\\'; b[p++] = 'n'; }
+                    case '\r' -> { b[p++] = '\\'; b[p++] = 'r'; }
+                    case '\t' -> { b[p++] = '\\'; b[p++] = 't'; }
+                    default -> {
+                        if (c < 0x20) {
+                            b[p++] = '\\'; b[p++] = 'u'; b[p++] = '0'; b[p++] = '0';
+                            b[p++] = HEX[c >> 4]; b[p++] = HEX[c & 0xF];
+                        } else {
+                            b[p++] = (byte) c;
+                        }
+                    }
+                }
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte) (0xF0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Непарный суррогат — как String.getBytes(UTF_8)
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xE0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        b[p++] = '"';
+        len = p;
+        return this;
+    }
+
+    private void ensure(int extra) {
+        int need = len + extra;
+        if (need > buf.length) buf = Arrays.copyOf(buf, Math.max(need, buf.length * 2));
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.sharipov.tgbot;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Один адрес LLM с ключом: EWMA латентности для выбора, счётчик запросов в полёте
+ * и circuit breaker (CLOSED → OPEN после failureThreshold ошибок подряд,
+ * через openNanos — одна пробная попытка в HALF_OPEN).
+ */
+final class LlmEndpoint {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    // Вес нового замера в EWMA
+    private static final double ALPHA = 0.2;
+
+    final URI uri;
+    final String apiKey;
+    final String name; // для логов — без ключа и пути
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private volatile double ewmaMs; // пишется под this, читается без блокировки
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAtNanos;
+    private int consecutiveFailures; // под this
+    private final AtomicBoolean probeTaken = new AtomicBoolean();
+
+    LlmEndpoint(URI uri, String apiKey, int failureThreshold, long openNanos, double initialEwmaMs) {
+        this.uri = uri;
+        this.apiKey = apiKey;
+        this.name = uri.getHost() + (uri.getPort() > 0 ? ":" + uri.getPort() : "");
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        this.ewmaMs = initialEwmaMs;
+    }
+
+    /** Можно ли сейчас слать сюда запрос. В HALF_OPEN пропускает ровно одну пробу. */
+    boolean tryAcquire() {
+        State s = state;
+        if (s == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openNanos) return false;
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    state = State.HALF_OPEN;
+                    probeTaken.set(false);
+                }
+            }
+            s = state;
+        }
+        if (s == State.HALF_OPEN && !probeTaken.compareAndSet(false, true)) return false;
+        inFlight.incrementAndGet();
+        lastUsedNanos = System.nanoTime();
+        return true;
+    }
+
+    /** Доступен ли без захвата пробы — для выбора кандидата. */
+    boolean isAvailable() {
+        State s = state;
+        if (s == State.CLOSED) return true;
+        if (s == State.HALF_OPEN) return !probeTaken.get();
+        return System.nanoTime() - openedAtNanos >= openNanos;
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /** Соединение только что использовано (запрос или keep-alive пинг). */
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    long idleNanos() {
+        return System.nanoTime() - lastUsedNanos;
+    }
+
+    /** Оценка ожидания: чем больше запросов уже в полёте, тем хуже. */
+    double score() {
+        return ewmaMs * (1 + inFlight.get());
+    }
+
+    double ewmaMs() {
+        return ewmaMs;
+    }
+
+    State state() {
+        return state;
+    }
+
+    void onSuccess(long latencyNanos) {
+        double ms = latencyNanos / 1e6;
+        synchronized (this) {
+            ewmaMs = ewmaMs + ALPHA * (ms - ewmaMs);
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                Log.info("LLM_ROUTE", "endpoint={} breaker CLOSED", name);
+            }
+        }
+    }
+
+    /** Ошибка (таймаут, 429, 5xx). Латентность тоже учитывается — медленный отказ хуже быстрого. */
+    void onFailure(long latencyNanos) {
+        double ms = latencyNanos / 1e6;
+        synchronized (this) {
+            ewmaMs = ewmaMs + ALPHA * (Math.max(ms, ewmaMs * 2) - ewmaMs);
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                state = State.OPEN;
+                openedAtNanos = System.nanoTime();
+                Metrics.LLM_BREAKER_OPENED.increment();
+                Log.warn("LLM_ROUTE", "endpoint={} breaker OPEN after {} failures", name, consecutiveFailures);
+            }
+        }
+    }
+
+    /**
+     * Попытка закончилась без вердикта об эндпоинте (отмена, проигравший хедж, ошибка
+     * вызывающего): проба HALF_OPEN освобождается. После onSuccess/onFailure — ничего не делает.
+     */
+    void onCancelled() {
+        if (state == State.HALF_OPEN) probeTaken.set(false);
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" + state + " ewmaMs=" + Math.round(ewmaMs) + " inFlight=" + inFlight.get() + "}";
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.sharipov.tgbot;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Асинхронный лог. Вызывающий поток только проверяет уровень и кладёт сырые
+ * аргументы в кольцевой буфер (без блокировок, MPSC); форматирование "{}"
+ * и запись в stdout/stderr делает фоновый поток log-writer.
+ *
+ * Переполнение буфера: DEBUG/INFO по умолчанию отбрасываются (с подсчётом,
+ * writer потом пишет, сколько потеряно), WARN/ERROR всегда ждут места.
+ * -Dtgbot.log.overflow=block — ждут все уровни.
+ *
+ * Настройки: tgbot.log.level (DEBUG|INFO|WARN|ERROR, по умолчанию INFO),
+ * tgbot.log.buffer (размер буфера, округляется до степени двойки).
+ */
+public final class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final class Slot {
+        long timeMillis;
+        Level level;
+        String tag;
+        String thread;
+        String format;
+        int argc;
+        Object a0, a1, a2, a3;
+        Object[] rest; // для вызовов с varargs
+
+        Object arg(int i) {
+            if (rest != null) return rest[i];
+            return switch (i) {
+                case 0 -> a0;
+                case 1 -> a1;
+                case 2 -> a2;
+                default -> a3;
+            };
+        }
+
+        void clear() {
+            tag = thread = format = null;
+            a0 = a1 = a2 = a3 = null;
+            rest = null;
+        }
+    }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("tgbot.log.level", "INFO"));
+    private static final boolean BLOCK_ALL = "block".equalsIgnoreCase(System.getProperty("tgbot.log.overflow", "drop"));
+
+    private static final int CAPACITY = Integer.highestOneBit(
+            Math.max(64, Integer.getInteger("tgbot.log.buffer", 8192)) * 2 - 1);
+    private static final int MASK = CAPACITY - 1;
+
+    // Очередь Вьюкова: sequence[i] == pos — слот свободен для записи pos, == pos + 1 — заполнен
+    private static final Slot[] SLOTS = new Slot[CAPACITY];
+    private static final AtomicLongArray SEQUENCE = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static long head; // только поток log-writer
+
+    private static final LongAdder DROPPED = new LongAdder();
+    private static volatile boolean sleeping;
+    private static volatile boolean stopped;
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SLOTS[i] = new Slot();
+            SEQUENCE.set(i, i);
+        }
+        WRITER = new Thread(Log::drain, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    private Log() {}
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= LEVEL.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static long dropped() {
+        return DROPPED.sum();
+    }
+
+    // ---------- DEBUG ----------
+    public static void debug(String tag, String msg) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, tag, msg, 0, null, null, null, null, null); }
+    public static void debug(String tag, String fmt, Object a) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, tag, fmt, 1, a, null, null, null, null); }
+    public static void debug(String tag, String fmt, Object a, Object b) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, tag, fmt, 2, a, b, null, null, null); }
+    public static void debug(String tag, String fmt, Object a, Object b, Object c) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, tag, fmt, 3, a, b, c, null, null); }
+    public static void debug(String tag, String fmt, Object a, Object b, Object c, Object d) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, tag, fmt, 4, a, b, c, d, null); }
+    public static void debug(String tag, String fmt, Object... args) { if (isEnabled(Level.DEBUG)) publish(Level.DEBUG, tag, fmt, args.length, null, null, null, null, args); }
+
+    // ---------- INFO ----------
+    public static void info(String tag, String msg) { if (isEnabled(Level.INFO)) publish(Level.INFO, tag, msg, 0, null, null, null, null, null); }
+    public static void info(String tag, String fmt, Object a) { if (isEnabled(Level.INFO)) publish(Level.INFO, tag, fmt, 1, a, null, null, null, null); }
+    public static void info(String tag, String fmt, Object a, Object b) { if (isEnabled(Level.INFO)) publish(Level.INFO, tag, fmt, 2, a, b, null, null, null); }
+    public static void info(String tag, String fmt, Object a, Object b, Object c) { if (isEnabled(Level.INFO)) publish(Level.INFO, tag, fmt, 3, a, b, c, null, null); }
+    public static void info(String tag, String fmt, Object a, Object b, Object c, Object d) { if (isEnabled(Level.INFO)) publish(Level.INFO, tag, fmt, 4, a, b, c, d, null); }
+    public static void info(String tag, String fmt, Object... args) { if (isEnabled(Level.INFO)) publish(Level.INFO, tag, fmt, args.length, null, null, null, null, args); }
+
+    // ---------- WARN ----------
+    public static void warn(String tag, String msg) { if (isEnabled(Level.WARN)) publish(Level.WARN, tag, msg, 0, null, null, null, null, null); }
+    public static void warn(String tag, String fmt, Object a) { if (isEnabled(Level.WARN)) publish(Level.WARN, tag, fmt, 1, a, null, null, null, null); }
+    public static void warn(String tag, String fmt, Object a, Object b) { if (isEnabled(Level.WARN)) publish(Level.WARN, tag, fmt, 2, a, b, null, null, null); }
+    public static void warn(String tag, String fmt, Object a, Object b, Object c) { if (isEnabled(Level.WARN)) publish(Level.WARN, tag, fmt, 3, a, b, c, null, null); }
+    public static void warn(String tag, String fmt, Object... args) { if (isEnabled(Level.WARN)) publish(Level.WARN, tag, fmt, args.length, null, null, null, null, args); }
+
+    // ---------- ERROR ----------
+    public static void error(String tag, String msg) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, tag, msg, 0, null, null, null, null, null); }
+    public static void error(String tag, String fmt, Object a) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, tag, fmt, 1, a, null, null, null, null); }
+    public static void error(String tag, String fmt, Object a, Object b) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, tag, fmt, 2, a, b, null, null, null); }
+    public static void error(String tag, String fmt, Object a, Object b, Object c) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, tag, fmt, 3, a, b, c, null, null); }
+    public static void error(String tag, String fmt, Object... args) { if (isEnabled(Level.ERROR)) publish(Level.ERROR, tag, fmt, args.length, null, null, null, null, args); }
+
+    private static void publish(Level level, String tag, String fmt, int argc,
+                                Object a0, Object a1, Object a2, Object a3, Object[] rest) {
+        boolean mayBlock = BLOCK_ALL || level.ordinal() >= Level.WARN.ordinal();
+        long pos = TAIL.get();
+        while (true) {
+            int idx = (int) (pos & MASK);
+            long dif = SEQUENCE.get(idx) - pos;
+            if (dif == 0) {
+                if (TAIL.compareAndSet(pos, pos + 1)) break;
+                pos = TAIL.get();
+            } else if (dif < 0) {
+                // Буфер полон
+                if (!mayBlock || stopped) {
+                    DROPPED.increment();
+                    return;
+                }
+                wakeWriter();
+                LockSupport.parkNanos(50_000);
+                pos = TAIL.get();
+            } else {
+                pos = TAIL.get();
+            }
+        }
+
+        int idx = (int) (pos & MASK);
+        Slot s = SLOTS[idx];
+        s.timeMillis = System.currentTimeMillis();
+        s.level = level;
+        s.tag = tag;
+        s.thread = Thread.currentThread().getName();
+        s.format = fmt;
+        s.argc = argc;
+        s.a0 = a0;
+        s.a1 = a1;
+        s.a2 = a2;
+        s.a3 = a3;
+        s.rest = rest;
+        SEQUENCE.set(idx, pos + 1);
+
+        if (sleeping) wakeWriter();
+    }
+
+    private static void wakeWriter() {
+        LockSupport.unpark(WRITER);
+    }
+
+    // ---------- поток log-writer ----------
+
+    private static void drain() {
+        // System.out/err берутся один раз, при старте потока записи: перенаправление процесса
+        // (> file, 2>&1) работает, а более поздний System.setOut/setErr логгер не увидит
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 16 * 1024);
+        Writer err = new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), 16 * 1024);
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+
+        while (true) {
+            int written = 0;
+            while (true) {
+                int idx = (int) (head & MASK);
+                if (SEQUENCE.get(idx) != head + 1) break;
+                Slot s = SLOTS[idx];
+                line.setLength(0);
+                format(s, line);
+                Level level = s.level;
+                s.clear();
+                SEQUENCE.set(idx, head + CAPACITY);
+                head++;
+                write(level.ordinal() >= Level.WARN.ordinal() ? err : out, line);
+                written++;
+            }
+
+            long drops = DROPPED.sum();
+            if (drops != reportedDrops) {
+                line.setLength(0);
+                line.append(Instant.now()).append(" WARN [LOG] [log-writer] dropped ")
+                        .append(drops - reportedDrops).append(" messages (buffer full)\n");
+                write(err, line);
+                reportedDrops = drops;
+            }
+
+            if (written > 0) {
+                flush(out);
+                flush(err);
+                continue;
+            }
+            if (stopped) {
+                flush(out);
+                flush(err);
+                return;
+            }
+
+            sleeping = true;
+            // Перепроверка после выставления флага, иначе можно проспать публикацию
+            if (SEQUENCE.get((int) (head & MASK)) != head + 1) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            sleeping = false;
+        }
+    }
+
+    private static void format(Slot s, StringBuilder b) {
+        b.append(Instant.ofEpochMilli(s.timeMillis)).append(' ');
+        if (s.level != Level.INFO) b.append(s.level).append(' ');
+        b.append('[').append(s.tag).append("] [").append(s.thread).append("] ");
+
+        String fmt = s.format;
+        int argIdx = 0;
+        int from = 0;
+        while (true) {
+            int at = fmt.indexOf("{}", from);
+            if (at < 0 || argIdx >= s.argc) break;
+            b.append(fmt, from, at);
+            Object arg = s.arg(argIdx++);
+            b.append(arg instanceof Throwable t ? t.toString() : String.valueOf(arg));
+            from = at + 2;
+        }
+        b.append(fmt, from, fmt.length());
+
+        // Лишний последний аргумент-исключение печатается со стеком
+        if (argIdx < s.argc && s.arg(s.argc - 1) instanceof Throwable t) {
+            StringWriter sw = new StringWriter();
+            t.printStackTrace(new PrintWriter(sw));
+            b.append('\n').append(sw);
+        }
+        b.append('\n');
+    }
+
+    private static void write(Writer w, StringBuilder line) {
+        try {
+            w.append(line);
+        } catch (IOException ignored) {
+            // stdout закрыт — писать всё равно некуда
+        }
+    }
+
+    private static void flush(Writer w) {
+        try {
+            w.flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Дописывает всё, что уже в буфере, и останавливает writer. Вызывается последним в shutdown hook. */
+    public static void shutdown() {
+        stopped = true;
+        wakeWriter();
+        try {
+            WRITER.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Level parseLevel(String s) {
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (Exception e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -4,16 +4,20 @@ import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
 
     public static void main(String[] args) throws Exception {
         CountDownLatch keepAlive = new CountDownLatch(1);
 
-        System.out.println(Instant.now() + " [MAIN] argsCount=" + args.length);
+        Log.info("MAIN", "argsCount={}", args.length);
         if (args.length != 12) {  // Увеличено до 12 параметров
             System.err.println("❌ Нужны 12 параметров:");
             System.err.println("BOT_TOKEN LLM_URL API_KEY MODEL PROVIDER BOT_USERNAME DESCRIPTION TEMP TOP_P MAX_TOKENS HISTORY_LIMIT CLEAR_HISTORY");
@@ -35,72 +39,387 @@ public class Main {
         int historyLimit = parseInt(args[10], 8);
         boolean clearHistory = Boolean.parseBoolean(args[11]);
 
-        System.out.println(Instant.now() + " [MAIN] llmUrl=" + llmUrl);
-        System.out.println(Instant.now() + " [MAIN] model=" + model + " provider=" + provider);
-        System.out.println(Instant.now() + " [MAIN] username=" + botUsername + " temp=" + temperature + " top_p=" + topP + " max_tokens=" + maxTokens);
-        System.out.println(Instant.now() + " [MAIN] historyLimit=" + historyLimit + " clearHistory=" + clearHistory);
-        System.out.println(Instant.now() + " [MAIN] token=" + mask(botToken) + " apiKey=" + mask(apiKey));
+        Log.info("MAIN", "llmUrl={}", llmUrl);
+        Log.info("MAIN", "model={} provider={}", model, provider);
+        Log.info("MAIN", "username={} temp={} top_p={} max_tokens={}", botUsername, temperature, topP, maxTokens);
+        Log.info("MAIN", "historyLimit={} clearHistory={}", historyLimit, clearHistory);
+        Log.info("MAIN", "token={} apiKey={}", mask(botToken), mask(apiKey));
 
-        ChatHistoryRepository repo = new ChatHistoryRepository("bot_history.db");
+        // single — всё в одном процессе; dispatcher — только приём апдейтов и раздача по воркерам
+        // (параметры LLM ему не нужны); worker — своя доля чатов со своим файлом истории
+        String mode = System.getProperty("tgbot.mode", "single");
+        String shardAddress = System.getProperty("tgbot.shard.address", "unix:tgbot-shard.sock");
+        if (mode.equals("dispatcher")) {
+            runDispatcher(botToken, botUsername, shardAddress);
+            return;
+        }
+        String shardId = null;
+        if (mode.equals("worker")) {
+            shardId = System.getProperty("tgbot.shard.id", "").trim();
+            if (shardId.isEmpty()) {
+                System.err.println("❌ tgbot.mode=worker: нужен -Dtgbot.shard.id=<стабильный id воркера>");
+                return;
+            }
+            Log.info("MAIN", "shard worker id={} dispatcher={}", shardId, shardAddress);
+        } else if (!mode.equals("single")) {
+            throw new IllegalArgumentException("Unknown tgbot.mode: " + mode + " (single, dispatcher, worker)");
+        }
+        String shardSuffix = shardId == null ? "" : "-" + shardId;
+
+        ChatHistoryRepository repo = new ChatHistoryRepository("bot_history" + shardSuffix + ".db",
+                intProp("tgbot.db.readers", 4), intProp("tgbot.db.compressMinBytes", ContentCodec.OFF));
         repo.init();
-        if (clearHistory) repo.clearAll();
 
+        // Где лежит история: sqlite (в том же файле, что и настройки), log — сегменты в mmap, memory — без диска
+        HistoryStore history = openHistoryStore(System.getProperty("tgbot.history.store", "sqlite"), repo, shardSuffix);
+        if (clearHistory) history.clearAll();
+
+        // LLM_URL и API_KEY могут быть списками через запятую — см. RouterClient.
+        // Потоки HTTP-клиента: 0 — его собственный пул
+        int llmThreads = intProp("tgbot.llm.threads", 0);
         RouterClient client = new RouterClient(
                 llmUrl,
                 apiKey,
                 Duration.ofSeconds(10),
                 "https://t.me/" + botUsername,
-                "TgBot"
+                "TgBot",
+                new RouterClient.Options(
+                        intProp("tgbot.llm.hedgePercentile", 95) / 100.0,
+                        Duration.ofMillis(intProp("tgbot.llm.minHedgeMs", 500)),
+                        Math.max(1, intProp("tgbot.llm.maxAttempts", 3)),
+                        Duration.ofMillis(intProp("tgbot.llm.backoffMs", 250)),
+                        Duration.ofMillis(intProp("tgbot.llm.maxBackoffMs", 5000)),
+                        Math.max(1, intProp("tgbot.llm.breakerFailures", 5)),
+                        Duration.ofSeconds(intProp("tgbot.llm.breakerOpenSeconds", 30))),
+                llmThreads > 0 ? Executors.newFixedThreadPool(llmThreads, UpdateDispatcher.daemonFactory("llm-http")) : null
         );
 
         int dbKeepLimit = Math.max(40, historyLimit * 4);
 
-        ChatService chatService = new ChatService(
+        HistoryWriter historyWriter = new HistoryWriter(
+                history,
+                intProp("tgbot.writer.queue", 10_000),
+                intProp("tgbot.writer.maxBatch", 256),
+                Duration.ofMillis(intProp("tgbot.writer.maxDelayMs", 50))
+        );
+
+        // Окно кандидатов в контекст; сколько из них попадёт в запрос, решает бюджет токенов
+        int contextWindow = Math.max(historyLimit, intProp("tgbot.context.window", historyLimit));
+
+        // Обрезка истории и обслуживание файла БД — в фоне, не на пути ответа; 0 дней — без удаления по возрасту
+        HistoryMaintenance maintenance = new HistoryMaintenance(history, new HistoryMaintenance.Options(
+                Math.max(dbKeepLimit, contextWindow),
+                Duration.ofDays(intProp("tgbot.retention.days", 0)),
+                Math.max(1, intProp("tgbot.maint.chatsPerBatch", 500)),
+                Math.max(1, intProp("tgbot.maint.rowsPerBatch", 5000)),
+                Duration.ofMinutes(Math.max(1, intProp("tgbot.maint.sweepMinutes", 10))),
+                Duration.ofSeconds(Math.max(1, intProp("tgbot.maint.checkpointSeconds", 30))),
+                Duration.ofSeconds(intProp("tgbot.maint.quietSeconds", 5)),
+                intProp("tgbot.maint.walLimitMb", 64) * 1024L * 1024L,
+                Math.max(1, intProp("tgbot.maint.reclaimMbPerStep", 4)) * 1024L * 1024L));
+
+        HistoryCache historyCache = new HistoryCache(
+                history,
+                historyWriter,
+                contextWindow,
+                intProp("tgbot.cache.maxChats", 10_000),
+                intProp("tgbot.cache.maxMb", 64) * 1024L * 1024L,
+                Duration.ofMinutes(intProp("tgbot.cache.idleMinutes", 60))
+        );
+        // Пачка, потерянная после всех повторов, уже видна в кэше — чаты перечитаются из хранилища
+        historyWriter.onLost(historyCache::invalidate);
+
+        // Выключен по умолчанию: включается -Dtgbot.llmCache.ttlSeconds=N
+        ResponseCache responseCache = new ResponseCache(
+                intProp("tgbot.llmCache.maxEntries", 1000),
+                Duration.ofSeconds(intProp("tgbot.llmCache.ttlSeconds", 0))
+        );
+
+        ContextBuilder contextBuilder = new ContextBuilder(
+                TokenEstimator.approximate(),
+                Math.max(256, intProp("tgbot.context.maxTokens", 4000))
+        );
+
+        // Сводки стоят отдельных вызовов LLM — включаются явно
+        HistorySummarizer summarizer = Boolean.parseBoolean(System.getProperty("tgbot.summary", "false"))
+                ? new HistorySummarizer(
+                        history,
+                        historyWriter,
+                        client,
+                        contextWindow,
+                        intProp("tgbot.summary.minBatch", 8),
+                        intProp("tgbot.summary.maxTokens", 300),
+                        intProp("tgbot.cache.maxChats", 10_000))
+                : null;
+
+        // Параметры запуска — настройки по умолчанию; команды /set_* меняют их только в своём чате
+        SettingsStore settings = new SettingsStore(
                 repo,
+                new ChatSettings(model, provider, description, temperature, topP, maxTokens)
+        );
+
+        ChatService chatService = new ChatService(
+                historyCache,
                 client,
-                model,
-                provider,
-                description,
-                temperature,
-                topP,
-                maxTokens,  // Новый параметр
-                historyLimit,
-                dbKeepLimit
+                responseCache,
+                contextBuilder,
+                summarizer,
+                settings,
+                contextWindow
+        );
+
+        UpdateDispatcher dispatcher = new UpdateDispatcher(
+                intProp("tgbot.dispatch.maxInFlight", 256),
+                Duration.ofMillis(intProp("tgbot.dispatch.submitTimeoutMs", 5000))
+        );
+
+        // Лимит одновременных вызовов LLM подстраивается сам в [min..max]; 0 в скорости — без лимита
+        AdmissionController admission = new AdmissionController(
+                intProp("tgbot.admission.initialLimit", 16),
+                intProp("tgbot.admission.minLimit", 2),
+                intProp("tgbot.admission.maxLimit", 128),
+                intProp("tgbot.admission.queue", 64),
+                Duration.ofMillis(intProp("tgbot.admission.maxWaitMs", 10_000)),
+                intProp("tgbot.admission.chatPerMinute", 20),
+                intProp("tgbot.admission.chatBurst", 5),
+                intProp("tgbot.admission.userPerMinute", 10),
+                intProp("tgbot.admission.userBurst", 4)
+        );
+
+        // Серии сообщений подряд из одного чата — одним запросом; 0 — выключено
+        int coalesceWindowMs = intProp("tgbot.coalesce.windowMs", 0);
+        MessageCoalescer coalescer = coalesceWindowMs > 0
+                ? new MessageCoalescer(Duration.ofMillis(coalesceWindowMs),
+                                       Duration.ofMillis(intProp("tgbot.coalesce.maxDelayMs", 5000)))
+                : null;
+
+        TgBotApplication bot = new TgBotApplication(
+                botToken,
+                botUsername,
+                chatService,
+                dispatcher,
+                admission,
+                coalescer,
+                // Лимиты Telegram: ~30 сообщений/с на бота, ~1/с в личный чат, 20/мин в группу.
+                // Лимит на бота общий для всех воркеров — в режиме worker задайте globalPerSecond ≈ 30/N
+                new OutboundSender.Options(
+                        intProp("tgbot.out.globalPerSecond", 30),
+                        intProp("tgbot.out.globalBurst", 30),
+                        intProp("tgbot.out.privatePerMinute", 60),
+                        intProp("tgbot.out.privateBurst", 3),
+                        intProp("tgbot.out.groupPerMinute", 20),
+                        intProp("tgbot.out.groupBurst", 3),
+                        intProp("tgbot.out.senders", 4),
+                        intProp("tgbot.out.maxQueuePerChat", 200),
+                        Math.max(1, intProp("tgbot.out.maxAttempts", 5))),
+                Boolean.parseBoolean(System.getProperty("tgbot.stream", "false")),
+                intProp("tgbot.stream.editIntervalMs", 1000)
+        );
+
+        Metrics.gauge("tgbot_dispatch_in_flight", "Accepted updates not yet handled", dispatcher::inFlight);
+        Metrics.gauge("tgbot_dispatch_active_chats", "Chats with a non-empty mailbox", dispatcher::activeChats);
+        Metrics.gauge("tgbot_admission_limit", "Current adaptive limit on concurrent LLM calls", admission::limit);
+        Metrics.gauge("tgbot_admission_in_flight", "LLM calls holding an admission permit", admission::inFlight);
+        Metrics.gauge("tgbot_admission_queued", "Requests waiting for an admission permit", admission::queued);
+        if (coalescer != null) {
+            Metrics.gauge("tgbot_coalesce_active_chats", "Chats with buffered or in-flight coalesced messages", coalescer::activeChats);
+        }
+        Metrics.gauge("tgbot_outbound_pending", "Bot API calls waiting in chat send queues", bot.outbound()::pending);
+        Metrics.gauge("tgbot_settings_customized_chats", "Chats with their own LLM settings", settings::customizedChats);
+        Metrics.gauge("tgbot_startup_first_reply_milliseconds", "Handling time of the first reply after start, -1 before it", bot::firstReplyMs);
+        Metrics.gauge("tgbot_db_wal_bytes", "History written but not yet checkpointed (SQLite WAL, unforced log segments)", history::journalBytes);
+        Metrics.gauge("tgbot_writer_queue_depth", "History writes waiting for commit", historyWriter::pending);
+        Metrics.gauge("tgbot_history_cache_chats", "Chats held in the history cache", historyCache::size);
+        Metrics.gauge("tgbot_history_cache_bytes", "Estimated history cache size", historyCache::estimatedBytes);
+
+        // Порт 0 — эндпоинт выключен
+        int metricsPort = intProp("tgbot.metrics.port", 0);
+        MetricsServer metricsServer = metricsPort > 0 ? new MetricsServer(metricsPort) : null;
+
+        // Публичный URL задан — режим вебхука (HTTPS терминирует прокси перед ботом), иначе long polling
+        // Воркер апдейты получает от диспетчера, вебхук — его дело
+        String webhookUrl = shardId != null ? "" : System.getProperty("tgbot.webhook.url", "").trim();
+        WebhookServer webhookServer = webhookUrl.isEmpty() ? null : new WebhookServer(
+                bot,
+                System.getProperty("tgbot.webhook.host", "0.0.0.0"),
+                intProp("tgbot.webhook.port", 8080),
+                System.getProperty("tgbot.webhook.path", "/telegram"),
+                System.getProperty("tgbot.webhook.secret", ""),
+                intProp("tgbot.webhook.threads", 4)
         );
 
-        TgBotApplication bot = new TgBotApplication(botToken, botUsername, chatService);
+        // Прогрев до приёма апдейтов: шаги идут параллельно и ждутся не дольше бюджета; 0 — без прогрева
+        int warmupBudgetMs = intProp("tgbot.warmup.budgetMs", 15_000);
+        if (warmupBudgetMs > 0) {
+            Duration budget = Duration.ofMillis(warmupBudgetMs);
+            long deadline = System.nanoTime() + budget.toNanos();
+            new StartupWarmup()
+                    .step("identity", () -> {
+                        if (!bot.resolveIdentity(deadline)) throw new IllegalStateException("GetMe kept failing");
+                        return "botId=" + bot.botId();
+                    })
+                    .step("llm", () -> {
+                        int reachable = client.warmUp(budget);
+                        if (reachable == 0) throw new IllegalStateException("no LLM endpoint answered");
+                        return "endpoints=" + reachable;
+                    })
+                    .step("db", () -> history.warmUp(intProp("tgbot.cache.maxChats", 10_000)))
+                    .run(budget);
+        }
+        client.startKeepAlive(Duration.ofSeconds(intProp("tgbot.llm.keepAliveSeconds", 30)));
+
+        ShardWorker shardWorker = shardId == null ? null : new ShardWorker(
+                shardAddress,
+                shardId,
+                bot::accept,
+                dispatcher,
+                new ChatHandoff(history, historyWriter, historyCache, summarizer, settings, Math.max(dbKeepLimit, contextWindow))
+        );
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println(Instant.now() + " [MAIN] Shutdown hook");
+            Log.info("MAIN", "Shutdown hook");
+            if (shardWorker != null) shardWorker.close();
+            if (webhookServer != null) webhookServer.close();
+            if (metricsServer != null) metricsServer.close();
+            dispatcher.close();
+            bot.outbound().close();
+            client.close();
+            Log.info("CACHE", "{}", historyCache.stats());
+            Log.info("LLM_CACHE", "{}", responseCache.stats());
+            Log.info("CONTEXT", "{}", contextBuilder.stats());
+            Log.info("LLM_ROUTE", "{}", client.stats());
+            Log.info("ADMISSION", "{}", admission.stats());
+            if (summarizer != null) summarizer.close();
+            maintenance.close();
+            historyWriter.close();
             try {
+                if (history != repo) history.close();
                 repo.close();
             } catch (Exception e) {
-                System.err.println("Error closing repo: " + e.getMessage());
+                Log.error("MAIN", "Error closing repo: {}", e.getMessage());
             }
+            if (Log.dropped() > 0) Log.warn("LOG", "dropped={}", Log.dropped());
+            Log.shutdown();
             keepAlive.countDown();
         }, "shutdown-hook"));
 
         TelegramBotsApi botsApi = null;
         try {
-            botsApi = new TelegramBotsApi(DefaultBotSession.class);
-            botsApi.registerBot(bot);
-            System.out.println(Instant.now() + " [MAIN] ✅ Bot registered. Polling ACTIVE.");
+            if (shardWorker != null) {
+                shardWorker.start();
+                Log.info("MAIN", "✅ Shard worker {} started. Dispatcher {}", shardId, shardAddress);
+            } else if (webhookServer != null) {
+                webhookServer.register(webhookUrl, intProp("tgbot.webhook.maxConnections", 40));
+                Log.info("MAIN", "✅ Webhook registered. Receiving updates at {}", webhookUrl);
+            } else {
+                botsApi = new TelegramBotsApi(DefaultBotSession.class);
+                botsApi.registerBot(bot);
+                Log.info("MAIN", "✅ Bot registered. Polling ACTIVE.");
+            }
         } catch (TelegramApiException e) {
-            System.err.println(Instant.now() + " [MAIN] ❌ Registration FAILED: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("MAIN", "❌ Registration FAILED: {}", e.getMessage(), e);
+            if (history != repo) history.close();
             repo.close();
+            Log.shutdown();
             return;
         } catch (Exception e) {  // ✅ Ловим ВСЕ ошибки
-            System.err.println(Instant.now() + " [MAIN] ❌ Unexpected error: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("MAIN", "❌ Unexpected error: {}", e.getMessage(), e);
+            if (history != repo) history.close();
             if (repo != null) repo.close();
+            Log.shutdown();
+            return;
+        }
+
+        bot.markReady();
+        long readyMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        Metrics.gauge("tgbot_startup_ready_milliseconds", "Time from JVM start until updates are accepted", () -> readyMs);
+        Log.info("STARTUP", "ready in {} ms since JVM start", readyMs);
+
+        Log.info("MAIN", "🔄 {} forever... Ctrl+C to stop",
+                shardWorker != null ? "Serving shard" : webhookServer != null ? "Listening" : "Polling");
+        keepAlive.await();
+    }
+
+    /**
+     * Фронт шардированного развёртывания: поллинг или вебхук и раздача апдейтов воркерам
+     * (ShardDispatcher). Ни LLM, ни истории здесь нет — только приём и маршрутизация.
+     */
+    private static void runDispatcher(String botToken, String botUsername, String shardAddress) throws Exception {
+        CountDownLatch keepAlive = new CountDownLatch(1);
+
+        ShardDispatcher shards = new ShardDispatcher(shardAddress, new ShardDispatcher.Options(
+                Math.max(1, intProp("tgbot.shard.vnodes", 128)),
+                Math.max(1, intProp("tgbot.shard.queuePerWorker", 10_000)),
+                Duration.ofMillis(Math.max(1, intProp("tgbot.shard.handoffTimeoutMs", 3000))),
+                Math.max(1, intProp("tgbot.shard.trackedChats", 1_000_000))));
+        ShardDispatcher.PollingIntake intake = new ShardDispatcher.PollingIntake(botToken, botUsername, shards);
+
+        Metrics.gauge("tgbot_shard_workers", "Workers connected to the dispatcher", shards::workers);
+        Metrics.gauge("tgbot_shard_moving_chats", "Chats waiting for their state from the previous worker", shards::movingChats);
+        Metrics.gauge("tgbot_shard_queued", "Frames waiting in worker send queues", shards::queued);
+
+        int metricsPort = intProp("tgbot.metrics.port", 0);
+        MetricsServer metricsServer = metricsPort > 0 ? new MetricsServer(metricsPort) : null;
+
+        String webhookUrl = System.getProperty("tgbot.webhook.url", "").trim();
+        WebhookServer webhookServer = webhookUrl.isEmpty() ? null : new WebhookServer(
+                intake,
+                shards::accept,
+                System.getProperty("tgbot.webhook.host", "0.0.0.0"),
+                intProp("tgbot.webhook.port", 8080),
+                System.getProperty("tgbot.webhook.path", "/telegram"),
+                System.getProperty("tgbot.webhook.secret", ""),
+                intProp("tgbot.webhook.threads", 4)
+        );
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Log.info("MAIN", "Shutdown hook");
+            if (webhookServer != null) webhookServer.close();
+            if (metricsServer != null) metricsServer.close();
+            shards.close();
+            Log.shutdown();
+            keepAlive.countDown();
+        }, "shutdown-hook"));
+
+        // Без воркеров апдейты отклоняются, а поллинг их уже не получит повторно — ждём первых
+        int minWorkers = Math.max(1, intProp("tgbot.shard.minWorkers", 1));
+        while (shards.workers() < minWorkers) {
+            Log.info("MAIN", "Waiting for workers: {}/{}", shards.workers(), minWorkers);
+            if (keepAlive.await(1, TimeUnit.SECONDS)) return;
+        }
+
+        try {
+            if (webhookServer != null) {
+                webhookServer.register(webhookUrl, intProp("tgbot.webhook.maxConnections", 40));
+                Log.info("MAIN", "✅ Webhook registered. Dispatching updates from {}", webhookUrl);
+            } else {
+                new TelegramBotsApi(DefaultBotSession.class).registerBot(intake);
+                Log.info("MAIN", "✅ Bot registered. Polling and dispatching.");
+            }
+        } catch (TelegramApiException e) {
+            Log.error("MAIN", "❌ Registration FAILED: {}", e.getMessage(), e);
+            shards.close();
+            Log.shutdown();
             return;
         }
 
-        System.out.println(Instant.now() + " [MAIN] 🔄 Polling forever... Ctrl+C to stop");
+        Log.info("MAIN", "🔄 Dispatching to {} workers... Ctrl+C to stop", shards.workers());
         keepAlive.await();
     }
 
+    private static HistoryStore openHistoryStore(String kind, ChatHistoryRepository repo, String suffix) throws SQLException {
+        HistoryStore store = switch (kind) {
+            case "sqlite" -> repo;
+            case "log" -> new SegmentLogStore(Path.of(System.getProperty("tgbot.history.dir", "bot_history" + suffix + ".log")),
+                    Math.max(1, intProp("tgbot.history.segmentMb", 32)) * 1024L * 1024L);
+            case "memory" -> new InMemoryHistoryStore();
+            default -> throw new IllegalArgumentException("Unknown tgbot.history.store: " + kind + " (sqlite, log, memory)");
+        };
+        if (store != repo) store.init();
+        Log.info("MAIN", "history store={}", kind);
+        return store;
+    }
+
     private static double parseDouble(String s, double def) {
         try {
             return Double.parseDouble(s);
@@ -117,6 +436,11 @@ public class Main {
         }
     }
 
+    // Необязательные настройки — через -Dtgbot.*=...
+    private static int intProp(String key, int def) {
+        return parseInt(System.getProperty(key), def);
+    }
+
     private static String mask(String s) {
         if (s == null) return "null";
         String t = s.trim();
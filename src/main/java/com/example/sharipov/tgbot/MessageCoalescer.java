@@ -0,0 +1,181 @@
+package com.example.sharipov.tgbot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Склейка серии сообщений одного чата в один запрос к LLM.
+ * Поток приёма объявляет сообщение (arrived) до того, как оно попадёт в mailbox чата;
+ * обработчик (take) кладёт текст в буфер чата и:
+ *  - если за ним уже объявлены другие сообщения — выходит, ответит последний;
+ *  - иначе ждёт тишины window (но не дольше maxDelay от первого сообщения серии)
+ *    и забирает весь буфер одним Batch.
+ * Новое сообщение отменяет ответ на предыдущий Batch, пока тот не зафиксирован
+ * (commit): поток обработчика прерывается, тексты возвращаются в буфер и уходят
+ * в следующий запрос. В историю сообщения пишутся все и в порядке message_id.
+ * Апдейт, отброшенный при перегрузке, снимается через withdraw — то, что успело
+ * накопиться, уйдёт со следующим сообщением чата.
+ */
+public class MessageCoalescer {
+
+    /** Забранные из буфера сообщения; после обработки — обязательно finish(). */
+    public final class Batch {
+        private final long chatId;
+        private final ChatState state;
+        private final TreeMap<Integer, String> entries;
+        private final long firstArrivalNanos;
+        private final Thread worker = Thread.currentThread();
+        private boolean committed; // под state
+        private boolean cancelled; // под state
+
+        private Batch(long chatId, ChatState state, TreeMap<Integer, String> entries, long firstArrivalNanos) {
+            this.chatId = chatId;
+            this.state = state;
+            this.entries = entries;
+            this.firstArrivalNanos = firstArrivalNanos;
+        }
+
+        /** Тексты в порядке message_id. */
+        public List<String> texts() {
+            return new ArrayList<>(entries.values());
+        }
+
+        /** Вызывается перед записью ответа в историю: false — ответ устарел и отменён. */
+        public boolean commit() {
+            synchronized (state) {
+                if (cancelled) return false;
+                committed = true;
+                return true;
+            }
+        }
+
+        public boolean cancelled() {
+            synchronized (state) {
+                return cancelled;
+            }
+        }
+    }
+
+    private static final class ChatState {
+        final Set<Integer> announced = new HashSet<>();        // объявлены, обработчик ещё не дошёл
+        final TreeMap<Integer, String> buffered = new TreeMap<>();
+        long lastArrivalNanos;
+        long burstStartNanos; // 0 — серии нет
+        Batch inFlight;
+
+        boolean idle() {
+            return announced.isEmpty() && buffered.isEmpty() && inFlight == null;
+        }
+    }
+
+    private final long windowNanos;
+    private final long maxDelayNanos;
+    private final ConcurrentHashMap<Long, ChatState> chats = new ConcurrentHashMap<>();
+
+    public MessageCoalescer(Duration window, Duration maxDelay) {
+        this.windowNanos = window.toNanos();
+        this.maxDelayNanos = Math.max(window.toNanos(), maxDelay.toNanos());
+        Log.info("COALESCE", "Started. windowMs={} maxDelayMs={}", window.toMillis(), maxDelayNanos / 1_000_000);
+    }
+
+    /** Поток приёма: сообщение будет отвечено через take. Отменяет устаревший ответ. */
+    public void arrived(long chatId, int messageId) {
+        long now = System.nanoTime();
+        chats.compute(chatId, (id, st) -> {
+            if (st == null) st = new ChatState();
+            synchronized (st) {
+                st.announced.add(messageId);
+                st.lastArrivalNanos = now;
+                if (st.burstStartNanos == 0) st.burstStartNanos = now;
+
+                Batch b = st.inFlight;
+                // Серию, которая и так ждёт дольше maxDelay, не перезапускаем
+                if (b != null && !b.committed && !b.cancelled && now - b.firstArrivalNanos < maxDelayNanos) {
+                    b.cancelled = true;
+                    b.worker.interrupt();
+                    Metrics.LLM_CANCELLED.increment();
+                }
+                st.notifyAll();
+            }
+            return st;
+        });
+    }
+
+    /** Объявленный апдейт так и не попал в mailbox. */
+    public void withdraw(long chatId, int messageId) {
+        chats.computeIfPresent(chatId, (id, st) -> {
+            synchronized (st) {
+                st.announced.remove(messageId);
+                return st.idle() ? null : st;
+            }
+        });
+    }
+
+    public boolean isAnnounced(long chatId, int messageId) {
+        ChatState st = chats.get(chatId);
+        if (st == null) return false;
+        synchronized (st) {
+            return st.announced.contains(messageId);
+        }
+    }
+
+    /**
+     * Обработчик объявленного сообщения. null — текст остался в буфере,
+     * ответит обработчик более позднего сообщения.
+     */
+    public Batch take(long chatId, int messageId, String text) throws InterruptedException {
+        ChatState st = chats.get(chatId);
+        synchronized (st) {
+            st.announced.remove(messageId);
+            st.buffered.put(messageId, text);
+
+            while (true) {
+                long now = System.nanoTime();
+                long untilOverdue = st.burstStartNanos + maxDelayNanos - now;
+                if (!st.announced.isEmpty() && untilOverdue > 0) {
+                    Metrics.UPDATES_COALESCED.increment();
+                    return null;
+                }
+                long wait = Math.min(st.lastArrivalNanos + windowNanos - now, untilOverdue);
+                if (wait <= 0) break;
+                TimeUnit.NANOSECONDS.timedWait(st, wait);
+            }
+
+            Batch b = new Batch(chatId, st, new TreeMap<>(st.buffered), st.burstStartNanos);
+            st.buffered.clear();
+            st.burstStartNanos = st.announced.isEmpty() ? 0 : st.lastArrivalNanos;
+            st.inFlight = b;
+            return b;
+        }
+    }
+
+    /** Конец обработки Batch. Отменённый возвращает тексты в буфер и снимает своё прерывание. */
+    public void finish(Batch b) {
+        ChatState st = b.state;
+        synchronized (st) {
+            st.inFlight = null;
+            if (b.cancelled) {
+                st.buffered.putAll(b.entries);
+                if (st.burstStartNanos == 0 || b.firstArrivalNanos - st.burstStartNanos < 0) {
+                    st.burstStartNanos = b.firstArrivalNanos;
+                }
+                Thread.interrupted();
+            }
+        }
+        chats.computeIfPresent(b.chatId, (id, s) -> {
+            synchronized (s) {
+                return s.idle() ? null : s;
+            }
+        });
+    }
+
+    public int activeChats() {
+        return chats.size();
+    }
+}
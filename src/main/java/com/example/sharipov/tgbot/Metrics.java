@@ -0,0 +1,166 @@
+package com.example.sharipov.tgbot;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики процесса. Гистограммы и счётчики — статические поля, горячий путь
+ * обращается к ним напрямую; гауги (глубины очередей и т.п.) регистрируются
+ * при сборке приложения. Текстовый формат Prometheus отдаёт MetricsServer.
+ */
+public final class Metrics {
+
+    private Metrics() {}
+
+    // ---------- гистограммы ----------
+    public static final Histogram UPDATE_HANDLE = new Histogram(
+            "tgbot_update_handle_seconds", "Full handling of one update in its chat mailbox");
+    public static final Histogram HISTORY_LOAD = new Histogram(
+            "tgbot_history_load_seconds", "Loading recent history for the prompt (cache or DB)");
+    public static final Histogram LLM_HTTP = new Histogram(
+            "tgbot_llm_http_seconds", "LLM HTTP call from send to fully read response");
+    public static final Histogram PERSIST_BATCH = new Histogram(
+            "tgbot_persist_batch_seconds", "One history write transaction");
+    public static final Histogram TELEGRAM_SEND = new Histogram(
+            "tgbot_telegram_send_seconds", "One Telegram Bot API call");
+    public static final Histogram OUTBOUND_WAIT = new Histogram(
+            "tgbot_outbound_wait_seconds", "Outbound Bot API call from enqueue to successful send");
+
+    // ---------- счётчики ----------
+    public static final LongAdder UPDATES_RECEIVED = new LongAdder();
+    public static final LongAdder UPDATES_DROPPED = new LongAdder();
+    public static final LongAdder UPDATES_ROUTED = new LongAdder();
+    public static final LongAdder UPDATES_IGNORED = new LongAdder();
+    public static final LongAdder UPDATES_COALESCED = new LongAdder();
+    public static final LongAdder COMMANDS = new LongAdder();
+    public static final LongAdder LLM_HTTP_ERRORS = new LongAdder();
+    public static final LongAdder LLM_HEDGES = new LongAdder();
+    public static final LongAdder LLM_HEDGE_WINS = new LongAdder();
+    public static final LongAdder LLM_RETRIES = new LongAdder();
+    public static final LongAdder LLM_CANCELLED = new LongAdder();
+    public static final LongAdder LLM_BREAKER_OPENED = new LongAdder();
+    public static final LongAdder ADMISSION_ADMITTED = new LongAdder();
+    public static final LongAdder ADMISSION_QUEUED = new LongAdder();
+    public static final LongAdder ADMISSION_REJECTED = new LongAdder();
+    public static final LongAdder ADMISSION_TIMED_OUT = new LongAdder();
+    public static final LongAdder ADMISSION_RATE_LIMITED = new LongAdder();
+    public static final LongAdder PERSIST_OPS = new LongAdder();
+    public static final LongAdder PERSIST_FAILED_OPS = new LongAdder();
+    public static final LongAdder TELEGRAM_SEND_ERRORS = new LongAdder();
+    public static final LongAdder TELEGRAM_RATE_LIMITED = new LongAdder();
+    public static final LongAdder OUTBOUND_DROPPED = new LongAdder();
+    public static final LongAdder OUTBOUND_COALESCED = new LongAdder();
+    public static final LongAdder DB_PRUNED_BY_COUNT = new LongAdder();
+    public static final LongAdder DB_PRUNED_BY_AGE = new LongAdder();
+    public static final LongAdder DB_BYTES_RECLAIMED = new LongAdder();
+    public static final LongAdder DB_CHECKPOINTS = new LongAdder();
+    public static final LongAdder SHARD_FORWARDED = new LongAdder();
+    public static final LongAdder SHARD_HANDOFFS = new LongAdder();
+    public static final LongAdder SHARD_HANDOFF_TIMEOUTS = new LongAdder();
+    public static final LongAdder SHARD_REQUEUED = new LongAdder();
+    public static final LongAdder SHARD_REJECTED = new LongAdder();
+
+    // HTTP-статусы ответов LLM: индекс = код
+    private static final AtomicLongArray LLM_STATUS = new AtomicLongArray(600);
+
+    private record Gauge(String name, String help, LongSupplier value) {}
+
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>();
+    private static final Map<String, Boolean> GAUGE_NAMES = new ConcurrentHashMap<>();
+
+    public static void llmStatus(int code) {
+        if (code >= 0 && code < LLM_STATUS.length()) LLM_STATUS.incrementAndGet(code);
+    }
+
+    /** Регистрирует гауг; повторная регистрация того же имени игнорируется. */
+    public static void gauge(String name, String help, LongSupplier value) {
+        if (GAUGE_NAMES.putIfAbsent(name, Boolean.TRUE) == null) GAUGES.add(new Gauge(name, help, value));
+    }
+
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        UPDATE_HANDLE.render(out);
+        HISTORY_LOAD.render(out);
+        LLM_HTTP.render(out);
+        PERSIST_BATCH.render(out);
+        TELEGRAM_SEND.render(out);
+        OUTBOUND_WAIT.render(out);
+
+        out.append("# HELP tgbot_updates_total Updates by outcome\n");
+        out.append("# TYPE tgbot_updates_total counter\n");
+        counterLine(out, "tgbot_updates_total{outcome=\"received\"}", UPDATES_RECEIVED);
+        counterLine(out, "tgbot_updates_total{outcome=\"dropped\"}", UPDATES_DROPPED);
+        counterLine(out, "tgbot_updates_total{outcome=\"routed\"}", UPDATES_ROUTED);
+        counterLine(out, "tgbot_updates_total{outcome=\"ignored\"}", UPDATES_IGNORED);
+        counterLine(out, "tgbot_updates_total{outcome=\"coalesced\"}", UPDATES_COALESCED);
+        counterLine(out, "tgbot_updates_total{outcome=\"command\"}", COMMANDS);
+
+        out.append("# HELP tgbot_llm_http_responses_total LLM HTTP responses by status code\n");
+        out.append("# TYPE tgbot_llm_http_responses_total counter\n");
+        for (int code = 0; code < LLM_STATUS.length(); code++) {
+            long n = LLM_STATUS.get(code);
+            if (n > 0) out.append("tgbot_llm_http_responses_total{code=\"").append(code).append("\"} ").append(n).append('\n');
+        }
+        counter(out, "tgbot_llm_http_errors_total", "LLM calls that failed without an HTTP response", LLM_HTTP_ERRORS);
+        out.append("# HELP tgbot_admission_total Admission decisions for LLM calls\n");
+        out.append("# TYPE tgbot_admission_total counter\n");
+        counterLine(out, "tgbot_admission_total{decision=\"admitted\"}", ADMISSION_ADMITTED);
+        counterLine(out, "tgbot_admission_total{decision=\"queued\"}", ADMISSION_QUEUED);
+        counterLine(out, "tgbot_admission_total{decision=\"rejected\"}", ADMISSION_REJECTED);
+        counterLine(out, "tgbot_admission_total{decision=\"timed_out\"}", ADMISSION_TIMED_OUT);
+        counterLine(out, "tgbot_admission_total{decision=\"rate_limited\"}", ADMISSION_RATE_LIMITED);
+        counter(out, "tgbot_llm_hedges_total", "Hedged second LLM requests sent", LLM_HEDGES);
+        counter(out, "tgbot_llm_hedge_wins_total", "Hedged requests that answered first", LLM_HEDGE_WINS);
+        counter(out, "tgbot_llm_retries_total", "LLM request retries after 429/5xx/network errors", LLM_RETRIES);
+        counter(out, "tgbot_llm_cancelled_total", "LLM calls cancelled because a newer message arrived", LLM_CANCELLED);
+        counter(out, "tgbot_llm_breaker_opened_total", "Endpoint circuit breaker trips", LLM_BREAKER_OPENED);
+        counter(out, "tgbot_persist_ops_total", "History operations committed", PERSIST_OPS);
+        counter(out, "tgbot_persist_failed_ops_total", "History operations lost after retry", PERSIST_FAILED_OPS);
+        counter(out, "tgbot_telegram_send_errors_total", "Failed Telegram Bot API calls", TELEGRAM_SEND_ERRORS);
+        counter(out, "tgbot_telegram_rate_limited_total", "Bot API calls answered 429 and retried after retry_after", TELEGRAM_RATE_LIMITED);
+        counter(out, "tgbot_outbound_dropped_total", "Outbound calls dropped because the chat queue was full", OUTBOUND_DROPPED);
+        counter(out, "tgbot_outbound_coalesced_total", "Pending message edits replaced by a newer edit", OUTBOUND_COALESCED);
+        out.append("# HELP tgbot_db_pruned_rows_total History rows deleted by retention\n");
+        out.append("# TYPE tgbot_db_pruned_rows_total counter\n");
+        counterLine(out, "tgbot_db_pruned_rows_total{reason=\"count\"}", DB_PRUNED_BY_COUNT);
+        counterLine(out, "tgbot_db_pruned_rows_total{reason=\"age\"}", DB_PRUNED_BY_AGE);
+        counter(out, "tgbot_db_reclaimed_bytes_total", "History storage returned to the OS by vacuum or segment compaction", DB_BYTES_RECLAIMED);
+        counter(out, "tgbot_db_wal_checkpoints_total", "WAL checkpoints run by the maintenance worker", DB_CHECKPOINTS);
+        out.append("# HELP tgbot_shard_total Sharded dispatcher events\n");
+        out.append("# TYPE tgbot_shard_total counter\n");
+        counterLine(out, "tgbot_shard_total{event=\"forwarded\"}", SHARD_FORWARDED);
+        counterLine(out, "tgbot_shard_total{event=\"handoff\"}", SHARD_HANDOFFS);
+        counterLine(out, "tgbot_shard_total{event=\"handoff_timeout\"}", SHARD_HANDOFF_TIMEOUTS);
+        counterLine(out, "tgbot_shard_total{event=\"requeued\"}", SHARD_REQUEUED);
+        counterLine(out, "tgbot_shard_total{event=\"rejected\"}", SHARD_REJECTED);
+
+        for (Gauge g : GAUGES) {
+            long v;
+            try {
+                v = g.value().getAsLong();
+            } catch (RuntimeException e) {
+                continue;
+            }
+            out.append("# HELP ").append(g.name()).append(' ').append(g.help()).append('\n');
+            out.append("# TYPE ").append(g.name()).append(" gauge\n");
+            out.append(g.name()).append(' ').append(v).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        counterLine(out, name, value);
+    }
+
+    private static void counterLine(StringBuilder out, String series, LongAdder value) {
+        out.append(series).append(' ').append(value.sum()).append('\n');
+    }
+}
@@ -0,0 +1,425 @@
+package com.example.sharipov.tgbot;
+
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Исходящие вызовы Bot API вне потоков обработчиков: обработчик ставит вызов
+ * в очередь и сразу возвращается. У каждого чата своя очередь (порядок внутри
+ * чата сохраняется), отправляют несколько потоков. Темп держат token bucket'ы
+ * по лимитам Telegram: общий (~30 сообщений/с), на личный чат (~1/с с небольшим
+ * всплеском) и на группу (20/мин). 429 — пауза чата на retry_after и повтор
+ * того же вызова; 5xx и сетевые ошибки — повтор с растущей паузой.
+ * Текст длиннее 4096 символов режется на несколько сообщений по абзацам.
+ */
+public class OutboundSender implements AutoCloseable {
+
+    public static final int MAX_MESSAGE_LENGTH = 4096;
+
+    /** Собственно вызов Bot API (в боте — timedExecute). */
+    public interface Transport {
+        Serializable execute(BotApiMethod<? extends Serializable> method) throws TelegramApiException;
+    }
+
+    /** Скорость 0 — без ограничения. */
+    public record Options(double globalPerSecond,
+                          int globalBurst,
+                          double privatePerMinute,
+                          int privateBurst,
+                          double groupPerMinute,
+                          int groupBurst,
+                          int senders,
+                          int maxQueuePerChat,
+                          int maxAttempts) {
+
+        public static Options defaults() {
+            return new Options(30, 30, 60, 3, 20, 3, 4, 200, 5);
+        }
+
+        /** Без темпа — для бенчмарков и нагрузочных тестов. */
+        public static Options unlimited() {
+            return new Options(0, 1, 0, 1, 0, 1, 4, Integer.MAX_VALUE, 1);
+        }
+    }
+
+    // Token bucket с резервированием: токен можно взять в долг и дождаться его
+    private static final class Pacer {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long lastNanos;
+
+        Pacer(double perSecond, int burst) {
+            this.perNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.lastNanos = System.nanoTime();
+        }
+
+        /** Сколько ждать до свободного токена (0 — есть сейчас). */
+        synchronized long delay(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) ((1 - tokens) / perNano);
+        }
+
+        /** Забирает токен, возможно в долг; возвращает, сколько ждать до его наступления. */
+        synchronized long reserve(long now) {
+            refill(now);
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / perNano);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - lastNanos) * perNano);
+            lastNanos = now;
+        }
+    }
+
+    private static final class Outgoing {
+        BotApiMethod<? extends Serializable> method; // под ChatQueue: правку может заменить более свежая
+        final CompletableFuture<Serializable> result = new CompletableFuture<>();
+        final long enqueuedNanos = System.nanoTime();
+        int attempts;
+
+        Outgoing(BotApiMethod<? extends Serializable> method) {
+            this.method = method;
+        }
+    }
+
+    private static final class ChatQueue implements Delayed {
+        final long chatId;
+        final Pacer pacer; // null — без лимита
+        final ArrayDeque<Outgoing> queue = new ArrayDeque<>();
+        Outgoing sending;       // голова, уже отданная отправителю
+        boolean active;         // в ready или у отправителя
+        long pausedUntilNanos;
+        volatile long eligibleAtNanos;
+
+        ChatQueue(long chatId, Pacer pacer) {
+            this.chatId = chatId;
+            this.pacer = pacer;
+        }
+
+        boolean idle(long now) {
+            return !active && queue.isEmpty() && (pacer == null || pacer.isFull(now));
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(eligibleAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(eligibleAtNanos, ((ChatQueue) o).eligibleAtNanos);
+        }
+    }
+
+    private static final long BASE_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final Transport transport;
+    private final Options options;
+    private final Pacer global;
+    private final ConcurrentHashMap<Long, ChatQueue> chats = new ConcurrentHashMap<>();
+    private final DelayQueue<ChatQueue> ready = new DelayQueue<>();
+    private final ExecutorService senders;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger sinceCleanup = new AtomicInteger();
+    private volatile boolean closed;
+
+    public OutboundSender(Transport transport, Options options) {
+        this.transport = transport;
+        this.options = options;
+        this.global = options.globalPerSecond() > 0 ? new Pacer(options.globalPerSecond(), options.globalBurst()) : null;
+        int n = Math.max(1, options.senders());
+        this.senders = Executors.newFixedThreadPool(n, UpdateDispatcher.daemonFactory("tg-send"));
+        for (int i = 0; i < n; i++) senders.execute(this::runSender);
+        Log.info("OUT", "Started. senders={} global={}/s private={}/min group={}/min maxAttempts={}",
+                n, options.globalPerSecond(), options.privatePerMinute(), options.groupPerMinute(), options.maxAttempts());
+    }
+
+    /** Любой вызов в очередь чата. Будущее завершается ответом Bot API или окончательной ошибкой. */
+    public CompletableFuture<Serializable> submit(long chatId, BotApiMethod<? extends Serializable> method) {
+        Outgoing o = new Outgoing(method);
+        if (closed) {
+            o.result.completeExceptionally(new RejectedExecutionException("Outbound sender is closed"));
+            return o.result;
+        }
+
+        boolean[] full = {false};
+        chats.compute(chatId, (id, q) -> {
+            if (q == null) q = new ChatQueue(id, pacerFor(id));
+            synchronized (q) {
+                if (q.queue.size() >= options.maxQueuePerChat()) {
+                    full[0] = true;
+                } else {
+                    q.queue.add(o);
+                    pending.incrementAndGet();
+                    if (!q.active) {
+                        q.active = true;
+                        schedule(q, System.nanoTime());
+                    }
+                }
+            }
+            return q;
+        });
+
+        if (full[0]) {
+            Metrics.OUTBOUND_DROPPED.increment();
+            Log.warn("OUT", "chatId={} queue full, dropped {}", chatId, method.getMethod());
+            o.result.completeExceptionally(new RejectedExecutionException("Outbound queue full for chat " + chatId));
+        }
+        if (sinceCleanup.incrementAndGet() >= 1024) cleanup();
+        return o.result;
+    }
+
+    /** Текст любой длины; длинный уходит несколькими сообщениями. Будущее — последнего из них. */
+    public CompletableFuture<Serializable> sendText(long chatId, String text) {
+        CompletableFuture<Serializable> last = null;
+        for (String part : split(text, MAX_MESSAGE_LENGTH)) {
+            last = submit(chatId, SendMessage.builder().chatId(chatId).text(part).build());
+        }
+        return last;
+    }
+
+    /**
+     * Правка текста сообщения. Ещё не отправленная правка того же сообщения
+     * заменяется этой — промежуточные состояния стрима не копятся в очереди.
+     * Сообщение получает только первую часть текста (см. firstPart): продолжение
+     * длинного ответа вызывающий отправляет сам, один раз, когда текст окончателен.
+     */
+    public CompletableFuture<Serializable> editText(long chatId, int messageId, String text) {
+        EditMessageText edit = EditMessageText.builder()
+                .chatId(chatId)
+                .messageId(messageId)
+                .text(firstPart(text))
+                .build();
+
+        ChatQueue q = chats.get(chatId);
+        if (q != null) {
+            synchronized (q) {
+                for (Outgoing o : q.queue) {
+                    if (o != q.sending && o.method instanceof EditMessageText e && e.getMessageId() == messageId) {
+                        o.method = edit;
+                        Metrics.OUTBOUND_COALESCED.increment();
+                        return o.result;
+                    }
+                }
+            }
+        }
+        return submit(chatId, edit);
+    }
+
+    /** Часть текста, которая помещается в одно сообщение (первая из split). */
+    static String firstPart(String text) {
+        return text.length() <= MAX_MESSAGE_LENGTH ? text : split(text, MAX_MESSAGE_LENGTH).get(0);
+    }
+
+    public int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Будущее последнего вызова в очереди чата (уже завершённое, если очередь пуста).
+     * Очередь FIFO: когда оно завершится, отправлено всё, что было поставлено до этого.
+     */
+    CompletableFuture<Serializable> last(long chatId) {
+        ChatQueue q = chats.get(chatId);
+        if (q != null) {
+            synchronized (q) {
+                Outgoing o = q.queue.peekLast();
+                if (o != null) return o.result;
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Режет текст на части не длиннее max: по пустой строке между абзацами,
+     * иначе по переводу строки, концу предложения, пробелу; в крайнем случае —
+     * жёстко, не разрывая суррогатную пару. Часть короче max/2 не выбирается.
+     */
+    static List<String> split(String text, int max) {
+        if (text.length() <= max) return List.of(text);
+
+        List<String> parts = new ArrayList<>();
+        int from = 0;
+        while (text.length() - from > max) {
+            int cut = breakPoint(text, from, from + max);
+            String part = text.substring(from, cut).stripTrailing();
+            if (!part.isEmpty()) parts.add(part);
+            from = cut;
+            while (from < text.length() && Character.isWhitespace(text.charAt(from))) from++;
+        }
+        if (from < text.length()) parts.add(text.substring(from));
+        return parts;
+    }
+
+    private static int breakPoint(String text, int from, int end) {
+        int min = from + (end - from) / 2;
+        int i = text.lastIndexOf("\n\n", end - 2);
+        if (i >= min) return i + 2;
+        i = text.lastIndexOf('\n', end - 1);
+        if (i >= min) return i + 1;
+        for (String stop : new String[]{". ", "! ", "? "}) {
+            i = text.lastIndexOf(stop, end - 2);
+            if (i >= min) return i + 2;
+        }
+        i = text.lastIndexOf(' ', end - 1);
+        if (i >= min) return i + 1;
+        return Character.isHighSurrogate(text.charAt(end - 1)) ? end - 1 : end;
+    }
+
+    // ---------- отправители ----------
+
+    private void runSender() {
+        while (true) {
+            ChatQueue q;
+            try {
+                q = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Outgoing o;
+            BotApiMethod<? extends Serializable> method;
+            synchronized (q) {
+                o = q.queue.peek();
+                q.sending = o;
+                method = o == null ? null : o.method;
+            }
+
+            boolean done = true;
+            if (o != null) {
+                long now = System.nanoTime();
+                if (q.pacer != null) q.pacer.reserve(now);
+                long wait = global != null ? global.reserve(now) : 0;
+                if (wait > 0) LockSupport.parkNanos(wait);
+                done = send(q, o, method);
+            }
+
+            synchronized (q) {
+                q.sending = null;
+                if (done && o != null) {
+                    q.queue.poll();
+                    pending.decrementAndGet();
+                }
+                if (q.queue.isEmpty()) q.active = false;
+                else schedule(q, System.nanoTime());
+            }
+        }
+    }
+
+    // true — вызов закончен (успешно или окончательно); false — повторить позже
+    private boolean send(ChatQueue q, Outgoing o, BotApiMethod<? extends Serializable> method) {
+        o.attempts++;
+        try {
+            Serializable r = transport.execute(method);
+            Metrics.OUTBOUND_WAIT.since(o.enqueuedNanos);
+            o.result.complete(r);
+            return true;
+        } catch (TelegramApiRequestException e) {
+            int code = e.getErrorCode() != null ? e.getErrorCode() : 0;
+            if (code == 429 && o.attempts < options.maxAttempts()) {
+                Integer retryAfter = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+                long pauseNanos = TimeUnit.SECONDS.toNanos(retryAfter != null ? Math.max(1, retryAfter) : 1);
+                pause(q, pauseNanos);
+                Metrics.TELEGRAM_RATE_LIMITED.increment();
+                Log.warn("OUT", "chatId={} {} 429, retry after {}s", q.chatId, method.getMethod(), pauseNanos / 1_000_000_000L);
+                return false;
+            }
+            // Остальные 4xx (например, "message is not modified") повтором не исправить
+            if (code >= 500 && o.attempts < options.maxAttempts()) return retryLater(q, o, method, e);
+            return fail(q, o, method, e);
+        } catch (TelegramApiException | RuntimeException e) {
+            if (o.attempts < options.maxAttempts()) return retryLater(q, o, method, e);
+            return fail(q, o, method, e);
+        }
+    }
+
+    private boolean retryLater(ChatQueue q, Outgoing o, BotApiMethod<?> method, Exception e) {
+        pause(q, BASE_BACKOFF_NANOS << Math.min(6, o.attempts - 1));
+        Log.warn("OUT", "chatId={} {} attempt {} failed, retrying: {}", q.chatId, method.getMethod(), o.attempts, e.getMessage());
+        return false;
+    }
+
+    private boolean fail(ChatQueue q, Outgoing o, BotApiMethod<?> method, Exception e) {
+        Log.warn("OUT", "chatId={} {} failed: {}", q.chatId, method.getMethod(), e.getMessage());
+        o.result.completeExceptionally(e);
+        return true;
+    }
+
+    private void pause(ChatQueue q, long nanos) {
+        synchronized (q) {
+            q.pausedUntilNanos = System.nanoTime() + nanos;
+        }
+    }
+
+    // Под монитором q
+    private void schedule(ChatQueue q, long now) {
+        long wait = Math.max(q.pausedUntilNanos - now, q.pacer != null ? q.pacer.delay(now) : 0);
+        q.eligibleAtNanos = now + Math.max(0, wait);
+        ready.add(q);
+    }
+
+    private Pacer pacerFor(long chatId) {
+        // Отрицательные id — группы и каналы
+        boolean group = chatId < 0;
+        double perMinute = group ? options.groupPerMinute() : options.privatePerMinute();
+        if (perMinute <= 0) return null;
+        return new Pacer(perMinute / 60.0, group ? options.groupBurst() : options.privateBurst());
+    }
+
+    // Пустые очереди с полным ведром ничем не отличаются от новых
+    private void cleanup() {
+        sinceCleanup.set(0);
+        long now = System.nanoTime();
+        for (Iterator<Long> it = chats.keySet().iterator(); it.hasNext(); ) {
+            chats.computeIfPresent(it.next(), (id, q) -> {
+                synchronized (q) {
+                    return q.idle(now) ? null : q;
+                }
+            });
+        }
+    }
+
+    /** Дожидается отправки очереди (не дольше timeout), затем останавливает отправителей. */
+    public void close(long timeoutMs) {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (pending.get() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        }
+        senders.shutdownNow();
+        Log.info("OUT", "Closed. unsent={}", pending.get());
+    }
+
+    @Override
+    public void close() {
+        close(10_000);
+    }
+}
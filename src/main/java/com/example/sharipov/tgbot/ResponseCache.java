@@ -0,0 +1,229 @@
+package com.example.sharipov.tgbot;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Кэш ответов LLM по хэшу итогового запроса (модель, провайдер, параметры,
+ * system prompt, история, текст) с TTL и ограничением по размеру.
+ * Одинаковые запросы, пришедшие одновременно, ждут один общий вызов.
+ */
+public class ResponseCache {
+
+    @FunctionalInterface
+    public interface Loader {
+        String load() throws Exception;
+    }
+
+    private record Entry(String value, long expiresAtNanos) {}
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(int maxEntries, Duration ttl) {
+        this.enabled = maxEntries > 0 && !ttl.isZero() && !ttl.isNegative();
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String keyOf(byte[] request, int length) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(request, 0, length);
+            return HexFormat.of().formatHex(sha.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Готовый ответ из кэша, общий результат уже идущего запроса или вызов loader.
+     * Ошибки не кэшируются, но отдаются всем, кто ждал этот вызов. Отмена владельца вызова
+     * (прерывание его потока) — не ошибка запроса: ждавшие, кого не прерывали, грузят сами.
+     */
+    public String getOrLoad(String key, Loader loader) throws Exception {
+        if (!enabled) return loader.load();
+
+        String cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing;
+        while ((existing = inFlight.putIfAbsent(key, mine)) != null) {
+            coalesced.increment();
+            try {
+                // get, а не join: прерывание этого потока снимает только его
+                return existing.get();
+            } catch (ExecutionException | CancellationException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                if (!abandoned(cause) || Thread.currentThread().isInterrupted()) {
+                    if (cause instanceof Error err) throw err;
+                    throw cause instanceof Exception ex ? ex : e;
+                }
+                // Владельца отменили (например, устаревший ответ его чата) — занимаем его место
+                inFlight.remove(key, existing);
+            }
+        }
+
+        misses.increment();
+        try {
+            String value = loader.load();
+            put(key, value);
+            mine.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // Error тоже: иначе ждущие этот вызов повиснут на join()
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Асинхронный getOrLoad. Каждый, кто ждёт общий вызов (и тот, кто его начал), получает
+     * свою копию future; отмена копии снимает только этого участника, сам вызов отменяется,
+     * когда ушли все.
+     */
+    public CompletableFuture<String> getOrLoadAsync(String key, Supplier<CompletableFuture<String>> loader) {
+        if (!enabled) return loader.get();
+
+        String cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        Flight mine = new Flight();
+        CompletableFuture<String> existing;
+        while ((existing = inFlight.putIfAbsent(key, mine)) != null) {
+            // Ожидающих синхронного getOrLoad не отменить — им просто копия;
+            // отменили владельца — грузим сами, как и в getOrLoad
+            if (!(existing instanceof Flight f)) {
+                coalesced.increment();
+                CompletableFuture<String> shared = existing;
+                return shared.handle((v, e) -> e != null && abandoned(e) ? getOrLoadAsync(key, loader) : shared.copy())
+                        .thenCompose(r -> r);
+            }
+            if (f.enter()) {
+                coalesced.increment();
+                return f.view();
+            }
+            // Все участники ушли, вызов отменяется — начинаем свой
+            inFlight.remove(key, existing);
+        }
+
+        misses.increment();
+        CompletableFuture<String> call;
+        try {
+            call = loader.get();
+        } catch (Throwable e) {
+            inFlight.remove(key, mine);
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        mine.call = call;
+        call.whenComplete((value, e) -> {
+            inFlight.remove(key, mine);
+            if (e != null) {
+                mine.completeExceptionally(e);
+                return;
+            }
+            put(key, value);
+            mine.complete(value);
+        });
+        return mine.view();
+    }
+
+    // Вызов не упал, а был брошен владельцем
+    private static boolean abandoned(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e instanceof InterruptedException || e instanceof CancellationException;
+    }
+
+    // Общий асинхронный вызов и число его участников
+    private static final class Flight extends CompletableFuture<String> {
+        private final AtomicInteger callers = new AtomicInteger(1);
+        private volatile CompletableFuture<String> call;
+
+        // false — участников уже не осталось
+        boolean enter() {
+            for (int n = callers.get(); n > 0; n = callers.get()) {
+                if (callers.compareAndSet(n, n + 1)) return true;
+            }
+            return false;
+        }
+
+        CompletableFuture<String> view() {
+            CompletableFuture<String> v = copy();
+            v.whenComplete((value, e) -> {
+                if (v.isCancelled() && callers.decrementAndGet() == 0) {
+                    // call ещё null только у начавшего, а он пока не может уйти
+                    CompletableFuture<String> c = call;
+                    if (c != null) c.cancel(true);
+                }
+            });
+            return v;
+        }
+    }
+
+    private String get(String key) {
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e == null) return null;
+            if (System.nanoTime() - e.expiresAtNanos() > 0) {
+                entries.remove(key);
+                return null;
+            }
+            return e.value();
+        }
+    }
+
+    private void put(String key, String value) {
+        synchronized (entries) {
+            entries.put(key, new Entry(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    public String stats() {
+        int size;
+        synchronized (entries) { size = entries.size(); }
+        return String.format("enabled=%b size=%d hits=%d coalesced=%d misses=%d",
+                enabled, size, hits.sum(), coalesced.sum(), misses.sum());
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.sharipov.tgbot;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Потоковый разбор ответов chat-completions: JsonReader идёт по токенам
+ * и останавливается на нужном поле, не строя дерево всего ответа.
+ */
+final class ResponseParser {
+
+    private ResponseParser() {}
+
+    /** choices[0].message.content из полного ответа. */
+    static String readContent(Reader in) throws IOException {
+        return readChoiceField(new JsonReader(in), "message");
+    }
+
+    static String parseAssistant(String responseBody) {
+        try {
+            return readContent(new StringReader(responseBody)).trim();
+        } catch (IOException e) {
+            throw new IllegalStateException("Bad LLM response: " + e.getMessage(), e);
+        }
+    }
+
+    /** choices[0].delta.content из SSE-чанка; null, если в чанке нет текста. */
+    static String readDelta(String data) throws IOException {
+        JsonReader r = new JsonReader(new StringReader(data));
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            if (name.equals("choices")) {
+                r.beginArray();
+                if (!r.hasNext()) return null;
+                return readContentOf(r, "delta", false);
+            } else if (name.equals("error")) {
+                throw new IllegalStateException("OpenRouter stream error: " + JsonParser.parseReader(r));
+            } else {
+                r.skipValue();
+            }
+        }
+        return null;
+    }
+
+    private static String readChoiceField(JsonReader r, String field) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            if (name.equals("choices")) {
+                r.beginArray();
+                if (!r.hasNext()) throw new IllegalStateException("LLM response has empty choices");
+                return readContentOf(r, field, true);
+            } else if (name.equals("error")) {
+                throw new IllegalStateException("LLM error: " + JsonParser.parseReader(r));
+            } else {
+                r.skipValue();
+            }
+        }
+        throw new IllegalStateException("LLM response has no choices");
+    }
+
+    // Курсор стоит на choices[0]; выходим сразу, как только прочитали content
+    private static String readContentOf(JsonReader r, String field, boolean required) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            if (!r.nextName().equals(field) || r.peek() != JsonToken.BEGIN_OBJECT) {
+                r.skipValue();
+                continue;
+            }
+            r.beginObject();
+            while (r.hasNext()) {
+                if (!r.nextName().equals("content")) {
+                    r.skipValue();
+                    continue;
+                }
+                if (r.peek() == JsonToken.NULL) {
+                    r.nextNull();
+                    return required ? "" : null;
+                }
+                return r.nextString();
+            }
+            r.endObject();
+        }
+        if (required) throw new IllegalStateException("LLM response has no choices[0]." + field + ".content");
+        return null;
+    }
+}
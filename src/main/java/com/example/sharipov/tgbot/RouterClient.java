@@ -3,56 +3,691 @@ package com.example.sharipov.tgbot;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Клиент OpenAI-совместимого chat completions API с несколькими эндпоинтами.
+ * llmUrl и apiKey — списки через запятую (ключ один на всех или по ключу на адрес).
+ *
+ * Эндпоинт выбирается по EWMA латентности с поправкой на запросы в полёте, у каждого
+ * свой circuit breaker. Обычный запрос хеджируется: если ответа нет дольше
+ * hedgePercentile недавних латентностей, уходит второй запрос (на другой эндпоинт,
+ * если он есть). Побеждает первый ответ 200, проигравший отменяется.
+ * 429/5xx/сетевые ошибки повторяются с экспоненциальной задержкой (с учётом
+ * Retry-After) в пределах общего requestTimeout. Потоковый запрос не хеджируется
+ * и повторяется только до первого полученного куска.
+ *
+ * Обычный запрос асинхронный (chatAsync/chatContentAsync): ни один поток не ждёт ответа,
+ * cancel() у возвращённого future обрывает попытки в полёте и отменяет повторы.
+ * Блокирующие chat/chatContent — ожидание того же future. Соединения — HTTP/2, если
+ * эндпоинт его поддерживает (по TLS через ALPN), иначе HTTP/1.1; ответы принимаются в gzip.
+ */
 public class RouterClient {
 
+    /** hedgePercentile ≤ 0 — без хеджирования. maxAttempts — попыток всего, включая первую. */
+    public record Options(double hedgePercentile,
+                          Duration minHedgeDelay,
+                          int maxAttempts,
+                          Duration backoffBase,
+                          Duration maxBackoff,
+                          int breakerFailures,
+                          Duration breakerOpen) {
+
+        public static Options defaults() {
+            return new Options(0.95, Duration.ofMillis(500), 3,
+                    Duration.ofMillis(250), Duration.ofSeconds(5), 5, Duration.ofSeconds(30));
+        }
+    }
+
     private static final Gson GSON = new Gson();
 
+    // Хеджирование включается после стольких успешных замеров
+    private static final int MIN_SAMPLES = 20;
+
+    // Content-Encoding: gzip — распаковка при получении тела, остальное как есть
+    private static final HttpResponse.BodyHandler<byte[]> BODY = info ->
+            info.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent()
+                    ? HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), RouterClient::gunzip)
+                    : HttpResponse.BodySubscribers.ofByteArray();
+
     private final HttpClient httpClient;
-    private final String llmUrl;
-    private final String apiKey;
+    // Здесь же выполняются отложенные шаги запроса: хедж, повтор, дедлайн
+    private final Executor executor;
+    private final List<LlmEndpoint> endpoints;
     private final String referer;
     private final String title;
+    private final Options options;
+    private final LatencyWindow latencies = new LatencyWindow(256);
+    private volatile ScheduledExecutorService keepAlive; // null — пинги выключены
+
+    private record Attempt(LlmEndpoint endpoint, long startNanos, CompletableFuture<HttpResponse<byte[]>> future) {}
+
+    /** Итог одной гонки: ответ (200 или последний отказ) либо сетевая ошибка. */
+    private record Outcome(LlmEndpoint endpoint, HttpResponse<byte[]> response, Exception error) {
+        boolean ok() {
+            return response != null && response.statusCode() == 200;
+        }
+
+        boolean retryable() {
+            return error != null || isRetryableStatus(response.statusCode());
+        }
+    }
 
     public RouterClient(String llmUrl, String apiKey, Duration connectTimeout, String referer, String title) {
-        this.llmUrl = llmUrl;
-        this.apiKey = apiKey;
+        this(llmUrl, apiKey, connectTimeout, referer, title, Options.defaults());
+    }
+
+    public RouterClient(String llmUrl, String apiKey, Duration connectTimeout, String referer, String title, Options options) {
+        this(llmUrl, apiKey, connectTimeout, referer, title, options, null);
+    }
+
+    /** executor — потоки HTTP-клиента и продолжений запросов; null — встроенный пул HttpClient. */
+    public RouterClient(String llmUrl, String apiKey, Duration connectTimeout, String referer, String title,
+                        Options options, Executor executor) {
         this.referer = referer;
         this.title = title;
+        this.options = options;
 
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(connectTimeout)
-                .build();
+        List<String> urls = splitList(llmUrl);
+        List<String> keys = splitList(apiKey);
+        if (urls.isEmpty()) throw new IllegalArgumentException("llmUrl is empty");
+        if (keys.size() > 1 && keys.size() != urls.size()) {
+            throw new IllegalArgumentException("apiKey: expected 1 or " + urls.size() + " keys, got " + keys.size());
+        }
+
+        List<LlmEndpoint> list = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            String key = keys.isEmpty() ? "" : keys.get(keys.size() == 1 ? 0 : i);
+            list.add(new LlmEndpoint(URI.create(urls.get(i)), key,
+                    options.breakerFailures(), options.breakerOpen().toNanos(), 1000));
+        }
+        this.endpoints = List.copyOf(list);
+
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout);
+        if (executor != null) builder.executor(executor);
+        this.httpClient = builder.build();
+        this.executor = executor != null ? executor : ForkJoinPool.commonPool();
+
+        Log.info("LLM_ROUTE", "endpoints={} hedgePercentile={} maxAttempts={} executor={}",
+                endpoints, options.hedgePercentile(), options.maxAttempts(), executor != null ? "custom" : "default");
     }
 
     public String chat(JsonObject requestJson, Duration requestTimeout) throws Exception {
-        Instant t0 = Instant.now();
+        return await(chatAsync(requestJson, requestTimeout));
+    }
+
+    /**
+     * Готовое тело запроса (см. ChatRequestEncoder) → choices[0].message.content.
+     * Ответ разбирается потоково из байтов тела, без промежуточной строки.
+     */
+    public String chatContent(byte[] body, Duration requestTimeout) throws Exception {
+        return await(chatContentAsync(body, requestTimeout));
+    }
+
+    /** Тело ответа строкой; cancel(true) обрывает запрос. */
+    public CompletableFuture<String> chatAsync(JsonObject requestJson, Duration requestTimeout) {
+        return map(exchangeAsync(GSON.toJson(requestJson).getBytes(StandardCharsets.UTF_8), requestTimeout),
+                resp -> new String(resp.body(), StandardCharsets.UTF_8));
+    }
+
+    /** Асинхронный chatContent; cancel(true) обрывает попытки в полёте и отменяет повторы. */
+    public CompletableFuture<String> chatContentAsync(byte[] body, Duration requestTimeout) {
+        return map(exchangeAsync(body, requestTimeout), resp -> {
+            try {
+                return ResponseParser.readContent(
+                        new InputStreamReader(new ByteArrayInputStream(resp.body()), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // В отличие от thenApply, отмена результата доходит до исходного future
+    private static <T, R> CompletableFuture<R> map(CompletableFuture<T> source, Function<T, R> fn) {
+        CompletableFuture<R> out = new CompletableFuture<>();
+        source.whenComplete((v, e) -> {
+            if (e != null) {
+                out.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            try {
+                out.complete(fn.apply(v));
+            } catch (Exception ex) {
+                out.completeExceptionally(ex);
+            }
+        });
+        out.whenComplete((v, e) -> {
+            if (out.isCancelled()) source.cancel(true);
+        });
+        return out;
+    }
+
+    // Прерывание ждущего потока отменяет запрос
+    private static <T> T await(CompletableFuture<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception ex) throw ex;
+            throw e;
+        }
+    }
+
+    private static byte[] gunzip(byte[] gz) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------- обычный запрос: гонка + повторы ----------
+
+    private CompletableFuture<HttpResponse<byte[]>> exchangeAsync(byte[] body, Duration requestTimeout) {
+        Call call = new Call(body, System.nanoTime() + requestTimeout.toNanos());
+        call.nextAttempt();
+        return call.result;
+    }
+
+    /**
+     * Один обычный запрос: попытки по очереди, в каждой — гонка основного и хедж-запроса.
+     * Переходы — по завершению HTTP-future и по таймерам, под монитором Call; race
+     * отличает таймеры уже закончившейся гонки.
+     */
+    private final class Call {
+        final byte[] body;
+        final long deadline;
+        final CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        // Под монитором
+        final List<Attempt> pending = new ArrayList<>(2);
+        int attempt;
+        int race;
+        Attempt first;
+        Outcome last;
+
+        Call(byte[] body, long deadline) {
+            this.body = body;
+            this.deadline = deadline;
+            // Отмена снаружи — обрыв всего, что в полёте
+            result.whenComplete((r, e) -> {
+                if (result.isCancelled()) {
+                    synchronized (this) {
+                        cancelPending();
+                    }
+                }
+            });
+        }
+
+        synchronized void nextAttempt() {
+            if (result.isDone()) return;
+            if (++attempt > options.maxAttempts()) {
+                fail();
+                return;
+            }
+            if (attempt == 1) {
+                startRace();
+                return;
+            }
+            long pause = backoffNanos(attempt, last.response());
+            if (System.nanoTime() + pause >= deadline) {
+                fail();
+                return;
+            }
+            int r = race;
+            later(pause, () -> {
+                synchronized (this) {
+                    if (r != race || result.isDone()) return;
+                    Metrics.LLM_RETRIES.increment();
+                    startRace();
+                }
+            });
+        }
+
+        // Под монитором
+        private void startRace() {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                fail();
+                return;
+            }
+            LlmEndpoint primary = acquire(last == null ? null : last.endpoint());
+            if (primary == null) {
+                result.completeExceptionally(new IllegalStateException("All LLM endpoints unavailable (circuit open): " + endpoints));
+                return;
+            }
+            int r = ++race;
+            first = launch(primary, left);
+
+            long hedgeDelay = hedgeDelayNanos();
+            if (hedgeDelay > 0 && hedgeDelay < left) later(hedgeDelay, () -> hedge(r, primary));
+            later(left, () -> timeout(r));
+        }
+
+        private synchronized void hedge(int r, LlmEndpoint primary) {
+            if (r != race || result.isDone() || pending.size() != 1 || pending.get(0) != first) return;
+            LlmEndpoint second = acquire(primary);
+            if (second == null) return;
+            Metrics.LLM_HEDGES.increment();
+            Log.debug("LLM_ROUTE", "hedge after {}ms: {} -> {}",
+                    (System.nanoTime() - first.startNanos()) / 1_000_000, primary.name, second.name);
+            launch(second, deadline - System.nanoTime());
+        }
+
+        private synchronized void timeout(int r) {
+            if (r != race || result.isDone() || pending.isEmpty()) return;
+            for (Attempt a : pending) a.endpoint().onFailure(System.nanoTime() - a.startNanos());
+            Metrics.LLM_HTTP_ERRORS.increment();
+            cancelPending();
+            result.completeExceptionally(new HttpTimeoutException("LLM request timed out"));
+        }
+
+        // Под монитором
+        private Attempt launch(LlmEndpoint ep, long timeoutNanos) {
+            Attempt a = start(ep, body, timeoutNanos);
+            pending.add(a);
+            a.future().whenComplete((resp, e) -> done(a));
+            return a;
+        }
+
+        private synchronized void done(Attempt a) {
+            // Уже снята: проиграла, отменена или брошена по таймауту
+            if (!pending.remove(a)) return;
+            Outcome o = finish(a);
+            if (o.ok()) {
+                if (a != first) Metrics.LLM_HEDGE_WINS.increment();
+                cancelPending();
+                result.complete(o.response());
+                return;
+            }
+            last = o;
+            if (!pending.isEmpty()) return;
+            if (o.retryable()) nextAttempt();
+            else fail();
+        }
+
+        // Под монитором. Список очищается до cancel: отмена синхронно вызывает done()
+        private void cancelPending() {
+            List<Attempt> dropped = new ArrayList<>(pending);
+            pending.clear();
+            for (Attempt a : dropped) {
+                a.future().cancel(true);
+                a.endpoint().release();
+                a.endpoint().onCancelled();
+            }
+        }
+
+        // Под монитором
+        private void fail() {
+            Exception e;
+            if (last == null) e = new HttpTimeoutException("LLM request budget exhausted");
+            else if (last.error() != null) e = last.error();
+            else e = new RuntimeException("OpenRouter non-200: " + last.response().statusCode()
+                    + " body=" + new String(last.response().body(), StandardCharsets.UTF_8));
+            result.completeExceptionally(e);
+        }
+
+        private void later(long nanos, Runnable task) {
+            CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS, executor).execute(task);
+        }
+    }
+
+    private Attempt start(LlmEndpoint ep, byte[] body, long timeoutNanos) {
+        HttpRequest req = newRequest(ep, HttpRequest.BodyPublishers.ofByteArray(body), Duration.ofNanos(Math.max(1, timeoutNanos)))
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip")
+                .build();
+        return new Attempt(ep, System.nanoTime(), httpClient.sendAsync(req, BODY));
+    }
+
+    private Outcome finish(Attempt a) {
+        LlmEndpoint ep = a.endpoint();
+        long took = System.nanoTime() - a.startNanos();
+        ep.release();
+
+        HttpResponse<byte[]> resp;
+        try {
+            resp = a.future().join();
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            ep.onFailure(took);
+            Metrics.LLM_HTTP_ERRORS.increment();
+            Log.warn("LLM_HTTP", "endpoint={} failed tookMs={}: {}", ep.name, took / 1_000_000, cause.toString());
+            return new Outcome(ep, null, cause instanceof Exception ex ? ex : new RuntimeException(cause));
+        }
+
+        int status = resp.statusCode();
+        Metrics.llmStatus(status);
+        Metrics.LLM_HTTP.record(took);
+        if (status == 200) {
+            ep.onSuccess(took);
+            latencies.record(took);
+            Log.info("LLM_HTTP", "endpoint={} status=200 {} tookMs={} bodyLen={}", ep.name, resp.version(), took / 1_000_000, resp.body().length);
+        } else {
+            // Остальные 4xx — проблема запроса, а не эндпоинта: он ответил, значит жив
+            if (isRetryableStatus(status)) ep.onFailure(took);
+            else ep.onSuccess(took);
+            Log.warn("LLM_HTTP", "endpoint={} status={} tookMs={} bodyLen={}", ep.name, status, took / 1_000_000, resp.body().length);
+        }
+        return new Outcome(ep, resp, null);
+    }
+
+    // ---------- поток ----------
+
+    /**
+     * Запрос со "stream": true. Каждый непустой кусок delta.content из SSE-строк
+     * "data: {...}" отдаётся в onDelta по мере прихода; возвращается полный текст.
+     */
+    public String chatStream(byte[] body, Duration requestTimeout, Consumer<String> onDelta) throws Exception {
+        long deadline = System.nanoTime() + requestTimeout.toNanos();
+        LlmEndpoint lastFailed = null;
+        Exception last = null;
+        HttpResponse<?> lastResponse = null;
+
+        for (int attempt = 1; attempt <= options.maxAttempts(); attempt++) {
+            if (attempt > 1) {
+                long pause = backoffNanos(attempt, lastResponse);
+                if (System.nanoTime() + pause >= deadline) break;
+                TimeUnit.NANOSECONDS.sleep(pause);
+                Metrics.LLM_RETRIES.increment();
+            }
+            long left = deadline - System.nanoTime();
+            if (left <= 0) break;
+
+            LlmEndpoint ep = acquire(lastFailed);
+            if (ep == null) {
+                throw new IllegalStateException("All LLM endpoints unavailable (circuit open): " + endpoints);
+            }
+            lastFailed = ep;
+            lastResponse = null;
+
+            long t0 = System.nanoTime();
+            try {
+                HttpRequest httpReq = newRequest(ep, HttpRequest.BodyPublishers.ofByteArray(body), Duration.ofNanos(left))
+                        .header("Accept", "text/event-stream")
+                        .build();
 
-        HttpRequest httpReq = HttpRequest.newBuilder()
-                .uri(URI.create(llmUrl))
+                HttpResponse<Stream<String>> resp;
+                try {
+                    resp = httpClient.send(httpReq, HttpResponse.BodyHandlers.ofLines());
+                } catch (IOException e) {
+                    Metrics.LLM_HTTP_ERRORS.increment();
+                    ep.onFailure(System.nanoTime() - t0);
+                    Log.warn("LLM_HTTP", "endpoint={} stream failed: {}", ep.name, e.toString());
+                    last = e;
+                    continue;
+                }
+
+                int status = resp.statusCode();
+                Metrics.llmStatus(status);
+                try (Stream<String> lines = resp.body()) {
+                    if (status != 200) {
+                        StringBuilder err = new StringBuilder();
+                        lines.forEach(l -> err.append(l).append('\n'));
+                        long took = System.nanoTime() - t0;
+                        Log.warn("LLM_HTTP", "endpoint={} stream status={} tookMs={}", ep.name, status, took / 1_000_000);
+                        last = new RuntimeException("OpenRouter non-200: " + status + " body=" + err);
+                        lastResponse = resp;
+                        if (!isRetryableStatus(status)) {
+                            ep.onSuccess(took);
+                            break;
+                        }
+                        ep.onFailure(took);
+                        continue;
+                    }
+
+                    StringBuilder out = new StringBuilder();
+                    int[] chunks = {0};
+                    long[] firstChunk = {0};
+                    try {
+                        readSse(lines, delta -> {
+                            if (firstChunk[0] == 0) firstChunk[0] = System.nanoTime();
+                            out.append(delta);
+                            chunks[0]++;
+                            onDelta.accept(delta);
+                        });
+                    } catch (IOException e) {
+                        ep.onFailure(System.nanoTime() - t0);
+                        // Обрыв до первого куска можно повторить, после — уже нет
+                        if (chunks[0] > 0) throw e;
+                        last = e;
+                        continue;
+                    }
+
+                    long took = System.nanoTime() - t0;
+                    // Для выбора эндпоинта важно время до первого куска, а не длина ответа
+                    ep.onSuccess((firstChunk[0] == 0 ? System.nanoTime() : firstChunk[0]) - t0);
+                    Metrics.LLM_HTTP.record(took);
+                    Log.info("LLM_HTTP", "endpoint={} stream status=200 tookMs={} chunks={} outLen={}",
+                            ep.name, took / 1_000_000, chunks[0], out.length());
+                    return out.toString();
+                }
+            } finally {
+                ep.release();
+                // Отмена, ошибка в onDelta и прочие выходы без вердикта не должны держать пробу HALF_OPEN
+                ep.onCancelled();
+            }
+        }
+
+        if (last != null) throw last;
+        throw new HttpTimeoutException("LLM stream budget exhausted");
+    }
+
+    private static void readSse(Stream<String> lines, Consumer<String> onDelta) throws IOException {
+        Iterator<String> it = lines.iterator();
+        while (true) {
+            String line;
+            try {
+                if (!it.hasNext()) break;
+                line = it.next();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            // Пустые строки разделяют события, ":" — комментарии/keep-alive
+            if (!line.startsWith("data:")) continue;
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) break;
+
+            String delta = ResponseParser.readDelta(data);
+            if (delta == null || delta.isEmpty()) continue;
+            onDelta.accept(delta);
+        }
+    }
+
+    // ---------- прогрев и keep-alive ----------
+
+    /**
+     * Заранее открывает соединения со всеми эндпоинтами (DNS, TCP, TLS, выбор версии
+     * HTTP), чтобы за них не платил первый запрос к LLM. Шлёт HEAD без ключа: любой
+     * HTTP-ответ значит, что соединение уже в пуле клиента. Возвращает число ответивших.
+     */
+    public int warmUp(Duration timeout) throws InterruptedException {
+        List<CompletableFuture<HttpResponse<Void>>> pings = new ArrayList<>(endpoints.size());
+        for (LlmEndpoint ep : endpoints) pings.add(ping(ep, timeout));
+
+        int ok = 0;
+        for (CompletableFuture<HttpResponse<Void>> f : pings) {
+            try {
+                f.get();
+                ok++;
+            } catch (ExecutionException e) {
+                // Уже залогировано в ping
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Раз в interval пингует эндпоинты, простоявшие дольше interval: прокси и
+     * балансировщики закрывают простаивающие соединения раньше, чем пул клиента.
+     */
+    public void startKeepAlive(Duration interval) {
+        if (interval.isZero() || interval.isNegative() || keepAlive != null) return;
+        long nanos = interval.toNanos();
+        ScheduledExecutorService ex = Executors.newSingleThreadScheduledExecutor(UpdateDispatcher.daemonFactory("llm-keepalive"));
+        ex.scheduleWithFixedDelay(() -> {
+            for (LlmEndpoint ep : endpoints) {
+                if (ep.idleNanos() >= nanos && ep.isAvailable()) ping(ep, interval);
+            }
+        }, nanos, nanos, TimeUnit.NANOSECONDS);
+        keepAlive = ex;
+        Log.info("LLM_ROUTE", "keep-alive every {}s", interval.toSeconds());
+    }
+
+    public void close() {
+        ScheduledExecutorService ex = keepAlive;
+        if (ex != null) ex.shutdownNow();
+    }
+
+    // Не влияет на EWMA и breaker: латентность HEAD ничего не говорит о генерации
+    private CompletableFuture<HttpResponse<Void>> ping(LlmEndpoint ep, Duration timeout) {
+        HttpRequest req = HttpRequest.newBuilder(ep.uri)
+                .timeout(timeout)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        long t0 = System.nanoTime();
+        return httpClient.sendAsync(req, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((resp, e) -> {
+                    long tookMs = (System.nanoTime() - t0) / 1_000_000;
+                    if (e != null) {
+                        Log.warn("LLM_HTTP", "endpoint={} ping failed tookMs={}: {}", ep.name, tookMs,
+                                (e.getCause() != null ? e.getCause() : e).toString());
+                        return;
+                    }
+                    ep.touch();
+                    Log.debug("LLM_HTTP", "endpoint={} ping status={} version={} tookMs={}",
+                            ep.name, resp.statusCode(), resp.version(), tookMs);
+                });
+    }
+
+    // ---------- выбор эндпоинта, задержки ----------
+
+    /**
+     * Лучший доступный эндпоинт с захваченным слотом. avoid берётся, только если
+     * других нет (единственный эндпоинт или остальные с открытым breaker'ом); null — никого.
+     */
+    private LlmEndpoint acquire(LlmEndpoint avoid) {
+        List<LlmEndpoint> candidates = new ArrayList<>(endpoints.size());
+        for (LlmEndpoint ep : endpoints) {
+            if (ep != avoid && ep.isAvailable()) candidates.add(ep);
+        }
+        candidates.sort(Comparator.comparingDouble(LlmEndpoint::score));
+        for (LlmEndpoint ep : candidates) {
+            if (ep.tryAcquire()) return ep;
+        }
+        if (avoid != null && avoid.isAvailable() && avoid.tryAcquire()) return avoid;
+        return null;
+    }
+
+    private long hedgeDelayNanos() {
+        if (options.hedgePercentile() <= 0) return -1;
+        long p = latencies.percentile(options.hedgePercentile(), MIN_SAMPLES);
+        if (p < 0) return -1;
+        return Math.max(options.minHedgeDelay().toNanos(), p);
+    }
+
+    private long backoffNanos(int attempt, HttpResponse<?> lastResponse) {
+        long base = options.backoffBase().toNanos() << Math.min(20, attempt - 2);
+        long capped = Math.min(options.maxBackoff().toNanos(), base);
+        // Джиттер в [capped/2, capped], чтобы повторы разных чатов не шли залпом
+        long pause = capped / 2 + ThreadLocalRandom.current().nextLong(capped / 2 + 1);
+
+        if (lastResponse != null) {
+            long retryAfter = lastResponse.headers().firstValueAsLong("Retry-After").orElse(-1);
+            if (retryAfter > 0) pause = Math.max(pause, TimeUnit.SECONDS.toNanos(Math.min(retryAfter, 30)));
+        }
+        return pause;
+    }
+
+    private static boolean isRetryableStatus(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    private HttpRequest.Builder newRequest(LlmEndpoint ep, HttpRequest.BodyPublisher body, Duration requestTimeout) {
+        return HttpRequest.newBuilder()
+                .uri(ep.uri)
                 .timeout(requestTimeout)
                 .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + apiKey)
+                .header("Authorization", "Bearer " + ep.apiKey)
                 .header("HTTP-Referer", referer)
                 .header("X-Title", title)
-                .POST(HttpRequest.BodyPublishers.ofString(GSON.toJson(requestJson)))
-                .build();
+                .POST(body);
+    }
 
-        HttpResponse<String> resp = httpClient.send(httpReq, HttpResponse.BodyHandlers.ofString());
+    public String stats() {
+        long hedge = hedgeDelayNanos();
+        return "endpoints=" + endpoints + " hedgeDelayMs=" + (hedge < 0 ? "off" : String.valueOf(hedge / 1_000_000));
+    }
+
+    private static List<String> splitList(String s) {
+        if (s == null) return List.of();
+        return Arrays.stream(s.split(","))
+                .map(String::trim)
+                .filter(x -> !x.isEmpty())
+                .toList();
+    }
+
+    /** Последние size латентностей успешных ответов; перцентиль пересчитывается раз в 16 замеров. */
+    private static final class LatencyWindow {
+        private final long[] ring;
+        private int next;
+        private int count;
+        private int sinceRecompute;
+        private double cachedP = -1;
+        private long cachedValue = -1;
 
-        long tookMs = Duration.between(t0, Instant.now()).toMillis();
-        System.out.printf("%s [LLM_HTTP] status=%d tookMs=%d bodyLen=%d%n",
-                Instant.now(), resp.statusCode(), tookMs, resp.body() != null ? resp.body().length() : -1);
+        LatencyWindow(int size) {
+            this.ring = new long[size];
+        }
+
+        synchronized void record(long nanos) {
+            ring[next] = nanos;
+            next = (next + 1) % ring.length;
+            if (count < ring.length) count++;
+            sinceRecompute++;
+        }
 
-        if (resp.statusCode() != 200) {
-            throw new RuntimeException("OpenRouter non-200: " + resp.statusCode() + " body=" + resp.body());
+        synchronized long percentile(double p, int minSamples) {
+            if (count < minSamples) return -1;
+            if (p != cachedP || sinceRecompute >= 16 || cachedValue < 0) {
+                long[] sorted = Arrays.copyOf(ring, count);
+                Arrays.sort(sorted);
+                cachedValue = sorted[Math.max(0, Math.min(count - 1, (int) Math.ceil(p * count) - 1))];
+                cachedP = p;
+                sinceRecompute = 0;
+            }
+            return cachedValue;
         }
-        return resp.body();
     }
 }
@@ -0,0 +1,883 @@
+package com.example.sharipov.tgbot;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * История как журнал: записи дописываются в конец сегмента фиксированного размера,
+ * отображённого в память, заполненный сегмент сменяется следующим. Для каждого чата в
+ * памяти — индекс его живых сообщений (сегмент и смещение по возрастанию индекса), так что
+ * последние N читаются прямо из отображения, без поиска по файлу. Обрезка пишет порог
+ * (FLOOR), сообщения ниже него мертвы; место возвращает компакция: живые записи сегмента,
+ * где их меньше половины, копируются в конец журнала, а файл удаляется.
+ *
+ * Запись: [длина тела][CRC32C тела][тип][эпоха][chatId][индекс][время][роль][текст].
+ * Пачка — записи с флагом CONTINUES и последняя без него: при восстановлении недописанная
+ * пачка отбрасывается целиком. Эпоха растёт с каждым открытием — хвост прошлого запуска,
+ * оставшийся за новыми записями после сбоя, к ним не примешивается. Записанное переживает
+ * падение процесса сразу, сбой ОС — после checkpoint() (force).
+ */
+public class SegmentLogStore implements HistoryStore {
+
+    private static final int HEADER = 8;
+    // тип(1) эпоха(4) chatId(8) индекс(4) время(8) длина роли(1)
+    private static final int FIXED = 26;
+    private static final byte MESSAGE = 1, SUMMARY = 2, FLOOR = 3, CLEAR = 4;
+    private static final int CONTINUES = 0x80;
+    // Сегмент компактируется, когда живых записей в нём меньше этой доли
+    private static final double COMPACT_BELOW = 0.5;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final String SUFFIX = ".seg";
+    private static final byte[] ZEROS = new byte[8192];
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buf;
+        final int capacity;
+        // Под writeLock
+        int writePos;
+        int forcedPos;
+        long liveBytes;
+
+        Segment(int id, Path path, MappedByteBuffer buf) {
+            this.id = id;
+            this.path = path;
+            this.buf = buf;
+            this.capacity = buf.capacity();
+        }
+
+        int recordSize(int off) {
+            return HEADER + buf.getInt(off);
+        }
+    }
+
+    // Живые сообщения чата по возрастанию индекса: элементы [head, head + size) массивов.
+    // Меняется под writeLock и монитором самого ChatLog, читается под монитором
+    private static final class ChatLog {
+        static final int[] NO_INTS = new int[0];
+        static final Segment[] NO_SEGMENTS = new Segment[0];
+        static final long[] NO_LONGS = new long[0];
+
+        int[] idx = new int[8];
+        Segment[] seg = new Segment[8];
+        int[] off = new int[8];
+        long[] created = new long[8];
+        int head, size;
+        int next = 1;
+        int floor = 1;
+        Segment floorSeg;
+        int floorOff;
+        Segment summarySeg;
+        int summaryOff;
+        int summaryUpto;
+
+        // Позиция индекса в массивах или -(точка вставки) - 1
+        int find(int index) {
+            int lo = head, hi = head + size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (idx[mid] < index) lo = mid + 1;
+                else if (idx[mid] > index) hi = mid - 1;
+                else return mid;
+            }
+            return -lo - 1;
+        }
+
+        // Новое сообщение; при восстановлении после компакции индексы приходят не по порядку
+        void put(int index, Segment s, int o, long createdAt) {
+            int at = find(index);
+            if (at >= 0) {
+                s.liveBytes += s.recordSize(o);
+                seg[at].liveBytes -= seg[at].recordSize(off[at]);
+                seg[at] = s;
+                off[at] = o;
+                return;
+            }
+            at = -at - 1;
+            if (head + size == idx.length) {
+                grow();
+                at = -find(index) - 1;
+            }
+            int tail = head + size - at;
+            System.arraycopy(idx, at, idx, at + 1, tail);
+            System.arraycopy(seg, at, seg, at + 1, tail);
+            System.arraycopy(off, at, off, at + 1, tail);
+            System.arraycopy(created, at, created, at + 1, tail);
+            idx[at] = index;
+            seg[at] = s;
+            off[at] = o;
+            created[at] = createdAt;
+            size++;
+            s.liveBytes += s.recordSize(o);
+        }
+
+        // Поднимает порог; сколько сообщений удалено
+        int raiseFloor(int minIndexToKeep) {
+            int n = 0;
+            while (n < size && idx[head + n] < minIndexToKeep) {
+                seg[head + n].liveBytes -= seg[head + n].recordSize(off[head + n]);
+                seg[head + n] = null;
+                n++;
+            }
+            head += n;
+            size -= n;
+            floor = Math.max(floor, minIndexToKeep);
+            return n;
+        }
+
+        // Пустой чат отдаёт массивы; индекс и порог остаются
+        void release() {
+            idx = NO_INTS;
+            seg = NO_SEGMENTS;
+            off = NO_INTS;
+            created = NO_LONGS;
+            head = 0;
+        }
+
+        void restore() {
+            if (idx.length > 0) return;
+            idx = new int[8];
+            seg = new Segment[8];
+            off = new int[8];
+            created = new long[8];
+        }
+
+        private void grow() {
+            int cap = size * 2 > idx.length ? idx.length * 2 : idx.length;
+            int[] i2 = new int[cap];
+            Segment[] s2 = new Segment[cap];
+            int[] o2 = new int[cap];
+            long[] c2 = new long[cap];
+            System.arraycopy(idx, head, i2, 0, size);
+            System.arraycopy(seg, head, s2, 0, size);
+            System.arraycopy(off, head, o2, 0, size);
+            System.arraycopy(created, head, c2, 0, size);
+            idx = i2;
+            seg = s2;
+            off = o2;
+            created = c2;
+            head = 0;
+        }
+    }
+
+    // Запись журнала: до записи — что писать, после — где она лежит
+    private static final class Rec {
+        final byte type;
+        final ChatLog log;
+        final long chatId;
+        final int index;
+        final long createdAt;
+        final String role;
+        final String content;
+        Segment seg;
+        int off;
+
+        Rec(byte type, ChatLog log, long chatId, int index, long createdAt, String role, String content) {
+            this.type = type;
+            this.log = log;
+            this.chatId = chatId;
+            this.index = index;
+            this.createdAt = createdAt;
+            this.role = role;
+            this.content = content;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+
+    private final Object writeLock = new Object();
+    // Под writeLock
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private int epoch;
+    private byte[] scratch = new byte[4096];
+    private final CRC32C crc = new CRC32C();
+
+    // По возрастанию id — в том же порядке обходит чаты pruneToLast
+    private final ConcurrentSkipListMap<Long, ChatLog> chats = new ConcurrentSkipListMap<>();
+    // Чаты, у которых обрезка не оставила ни сообщений, ни сводки: ChatLog без массивов.
+    // Хранит следующий индекс (не раздавать повторно) и запись порога — без неё
+    // после перезапуска ожили бы удалённые сообщения из ещё не сжатых сегментов
+    private final ConcurrentHashMap<Long, ChatLog> retired = new ConcurrentHashMap<>();
+    private volatile long unforcedBytes;
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    public SegmentLogStore(Path dir, long segmentBytes) {
+        if (segmentBytes < 64 * 1024 || segmentBytes > MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Segment size must be 64 KB..1 GB: " + segmentBytes);
+        }
+        this.dir = dir;
+        this.segmentBytes = (int) segmentBytes;
+    }
+
+    // ---------- открытие и восстановление ----------
+
+    @Override
+    public void init() throws SQLException {
+        long t0 = System.nanoTime();
+        synchronized (writeLock) {
+            try {
+                Files.createDirectories(dir);
+                List<Integer> ids = new ArrayList<>();
+                try (Stream<Path> files = Files.list(dir)) {
+                    files.map(p -> p.getFileName().toString())
+                            .filter(n -> n.endsWith(SUFFIX))
+                            .forEach(n -> ids.add(Integer.parseInt(n.substring(0, n.length() - SUFFIX.length()))));
+                }
+                ids.sort(null);
+                for (int id : ids) segments.put(id, map(id, false));
+            } catch (IOException | NumberFormatException e) {
+                throw new SQLException("Cannot open history log in " + dir + ": " + e.getMessage(), e);
+            }
+
+            List<Segment> damaged = new ArrayList<>();
+            int torn = recover(damaged);
+            try {
+                active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+            } catch (IOException e) {
+                throw new SQLException("Cannot create history segment: " + e.getMessage(), e);
+            }
+            // Запись продолжится с места повреждения: остаток стирается, чтобы старые байты не читались как записи
+            if (damaged.contains(active)) {
+                zero(active, active.writePos, active.capacity);
+                active.buf.force();
+            }
+            long messages = 0;
+            for (ChatLog log : chats.values()) messages += log.size;
+            Log.info("DB", "History log opened. dir={} segments={} chats={} messages={} epoch={} tornBatches={} damagedSegments={} tookMs={}",
+                    dir, segments.size(), chats.size(), messages, epoch, torn, damaged.size(), (System.nanoTime() - t0) / 1_000_000);
+        }
+    }
+
+    // Проигрывает все сегменты по порядку, повреждённые складывает в damaged; сколько пачек отброшено
+    private int recover(List<Segment> damaged) {
+        int lastEpoch = 0, torn = 0;
+        List<Rec> pending = new ArrayList<>();
+        for (Segment s : segments.values()) {
+            int pos = 0;
+            boolean clean = true;
+            while (pos + HEADER <= s.capacity) {
+                int len = s.buf.getInt(pos);
+                if (len == 0) break;
+                if (len < FIXED || len > s.capacity - pos - HEADER || !crcMatches(s, pos, len)) {
+                    clean = false;
+                    break;
+                }
+                int body = pos + HEADER;
+                int type = s.buf.get(body) & 0xFF;
+                int recEpoch = s.buf.getInt(body + 1);
+                // Запись старше предыдущей — хвост прошлого запуска за новыми записями
+                if (recEpoch < lastEpoch) {
+                    clean = false;
+                    break;
+                }
+                if (!pending.isEmpty() && recEpoch != lastEpoch) {
+                    pending.clear();
+                    torn++;
+                }
+                lastEpoch = recEpoch;
+
+                Rec r = new Rec((byte) (type & ~CONTINUES), null, s.buf.getLong(body + 5), s.buf.getInt(body + 13),
+                        s.buf.getLong(body + 17), null, null);
+                r.seg = s;
+                r.off = pos;
+                pending.add(r);
+                if ((type & CONTINUES) == 0) {
+                    for (Rec p : pending) replay(p);
+                    pending.clear();
+                }
+                pos = body + len;
+            }
+            s.writePos = pos;
+            s.forcedPos = pos;
+            if (!clean) {
+                damaged.add(s);
+                Log.warn("DB", "History segment {} is damaged at offset {}: later records of this segment are ignored", s.path, pos);
+                if (!pending.isEmpty()) {
+                    pending.clear();
+                    torn++;
+                }
+            }
+        }
+        if (!pending.isEmpty()) torn++;
+        epoch = lastEpoch + 1;
+
+        // Живой объём сегментов — по итоговому индексу
+        for (Segment s : segments.values()) s.liveBytes = 0;
+        for (ChatLog log : chats.values()) {
+            for (int i = log.head; i < log.head + log.size; i++) log.seg[i].liveBytes += log.seg[i].recordSize(log.off[i]);
+            if (log.floorSeg != null) log.floorSeg.liveBytes += log.floorSeg.recordSize(log.floorOff);
+            if (log.summarySeg != null) log.summarySeg.liveBytes += log.summarySeg.recordSize(log.summaryOff);
+        }
+        // Чаты, целиком обрезанные до перезапуска, сразу в retired
+        for (Map.Entry<Long, ChatLog> e : chats.entrySet()) {
+            ChatLog log = e.getValue();
+            if (log.size > 0 || log.summarySeg != null) continue;
+            log.release();
+            retired.put(e.getKey(), log);
+            chats.remove(e.getKey());
+        }
+        return torn;
+    }
+
+    private void replay(Rec r) {
+        if (r.type == CLEAR) {
+            chats.clear();
+            return;
+        }
+        ChatLog log = chats.computeIfAbsent(r.chatId, id -> new ChatLog());
+        switch (r.type) {
+            case MESSAGE -> {
+                log.next = Math.max(log.next, r.index + 1);
+                if (r.index >= log.floor) log.put(r.index, r.seg, r.off, r.createdAt);
+            }
+            case FLOOR -> {
+                if (r.index >= log.floor) {
+                    log.raiseFloor(r.index);
+                    log.floorSeg = r.seg;
+                    log.floorOff = r.off;
+                }
+                log.next = Math.max(log.next, r.index);
+            }
+            case SUMMARY -> {
+                log.summarySeg = r.seg;
+                log.summaryOff = r.off;
+                log.summaryUpto = r.index;
+                log.next = Math.max(log.next, r.index + 1);
+            }
+            default -> Log.warn("DB", "Unknown history record type={} in {}", r.type, r.seg.path);
+        }
+    }
+
+    private boolean crcMatches(Segment s, int pos, int len) {
+        crc.reset();
+        crc.update(s.buf.slice(pos + HEADER, len));
+        return (int) crc.getValue() == s.buf.getInt(pos + 4);
+    }
+
+    // ---------- запись ----------
+
+    @Override
+    public String warmUp(int maxChats) {
+        int n = 0;
+        long messages = 0, lastBytes = 0;
+        for (ChatLog log : chats.values()) {
+            if (n == maxChats) break;
+            n++;
+            synchronized (log) {
+                messages += log.size;
+                // Страница последнего сообщения — в память: с неё начинается любое чтение чата
+                if (log.size > 0) lastBytes += log.seg[log.head + log.size - 1].recordSize(log.off[log.head + log.size - 1]);
+            }
+        }
+        long live = 0;
+        synchronized (writeLock) {
+            for (Segment s : segments.values()) live += s.liveBytes;
+        }
+        return "chats=" + n + " messages=" + messages + " segments=" + segments.size()
+                + " liveMb=" + (live >> 20) + " lastMessagesKb=" + (lastBytes >> 10);
+    }
+
+    @Override
+    public void clearAll() throws SQLException {
+        synchronized (writeLock) {
+            try {
+                // Сначала CLEAR в новом сегменте: если удаление старых прервётся, восстановление их всё равно отбросит
+                Segment clearSeg = newSegment(active.id + 1);
+                active = clearSeg;
+                write(new Rec(CLEAR, null, 0, 0, 0, "", ""), false);
+                forceAll();
+                for (Segment s : new ArrayList<>(segments.headMap(clearSeg.id).values())) drop(s);
+            } catch (IOException e) {
+                throw new SQLException("Cannot clear history log: " + e.getMessage(), e);
+            }
+            chats.clear();
+            retired.clear();
+            Log.info("DB", "Cleared all history log segments");
+        }
+    }
+
+    @Override
+    public void append(long chatId, String role, String content) throws SQLException {
+        writeBatch(List.of(WriteOp.append(chatId, role, content)));
+    }
+
+    @Override
+    public void writeBatch(List<WriteOp> ops) throws SQLException {
+        if (ops.isEmpty()) return;
+        long now = System.currentTimeMillis() / 1000;
+        synchronized (writeLock) {
+            Map<ChatLog, Integer> next = new HashMap<>();
+            List<Rec> recs = new ArrayList<>(ops.size());
+            for (WriteOp op : ops) {
+                ChatLog log = logFor(op.chatId());
+                int idx = next.getOrDefault(log, log.next);
+                if (op.isAppend()) {
+                    recs.add(new Rec(MESSAGE, log, op.chatId(), idx, now, op.role(), op.content()));
+                    next.put(log, idx + 1);
+                } else {
+                    recs.add(new Rec(FLOOR, log, op.chatId(), Math.max(1, idx - op.keepLast()), now, "", ""));
+                }
+            }
+            commit(recs);
+        }
+    }
+
+    @Override
+    public void trimToLast(long chatId, int keepLastMessages) throws SQLException {
+        writeBatch(List.of(WriteOp.trim(chatId, keepLastMessages)));
+    }
+
+    @Override
+    public void saveSummary(long chatId, Summary summary) throws SQLException {
+        synchronized (writeLock) {
+            ChatLog log = logFor(chatId);
+            commit(List.of(new Rec(SUMMARY, log, chatId, summary.uptoIndex(), System.currentTimeMillis() / 1000, "", summary.text())));
+        }
+    }
+
+    // Под writeLock. Пишет записи одной пачкой и применяет к индексу; сколько сообщений удалено
+    private int commit(List<Rec> recs) throws SQLException {
+        Segment startSeg = active;
+        int startPos = active.writePos;
+        try {
+            for (int i = 0; i < recs.size(); i++) write(recs.get(i), i < recs.size() - 1);
+        } catch (IOException | SQLException e) {
+            rollback(startSeg, startPos);
+            throw e instanceof SQLException se ? se : new SQLException("History log write failed: " + e.getMessage(), e);
+        }
+        lastWriteNanos = System.nanoTime();
+
+        int deleted = 0;
+        for (Rec r : recs) deleted += apply(r);
+        return deleted;
+    }
+
+    // Под writeLock: записи уже в журнале
+    private int apply(Rec r) {
+        ChatLog log = r.log;
+        synchronized (log) {
+            switch (r.type) {
+                case MESSAGE -> {
+                    log.put(r.index, r.seg, r.off, r.createdAt);
+                    log.next = Math.max(log.next, r.index + 1);
+                    return 0;
+                }
+                case FLOOR -> {
+                    if (r.index <= log.floor) return 0; // порог не вырос — запись сразу мертва
+                    int n = log.raiseFloor(r.index);
+                    if (log.floorSeg != null) log.floorSeg.liveBytes -= log.floorSeg.recordSize(log.floorOff);
+                    log.floorSeg = r.seg;
+                    log.floorOff = r.off;
+                    r.seg.liveBytes += r.seg.recordSize(r.off);
+                    return n;
+                }
+                case SUMMARY -> {
+                    if (log.summarySeg != null) log.summarySeg.liveBytes -= log.summarySeg.recordSize(log.summaryOff);
+                    log.summarySeg = r.seg;
+                    log.summaryOff = r.off;
+                    log.summaryUpto = r.index;
+                    r.seg.liveBytes += r.seg.recordSize(r.off);
+                    log.next = Math.max(log.next, r.index + 1);
+                    return 0;
+                }
+                default -> {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    // Под writeLock: дописывает запись в конец журнала, запоминает в r её место
+    private void write(Rec r, boolean more) throws IOException, SQLException {
+        byte[] role = r.role.getBytes(StandardCharsets.UTF_8);
+        byte[] content = r.content.getBytes(StandardCharsets.UTF_8);
+        int len = FIXED + role.length + content.length;
+        if (role.length > 255) throw new SQLException("Role is too long: " + r.role);
+        if (HEADER + len > segmentBytes) throw new SQLException("History record of " + len + " bytes exceeds the segment size");
+
+        if (scratch.length < HEADER + len) scratch = new byte[Math.max(HEADER + len, scratch.length * 2)];
+        ByteBuffer bb = ByteBuffer.wrap(scratch);
+        bb.position(HEADER);
+        bb.put((byte) (r.type | (more ? CONTINUES : 0))).putInt(epoch).putLong(r.chatId).putInt(r.index).putLong(r.createdAt)
+                .put((byte) role.length).put(role).put(content);
+        crc.reset();
+        crc.update(scratch, HEADER, len);
+        bb.putInt(4, (int) crc.getValue());
+
+        if (active.writePos + HEADER + len > active.capacity) active = newSegment(active.id + 1);
+        Segment s = active;
+        int pos = s.writePos;
+        s.buf.put(pos + 4, scratch, 4, 4 + len);
+        // Длина — последней: запись целиком либо видна, либо нет
+        s.buf.putInt(pos, len);
+        s.writePos = pos + HEADER + len;
+        unforcedBytes += HEADER + len;
+        r.seg = s;
+        r.off = pos;
+    }
+
+    // Недописанная пачка стирается, сегменты, созданные под неё, удаляются
+    private void rollback(Segment startSeg, int startPos) {
+        for (Segment s : new ArrayList<>(segments.tailMap(startSeg.id, false).values())) {
+            try {
+                drop(s);
+            } catch (IOException e) {
+                Log.warn("DB", "Cannot delete {} after failed write: {}", s.path, e.getMessage());
+            }
+        }
+        zero(startSeg, startPos, startSeg.writePos);
+        startSeg.writePos = startPos;
+        active = startSeg;
+    }
+
+    private static void zero(Segment s, int from, int to) {
+        for (int p = from; p < to; p += ZEROS.length) s.buf.put(p, ZEROS, 0, Math.min(ZEROS.length, to - p));
+    }
+
+    // ---------- чтение ----------
+
+    @Override
+    public List<HistoryMessage> loadLastMessages(long chatId, int limit) {
+        ChatLog log = chats.get(chatId);
+        if (log == null || limit <= 0) return new ArrayList<>();
+        Segment[] segs;
+        int[] offs;
+        synchronized (log) {
+            int n = Math.min(limit, log.size);
+            int from = log.head + log.size - n;
+            segs = new Segment[n];
+            offs = new int[n];
+            System.arraycopy(log.seg, from, segs, 0, n);
+            System.arraycopy(log.off, from, offs, 0, n);
+        }
+        return decodeAll(segs, offs);
+    }
+
+    @Override
+    public List<HistoryMessage> loadRange(long chatId, int afterIndex, int uptoIndex) {
+        ChatLog log = chats.get(chatId);
+        if (log == null || uptoIndex <= afterIndex) return new ArrayList<>();
+        Segment[] segs;
+        int[] offs;
+        synchronized (log) {
+            int from = log.find(afterIndex + 1);
+            if (from < 0) from = -from - 1;
+            int to = log.find(uptoIndex);
+            to = to >= 0 ? to + 1 : -to - 1;
+            int n = Math.max(0, to - from);
+            segs = new Segment[n];
+            offs = new int[n];
+            System.arraycopy(log.seg, from, segs, 0, n);
+            System.arraycopy(log.off, from, offs, 0, n);
+        }
+        return decodeAll(segs, offs);
+    }
+
+    @Override
+    public int lastIndex(long chatId) {
+        ChatLog log = chats.get(chatId);
+        if (log == null) log = retired.get(chatId);
+        if (log == null) return 0;
+        synchronized (log) {
+            return log.next - 1;
+        }
+    }
+
+    @Override
+    public Summary loadSummary(long chatId) {
+        ChatLog log = chats.get(chatId);
+        if (log == null) return null;
+        Segment s;
+        int off, upto;
+        synchronized (log) {
+            if (log.summarySeg == null) return null;
+            s = log.summarySeg;
+            off = log.summaryOff;
+            upto = log.summaryUpto;
+        }
+        return new Summary(decode(s, off).content(), upto);
+    }
+
+    // Отображение удалённого компакцией сегмента остаётся валидным, пока на него есть ссылка
+    private static List<HistoryMessage> decodeAll(Segment[] segs, int[] offs) {
+        List<HistoryMessage> out = new ArrayList<>(segs.length);
+        for (int i = 0; i < segs.length; i++) out.add(decode(segs[i], offs[i]));
+        return out;
+    }
+
+    private static HistoryMessage decode(Segment s, int off) {
+        int len = s.buf.getInt(off);
+        int roleLen = s.buf.get(off + HEADER + FIXED - 1) & 0xFF;
+        byte[] b = new byte[len - FIXED];
+        s.buf.get(off + HEADER + FIXED, b);
+        return new HistoryMessage(new String(b, 0, roleLen, StandardCharsets.UTF_8),
+                new String(b, roleLen, b.length - roleLen, StandardCharsets.UTF_8));
+    }
+
+    // ---------- обслуживание ----------
+
+    @Override
+    public PruneBatch pruneToLast(long afterChatId, int maxChats, int keepLast) throws SQLException {
+        synchronized (writeLock) {
+            List<Rec> recs = new ArrayList<>();
+            int seen = 0;
+            long last = afterChatId;
+            for (Map.Entry<Long, ChatLog> e : chats.tailMap(afterChatId, false).entrySet()) {
+                if (seen == maxChats) break;
+                ChatLog log = e.getValue();
+                if (log.size == 0) continue;
+                seen++;
+                last = e.getKey();
+                if (log.size > keepLast) {
+                    int minIdxToKeep = keepLast > 0 ? log.idx[log.head + log.size - keepLast] : log.next;
+                    recs.add(new Rec(FLOOR, log, e.getKey(), minIdxToKeep, 0, "", ""));
+                }
+            }
+            int deleted = recs.isEmpty() ? 0 : commit(recs);
+            retireEmptied(recs);
+            return new PruneBatch(last, seen, deleted);
+        }
+    }
+
+    @Override
+    public int pruneOlderThan(long cutoffEpochSeconds, int limit) throws SQLException {
+        synchronized (writeLock) {
+            List<Rec> recs = new ArrayList<>();
+            int deleted = 0;
+            for (Map.Entry<Long, ChatLog> e : chats.entrySet()) {
+                if (deleted >= limit) break;
+                ChatLog log = e.getValue();
+                int n = 0;
+                while (n < log.size && deleted + n < limit && log.created[log.head + n] < cutoffEpochSeconds) n++;
+                if (n == 0) continue;
+                int minIdxToKeep = n < log.size ? log.idx[log.head + n] : log.idx[log.head + n - 1] + 1;
+                recs.add(new Rec(FLOOR, log, e.getKey(), minIdxToKeep, 0, "", ""));
+                deleted += n;
+            }
+            if (recs.isEmpty()) return 0;
+            int removed = commit(recs);
+            retireEmptied(recs);
+            return removed;
+        }
+    }
+
+    // Под writeLock. Сначала в retired, потом удаление из chats: lastIndex без блокировки
+    // смотрит в том же порядке и не увидит промежуточного нуля
+    private void retireEmptied(List<Rec> floors) {
+        for (Rec r : floors) {
+            ChatLog log = r.log;
+            synchronized (log) {
+                if (log.size > 0 || log.summarySeg != null) continue;
+                log.release();
+            }
+            retired.put(r.chatId, log);
+            chats.remove(r.chatId, log);
+        }
+    }
+
+    // Под writeLock: ChatLog для записи; вернувшийся чат продолжает свои индексы
+    private ChatLog logFor(long chatId) {
+        ChatLog log = chats.computeIfAbsent(chatId, id -> {
+            ChatLog back = retired.get(id);
+            if (back == null) return new ChatLog();
+            synchronized (back) {
+                back.restore();
+            }
+            return back;
+        });
+        retired.remove(chatId);
+        return log;
+    }
+
+    /**
+     * Компакция одного сегмента с наименьшей долей живых записей (меньше COMPACT_BELOW):
+     * живые записи дописываются в конец журнала и сбрасываются на диск, затем файл удаляется.
+     * maxBytes не ограничивает шаг — копируется меньше половины одного сегмента.
+     */
+    @Override
+    public long reclaimSpace(long maxBytes) throws SQLException {
+        synchronized (writeLock) {
+            Segment victim = null;
+            double best = COMPACT_BELOW;
+            for (Segment s : segments.values()) {
+                double live = (double) s.liveBytes / s.capacity;
+                if (s != active && live < best) {
+                    best = live;
+                    victim = s;
+                }
+            }
+            if (victim == null) return 0;
+
+            List<Rec> live = liveRecords(victim);
+            long copied = 0;
+            try {
+                if (!live.isEmpty()) {
+                    commitCopies(live);
+                    for (Rec r : live) copied += r.seg.recordSize(r.off);
+                }
+                forceAll();
+                drop(victim);
+            } catch (IOException e) {
+                throw new SQLException("Compaction of " + victim.path + " failed: " + e.getMessage(), e);
+            }
+            Log.debug("DB", "Compacted history segment {}: liveRecords={} copiedBytes={}", victim.id, live.size(), copied);
+            return victim.capacity - copied;
+        }
+    }
+
+    // Под writeLock: записи сегмента, на которые ещё указывает индекс
+    private List<Rec> liveRecords(Segment s) {
+        List<Rec> out = new ArrayList<>();
+        for (int pos = 0; pos < s.writePos; pos += s.recordSize(pos)) {
+            int body = pos + HEADER;
+            byte type = (byte) (s.buf.get(body) & ~CONTINUES);
+            long chatId = s.buf.getLong(body + 5);
+            ChatLog log = chats.get(chatId);
+            if (log == null) log = retired.get(chatId);
+            if (log == null) continue;
+            int index = s.buf.getInt(body + 13);
+            boolean alive = switch (type) {
+                case MESSAGE -> {
+                    int at = log.find(index);
+                    yield at >= 0 && log.seg[at] == s && log.off[at] == pos;
+                }
+                case FLOOR -> log.floorSeg == s && log.floorOff == pos;
+                case SUMMARY -> log.summarySeg == s && log.summaryOff == pos;
+                default -> false;
+            };
+            if (!alive) continue;
+            HistoryMessage m = decode(s, pos);
+            Rec r = new Rec(type, log, chatId, index, s.buf.getLong(body + 17), m.role(), m.content());
+            r.seg = s;
+            r.off = pos;
+            out.add(r);
+        }
+        return out;
+    }
+
+    // Копии — одной пачкой; индекс переключается на них только после записи всей пачки
+    private void commitCopies(List<Rec> live) throws SQLException, IOException {
+        Segment startSeg = active;
+        int startPos = active.writePos;
+        Segment[] oldSeg = new Segment[live.size()];
+        int[] oldOff = new int[live.size()];
+        try {
+            for (int i = 0; i < live.size(); i++) {
+                oldSeg[i] = live.get(i).seg;
+                oldOff[i] = live.get(i).off;
+                write(live.get(i), i < live.size() - 1);
+            }
+        } catch (IOException | SQLException e) {
+            rollback(startSeg, startPos);
+            throw e;
+        }
+        for (int i = 0; i < live.size(); i++) {
+            Rec r = live.get(i);
+            ChatLog log = r.log;
+            int size = r.seg.recordSize(r.off);
+            synchronized (log) {
+                switch (r.type) {
+                    case MESSAGE -> {
+                        int at = log.find(r.index);
+                        log.seg[at] = r.seg;
+                        log.off[at] = r.off;
+                    }
+                    case FLOOR -> {
+                        log.floorSeg = r.seg;
+                        log.floorOff = r.off;
+                    }
+                    case SUMMARY -> {
+                        log.summarySeg = r.seg;
+                        log.summaryOff = r.off;
+                    }
+                    default -> { }
+                }
+            }
+            r.seg.liveBytes += size;
+            oldSeg[i].liveBytes -= oldSeg[i].recordSize(oldOff[i]);
+        }
+    }
+
+    @Override
+    public long journalBytes() {
+        return unforcedBytes;
+    }
+
+    @Override
+    public boolean checkpoint(boolean quiet) {
+        synchronized (writeLock) {
+            forceAll();
+        }
+        return true;
+    }
+
+    // Под writeLock
+    private void forceAll() {
+        for (Segment s : segments.values()) {
+            if (s.writePos > s.forcedPos) {
+                s.buf.force(s.forcedPos, s.writePos - s.forcedPos);
+                s.forcedPos = s.writePos;
+            }
+        }
+        unforcedBytes = 0;
+    }
+
+    @Override
+    public long idleNanos() {
+        return System.nanoTime() - lastWriteNanos;
+    }
+
+    // ---------- файлы сегментов ----------
+
+    private Segment newSegment(int id) throws IOException {
+        Segment s = map(id, true);
+        segments.put(id, s);
+        return s;
+    }
+
+    private Segment map(int id, boolean create) throws IOException {
+        Path path = dir.resolve(String.format("%08d%s", id, SUFFIX));
+        if (create && Files.exists(path)) throw new IOException("Segment already exists: " + path);
+        // Отображение не зависит от канала: файл можно закрыть сразу
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            if (create) raf.setLength(segmentBytes);
+            return new Segment(id, path, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+        }
+    }
+
+    // Читатели, успевшие взять ссылку на сегмент, дочитают из отображения и после удаления файла
+    private void drop(Segment s) throws IOException {
+        segments.remove(s.id);
+        unforcedBytes = Math.max(0, unforcedBytes - (s.writePos - s.forcedPos));
+        Files.deleteIfExists(s.path);
+    }
+
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            forceAll();
+            segments.clear();
+            chats.clear();
+            retired.clear();
+        }
+        Log.info("DB", "History log closed.");
+    }
+}
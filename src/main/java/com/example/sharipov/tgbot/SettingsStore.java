@@ -0,0 +1,78 @@
+package com.example.sharipov.tgbot;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Настройки по чатам. Горячий путь читает готовый снимок ChatSettings из
+ * ConcurrentHashMap без блокировок; у чата без переопределений — снимок по умолчанию.
+ * Переопределения лежат в таблице chat_settings (строка есть только у изменённых
+ * чатов) и целиком поднимаются при старте. Изменения редки и идут под одной
+ * блокировкой: сначала запись в БД, потом замена снимка.
+ */
+public class SettingsStore {
+
+    private final ChatHistoryRepository repo; // null — без сохранения (бенчмарки)
+    private final ChatSettings defaults;
+    private final ConcurrentHashMap<Long, ChatSettings> effective = new ConcurrentHashMap<>();
+    private final Map<Long, ChatSettings.Overrides> overrides = new HashMap<>(); // под this
+
+    public SettingsStore(ChatHistoryRepository repo, ChatSettings defaults) throws SQLException {
+        this.repo = repo;
+        this.defaults = defaults;
+        if (repo != null) {
+            synchronized (this) {
+                overrides.putAll(repo.loadChatSettings());
+                overrides.forEach((chatId, o) -> effective.put(chatId, o.applyTo(defaults)));
+            }
+        }
+        Log.info("SETTINGS", "Loaded. customizedChats={} defaultModel={}", effective.size(), defaults.model());
+    }
+
+    public ChatSettings defaults() {
+        return defaults;
+    }
+
+    public ChatSettings forChat(long chatId) {
+        ChatSettings s = effective.get(chatId);
+        return s != null ? s : defaults;
+    }
+
+    public boolean isCustomized(long chatId) {
+        return effective.containsKey(chatId);
+    }
+
+    public synchronized ChatSettings.Overrides overridesFor(long chatId) {
+        return overrides.getOrDefault(chatId, ChatSettings.Overrides.NONE);
+    }
+
+    /** Меняет переопределения чата и возвращает новый действующий снимок. */
+    public synchronized ChatSettings update(long chatId, UnaryOperator<ChatSettings.Overrides> change) throws SQLException {
+        ChatSettings.Overrides next = change.apply(overrides.getOrDefault(chatId, ChatSettings.Overrides.NONE));
+        if (next.isEmpty()) return reset(chatId);
+
+        if (repo != null) repo.saveChatSettings(chatId, next);
+        overrides.put(chatId, next);
+        ChatSettings s = next.applyTo(defaults);
+        effective.put(chatId, s);
+        Log.info("SETTINGS", "chatId={} updated: {}", chatId, next);
+        return s;
+    }
+
+    /** Возврат чата к настройкам по умолчанию. */
+    public synchronized ChatSettings reset(long chatId) throws SQLException {
+        if (overrides.remove(chatId) != null) {
+            if (repo != null) repo.deleteChatSettings(chatId);
+            effective.remove(chatId);
+            Log.info("SETTINGS", "chatId={} reset to defaults", chatId);
+        }
+        return defaults;
+    }
+
+    public int customizedChats() {
+        return effective.size();
+    }
+}
@@ -0,0 +1,373 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.ShardProtocol.Frame;
+import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фронт шардированного развёртывания: принимает апдейты (поллинг или вебхук) и раздаёт
+ * их воркерам по консистентному хешу chatId (ShardRing) — все апдейты чата идут в один
+ * процесс, а с ними его история и настройки. Воркеры подключаются сами: HELLO — вход в кольцо,
+ * обрыв соединения — выход; недоставленные апдейты ушедшего уходят новым владельцам.
+ *
+ * Перебалансировка ленивая: чат переезжает при первом апдейте после смены владельца.
+ * Диспетчер просит прежнего владельца выгрузить состояние (EXPORT), копит апдейты чата,
+ * передаёт состояние новому (STATE) и только потом сами апдейты — порядок внутри чата
+ * не нарушается. Прежний владелец ушёл или молчит дольше handoffTimeout — чат продолжает
+ * у нового с тем, что у того есть.
+ */
+public class ShardDispatcher implements AutoCloseable {
+
+    /**
+     * vnodes — точек на воркера в кольце; queuePerWorker — кадров в очереди к воркеру, дальше
+     * апдейт отклоняется; trackedChats — сколько последних владельцев чатов помнить для переездов.
+     */
+    public record Options(int vnodes, int queuePerWorker, Duration handoffTimeout, int trackedChats) {}
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final class Link {
+        final String id;
+        final SocketChannel ch;
+        final DataOutputStream out;
+        final BlockingQueue<Frame> queue;
+        final Thread writer;
+        volatile boolean open = true;
+
+        Link(String id, SocketChannel ch) {
+            this.id = id;
+            this.ch = ch;
+            this.out = ShardProtocol.output(ch);
+            this.queue = new LinkedBlockingQueue<>(options.queuePerWorker());
+            this.writer = new Thread(this::writeLoop, "shard-out-" + id);
+            writer.setDaemon(true);
+        }
+
+        boolean send(Frame f) {
+            return open && queue.offer(f);
+        }
+
+        // Пачкой: всё, что накопилось, одним flush
+        private void writeLoop() {
+            try {
+                while (open) {
+                    Frame f = queue.take();
+                    do {
+                        ShardProtocol.write(out, f);
+                    } while ((f = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException ignored) {
+                // закрыт
+            } catch (IOException e) {
+                if (open) Log.warn("SHARD", "Write to worker {} failed: {}", id, e.getMessage());
+                close();
+            }
+        }
+
+        void close() {
+            open = false;
+            writer.interrupt();
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+                // уже закрыт
+            }
+        }
+    }
+
+    // Переезд чата: ждём состояние от from, апдейты пока копятся в pending
+    private record Move(String from, long deadlineNanos, List<Frame> pending) {}
+
+    private final Options options;
+    private final String address;
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private final ScheduledExecutorService timer;
+
+    // Всё ниже — под this
+    private final Map<String, Link> links = new HashMap<>();
+    private final Map<Long, Move> moving = new HashMap<>();
+    private final LinkedHashMap<Long, String> owners;
+    private volatile ShardRing ring = ShardRing.EMPTY;
+
+    public ShardDispatcher(String address, Options options) throws IOException {
+        this.options = options;
+        this.address = address;
+        this.owners = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > options.trackedChats();
+            }
+        };
+        this.server = ShardProtocol.listen(address);
+        this.acceptor = new Thread(this::acceptLoop, "shard-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        this.timer = Executors.newSingleThreadScheduledExecutor(UpdateDispatcher.daemonFactory("shard-timer"));
+        long periodMs = Math.max(10, options.handoffTimeout().toMillis() / 4);
+        timer.scheduleWithFixedDelay(this::expireMoves, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        Log.info("SHARD", "Dispatcher listening on {} vnodes={} queuePerWorker={} handoffTimeoutMs={}",
+                address, options.vnodes(), options.queuePerWorker(), options.handoffTimeout().toMillis());
+    }
+
+    /** Вход для поллинга и вебхука. false — воркеров нет или очередь к владельцу чата полна. */
+    public boolean accept(Update update) {
+        Metrics.UPDATES_RECEIVED.increment();
+        byte[] json;
+        try {
+            json = WebhookServer.MAPPER.writeValueAsBytes(update);
+        } catch (IOException e) {
+            Log.warn("SHARD", "Cannot encode update id={}: {}", update.getUpdateId(), e.getMessage());
+            return true;
+        }
+        if (route(new Frame(ShardProtocol.UPDATE, chatIdOf(update), json))) return true;
+        Metrics.UPDATES_DROPPED.increment();
+        return false;
+    }
+
+    private synchronized boolean route(Frame f) {
+        long chatId = f.chatId();
+        Move m = moving.get(chatId);
+        if (m != null) {
+            m.pending().add(f);
+            return true;
+        }
+        String owner = ring.ownerOf(chatId);
+        if (owner == null) return false;
+
+        String prev = owners.put(chatId, owner);
+        if (prev != null && !prev.equals(owner)) {
+            Link from = links.get(prev);
+            if (from != null && from.send(new Frame(ShardProtocol.EXPORT, chatId, EMPTY))) {
+                List<Frame> pending = new ArrayList<>(4);
+                pending.add(f);
+                moving.put(chatId, new Move(prev, System.nanoTime() + options.handoffTimeout().toNanos(), pending));
+                Metrics.SHARD_HANDOFFS.increment();
+                return true;
+            }
+        }
+        if (!links.get(owner).send(f)) return false;
+        Metrics.SHARD_FORWARDED.increment();
+        return true;
+    }
+
+    /** Состояние от прежнего владельца (fromId) или истёкший таймаут (state пустой, fromId null). */
+    private synchronized void completeMove(long chatId, byte[] state, String fromId) {
+        Move m = moving.get(chatId);
+        if (m == null || (fromId != null && !m.from().equals(fromId))) {
+            if (fromId != null) Log.warn("SHARD", "chatId={} late state from {} ignored", chatId, fromId);
+            return;
+        }
+        moving.remove(chatId);
+        // Кольцо могло смениться ещё раз, пока ждали, — отдаём текущему владельцу
+        String owner = ring.ownerOf(chatId);
+        Link to = owner == null ? null : links.get(owner);
+        if (to == null) {
+            Metrics.UPDATES_DROPPED.add(m.pending().size());
+            return;
+        }
+        owners.put(chatId, owner);
+        if (state.length > 0 && !owner.equals(m.from())) to.send(new Frame(ShardProtocol.STATE, chatId, state));
+        for (Frame f : m.pending()) {
+            if (to.send(f)) Metrics.SHARD_FORWARDED.increment();
+            else Metrics.UPDATES_DROPPED.increment();
+        }
+    }
+
+    private void expireMoves() {
+        long now = System.nanoTime();
+        List<Long> expired = new ArrayList<>();
+        synchronized (this) {
+            moving.forEach((chatId, m) -> {
+                if (now - m.deadlineNanos() > 0) expired.add(chatId);
+            });
+        }
+        for (long chatId : expired) {
+            Log.warn("SHARD", "chatId={} handoff timed out, continuing without state", chatId);
+            Metrics.SHARD_HANDOFF_TIMEOUTS.increment();
+            completeMove(chatId, EMPTY, null);
+        }
+    }
+
+    // ---------- воркеры ----------
+
+    private void acceptLoop() {
+        while (server.isOpen()) {
+            SocketChannel ch;
+            try {
+                ch = server.accept();
+            } catch (IOException e) {
+                if (server.isOpen()) Log.warn("SHARD", "Accept failed: {}", e.getMessage());
+                continue;
+            }
+            Thread reader = new Thread(() -> serve(ch), "shard-in");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void serve(SocketChannel ch) {
+        Link link = null;
+        try {
+            ShardProtocol.tune(ch);
+            DataInputStream in = ShardProtocol.input(ch);
+            Frame hello = ShardProtocol.read(in);
+            if (hello == null || hello.type() != ShardProtocol.HELLO) {
+                Log.warn("SHARD", "Connection without HELLO dropped");
+                ch.close();
+                return;
+            }
+            link = new Link(new String(hello.data(), StandardCharsets.UTF_8), ch);
+            Thread.currentThread().setName("shard-in-" + link.id);
+            join(link);
+
+            Frame f;
+            while ((f = ShardProtocol.read(in)) != null) {
+                if (f.type() == ShardProtocol.STATE) completeMove(f.chatId(), f.data(), link.id);
+                else Log.warn("SHARD", "Unexpected frame type={} from {}", f.type(), link.id);
+            }
+        } catch (IOException e) {
+            if (link != null && link.open) Log.warn("SHARD", "Worker {} link: {}", link.id, e.getMessage());
+        } finally {
+            if (link != null) leave(link);
+        }
+    }
+
+    private synchronized void join(Link link) {
+        link.writer.start();
+        Link old = links.put(link.id, link);
+        // Переподключение с тем же id: старое соединение уже мертво, просто закрываем
+        if (old != null) old.close();
+        rebuildRing("joined " + link.id);
+    }
+
+    private synchronized void leave(Link link) {
+        link.close();
+        if (links.get(link.id) == link) {
+            links.remove(link.id);
+            rebuildRing("left " + link.id);
+            List<Long> orphaned = new ArrayList<>();
+            moving.forEach((chatId, m) -> {
+                if (m.from().equals(link.id)) orphaned.add(chatId);
+            });
+            for (long chatId : orphaned) completeMove(chatId, EMPTY, link.id);
+        }
+        // Не доставленное ушедшему — новым владельцам; выгрузки и состояния для него теряют смысл
+        List<Frame> undelivered = new ArrayList<>();
+        link.queue.drainTo(undelivered);
+        int requeued = 0;
+        for (Frame f : undelivered) {
+            if (f.type() != ShardProtocol.UPDATE) continue;
+            if (route(f)) requeued++;
+            else Metrics.UPDATES_DROPPED.increment();
+        }
+        if (requeued > 0) {
+            Metrics.SHARD_REQUEUED.add(requeued);
+            Log.info("SHARD", "Requeued {} updates from {}", requeued, link.id);
+        }
+    }
+
+    private void rebuildRing(String why) {
+        ShardRing next = ShardRing.of(links.keySet(), options.vnodes());
+        int moved = 0;
+        for (Map.Entry<Long, String> e : owners.entrySet()) {
+            if (!e.getValue().equals(next.ownerOf(e.getKey()))) moved++;
+        }
+        ring = next;
+        Log.info("SHARD", "Ring {}: workers={} trackedChats={} toMove={}",
+                why, new TreeSet<>(links.keySet()), owners.size(), moved);
+    }
+
+    // ---------- наблюдаемость ----------
+
+    public synchronized int workers() {
+        return links.size();
+    }
+
+    public synchronized int movingChats() {
+        return moving.size();
+    }
+
+    public synchronized int queued() {
+        int n = 0;
+        for (Link l : links.values()) n += l.queue.size();
+        return n;
+    }
+
+    /** Чат апдейта; у апдейтов без чата — id апдейта, лишь бы раскидать их по воркерам. */
+    static long chatIdOf(Update u) {
+        if (u.hasMessage()) return u.getMessage().getChatId();
+        if (u.hasEditedMessage()) return u.getEditedMessage().getChatId();
+        if (u.hasChannelPost()) return u.getChannelPost().getChatId();
+        if (u.hasCallbackQuery() && u.getCallbackQuery().getMessage() != null) {
+            return u.getCallbackQuery().getMessage().getChatId();
+        }
+        if (u.getMyChatMember() != null) return u.getMyChatMember().getChat().getId();
+        return u.getUpdateId() == null ? 0 : u.getUpdateId();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        try {
+            server.close();
+        } catch (IOException ignored) {
+            // уже закрыт
+        }
+        List<Link> all;
+        synchronized (this) {
+            all = new ArrayList<>(links.values());
+            links.clear();
+            ring = ShardRing.EMPTY;
+        }
+        for (Link l : all) l.close();
+        Log.info("SHARD", "Dispatcher {} closed.", address);
+    }
+
+    /** Поллинг Telegram для диспетчера: все апдейты — в accept(). */
+    public static class PollingIntake extends TelegramLongPollingBot {
+
+        private final String botUsername;
+        private final ShardDispatcher dispatcher;
+
+        public PollingIntake(String botToken, String botUsername, ShardDispatcher dispatcher) {
+            super(botToken);
+            this.botUsername = botUsername;
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        public String getBotUsername() {
+            return botUsername;
+        }
+
+        @Override
+        public void onUpdateReceived(Update update) {
+            // Поллинг уже сдвинул offset: Telegram этот апдейт больше не пришлёт
+            if (!dispatcher.accept(update)) {
+                Log.warn("SHARD", "dropped (no worker or queue full). id={} chatId={}",
+                        update.getUpdateId(), chatIdOf(update));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.sharipov.tgbot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Протокол между диспетчером и воркерами. Кадр: [int длина остатка][byte тип][long chatId][данные].
+ * Адрес — "unix:/путь/к/сокету" (Unix domain socket, по умолчанию) или "host:port" (TCP).
+ *
+ *   HELLO   воркер → диспетчер  id воркера (UTF-8), chatId = 0
+ *   UPDATE  диспетчер → воркер  апдейт Telegram в JSON, как его присылает Bot API
+ *   EXPORT  диспетчер → воркер  чат уходит к другому воркеру: пришли его состояние
+ *   STATE   в обе стороны       состояние чата (ChatHandoff); пустые данные — отдать нечего
+ */
+final class ShardProtocol {
+
+    static final byte HELLO = 1;
+    static final byte UPDATE = 2;
+    static final byte EXPORT = 3;
+    static final byte STATE = 4;
+
+    // Защита от мусора в потоке: настоящие кадры на порядки меньше
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    record Frame(byte type, long chatId, byte[] data) {}
+
+    private ShardProtocol() {}
+
+    static void write(DataOutputStream out, Frame f) throws IOException {
+        out.writeInt(1 + 8 + f.data().length);
+        out.writeByte(f.type());
+        out.writeLong(f.chatId());
+        out.write(f.data());
+    }
+
+    /** Следующий кадр; null — собеседник закрыл соединение между кадрами. */
+    static Frame read(DataInputStream in) throws IOException {
+        int len;
+        try {
+            len = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (len < 9 || len > MAX_FRAME) throw new IOException("Bad frame length " + len);
+        byte type = in.readByte();
+        long chatId = in.readLong();
+        byte[] data = new byte[len - 9];
+        in.readFully(data);
+        return new Frame(type, chatId, data);
+    }
+
+    static Frame hello(String workerId) {
+        return new Frame(HELLO, 0, workerId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Не Channels.newInputStream/newOutputStream: в Java 17 они держат blockingLock канала
+    // на всё время чтения, и запись из другого потока ждёт, пока собеседник что-нибудь пришлёт
+    static DataInputStream input(SocketChannel ch) {
+        InputStream raw = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : ch.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+        return new DataInputStream(new BufferedInputStream(raw, 64 * 1024));
+    }
+
+    static DataOutputStream output(SocketChannel ch) {
+        OutputStream raw = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+        };
+        return new DataOutputStream(new BufferedOutputStream(raw, 64 * 1024));
+    }
+
+    static ServerSocketChannel listen(String address) throws IOException {
+        SocketAddress addr = parse(address);
+        ServerSocketChannel server;
+        if (addr instanceof UnixDomainSocketAddress unix) {
+            // Файл сокета от прошлого запуска мешает bind
+            Files.deleteIfExists(unix.getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(addr, 128);
+        return server;
+    }
+
+    static SocketChannel connect(String address) throws IOException {
+        SocketAddress addr = parse(address);
+        SocketChannel ch = addr instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+        try {
+            ch.connect(addr);
+            tune(ch);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    // Кадры короткие и уходят пачками с flush — Nagle только добавил бы задержку
+    static void tune(SocketChannel ch) throws IOException {
+        if (!(ch.getLocalAddress() instanceof UnixDomainSocketAddress)) ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    static SocketAddress parse(String address) {
+        if (address.startsWith("unix:")) return UnixDomainSocketAddress.of(Path.of(address.substring(5)));
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Shard address must be unix:/path or host:port: " + address);
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
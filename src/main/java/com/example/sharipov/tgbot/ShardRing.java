@@ -0,0 +1,80 @@
+package com.example.sharipov.tgbot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Консистентное хеширование чатов по воркерам. У каждого воркера vnodes точек на кольце,
+ * чат принадлежит первой точке не меньше хеша chatId. Хеши зависят только от id воркеров,
+ * поэтому одинаковое кольцо строится в любом процессе, а приход или уход воркера
+ * перекладывает около 1/N чатов — остальные остаются на своих местах.
+ * Неизменяемое: при смене состава строится новое.
+ */
+final class ShardRing {
+
+    static final ShardRing EMPTY = new ShardRing(new long[0], new String[0]);
+
+    private final long[] points;   // по возрастанию
+    private final String[] owners; // owners[i] — воркер точки points[i]
+
+    private ShardRing(long[] points, String[] owners) {
+        this.points = points;
+        this.owners = owners;
+    }
+
+    static ShardRing of(Collection<String> workers, int vnodes) {
+        if (workers.isEmpty()) return EMPTY;
+        // Порядок id не должен влиять на кольцо: при равных хешах побеждает меньший id
+        String[] ids = new TreeSet<>(workers).toArray(String[]::new);
+        int n = ids.length * vnodes;
+        long[] keys = new long[n];
+        Integer[] order = new Integer[n];
+        for (int w = 0; w < ids.length; w++) {
+            long base = hash(ids[w].getBytes(StandardCharsets.UTF_8));
+            for (int v = 0; v < vnodes; v++) {
+                keys[w * vnodes + v] = mix(base + v * 0x9E3779B97F4A7C15L);
+                order[w * vnodes + v] = w * vnodes + v;
+            }
+        }
+        Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[a], keys[b]) : Integer.compare(a, b));
+
+        long[] points = new long[n];
+        String[] owners = new String[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = keys[order[i]];
+            owners[i] = ids[order[i] / vnodes];
+        }
+        return new ShardRing(points, owners);
+    }
+
+    /** Воркер чата; null — воркеров нет. */
+    String ownerOf(long chatId) {
+        if (points.length == 0) return null;
+        int i = Arrays.binarySearch(points, mix(chatId));
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    // Финализатор SplitMix64: соседние chatId расходятся по всему кольцу
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // FNV-1a по UTF-8: 64 бита и одинаков в любой JVM
+    private static long hash(byte[] bytes) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+}
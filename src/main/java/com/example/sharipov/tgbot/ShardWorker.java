@@ -0,0 +1,161 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.ShardProtocol.Frame;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Воркер шардированного развёртывания: держит соединение с ShardDispatcher и получает
+ * от него апдейты своих чатов. Апдейт идёт в intake (TgBotApplication.accept) — дальше
+ * всё как в одиночном режиме, ответы воркер шлёт в Telegram сам. Выгрузка и загрузка
+ * состояния чата (ChatHandoff) ставятся в mailbox чата и поэтому выполняются строго
+ * между его апдейтами. Обрыв — переподключение с растущей паузой, тот же id
+ * возвращает воркеру те же чаты.
+ */
+public class ShardWorker implements AutoCloseable {
+
+    private final String address;
+    private final String workerId;
+    private final Predicate<Update> intake;
+    private final UpdateDispatcher dispatcher;
+    private final ChatHandoff handoff;
+    private final Thread thread;
+
+    private volatile boolean closed;
+    private volatile SocketChannel channel;
+    private volatile DataOutputStream out; // под this
+
+    public ShardWorker(String address, String workerId, Predicate<Update> intake,
+                       UpdateDispatcher dispatcher, ChatHandoff handoff) {
+        this.address = address;
+        this.workerId = workerId;
+        this.intake = intake;
+        this.dispatcher = dispatcher;
+        this.handoff = handoff;
+        this.thread = new Thread(this::run, "shard-worker");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        long backoffMs = 100;
+        while (!closed) {
+            try (SocketChannel ch = ShardProtocol.connect(address)) {
+                channel = ch;
+                DataInputStream in = ShardProtocol.input(ch);
+                synchronized (this) {
+                    out = ShardProtocol.output(ch);
+                    ShardProtocol.write(out, ShardProtocol.hello(workerId));
+                    out.flush();
+                }
+                Log.info("SHARD", "Connected to dispatcher {} as {}", address, workerId);
+                backoffMs = 100;
+                serve(in);
+                if (!closed) Log.warn("SHARD", "Dispatcher closed the connection");
+            } catch (IOException e) {
+                if (!closed) Log.warn("SHARD", "Dispatcher link {}: {}", address, e.getMessage());
+            } finally {
+                synchronized (this) {
+                    out = null;
+                }
+            }
+            if (closed) break;
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoffMs = Math.min(5000, backoffMs * 2);
+        }
+    }
+
+    private void serve(DataInputStream in) throws IOException {
+        Frame f;
+        while ((f = ShardProtocol.read(in)) != null) {
+            long chatId = f.chatId();
+            switch (f.type()) {
+                case ShardProtocol.UPDATE -> {
+                    Update update;
+                    try {
+                        update = WebhookServer.MAPPER.readValue(f.data(), Update.class);
+                    } catch (IOException e) {
+                        Log.warn("SHARD", "Bad update for chatId={}: {}", chatId, e.getMessage());
+                        continue;
+                    }
+                    // Диспетчер считает апдейт доставленным — отказ виден только здесь
+                    if (!intake.test(update)) {
+                        Metrics.SHARD_REJECTED.increment();
+                        Log.warn("SHARD", "chatId={} update id={} rejected by {}: dispatcher overloaded",
+                                chatId, update.getUpdateId(), workerId);
+                    }
+                }
+                case ShardProtocol.EXPORT -> {
+                    if (!dispatcher.submit(chatId, () -> export(chatId))) {
+                        // Mailbox переполнен — пусть диспетчер не ждёт до таймаута
+                        send(new Frame(ShardProtocol.STATE, chatId, new byte[0]));
+                    }
+                }
+                case ShardProtocol.STATE -> {
+                    byte[] state = f.data();
+                    if (!dispatcher.submit(chatId, () -> importState(chatId, state))) {
+                        Log.warn("SHARD", "chatId={} handoff dropped: dispatcher overloaded", chatId);
+                    }
+                }
+                default -> Log.warn("SHARD", "Unknown frame type={}", f.type());
+            }
+        }
+    }
+
+    private void export(long chatId) {
+        byte[] state;
+        try {
+            state = handoff.export(chatId);
+        } catch (Exception e) {
+            Log.error("SHARD", "chatId={} export failed: {}", chatId, e.getMessage());
+            state = new byte[0];
+        }
+        send(new Frame(ShardProtocol.STATE, chatId, state));
+    }
+
+    private void importState(long chatId, byte[] state) {
+        try {
+            handoff.importState(chatId, state);
+        } catch (Exception e) {
+            Log.error("SHARD", "chatId={} import failed: {}", chatId, e.getMessage());
+        }
+    }
+
+    private synchronized void send(Frame f) {
+        if (out == null) return; // соединения нет — диспетчер всё равно перестал ждать
+        try {
+            ShardProtocol.write(out, f);
+            out.flush();
+        } catch (IOException e) {
+            Log.warn("SHARD", "Send to dispatcher failed: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        SocketChannel ch = channel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+                // уже закрыт
+            }
+        }
+        thread.interrupt();
+        Log.info("SHARD", "Worker {} closed.", workerId);
+    }
+}
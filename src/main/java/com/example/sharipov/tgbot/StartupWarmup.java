@@ -0,0 +1,70 @@
+package com.example.sharipov.tgbot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Шаги прогрева перед приёмом апдейтов: выполняются параллельно, ждём их не дольше
+ * бюджета. Не уложившийся шаг продолжает работать в фоне — бот стартует без него,
+ * первый запрос просто заплатит за холодный путь сам.
+ */
+final class StartupWarmup {
+
+    private final Map<String, Callable<String>> steps = new LinkedHashMap<>();
+
+    /** task возвращает короткий итог для лога; исключение — шаг не удался. */
+    StartupWarmup step(String name, Callable<String> task) {
+        steps.put(name, task);
+        return this;
+    }
+
+    /** true — все шаги успели и удались. */
+    boolean run(Duration budget) throws InterruptedException {
+        long t0 = System.nanoTime();
+        long deadline = t0 + budget.toNanos();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, steps.size()), UpdateDispatcher.daemonFactory("warmup"));
+
+        Map<String, CompletableFuture<String>> running = new LinkedHashMap<>();
+        steps.forEach((name, task) -> running.put(name, CompletableFuture.supplyAsync(() -> {
+            long s0 = System.nanoTime();
+            try {
+                String result = task.call();
+                Log.info("WARMUP", "{} done in {} ms: {}", name, (System.nanoTime() - s0) / 1_000_000, result);
+                return result;
+            } catch (Exception e) {
+                Log.warn("WARMUP", "{} failed in {} ms: {}", name, (System.nanoTime() - s0) / 1_000_000, e.toString());
+                throw new IllegalStateException(e);
+            }
+        }, pool)));
+        // Потоки daemon: зависший шаг не держит JVM
+        pool.shutdown();
+
+        List<String> late = new ArrayList<>();
+        boolean allOk = true;
+        for (Map.Entry<String, CompletableFuture<String>> e : running.entrySet()) {
+            try {
+                e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                late.add(e.getKey());
+                allOk = false;
+            } catch (ExecutionException ex) {
+                allOk = false;
+            }
+        }
+
+        long tookMs = (System.nanoTime() - t0) / 1_000_000;
+        if (late.isEmpty()) Log.info("WARMUP", "finished in {} ms ok={}", tookMs, allOk);
+        else Log.warn("WARMUP", "budget {} ms exceeded, continuing in background: {}", budget.toMillis(), late);
+        return allOk;
+    }
+}
@@ -1,26 +1,78 @@
 package com.example.sharipov.tgbot;
 
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.GetMe;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
 import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.MessageEntity;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
-import java.time.Instant;
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.UnaryOperator;
 
 public class TgBotApplication extends TelegramLongPollingBot {
 
+    private static final String STREAM_PLACEHOLDER = "✍️ …";
+    // Плейсхолдер может стоять в очереди чата за 429 — ждём его id не дольше этого
+    private static final long PLACEHOLDER_WAIT_SECONDS = 60;
+    private static final String BUSY_REPLY = "⏳ Сейчас много запросов, попробуйте чуть позже.";
+    private static final String RATE_LIMITED_REPLY = "⏳ Слишком часто — подождите немного и повторите.";
+
     private final String botUsername; // без @
     private final ChatService chatService;
-
-    private Long botId; // lazy
-
-    public TgBotApplication(String botToken, String botUsername, ChatService chatService) {
+    private final UpdateDispatcher dispatcher;
+    private final AdmissionController admission;
+    private final MessageCoalescer coalescer; // null — каждое сообщение отвечается отдельно
+    private final OutboundSender outbound;
+    private final CommandRegistry commands;
+    private final boolean streamReplies;
+    private final long streamEditIntervalMs;
+
+    // Повтор GetMe из обработки апдейтов, если при старте бот себя не узнал
+    private static final long IDENTITY_RETRY_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long IDENTITY_MAX_BACKOFF_MS = 5_000;
+
+    private volatile long botId; // 0 — ещё неизвестен
+    private final AtomicLong identityAttemptAt = new AtomicLong(System.nanoTime() - IDENTITY_RETRY_NANOS);
+
+    private volatile long readyAtNanos;
+    private final AtomicBoolean firstReplySeen = new AtomicBoolean();
+    private volatile long firstReplyMs = -1;
+
+    public TgBotApplication(String botToken,
+                            String botUsername,
+                            ChatService chatService,
+                            UpdateDispatcher dispatcher,
+                            AdmissionController admission,
+                            MessageCoalescer coalescer,
+                            OutboundSender.Options outboundOptions,
+                            boolean streamReplies,
+                            long streamEditIntervalMs) {
         super(botToken);
         this.botUsername = botUsername;
         this.chatService = chatService;
-        log("INIT", "Bot instance created. username=" + botUsername);
+        this.dispatcher = dispatcher;
+        this.admission = admission;
+        this.coalescer = coalescer;
+        this.outbound = new OutboundSender(this::timedExecute, outboundOptions);
+        this.streamReplies = streamReplies;
+        this.streamEditIntervalMs = streamEditIntervalMs;
+        this.commands = registerCommands(new CommandRegistry(botUsername, this::sendMessage));
+        Log.info("INIT", "Bot instance created. username={} stream={} coalesce={}", botUsername, streamReplies, coalescer != null);
     }
 
     @Override
@@ -28,181 +80,462 @@ public class TgBotApplication extends TelegramLongPollingBot {
         return botUsername;
     }
 
+    OutboundSender outbound() {
+        return outbound;
+    }
+
+    /**
+     * GetMe с повторами до deadline (System.nanoTime()). Вызывается при старте,
+     * до приёма апдейтов; true — id бота известен.
+     */
+    boolean resolveIdentity(long deadlineNanos) throws InterruptedException {
+        long backoffMs = 250;
+        while (botId == 0) {
+            if (fetchIdentity()) return true;
+            long left = deadlineNanos - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.MILLISECONDS.sleep(Math.min(backoffMs, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+            backoffMs = Math.min(IDENTITY_MAX_BACKOFF_MS, backoffMs * 2);
+        }
+        return true;
+    }
+
+    long botId() {
+        return botId;
+    }
+
+    // Неудача не запоминается: следующая попытка — не раньше чем через IDENTITY_RETRY_NANOS,
+    // и только одним потоком; остальные пока считают, что reply адресован не боту
     private long getBotIdSafe() {
-        if (botId != null) return botId;
+        long id = botId;
+        if (id != 0) return id;
+        long last = identityAttemptAt.get();
+        long now = System.nanoTime();
+        if (now - last >= IDENTITY_RETRY_NANOS && identityAttemptAt.compareAndSet(last, now)) fetchIdentity();
+        return botId;
+    }
+
+    private boolean fetchIdentity() {
         try {
-            botId = execute(new GetMe()).getId();
-            log("INIT", "GetMe ok. botId=" + botId);
-        } catch (TelegramApiException e) {
-            botId = -1L;
-            log("INIT", "GetMe failed, botId fallback=" + botId + " err=" + e.getMessage());
+            User me = execute(new GetMe());
+            botId = me.getId();
+            if (me.getUserName() != null && !botUsername.equalsIgnoreCase(me.getUserName())) {
+                Log.warn("INIT", "GetMe username={} differs from configured {}: mentions and /cmd@ are matched by the configured one",
+                        me.getUserName(), botUsername);
+            }
+            Log.info("INIT", "GetMe ok. botId={}", botId);
+            return true;
+        } catch (TelegramApiException | RuntimeException e) {
+            Log.warn("INIT", "GetMe failed: {}", e.getMessage());
+            return false;
         }
-        return botId;
     }
 
+    /** Бот начал принимать апдейты — отсюда считается время до первого ответа. */
+    void markReady() {
+        readyAtNanos = System.nanoTime();
+    }
+
+    /** Сколько занял первый ответ после старта (от получения апдейта); -1 — ответа ещё не было. */
+    long firstReplyMs() {
+        return firstReplyMs;
+    }
+
+    // Первый ответ проходит холодный путь целиком — его время показывает, помог ли прогрев
+    private void noteReply(long t0) {
+        if (firstReplyMs >= 0 || !firstReplySeen.compareAndSet(false, true)) return;
+        long now = System.nanoTime();
+        firstReplyMs = (now - t0) / 1_000_000;
+        long ready = readyAtNanos;
+        Log.info("STARTUP", "first reply took {} ms ({} ms after ready)",
+                firstReplyMs, ready == 0 ? "?" : String.valueOf((now - ready) / 1_000_000));
+    }
+
+    // Поток поллинга только раскладывает апдейты по mailbox'ам чатов
     @Override
     public void onUpdateReceived(Update update) {
+        accept(update);
+    }
+
+    /**
+     * Общий вход для поллинга и вебхука. false — апдейт не принят из-за перегрузки
+     * (вебхук в этом случае просит Telegram повторить доставку); отфильтрованные
+     * апдейты считаются принятыми.
+     */
+    boolean accept(Update update) {
+        Log.debug("UPD", "id={} hasMessage={}", update.getUpdateId(), update.hasMessage());
+        Metrics.UPDATES_RECEIVED.increment();
+
+        if (!update.hasMessage()) return true;
+        Message msg = update.getMessage();
+        if (msg.getText() == null) return true;
+
+        // Объявляем до постановки в mailbox: обработчик предыдущего сообщения чата
+        // должен знать, что за ним есть ещё одно, а устаревший ответ — отмениться
+        boolean coalesce = coalescer != null && !commands.matches(msg.getText()) && isAddressedToBot(msg, msg.getText());
+        if (coalesce) coalescer.arrived(msg.getChatId(), msg.getMessageId());
+
+        if (!dispatcher.submit(msg.getChatId(), () -> handleUpdate(update))) {
+            if (coalesce) coalescer.withdraw(msg.getChatId(), msg.getMessageId());
+            Metrics.UPDATES_DROPPED.increment();
+            Log.warn("UPD", "dropped (dispatcher overloaded). id={} chatId={}", update.getUpdateId(), msg.getChatId());
+            return false;
+        }
+        return true;
+    }
+
+    void handleUpdate(Update update) {
         long updateId = update.getUpdateId();
+        long t0 = System.nanoTime();
         try {
-            log("UPD", "id=" + updateId + " hasMessage=" + update.hasMessage());
-
-            if (!update.hasMessage()) return;
             Message msg = update.getMessage();
-            if (msg.getText() == null) return;
-
             long chatId = msg.getChatId();
             Integer msgId = msg.getMessageId();
             String text = msg.getText();
 
-            // 🔥 ========== /help — самая первая команда ==========
-            if (text.equals("/help_random_bot") || text.equals("/start_random_bot")) {
-                showHelp(chatId);
+            if (commands.dispatch(chatId, text)) return;
+
+            // ========== ОБЫЧНЫЕ СООБЩЕНИЯ ==========
+            Log.debug("UPD", "chatId={} msgId={} textLen={}", chatId, msgId, text.length());
+
+            if (coalescer != null && coalescer.isAnnounced(chatId, msgId)) {
+                if (replyCoalesced(msg, chatId, msgId, text)) noteReply(t0);
                 return;
             }
 
-            // 🔥 ========== НОВАЯ КОМАНДА: модель + провайдер одной командой ==========
-            if (text.startsWith("/set_mp_random_bot ")) {
-                String[] parts = text.substring(18).trim().split("\\s+", 2); // максимум 2 части
-                if (parts.length < 1 || parts[0].trim().isEmpty()) {
-                    sendMessage(chatId, "❌ /setModelProvider модель [провайдер]\nПример: /setModelProvider mistralai/mixtral-8x7b-instruct");
+            if (streamReplies) {
+                if (!isAddressedToBot(msg, text)) {
+                    Metrics.UPDATES_IGNORED.increment();
+                    Log.debug("UPD", "ignored by routing. chatId={} msgId={}", chatId, msgId);
                     return;
                 }
-                String newModel = parts[0].trim();
-                String newProvider = parts.length > 1 ? parts[1].trim() : "";
-
-                chatService.setModel(newModel);
-                chatService.setProvider(newProvider.isBlank() ? "" : newProvider);
-
-                String providerStatus = newProvider.isBlank() ? "отключён (любой)" : newProvider;
-                sendMessage(chatId, "✅ Модель: `" + newModel + "`\n✅ Провайдер: `" + providerStatus + "`");
+                Metrics.UPDATES_ROUTED.increment();
+                if (streamReply(msg, chatId, List.of(text), () -> true) == null) return;
+                noteReply(t0);
+                Log.debug("UPD", "streamed. chatId={} msgId={}", chatId, msgId);
                 return;
             }
 
-            // 🔥 ========== КОМАНДЫ УПРАВЛЕНИЯ ==========
-            if (text.equals("/get_settings_random_bot")) {
-                showSettings(chatId);
+            String reply = routeAndReply(msg, text, chatId);
+            if (reply == null || reply.isBlank()) {
+                Metrics.UPDATES_IGNORED.increment();
+                Log.debug("UPD", "ignored by routing. chatId={} msgId={}", chatId, msgId);
                 return;
             }
 
-            if (text.startsWith("/set_temp_random_bot ")) {
-                try {
-                    double newTemp = Double.parseDouble(text.substring(9).trim());
-                    if (newTemp >= 0 && newTemp <= 2) {
-                        chatService.setTemperature(newTemp);
-                        sendMessage(chatId, "✅ Температура: " + newTemp);
-                    } else {
-                        sendMessage(chatId, "❌ Температура 0.0-2.0");
-                    }
-                } catch (NumberFormatException e) {
-                    sendMessage(chatId, "❌ /set_temp_random_bot 0.7");
-                }
-                return;
-            }
+            // Поток обработчика не ждёт Telegram: дальше ответом занимается очередь отправки
+            outbound.sendText(chatId, reply);
+            noteReply(t0);
+            Log.debug("UPD", "queued. chatId={} msgId={}", chatId, msgId);
 
-            if (text.startsWith("/set_top_p_random_bot ")) {
-                try {
-                    double newTopP = Double.parseDouble(text.substring(10).trim());
-                    if (newTopP >= 0 && newTopP <= 1) {
-                        chatService.setTopP(newTopP);
-                        sendMessage(chatId, "✅ Top P: " + newTopP);
-                    } else {
-                        sendMessage(chatId, "❌ Top P 0.0-1.0");
-                    }
-                } catch (NumberFormatException e) {
-                    sendMessage(chatId, "❌ /set_top_p_random_bot 0.8");
-                }
-                return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // У TelegramApiException полезен стек — отдаём исключение последним аргументом
+            if (e instanceof TelegramApiException) Log.error("UPD", "id={} ERROR: {}", updateId, e.getMessage(), e);
+            else Log.error("UPD", "id={} ERROR: {}", updateId, e.getMessage());
+        } finally {
+            Metrics.UPDATE_HANDLE.since(t0);
+        }
+    }
+
+    private CommandRegistry registerCommands(CommandRegistry r) {
+        r.register("help_random_bot", (chatId, none) -> showHelp(chatId));
+        r.register("start_random_bot", (chatId, none) -> showHelp(chatId));
+        r.register("get_settings_random_bot", (chatId, none) -> showSettings(chatId));
+
+        r.register("reset_settings_random_bot", (chatId, none) -> {
+            try {
+                chatService.settings().reset(chatId);
+                sendMessage(chatId, "✅ Настройки чата сброшены к значениям по умолчанию");
+            } catch (SQLException e) {
+                Log.error("SETTINGS", "chatId={} reset failed: {}", chatId, e.getMessage());
+                sendMessage(chatId, "❌ Не удалось сбросить настройки, попробуйте позже");
             }
+        });
+
+        // 🔥 модель + провайдер одной командой
+        r.register("set_mp_random_bot",
+                "/set_mp_random_bot модель [провайдер]\nПример: /set_mp_random_bot mistralai/mixtral-8x7b-instruct",
+                CommandRegistry.wordAndRest(), (chatId, mp) -> {
+                    String newModel = mp[0];
+                    String newProvider = mp[1];
+                    if (!updateSettings(chatId, o -> o.withModel(newModel, newProvider))) return;
+
+                    String providerStatus = newProvider.isBlank() ? "отключён (любой)" : newProvider;
+                    sendMessage(chatId, "✅ Модель: `" + newModel + "`\n✅ Провайдер: `" + providerStatus + "`");
+                });
+
+        r.register("set_temp_random_bot", "/set_temp_random_bot 0.7",
+                CommandRegistry.doubleIn(0, 2, "Температура 0.0-2.0"), (chatId, t) -> {
+                    if (updateSettings(chatId, o -> o.withTemperature(t))) sendMessage(chatId, "✅ Температура: " + t);
+                });
+
+        r.register("set_top_p_random_bot", "/set_top_p_random_bot 0.8",
+                CommandRegistry.doubleIn(0, 1, "Top P 0.0-1.0"), (chatId, p) -> {
+                    if (updateSettings(chatId, o -> o.withTopP(p))) sendMessage(chatId, "✅ Top P: " + p);
+                });
+
+        r.register("set_tokens_random_bot", "/set_tokens_random_bot 80",
+                CommandRegistry.intIn(1, 4096, "Токены 1-4096"), (chatId, n) -> {
+                    if (updateSettings(chatId, o -> o.withMaxTokens(n))) sendMessage(chatId, "✅ Макс. токены: " + n);
+                });
+
+        r.register("set_prompt_random_bot", "/set_prompt_random_bot Новый промпт...",
+                CommandRegistry.nonBlank(), (chatId, prompt) -> {
+                    if (updateSettings(chatId, o -> o.withSystemPrompt(prompt))) {
+                        sendMessage(chatId, "✅ Промпт обновлён (" + prompt.length() + " символов)");
+                    }
+                });
+        return r;
+    }
+
+    // Изменения касаются только этого чата; false — не сохранилось, пользователю уже ответили
+    private boolean updateSettings(long chatId, UnaryOperator<ChatSettings.Overrides> change) {
+        try {
+            chatService.settings().update(chatId, change);
+            return true;
+        } catch (SQLException e) {
+            Log.error("SETTINGS", "chatId={} save failed: {}", chatId, e.getMessage());
+            sendMessage(chatId, "❌ Не удалось сохранить настройки, попробуйте позже");
+            return false;
+        }
+    }
+
+    private void showSettings(long chatId) {
+        SettingsStore store = chatService.settings();
+        ChatSettings s = store.forChat(chatId);
+        StringBuilder info = new StringBuilder(store.isCustomized(chatId)
+                ? "🤖 Настройки (свои для этого чата):\n\n"
+                : "🤖 Настройки (по умолчанию):\n\n");
+
+        info.append("📱 Модель: ").append(s.model()).append("\n");
+        if (!s.providerOnly().isBlank()) {
+            info.append("🏭 Провайдер: ").append(s.providerOnly()).append("\n");
+        } else {
+            info.append("🏭 Провайдер: любой\n");
+        }
+        info.append(String.format("🌡️ Температура: %.1f\n", s.temperature()));
+        info.append(String.format("🎲 Top P: %.1f\n", s.topP()));
+        info.append(String.format("📏 Макс. токены: %d\n", s.maxTokens()));
+        info.append("\n📜 System Prompt:\n").append(s.systemPrompt());
+
+        sendMessage(chatId, info.toString());
+    }
+
+    String routeAndReply(Message msg, String text, long chatId) {
+        if (!isAddressedToBot(msg, text)) return "";
+        Metrics.UPDATES_ROUTED.increment();
+
+        try (AdmissionController.Permit permit = admission.acquire(chatId, senderId(msg))) {
+            if (!permit.admitted()) return busyReply(permit, chatId);
+            String reply = chatService.reply(chatId, text);
+            if (ChatService.UNAVAILABLE_REPLY.equals(reply)) permit.markFailed();
+            return reply;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
+    }
+
+    // Серия сообщений чата → один запрос к LLM (см. MessageCoalescer); true — ответ ушёл
+    private boolean replyCoalesced(Message msg, long chatId, int msgId, String text) throws TelegramApiException {
+        Metrics.UPDATES_ROUTED.increment();
+        MessageCoalescer.Batch batch;
+        try {
+            batch = coalescer.take(chatId, msgId, text);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (batch == null) {
+            Log.debug("UPD", "coalesced into a later message. chatId={} msgId={}", chatId, msgId);
+            return false;
+        }
 
-            if (text.startsWith("/set_tokens_random_bot ")) {
-                try {
-                    int newTokens = Integer.parseInt(text.substring(11).trim());
-                    if (newTokens > 0 && newTokens <= 4096) {
-                        chatService.setMaxTokens(newTokens);
-                        sendMessage(chatId, "✅ Макс. токены: " + newTokens);
-                    } else {
-                        sendMessage(chatId, "❌ Токены 1-4096");
+        List<String> texts = batch.texts();
+        try {
+            if (streamReplies) {
+                if (streamReply(msg, chatId, texts, batch::commit) == null) return false;
+            } else {
+                String reply;
+                try (AdmissionController.Permit permit = admission.acquire(chatId, senderId(msg))) {
+                    if (!permit.admitted()) {
+                        String busy = busyReply(permit, chatId);
+                        if (!busy.isEmpty()) sendMessage(chatId, busy);
+                        return false;
                     }
-                } catch (NumberFormatException e) {
-                    sendMessage(chatId, "❌ /set_tokens_random_bot 80");
+                    reply = chatService.reply(chatId, texts, batch::commit);
+                    if (ChatService.UNAVAILABLE_REPLY.equals(reply)) permit.markFailed();
                 }
-                return;
+                if (!reply.isBlank()) outbound.sendText(chatId, reply);
             }
+            Log.debug("UPD", "replied. chatId={} msgId={} merged={}", chatId, msgId, texts.size());
+            return true;
+        } catch (InterruptedException | CancellationException e) {
+            // Прерывание не от coalescer'а (остановка) — не глотаем
+            if (e instanceof InterruptedException && !batch.cancelled()) Thread.currentThread().interrupt();
+            Log.debug("UPD", "stale reply cancelled. chatId={} merged={}", chatId, texts.size());
+            return false;
+        } finally {
+            coalescer.finish(batch);
+        }
+    }
 
-            if (text.startsWith("/set_prompt_random_bot ")) {
-                String newPrompt = text.substring(11).trim();
-                if (!newPrompt.isBlank()) {
-                    chatService.setSystemDescription(newPrompt);
-                    sendMessage(chatId, "✅ Промпт обновлён (" + newPrompt.length() + " символов)");
-                } else {
-                    sendMessage(chatId, "❌ /set_prompt_random_bot Новый промпт...");
-                }
-                return;
-            }
+    // Пустая строка — молча пропускаем (повторный отказ по rate limit подряд)
+    private String busyReply(AdmissionController.Permit permit, long chatId) {
+        Log.debug("UPD", "not admitted. chatId={} decision={}", chatId, permit.decision());
+        if (!permit.shouldNotify()) return "";
+        return permit.decision() == AdmissionController.Decision.RATE_LIMITED ? RATE_LIMITED_REPLY : BUSY_REPLY;
+    }
 
-            // ========== ОБЫЧНЫЕ СООБЩЕНИЯ ==========
-            log("UPD", "chatId=" + chatId + " msgId=" + msgId + " textLen=" + text.length());
+    private static Long senderId(Message msg) {
+        return msg.getFrom() != null ? msg.getFrom().getId() : null;
+    }
 
-            String reply = routeAndReply(msg, text, chatId);
-            if (reply == null || reply.isBlank()) {
-                log("UPD", "ignored by routing. chatId=" + chatId + " msgId=" + msgId);
-                return;
-            }
+    private boolean isAddressedToBot(Message msg, String text) {
+        if (msg.getChat().isUserChat()) return true;
+        if (mentionsBot(text, msg.getEntities(), botUsername)) return true;
 
-            SendMessage out = SendMessage.builder()
-                    .chatId(chatId)
-                    .text(reply)
-                    .build();
-            execute(out);
-            log("UPD", "sent. chatId=" + chatId + " msgId=" + msgId);
+        Message replyTo = msg.getReplyToMessage();
+        return replyTo != null
+                && replyTo.getFrom() != null
+                && replyTo.getFrom().getId() == getBotIdSafe();
+    }
 
-        } catch (Exception e) {
-            System.err.printf("%s [UPD] id=%d ERROR: %s%n", Instant.now(), updateId, e.getMessage());
-            if (e instanceof TelegramApiException) ((TelegramApiException) e).printStackTrace();
+    /**
+     * Есть ли среди entities упоминание "@username" бота. Telegram сам размечает
+     * упоминания, поэтому текст целиком не просматривается и не копируется.
+     */
+    static boolean mentionsBot(String text, List<MessageEntity> entities, String username) {
+        if (entities == null) return false;
+        int len = username.length();
+        for (int i = 0, n = entities.size(); i < n; i++) {
+            MessageEntity e = entities.get(i);
+            if (!"mention".equals(e.getType()) || e.getLength() != len + 1) continue;
+            int off = e.getOffset();
+            if (off >= 0 && off + len < text.length()
+                    && text.charAt(off) == '@'
+                    && text.regionMatches(true, off + 1, username, 0, len)) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private void showSettings(long chatId) {
-        StringBuilder info = new StringBuilder("🤖 Настройки:\n\n");
-
-        info.append("📱 Модель: ").append(chatService.getModel()).append("\n");
-        if (!chatService.getProviderOnly().isBlank()) {
-            info.append("🏭 Провайдер: ").append(chatService.getProviderOnly()).append("\n");
-        } else {
-            info.append("🏭 Провайдер: любой\n");
+    /**
+     * Плейсхолдер сразу, дальше редактируем его не чаще streamEditIntervalMs.
+     * Слот admission берётся после плейсхолдера: ожидание очереди Telegram не занимает
+     * лимит LLM и не попадает в его замеры. null — не допущен; отказ показан вместо плейсхолдера.
+     */
+    private String streamReply(Message msg, long chatId, List<String> texts, BooleanSupplier commit)
+            throws TelegramApiException, InterruptedException {
+        Integer placeholderId = sendPlaceholder(chatId);
+        try (AdmissionController.Permit permit = admission.acquire(chatId, senderId(msg))) {
+            if (!permit.admitted()) {
+                String busy = busyReply(permit, chatId);
+                if (placeholderId == null) {
+                    if (!busy.isEmpty()) sendMessage(chatId, busy);
+                } else if (busy.isEmpty()) {
+                    deleteMessage(chatId, placeholderId);
+                } else {
+                    editMessage(chatId, placeholderId, busy, STREAM_PLACEHOLDER);
+                }
+                return null;
+            }
+            String reply;
+            if (placeholderId == null) {
+                reply = chatService.reply(chatId, texts, commit);
+                if (!reply.isBlank()) outbound.sendText(chatId, reply);
+            } else {
+                reply = streamInto(chatId, placeholderId, texts, commit);
+            }
+            if (ChatService.UNAVAILABLE_REPLY.equals(reply)) permit.markFailed();
+            return reply;
+        } catch (InterruptedException | CancellationException e) {
+            // Недописанный (или устаревший) ответ убираем — новый придёт отдельным сообщением
+            if (placeholderId != null) deleteMessage(chatId, placeholderId);
+            throw e;
         }
-        info.append(String.format("🌡️ Температура: %.1f\n", chatService.getTemperature()));
-        info.append(String.format("🎲 Top P: %.1f\n", chatService.getTopP()));
-        info.append(String.format("📏 Макс. токены: %d\n", chatService.getMaxTokens()));
-        info.append("\n📜 System Prompt:\n").append(chatService.getSystemDescription());
+    }
 
-        sendMessage(chatId, info.toString());
+    private String streamInto(long chatId, int messageId, List<String> texts, BooleanSupplier commit)
+            throws InterruptedException {
+
+        long intervalNanos = streamEditIntervalMs * 1_000_000L;
+        long[] lastEdit = {System.nanoTime()};
+        String[] shown = {STREAM_PLACEHOLDER};
+
+        String reply = chatService.replyStreaming(chatId, texts, commit, acc -> {
+            long now = System.nanoTime();
+            if (now - lastEdit[0] < intervalNanos) return;
+            String partial = acc.toString();
+            if (partial.isBlank()) return;
+            lastEdit[0] = now;
+            if (editMessage(chatId, messageId, partial, shown[0])) shown[0] = OutboundSender.firstPart(partial);
+        });
+
+        // Плейсхолдер получает первые 4096 символов, продолжение — отдельными сообщениями, один раз
+        List<String> parts = OutboundSender.split(reply.isBlank() ? "…" : reply, OutboundSender.MAX_MESSAGE_LENGTH);
+        editMessage(chatId, messageId, parts.get(0), shown[0]);
+        for (int i = 1; i < parts.size(); i++) sendMessage(chatId, parts.get(i));
+        return reply;
     }
 
-    private String routeAndReply(Message msg, String text, long chatId) {
-        if (msg.getChat().isUserChat()) {
-            return chatService.reply(chatId, text);
+    /**
+     * id плейсхолдера нужен для правок, поэтому только его отправку и ждём.
+     * null — не ушёл за PLACEHOLDER_WAIT_SECONDS: отвечаем без стрима, а сам плейсхолдер,
+     * когда очередь его всё-таки отправит, удаляем. Так же и при прерывании ожидания.
+     */
+    private Integer sendPlaceholder(long chatId) throws TelegramApiException, InterruptedException {
+        CompletableFuture<Serializable> sent = outbound.submit(chatId, SendMessage.builder()
+                .chatId(chatId)
+                .text(STREAM_PLACEHOLDER)
+                .build());
+        try {
+            return ((Message) sent.get(PLACEHOLDER_WAIT_SECONDS, TimeUnit.SECONDS)).getMessageId();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new TelegramApiException("Placeholder not sent: " + cause.getMessage(), cause);
+        } catch (TimeoutException | InterruptedException e) {
+            sent.thenAccept(m -> deleteMessage(chatId, ((Message) m).getMessageId()));
+            if (e instanceof InterruptedException ie) throw ie;
+            Log.warn("UPD", "chatId={} placeholder not sent in {}s, replying without streaming", chatId, PLACEHOLDER_WAIT_SECONDS);
+            return null;
         }
+    }
 
-        String botTag = "@" + botUsername.toLowerCase();
-        boolean isTagged = text.toLowerCase().contains(botTag);
-
-        boolean isReplyToBot = msg.getReplyToMessage() != null
-                && msg.getReplyToMessage().getFrom() != null
-                && msg.getReplyToMessage().getFrom().getId().equals(getBotIdSafe());
+    // Правки во время стрима — только первая часть текста, её и сравниваем
+    private boolean editMessage(long chatId, int messageId, String text, String shown) {
+        String head = OutboundSender.firstPart(text);
+        // Telegram отвечает 400 "message is not modified" на тот же текст
+        if (head.equals(shown)) return false;
+        outbound.editText(chatId, messageId, head);
+        return true;
+    }
 
-        return (isTagged || isReplyToBot) ? chatService.reply(chatId, text) : "";
+    private void deleteMessage(long chatId, int messageId) {
+        outbound.submit(chatId, DeleteMessage.builder()
+                .chatId(chatId)
+                .messageId(messageId)
+                .build());
     }
 
+    // Ошибки отправки логирует сама очередь
     private void sendMessage(long chatId, String text) {
+        outbound.sendText(chatId, text);
+    }
+
+    // Транспорт OutboundSender: все исходящие вызовы Bot API идут через сюда — ради гистограммы и счётчика ошибок
+    private <T extends Serializable, M extends BotApiMethod<T>> T timedExecute(M method) throws TelegramApiException {
+        long t0 = System.nanoTime();
         try {
-            SendMessage message = SendMessage.builder()
-                    .chatId(chatId)
-                    .text(text)
-                    .build();
-            execute(message);
-        } catch (TelegramApiException e) {
-            log("ERR", "sendMessage failed: " + e.getMessage());
+            return execute(method);
+        } catch (TelegramApiException | RuntimeException e) {
+            Metrics.TELEGRAM_SEND_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.TELEGRAM_SEND.since(t0);
         }
     }
 
@@ -213,8 +546,9 @@ public class TgBotApplication extends TelegramLongPollingBot {
         📋 Команды управления:
         /help_random_bot или /start_random_bot — это меню
         /get_settings_random_bot — показать текущие настройки
+        /reset_settings_random_bot — вернуть настройки по умолчанию
 
-        🔧 Настройки LLM:
+        🔧 Настройки LLM (действуют только в этом чате):
         /set_mp_random_bot модель [провайдер] — одной командой!
         /set_temp_random_bot <0-2> — 0.7
         /set_top_p_random_bot <0-1> — 0.8
@@ -235,8 +569,4 @@ public class TgBotApplication extends TelegramLongPollingBot {
 
         sendMessage(chatId, helpText);
     }
-
-    private void log(String tag, String msg) {
-        System.out.printf("%s [%s] [%s] %s%n", Instant.now(), tag, Thread.currentThread().getName(), msg);
-    }
 }
@@ -0,0 +1,27 @@
+package com.example.sharipov.tgbot;
+
+/**
+ * Локальная оценка числа токенов без обращения к токенизатору модели.
+ * Оценка должна быть монотонной по длине текста — на это опирается обрезка.
+ */
+@FunctionalInterface
+public interface TokenEstimator {
+
+    int estimate(String text);
+
+    /**
+     * Эвристика для BPE-токенизаторов: ~4 символа ASCII на токен, кириллица
+     * и прочее режутся мельче — ~2 символа на токен.
+     */
+    static TokenEstimator approximate() {
+        return text -> {
+            if (text == null || text.isEmpty()) return 0;
+            int ascii = 0, other = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) < 128) ascii++;
+                else other++;
+            }
+            return (ascii + 3) / 4 + (other + 1) / 2;
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.sharipov.tgbot;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Раздаёт апдейты по чатам: у каждого чата свой последовательный mailbox,
+ * разные чаты обрабатываются параллельно. Общее число принятых, но ещё
+ * не обработанных задач ограничено maxInFlight.
+ */
+public class UpdateDispatcher implements AutoCloseable {
+
+    private static final class Mailbox {
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+    }
+
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Semaphore slots;
+    private final int maxInFlight;
+    private final Duration submitTimeout;
+
+    public UpdateDispatcher(int maxInFlight, Duration submitTimeout) {
+        this.maxInFlight = maxInFlight;
+        this.submitTimeout = submitTimeout;
+        this.slots = new Semaphore(maxInFlight);
+        this.executor = newTaskExecutor("upd");
+        Log.info("DISPATCH", "Started. maxInFlight={} submitTimeoutMs={}", maxInFlight, submitTimeout.toMillis());
+    }
+
+    /**
+     * Ставит задачу в очередь чата. Блокирует вызывающий поток не дольше submitTimeout,
+     * если лимит maxInFlight исчерпан; false — задача отброшена.
+     */
+    public boolean submit(long chatId, Runnable task) {
+        try {
+            if (!slots.tryAcquire(submitTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                Log.warn("DISPATCH", "Rejected (overloaded). chatId={} inFlight={}", chatId, inFlight());
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        boolean[] start = {false};
+        mailboxes.compute(chatId, (id, box) -> {
+            if (box == null) {
+                box = new Mailbox();
+                start[0] = true;
+            }
+            box.queue.add(task);
+            return box;
+        });
+
+        if (start[0]) {
+            try {
+                executor.execute(() -> drain(chatId));
+            } catch (RuntimeException e) {
+                // executor закрыт — выбрасываем всё, что успели положить
+                Mailbox box = mailboxes.remove(chatId);
+                if (box != null) slots.release(box.queue.size());
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    private void drain(long chatId) {
+        Runnable[] next = new Runnable[1];
+        while (true) {
+            next[0] = null;
+            // Пустой mailbox удаляется атомарно — следующий submit запустит новый drain
+            mailboxes.computeIfPresent(chatId, (id, box) -> {
+                next[0] = box.queue.poll();
+                return next[0] == null ? null : box;
+            });
+            if (next[0] == null) return;
+
+            try {
+                next[0].run();
+            } catch (Throwable t) {
+                Log.error("DISPATCH", "chatId={} task ERROR: {}", chatId, t);
+            } finally {
+                slots.release();
+            }
+        }
+    }
+
+    public int inFlight() {
+        return maxInFlight - slots.availablePermits();
+    }
+
+    public int activeChats() {
+        return mailboxes.size();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        Log.info("DISPATCH", "Closed. pending={}", inFlight());
+    }
+
+    /**
+     * Виртуальные потоки, если рантайм их поддерживает (Java 21+), иначе — кэширующий пул.
+     * Число потоков в пуле всё равно ограничено числом выданных слотов.
+     */
+    static ExecutorService newTaskExecutor(String prefix) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemonFactory(prefix));
+        }
+    }
+
+    static ThreadFactory daemonFactory(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.sharipov.tgbot;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Приём апдейтов вебхуком вместо long polling. Встроенный HTTP-сервер без TLS —
+ * рассчитан на работу за reverse proxy, который терминирует HTTPS для Telegram.
+ *
+ * Поток-акцептор только принимает соединения; разбор тела и постановка апдейта
+ * в UpdateDispatcher идут в отдельном пуле. Ответ 200 уходит сразу после постановки
+ * в очередь, обработка апдейта идёт уже в mailbox'е чата. При перегрузке — 503,
+ * Telegram повторит доставку сам.
+ */
+public class WebhookServer implements AutoCloseable {
+
+    static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final AbsSender bot;
+    private final Predicate<Update> intake;
+    private final String secretToken; // пустой — без проверки
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public WebhookServer(TgBotApplication bot, String host, int port, String path, String secretToken, int threads)
+            throws IOException {
+        this(bot, bot::accept, host, port, path, secretToken, threads);
+    }
+
+    /** bot — через кого регистрировать вебхук; intake — куда отдавать апдейты (ShardDispatcher). */
+    public WebhookServer(AbsSender bot, Predicate<Update> intake, String host, int port, String path,
+                         String secretToken, int threads) throws IOException {
+        this.bot = bot;
+        this.intake = intake;
+        this.secretToken = secretToken == null ? "" : secretToken;
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 1024);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), UpdateDispatcher.daemonFactory("webhook"));
+        server.setExecutor(executor);
+        server.createContext(path, this::handle);
+        server.start();
+        Log.info("WEBHOOK", "Listening on {}:{}{} threads={}", host, server.getAddress().getPort(), path, threads);
+    }
+
+    /** Сообщает Telegram публичный адрес вебхука (тот, что смотрит наружу через прокси). */
+    public void register(String publicUrl, int maxConnections) throws TelegramApiException {
+        SetWebhook.SetWebhookBuilder req = SetWebhook.builder()
+                .url(publicUrl)
+                .maxConnections(maxConnections);
+        if (!secretToken.isEmpty()) req.secretToken(secretToken);
+        bot.execute(req.build());
+        Log.info("WEBHOOK", "setWebhook ok. url={} maxConnections={}", publicUrl, maxConnections);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!secretToken.isEmpty() && !secretMatches(ex.getRequestHeaders().getFirst(SECRET_HEADER))) {
+                Log.warn("WEBHOOK", "Rejected request with bad secret from {}", ex.getRemoteAddress());
+                ex.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            Update update;
+            try (InputStream in = ex.getRequestBody()) {
+                update = MAPPER.readValue(in, Update.class);
+            } catch (IOException e) {
+                // Повтор не поможет — отвечаем 400, Telegram не будет слать это снова бесконечно
+                Log.warn("WEBHOOK", "Bad update body: {}", e.getMessage());
+                ex.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            ex.sendResponseHeaders(intake.test(update) ? 200 : 503, -1);
+        }
+    }
+
+    private boolean secretMatches(String header) {
+        return header != null && MessageDigest.isEqual(
+                header.getBytes(StandardCharsets.UTF_8), secretToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdownNow();
+        Log.info("WEBHOOK", "Closed.");
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChatHistoryRepository под параллельной нагрузкой: чтения из пула соединений
+ * идут одновременно с записью и видят согласованный хвост истории.
+ */
+@Timeout(value = 60, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+class ChatHistoryRepositoryTest {
+
+    private static final int CHATS = 16;
+    private static final int PER_CHAT = 150;
+    private static final int LIMIT = 20;
+    private static final int READER_THREADS = 8;
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 4, 8})
+    void concurrentReadsSeeConsistentTailsWhileWriting(int readerCount) throws Exception {
+        ChatHistoryRepository repo = new ChatHistoryRepository(dir.resolve("history.db").toString(), readerCount);
+        repo.init();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+        try {
+            List<Thread> readers = new ArrayList<>();
+            for (int t = 0; t < READER_THREADS; t++) {
+                Thread th = new Thread(() -> {
+                    int[] seen = new int[CHATS]; // последний номер, который этот поток уже видел
+                    try {
+                        while (writing.get()) {
+                            int chat = ThreadLocalRandom.current().nextInt(CHATS);
+                            int last = checkTail(chat, repo.loadLastMessages(chat, LIMIT), violations);
+                            if (last < seen[chat]) violations.add("chat " + chat + " went back from " + seen[chat] + " to " + last);
+                            seen[chat] = last;
+                            reads.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        violations.add(e.toString());
+                    }
+                }, "reader-" + t);
+                readers.add(th);
+                th.start();
+            }
+
+            long t0 = System.nanoTime();
+            for (int i = 1; i <= PER_CHAT; i++) {
+                for (int chat = 0; chat < CHATS; chat++) repo.append(chat, i % 2 == 1 ? "user" : "assistant", chat + ":" + i);
+            }
+            writing.set(false);
+            for (Thread th : readers) th.join();
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("readers=%d threads=%d reads=%d (%.0f/s) during %d writes%n",
+                    readerCount, READER_THREADS, reads.get(), reads.get() / seconds, CHATS * PER_CHAT);
+
+            assertTrue(violations.isEmpty(), () -> violations.size() + " violations, first: " + violations.peek());
+            assertTrue(reads.get() > 0);
+            for (int chat = 0; chat < CHATS; chat++) {
+                assertEquals(PER_CHAT, checkTail(chat, repo.loadLastMessages(chat, LIMIT), violations));
+                assertEquals(PER_CHAT, repo.lastIndex(chat));
+            }
+            assertTrue(violations.isEmpty(), () -> "final read: " + violations.peek());
+        } finally {
+            writing.set(false);
+            repo.close();
+        }
+    }
+
+    // Хвост чата: только его сообщения, подряд, по возрастанию, роли чередуются. Возвращает последний номер
+    private static int checkTail(int chat, List<HistoryMessage> tail, ConcurrentLinkedQueue<String> violations) {
+        if (tail.size() > LIMIT) violations.add("chat " + chat + " returned " + tail.size() + " rows");
+        int prev = -1;
+        for (HistoryMessage m : tail) {
+            String[] parts = m.content().split(":");
+            int n = Integer.parseInt(parts[1]);
+            if (Integer.parseInt(parts[0]) != chat) violations.add("chat " + chat + " got " + m.content());
+            if (prev >= 0 && n != prev + 1) violations.add("chat " + chat + " gap " + prev + " -> " + n);
+            if (!m.role().equals(n % 2 == 1 ? "user" : "assistant")) violations.add("chat " + chat + " role of " + n);
+            prev = n;
+        }
+        if (tail.size() < Math.min(LIMIT, prev)) {
+            violations.add("chat " + chat + " short tail " + tail.size() + " ending at " + prev);
+        }
+        return Math.max(prev, 0);
+    }
+
+    @Test
+    void closeLetsReadsInFlightFinish() throws Exception {
+        ChatHistoryRepository repo = new ChatHistoryRepository(dir.resolve("history.db").toString(), 4);
+        repo.init();
+        for (int i = 1; i <= 200; i++) repo.append(1, "user", "сообщение " + i);
+
+        int threads = 4;
+        AtomicLong reads = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(threads);
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread th = new Thread(() -> {
+                started.countDown();
+                try {
+                    while (true) {
+                        assertEquals(100, repo.loadLastMessages(1, 100).size());
+                        reads.incrementAndGet();
+                    }
+                } catch (SQLException e) {
+                    // Единственный допустимый отказ — новое чтение после close
+                    if (!"Repository is closed".equals(e.getMessage())) failures.add(e.toString());
+                } catch (Throwable e) {
+                    failures.add(e.toString());
+                }
+            }, "reader-" + t);
+            readers.add(th);
+            th.start();
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        while (reads.get() < 100) TimeUnit.MILLISECONDS.sleep(1);
+
+        repo.close();
+        for (Thread th : readers) th.join();
+        assertTrue(failures.isEmpty(), () -> failures.size() + " failed reads, first: " + failures.peek());
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.sharipov.tgbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandRegistryTest {
+
+    private final List<String> log = new ArrayList<>();
+    private final CommandRegistry registry = new CommandRegistry("random_bot", (chatId, text) -> log.add("reply " + text))
+            .register("help_random_bot", (chatId, none) -> log.add("help"))
+            // Одна длина, первая и последняя буква — имена различаются только серединой
+            .register("set_tokens_random_bot", "/set_tokens_random_bot 80",
+                    CommandRegistry.intIn(1, 4096, "1..4096"), (chatId, v) -> log.add("tokens " + v))
+            .register("set_prompt_random_bot", "/set_prompt_random_bot текст",
+                    CommandRegistry.nonBlank(), (chatId, v) -> log.add("prompt " + v));
+
+    @Test
+    void matchesOnlyOwnCommands() {
+        assertTrue(registry.matches("/help_random_bot"));
+        assertTrue(registry.matches("/help_random_bot@Random_Bot"));
+        assertTrue(registry.matches("/set_tokens_random_bot\n80"));
+        assertFalse(registry.matches("/help_random_bot@other_bot"));
+        assertFalse(registry.matches("/help_random_bot@random_botx"));
+        assertFalse(registry.matches("/help"));
+        assertFalse(registry.matches("/"));
+        assertFalse(registry.matches("/@random_bot"));
+        assertFalse(registry.matches("help_random_bot"));
+        assertFalse(registry.matches("обычное сообщение"));
+    }
+
+    @Test
+    void dispatchesWithParsedArgs() throws Exception {
+        assertTrue(registry.dispatch(1, "/set_tokens_random_bot 80"));
+        assertTrue(registry.dispatch(1, "/set_prompt_random_bot@random_bot  Ты учитель "));
+        assertTrue(registry.dispatch(1, "/set_tokens_random_bot 9000"));
+        assertTrue(registry.dispatch(1, "/set_tokens_random_bot"));
+        assertTrue(registry.dispatch(1, "/help_random_bot лишний текст"));
+        assertFalse(registry.dispatch(1, "/unknown"));
+        assertEquals(List.of("tokens 80", "prompt Ты учитель", "reply ❌ 1..4096",
+                "reply ❌ /set_tokens_random_bot 80", "help"), log);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.sharipov.tgbot;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class ContentCodecTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 2, 6, 7, ContentCodec.DEFAULT_MIN_BYTES})
+    void roundTripsAnyLengthAtAnyThreshold(int minBytes) throws Exception {
+        ContentCodec codec = new ContentCodec(minBytes);
+        List<String> texts = new ArrayList<>(List.of("", "?", "ы", "ok!", "aaaaaa", "aaaaaaa"));
+        // Ровно на пороге и вокруг него
+        for (int n = Math.max(0, minBytes - 1); n <= minBytes + 1; n++) texts.add("a".repeat(n));
+        texts.add("Привет! ".repeat(40));
+
+        for (String text : texts) {
+            Object stored = codec.encode(text);
+            assertEquals(text, codec.decode(stored), () -> "minBytes=" + minBytes + " len=" + text.length());
+        }
+        // Длинный повторяющийся текст действительно сжимается
+        assertInstanceOf(byte[].class, codec.encode("Привет! ".repeat(40)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1})
+    void shortTextsStayText(int minBytes) {
+        ContentCodec codec = new ContentCodec(minBytes);
+        for (String text : List.of("", "?", "aaaaaa")) {
+            assertEquals(text, codec.encode(text), () -> text.getBytes(StandardCharsets.UTF_8).length + " bytes");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryCacheTest {
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    // Чтение чата 1 из хранилища висит, пока тест не отпустит
+    private final InMemoryHistoryStore store = new InMemoryHistoryStore() {
+        @Override
+        public List<HistoryMessage> loadLastMessages(long chatId, int limit) {
+            if (chatId == 1) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.loadLastMessages(chatId, limit);
+        }
+    };
+    private final HistoryWriter writer = new HistoryWriter(store, 1000, 100, Duration.ofMillis(5));
+
+    @AfterEach
+    void close() {
+        release.countDown();
+        writer.close();
+    }
+
+    @Test
+    @Timeout(value = 20, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void busyChatDoesNotStallEviction() throws Exception {
+        store.init();
+        store.append(1, "user", "старое");
+        HistoryCache cache = new HistoryCache(store, writer, 10, 2, 1 << 20, Duration.ofHours(1));
+
+        CompletableFuture<List<HistoryMessage>> slowRead = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.loadLastMessages(1, 5);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // Чат 1 — самый давний в LRU: этот поток вытесняет его и ждёт, пока чтение закончится
+        CompletableFuture<Void> evictor = CompletableFuture.runAsync(() -> {
+            cache.append(2, "user", "m2");
+            cache.append(3, "user", "m3");
+        });
+        waitUntil(() -> cache.size() == 2 && cache.evictions() == 0 && !evictor.isDone());
+
+        // ...но остальные чаты кэш обслуживает
+        CompletableFuture<Void> others = CompletableFuture.runAsync(() -> {
+            try {
+                for (long chat = 4; chat <= 8; chat++) {
+                    cache.append(chat, "user", "m" + chat);
+                    cache.loadLastMessages(chat, 5);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        others.get(5, TimeUnit.SECONDS);
+        assertTrue(cache.size() <= 2, cache.stats());
+
+        release.countDown();
+        assertEquals("старое", slowRead.get(5, TimeUnit.SECONDS).get(0).content());
+        evictor.get(5, TimeUnit.SECONDS);
+        // Вытесненный чат читается заново и видит всё записанное
+        cache.append(1, "assistant", "новое");
+        assertEquals(List.of("старое", "новое"),
+                cache.loadLastMessages(1, 5).stream().map(HistoryMessage::content).toList());
+    }
+
+    private static void waitUntil(BooleanSupplier c) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!c.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+}
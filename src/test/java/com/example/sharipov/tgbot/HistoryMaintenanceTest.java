@@ -0,0 +1,44 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.PruneBatch;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryMaintenanceTest {
+
+    @Test
+    void scheduledTasksSurviveRuntimeExceptions() throws Exception {
+        AtomicInteger sweeps = new AtomicInteger();
+        AtomicInteger checkpoints = new AtomicInteger();
+        InMemoryHistoryStore store = new InMemoryHistoryStore() {
+            @Override
+            public PruneBatch pruneToLast(long afterChatId, int maxChats, int keepLast) {
+                sweeps.incrementAndGet();
+                throw new IllegalStateException("broken index");
+            }
+
+            @Override
+            public long journalBytes() {
+                checkpoints.incrementAndGet();
+                throw new IllegalStateException("broken journal");
+            }
+        };
+        HistoryMaintenance.Options options = new HistoryMaintenance.Options(10, Duration.ZERO, 100, 1000,
+                Duration.ofMillis(20), Duration.ofMillis(20), Duration.ofSeconds(1), 1 << 20, 1 << 20);
+        HistoryMaintenance maintenance = new HistoryMaintenance(store, options);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (sweeps.get() < 3 || checkpoints.get() < 3) {
+                assertTrue(System.nanoTime() < deadline, "sweeps=" + sweeps + " checkpoints=" + checkpoints);
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } finally {
+            maintenance.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import com.example.sharipov.tgbot.HistoryStore.PruneBatch;
+import com.example.sharipov.tgbot.HistoryStore.Summary;
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Контракт HistoryStore: одни и те же проверки на всех движках (sqlite, log, memory).
+ */
+class HistoryStoreContractTest {
+
+    @TempDir
+    Path dir;
+
+    private HistoryStore open(String engine) throws Exception {
+        HistoryStore s = switch (engine) {
+            case "sqlite" -> new ChatHistoryRepository(dir.resolve("history.db").toString(), 2);
+            case "log" -> new SegmentLogStore(dir.resolve("log"), 64 * 1024);
+            case "memory" -> new InMemoryHistoryStore();
+            default -> throw new IllegalArgumentException(engine);
+        };
+        s.init();
+        return s;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log", "memory"})
+    void appendAndLoad(String engine) throws Exception {
+        try (HistoryStore s = open(engine)) {
+            for (int i = 1; i <= 30; i++) s.append(1, i % 2 == 1 ? "user" : "assistant", "сообщение " + i);
+            assertEquals(30, s.lastIndex(1));
+            List<HistoryMessage> last = s.loadLastMessages(1, 5);
+            assertEquals(List.of("сообщение 26", "сообщение 27", "сообщение 28", "сообщение 29", "сообщение 30"), contents(last));
+            assertEquals("assistant", last.get(0).role());
+            assertEquals("user", last.get(1).role());
+            assertEquals(30, s.loadLastMessages(1, 100).size(), "limit above size returns all");
+            assertEquals(List.of("сообщение 11", "сообщение 12", "сообщение 13"), contents(s.loadRange(1, 10, 13)));
+            assertTrue(s.loadRange(1, 30, 40).isEmpty(), "range past the end");
+            assertTrue(s.loadLastMessages(999, 5).isEmpty());
+            assertEquals(0, s.lastIndex(999));
+
+            String big = "x".repeat(20_000) + "ё";
+            s.append(1, "user", big);
+            assertEquals(big, s.loadLastMessages(1, 1).get(0).content());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log", "memory"})
+    void batchAndTrim(String engine) throws Exception {
+        try (HistoryStore s = open(engine)) {
+            List<WriteOp> ops = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                ops.add(WriteOp.append(2, "user", "a" + i));
+                ops.add(WriteOp.append(3, "user", "b" + i));
+            }
+            ops.add(WriteOp.trim(2, 4));
+            ops.add(WriteOp.append(2, "assistant", "a11"));
+            s.writeBatch(ops);
+            // trim внутри пачки режет только то, что записано до него
+            assertEquals(List.of("a7", "a8", "a9", "a10", "a11"), contents(s.loadLastMessages(2, 100)));
+            assertEquals(11, s.lastIndex(2));
+            assertEquals(10, s.lastIndex(3));
+
+            s.trimToLast(3, 3);
+            assertEquals(List.of("b8", "b9", "b10"), contents(s.loadLastMessages(3, 100)));
+            s.trimToLast(3, 0);
+            assertTrue(s.loadLastMessages(3, 100).isEmpty());
+            s.append(3, "user", "b11");
+            assertEquals(11, s.lastIndex(3), "indexes are not reused after trim");
+            assertEquals(List.of("b11"), contents(s.loadRange(3, 0, 100)));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log", "memory"})
+    void summaries(String engine) throws Exception {
+        try (HistoryStore s = open(engine)) {
+            assertNull(s.loadSummary(4));
+            for (int i = 1; i <= 6; i++) s.append(4, "user", "c" + i);
+            s.saveSummary(4, new Summary("первая сводка", 3));
+            s.saveSummary(4, new Summary("вторая сводка", 5));
+            assertEquals(new Summary("вторая сводка", 5), s.loadSummary(4));
+            s.trimToLast(4, 0);
+            assertEquals(5, s.loadSummary(4).uptoIndex(), "summary outlives trimmed messages");
+            s.saveSummary(5, new Summary("без сообщений", 9));
+            s.append(5, "user", "d");
+            assertEquals(10, s.lastIndex(5), "summary reserves indexes up to uptoIndex");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log", "memory"})
+    void pruning(String engine) throws Exception {
+        try (HistoryStore s = open(engine)) {
+            for (long chat = 10; chat < 20; chat++) {
+                for (int i = 1; i <= 8; i++) s.append(chat, "user", "m" + i);
+            }
+            assertEquals(new PruneBatch(13, 4, 20), s.pruneToLast(0, 4, 3));
+            assertEquals(new PruneBatch(19, 6, 30), s.pruneToLast(13, 100, 3));
+            PruneBatch b = s.pruneToLast(19, 100, 3);
+            assertEquals(0, b.chats());
+            assertEquals(0, b.deleted());
+            assertEquals(List.of("m6", "m7", "m8"), contents(s.loadLastMessages(15, 100)));
+
+            long future = System.currentTimeMillis() / 1000 + 60;
+            assertEquals(0, s.pruneOlderThan(future - 3600, 100));
+            assertEquals(7, s.pruneOlderThan(future, 7), "respects the limit");
+            assertEquals(23, s.pruneOlderThan(future, 1000));
+            assertTrue(s.loadLastMessages(19, 100).isEmpty());
+            assertEquals(8, s.lastIndex(19), "indexes survive pruning");
+            s.reclaimSpace(1 << 20);
+            s.checkpoint(true);
+            assertEquals(0, s.journalBytes(), "checkpoint drains the journal");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log", "memory"})
+    void clearAll(String engine) throws Exception {
+        try (HistoryStore s = open(engine)) {
+            s.append(1, "user", "a");
+            s.saveSummary(1, new Summary("s", 1));
+            s.clearAll();
+            assertEquals(0, s.lastIndex(1));
+            assertTrue(s.loadLastMessages(1, 10).isEmpty());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"sqlite", "log"})
+    void survivesReopen(String engine) throws Exception {
+        try (HistoryStore s = open(engine)) {
+            s.append(7, "user", "переживает перезапуск");
+        }
+        try (HistoryStore s = open(engine)) {
+            assertEquals(1, s.lastIndex(7));
+            assertEquals("переживает перезапуск", s.loadLastMessages(7, 5).get(0).content());
+        }
+    }
+
+    static List<String> contents(List<HistoryMessage> messages) {
+        List<String> out = new ArrayList<>(messages.size());
+        for (HistoryMessage m : messages) out.add(m.content());
+        return out;
+    }
+}
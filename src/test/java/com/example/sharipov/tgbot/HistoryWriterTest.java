@@ -0,0 +1,92 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.HistoryMessage;
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(value = 30, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+class HistoryWriterTest {
+
+    // Сколько следующих writeBatch упадёт
+    private final AtomicInteger failures = new AtomicInteger();
+    private final InMemoryHistoryStore store = new InMemoryHistoryStore() {
+        @Override
+        public void writeBatch(List<WriteOp> ops) {
+            if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) throw new IllegalStateException("disk busy");
+            super.writeBatch(ops);
+        }
+    };
+    private final HistoryWriter writer = new HistoryWriter(store, 1000, 100, Duration.ofMillis(5));
+
+    @AfterEach
+    void close() {
+        writer.close();
+    }
+
+    @Test
+    void retriesTransientFailures() throws SQLException {
+        failures.set(3);
+        writer.append(1, "user", "a");
+        writer.append(2, "user", "b");
+        writer.flush();
+        assertEquals(1, store.lastIndex(1));
+        assertEquals(1, store.lastIndex(2));
+        assertTrue(writer.stats().contains("failedOps=0"), writer.stats());
+    }
+
+    @Test
+    void lostBatchInvalidatesCachedChats() throws Exception {
+        HistoryCache cache = new HistoryCache(store, writer, 10, 100, 1 << 20, Duration.ofHours(1));
+        ConcurrentLinkedQueue<Long> lost = new ConcurrentLinkedQueue<>();
+        writer.onLost(chatId -> {
+            lost.add(chatId);
+            cache.invalidate(chatId);
+        });
+        cache.append(1, "user", "сохранено");
+        assertEquals(1, cache.loadLastMessages(1, 10).size());
+        assertTrue(cache.loadLastMessages(3, 10).isEmpty());
+
+        failures.set(Integer.MAX_VALUE);
+        cache.append(1, "assistant", "потеряно");
+        cache.append(2, "user", "потеряно");
+        cache.append(3, "user", "потеряно");
+        assertEquals(List.of("потеряно"), contents(cache.loadLastMessages(3, 10)));
+        // Промах: чтение ждёт flush под блокировкой записи кэша, а уведомление о потере
+        // invalidate'ит эту же запись — они не должны сцепиться
+        cache.invalidate(1);
+        assertEquals(List.of("сохранено"), contents(cache.loadLastMessages(1, 10)));
+        waitUntil(() -> lost.size() == 3);
+        failures.set(0);
+
+        assertEquals(List.of(1L, 2L, 3L), List.copyOf(lost));
+        assertEquals(List.of("сохранено"), contents(cache.loadLastMessages(1, 10)));
+        assertTrue(cache.loadLastMessages(2, 10).isEmpty());
+        assertTrue(cache.loadLastMessages(3, 10).isEmpty(), "lost message dropped from the cache");
+        assertTrue(writer.stats().contains("failedOps=3"), writer.stats());
+    }
+
+    private static List<String> contents(List<HistoryMessage> messages) {
+        return messages.stream().map(HistoryMessage::content).toList();
+    }
+
+    private static void waitUntil(BooleanSupplier c) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!c.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.sharipov.tgbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCacheTest {
+
+    private final ResponseCache cache = new ResponseCache(100, Duration.ofMinutes(1));
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CompletableFuture<String> load(CompletableFuture<String> call) {
+        loads.incrementAndGet();
+        return call;
+    }
+
+    @Test
+    void identicalRequestsShareOneCall() throws Exception {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> a = cache.getOrLoadAsync("k", () -> load(call));
+        CompletableFuture<String> b = cache.getOrLoadAsync("k", () -> load(call));
+        call.complete("ответ");
+        assertEquals("ответ", a.get(1, TimeUnit.SECONDS));
+        assertEquals("ответ", b.get(1, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals("ответ", cache.getOrLoadAsync("k", () -> load(new CompletableFuture<>())).get());
+        assertEquals(1, loads.get(), "served from the cache");
+    }
+
+    @Test
+    void oneCallerCancellingDoesNotCancelOthers() throws Exception {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> first = cache.getOrLoadAsync("k", () -> load(call));
+        CompletableFuture<String> second = cache.getOrLoadAsync("k", () -> load(call));
+        CompletableFuture<String> third = cache.getOrLoadAsync("k", () -> load(call));
+
+        first.cancel(true);
+        third.cancel(true);
+        assertFalse(call.isCancelled(), "second still waits");
+        call.complete("ответ");
+        assertEquals("ответ", second.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void lastCallerLeavingCancelsTheCall() {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> first = cache.getOrLoadAsync("k", () -> load(call));
+        CompletableFuture<String> second = cache.getOrLoadAsync("k", () -> load(call));
+        second.cancel(true);
+        first.cancel(true);
+        assertTrue(call.isCancelled());
+
+        // Следующий одинаковый запрос начинает новый вызов, а не получает чужую отмену
+        CompletableFuture<String> again = new CompletableFuture<>();
+        CompletableFuture<String> next = cache.getOrLoadAsync("k", () -> load(again));
+        assertEquals(2, loads.get());
+        again.complete("ответ");
+        assertEquals("ответ", next.join());
+    }
+
+    @Test
+    void failureReachesEveryCaller() {
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> a = cache.getOrLoadAsync("k", () -> load(call));
+        CompletableFuture<String> b = cache.getOrLoadAsync("k", () -> load(call));
+        call.completeExceptionally(new IllegalStateException("LLM down"));
+        assertTrue(a.isCompletedExceptionally() && b.isCompletedExceptionally());
+        assertThrows(CancellationException.class, () -> {
+            CompletableFuture<String> c = cache.getOrLoadAsync("k", () -> load(new CompletableFuture<>()));
+            c.cancel(true);
+            c.join();
+        });
+        assertEquals(2, loads.get(), "errors are not cached");
+    }
+
+    @Test
+    @Timeout(value = 10, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void syncLoaderErrorReleasesWaiters() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch waiting = new CountDownLatch(1);
+        CompletableFuture<String> owner = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.getOrLoad("k", () -> {
+                    loading.countDown();
+                    waiting.await();
+                    throw new StackOverflowError("loader");
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        CompletableFuture<String> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.getOrLoad("k", () -> "чужой ответ");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // Второй вызов должен успеть прицепиться к первому
+        while (cache.stats().contains("coalesced=0")) TimeUnit.MILLISECONDS.sleep(1);
+        waiting.countDown();
+
+        ExecutionException ownerError = assertThrows(ExecutionException.class, () -> owner.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(StackOverflowError.class, ownerError.getCause());
+        ExecutionException waiterError = assertThrows(ExecutionException.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(StackOverflowError.class, waiterError.getCause());
+        assertEquals("ответ", cache.getOrLoad("k", () -> "ответ"), "the failed call left no in-flight entry");
+    }
+
+    @Test
+    @Timeout(value = 10, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void interruptedOwnerDoesNotCancelOtherWaiters() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CompletableFuture<Throwable> ownerResult = new CompletableFuture<>();
+        // Владелец — обработчик чата, чей ответ MessageCoalescer признал устаревшим
+        Thread owner = new Thread(() -> {
+            try {
+                cache.getOrLoad("k", () -> {
+                    loading.countDown();
+                    new CountDownLatch(1).await();
+                    return "не дождались";
+                });
+                ownerResult.complete(null);
+            } catch (Throwable e) {
+                ownerResult.complete(e);
+            }
+        });
+        owner.start();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        // Тот же запрос из другого чата
+        CompletableFuture<String> other = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.getOrLoad("k", () -> "свой ответ");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        CompletableFuture<String> otherAsync = cache.getOrLoadAsync("k", () -> load(CompletableFuture.completedFuture("асинхронный")));
+        while (!cache.stats().contains("coalesced=2")) TimeUnit.MILLISECONDS.sleep(1);
+        owner.interrupt();
+
+        assertInstanceOf(InterruptedException.class, ownerResult.get(5, TimeUnit.SECONDS));
+        assertEquals("свой ответ", other.get(5, TimeUnit.SECONDS));
+        assertTrue(Set.of("свой ответ", "асинхронный").contains(otherAsync.get(5, TimeUnit.SECONDS)));
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.sharipov.tgbot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Отмена асинхронного запроса RouterClient обрывает HTTP-обмен: заглушка отдаёт заголовки
+ * и тянет тело, пока клиент не закроет соединение, и считает такие обрывы.
+ */
+class RouterClientCancelTest {
+
+    private static final byte[] BODY = "{\"model\":\"test\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}],\"stream\":false}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private ExecutorService clientThreads;
+    private RouterClient client;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    // Сколько тянуть ответ; 0 — ответить сразу
+    private volatile long hangMs = 10_000;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        serverThreads = Executors.newCachedThreadPool(UpdateDispatcher.daemonFactory("stub-llm"));
+        server.setExecutor(serverThreads);
+        server.createContext("/", this::handle);
+        server.start();
+        clientThreads = Executors.newFixedThreadPool(2, UpdateDispatcher.daemonFactory("llm-http"));
+        client = new RouterClient("http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/chat/completions",
+                "test-key", Duration.ofSeconds(2), "https://t.me/test", "TgBotTest",
+                new RouterClient.Options(0, Duration.ofMillis(500), 1, Duration.ofMillis(50), Duration.ofMillis(200),
+                        100, Duration.ofSeconds(1)),
+                clientThreads);
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        clientThreads.shutdownNow();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        if ("HEAD".equals(ex.getRequestMethod())) {
+            ex.sendResponseHeaders(405, -1);
+            ex.close();
+            return;
+        }
+        ex.getRequestBody().readAllBytes();
+        requests.increment();
+        try {
+            ex.getResponseHeaders().add("Content-Type", "application/json");
+            ex.sendResponseHeaders(200, 0);
+            OutputStream out = ex.getResponseBody();
+            // Пробелы перед JSON допустимы; запись в закрытое клиентом соединение падает
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(hangMs);
+            while (System.nanoTime() < deadline) {
+                out.write(' ');
+                out.flush();
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            out.write(("{\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"ok\"}}]}")
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            aborted.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    @Test
+    void cancelAbortsTheExchange() throws Exception {
+        int n = 5;
+        List<CompletableFuture<String>> calls = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) calls.add(client.chatContentAsync(BODY, Duration.ofSeconds(10)));
+        waitUntil(() -> requests.sum() == n, "requests reached the server");
+
+        for (CompletableFuture<String> f : calls) f.cancel(true);
+        for (CompletableFuture<String> f : calls) assertThrows(CancellationException.class, f::join);
+
+        waitUntil(() -> aborted.sum() == n, "server saw every connection closed");
+        assertTrue(client.stats().contains("inFlight=0"), client.stats());
+
+        // Клиент после отмен по-прежнему работает
+        hangMs = 0;
+        assertEquals("ok", client.chatContentAsync(BODY, Duration.ofSeconds(10)).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void interruptAbortsBlockingCall() throws Exception {
+        AtomicReference<Throwable> seen = new AtomicReference<>();
+        Thread caller = new Thread(() -> {
+            try {
+                client.chatContent(BODY, Duration.ofSeconds(10));
+            } catch (Throwable e) {
+                seen.set(e);
+            }
+        });
+        caller.start();
+        waitUntil(() -> requests.sum() == 1, "request reached the server");
+        caller.interrupt();
+        caller.join(1000);
+        assertInstanceOf(InterruptedException.class, seen.get());
+        waitUntil(() -> aborted.sum() == 1, "server saw the connection closed");
+    }
+
+    @Test
+    void timeoutAbortsTheExchange() throws Exception {
+        try {
+            client.chatContentAsync(BODY, Duration.ofMillis(300)).get(5, TimeUnit.SECONDS);
+            fail("timeout expected");
+        } catch (ExecutionException e) {
+            assertInstanceOf(HttpTimeoutException.class, e.getCause());
+        }
+        waitUntil(() -> aborted.sum() == 1, "server saw the connection closed");
+    }
+
+    private static void waitUntil(BooleanSupplier c, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!c.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail("timed out waiting: " + what);
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+}
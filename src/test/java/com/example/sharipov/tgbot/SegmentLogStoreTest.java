@@ -0,0 +1,185 @@
+package com.example.sharipov.tgbot;
+
+import com.example.sharipov.tgbot.HistoryStore.Summary;
+import com.example.sharipov.tgbot.HistoryStore.WriteOp;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static com.example.sharipov.tgbot.HistoryStoreContractTest.contents;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Восстановление SegmentLogStore: повторное открытие без close() (падение процесса),
+ * оборванный хвост и недописанная пачка, сбой компакции между записью копий и удалением файла.
+ */
+class SegmentLogStoreTest {
+
+    private static final int SEGMENT = 64 * 1024;
+
+    @TempDir
+    Path tmp;
+
+    private Path dir;
+
+    private HistoryStore open() throws Exception {
+        if (dir == null) dir = tmp.resolve("log");
+        HistoryStore s = new SegmentLogStore(dir, SEGMENT);
+        s.init();
+        return s;
+    }
+
+    // Падение процесса: отображённые страницы уже в page cache, close() не нужен
+    private void writeWithoutClose() throws Exception {
+        HistoryStore crashed = open();
+        for (int i = 1; i <= 2000; i++) crashed.append(i % 20, "user", "запись " + i);
+        crashed.saveSummary(3, new Summary("сводка", 40));
+    }
+
+    @Test
+    void reopensWithoutClose() throws Exception {
+        writeWithoutClose();
+        try (HistoryStore s = open()) {
+            assertEquals(100, s.lastIndex(0));
+            assertEquals("запись 2000", s.loadLastMessages(0, 1).get(0).content());
+            assertEquals("сводка", s.loadSummary(3).text());
+        }
+    }
+
+    @Test
+    void dropsCorruptTail() throws Exception {
+        writeWithoutClose();
+        try (HistoryStore s = open()) {
+            s.append(0, "user", "последняя");
+        }
+        // У последней записи испорчен текст — CRC не сходится, она отбрасывается
+        corruptLastRecord(20);
+        try (HistoryStore s = open()) {
+            assertEquals(100, s.lastIndex(0));
+            s.append(0, "user", "после сбоя");
+        }
+        try (HistoryStore s = open()) {
+            assertEquals(101, s.lastIndex(0));
+            assertEquals("после сбоя", s.loadLastMessages(0, 1).get(0).content());
+        }
+    }
+
+    @Test
+    void dropsTornBatchAsWhole() throws Exception {
+        writeWithoutClose();
+        try (HistoryStore s = open()) {
+            s.writeBatch(List.of(WriteOp.append(0, "user", "п1"), WriteOp.append(1, "user", "п2"),
+                    WriteOp.append(0, "assistant", "п3")));
+        }
+        corruptLastRecord(20);
+        try (HistoryStore s = open()) {
+            assertEquals(100, s.lastIndex(0));
+            assertEquals(100, s.lastIndex(1));
+        }
+    }
+
+    @Test
+    void compactionKeepsData() throws Exception {
+        writeWithoutClose();
+        List<String> expected;
+        try (HistoryStore s = open()) {
+            for (long chat = 0; chat < 20; chat++) s.trimToLast(chat, 2);
+            long freed = 0, step;
+            while ((step = s.reclaimSpace(1 << 20)) > 0) freed += step;
+            assertTrue(freed > 0, "compaction frees segments");
+            expected = snapshot(s);
+        }
+        try (HistoryStore s = open()) {
+            assertEquals(expected, snapshot(s));
+        }
+    }
+
+    @Test
+    void interruptedCompactionHasNoDuplicates() throws Exception {
+        writeWithoutClose();
+        List<String> expected;
+        try (HistoryStore s = open()) {
+            for (int i = 0; i < 3000; i++) s.append(i % 20, "user", "ещё " + i);
+            for (long chat = 0; chat < 20; chat++) s.trimToLast(chat, 5);
+            expected = snapshot(s);
+            Path backup = Files.createDirectories(tmp.resolve("backup"));
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p : files.toList()) Files.copy(p, backup.resolve(p.getFileName()));
+            }
+            assertTrue(s.reclaimSpace(1 << 20) > 0, "something to compact");
+            // Возвращаем удалённые сегменты: как будто процесс упал до удаления файла
+            try (Stream<Path> files = Files.list(backup)) {
+                for (Path p : files.toList()) {
+                    Path target = dir.resolve(p.getFileName());
+                    if (!Files.exists(target)) Files.copy(p, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        try (HistoryStore s = open()) {
+            assertEquals(expected, snapshot(s));
+        }
+    }
+
+    @Test
+    void prunedOutChatsLeaveTheIndex() throws Exception {
+        writeWithoutClose();
+        try (HistoryStore s = open()) {
+            assertTrue(s.warmUp(100).startsWith("chats=20 "));
+            long future = System.currentTimeMillis() / 1000 + 60;
+            while (s.pruneOlderThan(future, 500) > 0) { }
+            // Остался только чат со сводкой
+            assertTrue(s.warmUp(100).startsWith("chats=1 "), s.warmUp(100));
+            assertEquals(100, s.lastIndex(0), "index survives retirement");
+            while (s.reclaimSpace(1 << 20) > 0) { }
+            s.append(0, "user", "снова");
+            assertEquals(101, s.lastIndex(0));
+            assertEquals(List.of("снова"), contents(s.loadLastMessages(0, 100)));
+        }
+        try (HistoryStore s = open()) {
+            assertEquals(List.of("снова"), contents(s.loadLastMessages(0, 100)), "pruned messages stay pruned");
+            assertTrue(s.loadLastMessages(1, 100).isEmpty());
+            assertEquals(100, s.lastIndex(1));
+            assertTrue(s.warmUp(100).startsWith("chats=2 "), s.warmUp(100));
+        }
+    }
+
+    // Портит байты в середине тела последней записи последнего сегмента
+    private void corruptLastRecord(int fromEnd) throws IOException {
+        Path last;
+        try (Stream<Path> files = Files.list(dir)) {
+            last = files.max(Comparator.naturalOrder()).orElseThrow();
+        }
+        try (RandomAccessFile f = new RandomAccessFile(last.toFile(), "rw")) {
+            int pos = 0, end = 0;
+            while (pos + 8 <= f.length()) {
+                f.seek(pos);
+                int len = f.readInt();
+                if (len == 0) break;
+                end = pos + 8 + len;
+                pos = end;
+            }
+            f.seek(end - fromEnd);
+            f.write(new byte[]{'!', '!', '!'});
+        }
+    }
+
+    private static List<String> snapshot(HistoryStore s) throws Exception {
+        List<String> out = new ArrayList<>();
+        for (long chat = 0; chat < 20; chat++) {
+            out.add(chat + ":" + s.lastIndex(chat) + ":" + contents(s.loadLastMessages(chat, 1000)));
+            Summary sum = s.loadSummary(chat);
+            if (sum != null) out.add(chat + ":summary:" + sum.text() + "@" + sum.uptoIndex());
+        }
+        return out;
+    }
+}
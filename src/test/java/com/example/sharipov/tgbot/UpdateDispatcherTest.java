@@ -0,0 +1,149 @@
+package com.example.sharipov.tgbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * UpdateDispatcher под нагрузкой из нескольких потоков: задачи чата выполняются по одной
+ * и в порядке постановки, принятые задачи не теряются, слоты возвращаются;
+ * при медленном LLM пропускная способность растёт с числом чатов.
+ */
+class UpdateDispatcherTest {
+
+    @Test
+    void keepsPerChatOrderAndLosesNothing() throws Exception {
+        int producers = 8, chats = 32, perChat = 2_000;
+        int total = chats * perChat;
+        // Порядок задаёт номер, выданный под замком чата вместе с submit;
+        // maxInFlight меньше общего числа — submit'ы ждут слотов и mailbox'ы то пустеют, то создаются заново
+        Object[] chatLocks = new Object[chats];
+        int[] issued = new int[chats];
+        for (int c = 0; c < chats; c++) chatLocks[c] = new Object();
+        AtomicIntegerArray expected = new AtomicIntegerArray(chats);
+        AtomicIntegerArray running = new AtomicIntegerArray(chats);
+        ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<>();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(total);
+
+        try (UpdateDispatcher dispatcher = new UpdateDispatcher(256, Duration.ofSeconds(30))) {
+            List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                Thread t = new Thread(() -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < total / producers; i++) {
+                        int chat = rnd.nextInt(chats);
+                        synchronized (chatLocks[chat]) {
+                            if (issued[chat] == perChat) {
+                                i--;
+                                continue;
+                            }
+                            int seq = issued[chat]++;
+                            boolean accepted = dispatcher.submit(chat, () -> {
+                                if (running.getAndIncrement(chat) != 0) violations.add("chat " + chat + " ran concurrently");
+                                int want = expected.getAndIncrement(chat);
+                                if (want != seq) violations.add("chat " + chat + " expected " + want + " got " + seq);
+                                if (ThreadLocalRandom.current().nextInt(64) == 0) Thread.yield();
+                                running.decrementAndGet(chat);
+                                done.countDown();
+                            });
+                            if (!accepted) rejected.incrementAndGet();
+                        }
+                    }
+                }, "producer-" + p);
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) t.join();
+
+            assertEquals(0, rejected.get());
+            assertTrue(done.await(30, TimeUnit.SECONDS), "not run: " + done.getCount());
+            assertTrue(violations.isEmpty(), () -> violations.size() + " violations, first: " + violations.peek());
+            for (int c = 0; c < chats; c++) assertEquals(perChat, expected.get(c), "chat " + c);
+            waitUntil(() -> dispatcher.inFlight() == 0 && dispatcher.activeChats() == 0);
+        }
+    }
+
+    @Test
+    void rejectsWhenFullAndReleasesSlots() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        try (UpdateDispatcher dispatcher = new UpdateDispatcher(4, Duration.ofMillis(20))) {
+            int accepted = 0;
+            for (int i = 0; i < 10; i++) {
+                boolean ok = dispatcher.submit(i % 2, () -> {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ran.incrementAndGet();
+                });
+                if (ok) accepted++;
+            }
+            assertEquals(4, accepted);
+            assertEquals(4, dispatcher.inFlight());
+            assertFalse(dispatcher.submit(7, ran::incrementAndGet), "full dispatcher rejects");
+
+            gate.countDown();
+            waitUntil(() -> dispatcher.inFlight() == 0);
+            assertEquals(4, ran.get());
+            // Падающая задача тоже возвращает слот и не ломает mailbox
+            assertTrue(dispatcher.submit(1, () -> { throw new IllegalStateException("boom"); }));
+            assertTrue(dispatcher.submit(1, ran::incrementAndGet));
+            waitUntil(() -> ran.get() == 5 && dispatcher.inFlight() == 0);
+        }
+    }
+
+    @Test
+    void throughputGrowsWithChatsWhenBackendIsSlow() throws Exception {
+        long oneChat = elapsedMs(1), eightChats = elapsedMs(8);
+        // Один чат — строго по очереди: не быстрее суммы задержек
+        assertTrue(oneChat >= UPDATES * LLM_MS, "one chat: " + oneChat + " ms");
+        assertTrue(eightChats * 3 < oneChat, "1 chat: " + oneChat + " ms, 8 chats: " + eightChats + " ms");
+    }
+
+    private static final int UPDATES = 32;
+    private static final long LLM_MS = 20;
+
+    // Как DispatcherBench: задача спит, будто ждёт ответа LLM
+    private static long elapsedMs(int chats) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(UPDATES);
+        try (UpdateDispatcher dispatcher = new UpdateDispatcher(256, Duration.ofSeconds(10))) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < UPDATES; i++) {
+                assertTrue(dispatcher.submit(i % chats, () -> {
+                    try {
+                        Thread.sleep(LLM_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }));
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier c) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!c.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+}